@@ -0,0 +1,196 @@
+/*
+ * Copyright 2012 Netflix, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.netflix.exhibitor.benchmarks;
+
+import com.google.common.collect.Lists;
+import com.netflix.exhibitor.core.activity.ActivityQueue;
+import com.netflix.exhibitor.core.activity.QueueGroups;
+import com.netflix.exhibitor.core.activity.RepeatingActivity;
+import com.netflix.exhibitor.core.activity.RepeatingActivityImpl;
+import com.netflix.exhibitor.core.activity.SchedulableActivity;
+import org.apache.curator.utils.CloseableUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Measures ActivityQueue scheduling throughput (replacing delayed activities, which is what
+ * RepeatingActivityImpl.setTimePeriodMs() does) from several threads while thousands of repeating
+ * activities keep the queue busy. The start jitter of the repeating activities - how late each run
+ * starts compared to its period - is printed at the end of the trial.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Threads(4)
+@Fork(1)
+public class ActivityQueueBenchmark
+{
+    @Param({"1000", "5000"})
+    public int repeatingQty;
+
+    @Param({"100"})
+    public int periodMs;
+
+    @Param({"10000"})
+    public int scheduledQty;
+
+    private static final int MAX_LATENESS_MS = 1000;
+
+    private ActivityQueue queue;
+    private List<RepeatingActivity> repeating;
+    private SchedulableActivity[] scheduled;
+    private final AtomicLongArray latenessHistogram = new AtomicLongArray(MAX_LATENESS_MS + 1);
+    private final AtomicLong runQty = new AtomicLong();
+
+    @Setup(Level.Trial)
+    public void setup()
+    {
+        queue = new ActivityQueue();
+        queue.start();
+
+        repeating = Lists.newArrayList();
+        for ( int i = 0; i < repeatingQty; ++i )
+        {
+            RepeatingActivity   activity = new RepeatingActivityImpl(null, queue, QueueGroups.MAIN, new MeasuredActivity(), periodMs);
+            repeating.add(activity);
+            activity.start();
+        }
+
+        scheduled = new SchedulableActivity[scheduledQty];
+        for ( int i = 0; i < scheduledQty; ++i )
+        {
+            scheduled[i] = new NopActivity();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        for ( RepeatingActivity activity : repeating )
+        {
+            CloseableUtils.closeQuietly(activity);
+        }
+        CloseableUtils.closeQuietly(queue);
+
+        System.out.println();
+        System.out.println(String.format("%d runs. Start lateness p50: %d ms, p99: %d ms, p99.9: %d ms, max: %s ms", runQty.get(), percentile(0.50), percentile(0.99), percentile(0.999), (latenessHistogram.get(MAX_LATENESS_MS) > 0) ? (">" + MAX_LATENESS_MS) : Long.toString(maxLateness())));
+    }
+
+    @Benchmark
+    public void replace()
+    {
+        // long delay so that these churn the timer but never run
+        queue.replace(QueueGroups.MAIN, scheduled[ThreadLocalRandom.current().nextInt(scheduledQty)], 1, TimeUnit.HOURS);
+    }
+
+    private long percentile(double percentile)
+    {
+        long    target = (long)Math.ceil(runQty.get() * percentile);
+        long    count = 0;
+        for ( int i = 0; i <= MAX_LATENESS_MS; ++i )
+        {
+            count += latenessHistogram.get(i);
+            if ( count >= target )
+            {
+                return i;
+            }
+        }
+        return MAX_LATENESS_MS;
+    }
+
+    private long maxLateness()
+    {
+        for ( int i = MAX_LATENESS_MS; i >= 0; --i )
+        {
+            if ( latenessHistogram.get(i) > 0 )
+            {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    private class MeasuredActivity extends NopActivity
+    {
+        private volatile long   lastEndNs = 0;
+
+        @Override
+        public Boolean call() throws Exception
+        {
+            long    now = System.nanoTime();
+            if ( lastEndNs != 0 )
+            {
+                long    latenessMs = TimeUnit.NANOSECONDS.toMillis(now - lastEndNs) - periodMs;
+                latenessHistogram.incrementAndGet((int)Math.min(MAX_LATENESS_MS, Math.max(0, latenessMs)));
+                runQty.incrementAndGet();
+            }
+            lastEndNs = System.nanoTime();  // RepeatingActivityImpl re-queues right after this returns
+            return true;
+        }
+    }
+
+    private static class NopActivity implements SchedulableActivity
+    {
+        @Override
+        public Priority getPriority()
+        {
+            return Priority.NORMAL;
+        }
+
+        @Override
+        public String getSerializationKey()
+        {
+            return null;
+        }
+
+        @Override
+        public long getDeadlineMs()
+        {
+            return 0;
+        }
+
+        @Override
+        public void completed(boolean wasSuccessful)
+        {
+        }
+
+        @Override
+        public Boolean call() throws Exception
+        {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2012 Netflix, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.netflix.exhibitor.benchmarks;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.netflix.exhibitor.core.backup.BackupMetaData;
+import com.netflix.exhibitor.core.backup.BackupProvider;
+import com.netflix.exhibitor.core.backup.BackupStream;
+import com.netflix.exhibitor.core.backup.MultiMemberGzipInputStream;
+import com.netflix.exhibitor.core.backup.ParallelGzipInputStream;
+import com.netflix.exhibitor.core.backup.StreamingBackupProvider;
+import com.netflix.exhibitor.core.backup.filesystem.FileSystemBackupProvider;
+import com.netflix.exhibitor.core.backup.s3.MockS3Client;
+import com.netflix.exhibitor.core.backup.s3.MockS3ClientFactory;
+import com.netflix.exhibitor.core.backup.s3.S3BackupProvider;
+import com.netflix.exhibitor.core.s3.PropertyBasedS3ClientConfig;
+import com.netflix.exhibitor.core.s3.PropertyBasedS3Credential;
+import org.apache.curator.utils.CloseableUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the backup hot path (compress and upload) and the restore hot path (download and decompress)
+ * the way BackupManager does, against the mock S3 client and the file system provider, using a
+ * synthetic transaction log.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class BackupPipelineBenchmark
+{
+    @Param({"s3", "filesystem"})
+    public String provider;
+
+    @Param({"100000"})
+    public int entryQty;
+
+    @Param({"100"})
+    public int dataSize;
+
+    private File directory;
+    private File logFile;
+    private ExecutorService compressionService;
+    private int compressionThreads;
+    private BackupProvider backupProvider;
+    private Map<String, String> config;
+    private BackupMetaData restorable;
+    private long version = 0;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception
+    {
+        directory = BenchmarkLogs.makeTempDirectory();
+        logFile = BenchmarkLogs.writeLog(directory, 1, entryQty, dataSize);
+
+        compressionThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        compressionService = Executors.newFixedThreadPool(compressionThreads, new ThreadFactoryBuilder().setDaemon(true).setNameFormat("BackupPipelineBenchmark-%d").build());
+    }
+
+    @Setup(Level.Iteration)
+    public void setupIteration() throws Exception
+    {
+        // fresh storage each iteration so that it doesn't grow without bound
+        if ( provider.equals("s3") )
+        {
+            backupProvider = new S3BackupProvider(new MockS3ClientFactory(new MockS3Client()), new PropertyBasedS3Credential(new Properties()), new PropertyBasedS3ClientConfig(new Properties()), null);
+            config = ImmutableMap.of("bucket-name", "benchmark", "key-prefix", "benchmark", "throttle", "0", "part-size-mb", "5");
+        }
+        else
+        {
+            File    backupDirectory = new File(directory, "backups");
+            BenchmarkLogs.deleteDirectory(backupDirectory);
+            backupProvider = new FileSystemBackupProvider();
+            config = ImmutableMap.of("directory", backupDirectory.getPath(), "throttle", "0");
+        }
+
+        restorable = new BackupMetaData(logFile.getName(), ++version);
+        upload(restorable);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        compressionService.shutdownNow();
+        BenchmarkLogs.deleteDirectory(directory);
+    }
+
+    @Benchmark
+    public BackupProvider.UploadResult backup() throws Exception
+    {
+        return upload(new BackupMetaData("backup-" + logFile.getName(), ++version));
+    }
+
+    @Benchmark
+    public long restore() throws Exception
+    {
+        File            restored = new File(directory, "restored");
+        BackupStream    backupStream = backupProvider.getBackupStream(null, restorable, config);
+        InputStream     in = null;
+        OutputStream    out = null;
+        try
+        {
+            in = new MultiMemberGzipInputStream(backupStream.getStream(), 64 * 1024);
+            out = new FileOutputStream(restored);
+            return ByteStreams.copy(in, out);
+        }
+        finally
+        {
+            CloseableUtils.closeQuietly(in);
+            CloseableUtils.closeQuietly(out);
+            CloseableUtils.closeQuietly(backupStream);
+        }
+    }
+
+    private BackupProvider.UploadResult upload(BackupMetaData metaData) throws Exception
+    {
+        InputStream     in = new ParallelGzipInputStream(new FileInputStream(logFile), compressionService, 1024 * 1024, compressionThreads * 2);
+        try
+        {
+            if ( backupProvider instanceof StreamingBackupProvider )
+            {
+                return ((StreamingBackupProvider)backupProvider).uploadBackupStream(null, metaData, in, config, ImmutableList.<BackupMetaData>of());
+            }
+
+            File            compressed = new File(directory, "compressed");
+            OutputStream    out = new FileOutputStream(compressed);
+            try
+            {
+                ByteStreams.copy(in, out);
+            }
+            finally
+            {
+                CloseableUtils.closeQuietly(out);
+            }
+            return backupProvider.uploadBackup(null, metaData, compressed, config);
+        }
+        finally
+        {
+            CloseableUtils.closeQuietly(in);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2012 Netflix, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.netflix.exhibitor.benchmarks;
+
+import com.google.common.io.Files;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.server.persistence.FileTxnLog;
+import org.apache.zookeeper.txn.CreateTxn;
+import org.apache.zookeeper.txn.DeleteTxn;
+import org.apache.zookeeper.txn.SetDataTxn;
+import org.apache.zookeeper.txn.TxnHeader;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Generates synthetic ZooKeeper transaction logs for the benchmarks
+ */
+class BenchmarkLogs
+{
+    static File makeTempDirectory()
+    {
+        return Files.createTempDir();
+    }
+
+    /**
+     * Write a log containing a repeating create/setData/delete pattern
+     *
+     * @param directory log directory
+     * @param startZxid first zxid
+     * @param entryQty number of transactions
+     * @param dataSize size of node data
+     * @return the log file
+     * @throws IOException errors
+     */
+    static File writeLog(File directory, long startZxid, int entryQty, int dataSize) throws IOException
+    {
+        Random      random = new Random(startZxid);
+        byte[]      data = new byte[dataSize];
+        FileTxnLog  txnLog = new FileTxnLog(directory);
+        try
+        {
+            long    time = System.currentTimeMillis();
+            for ( int i = 0; i < entryQty; ++i )
+            {
+                long        zxid = startZxid + i;
+                String      path = "/benchmark/node-" + (i / 3);
+                random.nextBytes(data);
+                switch ( i % 3 )
+                {
+                    case 0:
+                    {
+                        txnLog.append(new TxnHeader(1, i, zxid, time + i, ZooDefs.OpCode.create), new CreateTxn(path, data, ZooDefs.Ids.OPEN_ACL_UNSAFE, false, i));
+                        break;
+                    }
+
+                    case 1:
+                    {
+                        txnLog.append(new TxnHeader(1, i, zxid, time + i, ZooDefs.OpCode.setData), new SetDataTxn(path, data, 1));
+                        break;
+                    }
+
+                    default:
+                    {
+                        txnLog.append(new TxnHeader(1, i, zxid, time + i, ZooDefs.OpCode.delete), new DeleteTxn(path));
+                        break;
+                    }
+                }
+            }
+            txnLog.commit();
+        }
+        finally
+        {
+            txnLog.close();
+        }
+        return new File(directory, "log." + Long.toHexString(startZxid));
+    }
+
+    static void deleteDirectory(File directory)
+    {
+        File[]      files = directory.listFiles();
+        if ( files != null )
+        {
+            for ( File f : files )
+            {
+                if ( f.isDirectory() )
+                {
+                    deleteDirectory(f);
+                }
+                else
+                {
+                    //noinspection ResultOfMethodCallIgnored
+                    f.delete();
+                }
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        directory.delete();
+    }
+
+    private BenchmarkLogs()
+    {
+    }
+}
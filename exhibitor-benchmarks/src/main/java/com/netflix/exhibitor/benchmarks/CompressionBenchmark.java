@@ -0,0 +1,157 @@
+/*
+ * Copyright 2012 Netflix, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.netflix.exhibitor.benchmarks;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.netflix.exhibitor.core.backup.ParallelGzipInputStream;
+import org.apache.curator.utils.CloseableUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compares the single threaded gzip that backups used to use with the block-parallel gzip. Set
+ * the logPath param to a real transaction log to measure it, otherwise a synthetic log is generated.
+ * The compression ratio of each variant is printed at the end of the trial.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CompressionBenchmark
+{
+    @Param({""})
+    public String logPath;
+
+    @Param({"1", "4"})
+    public int threads;
+
+    @Param({"1024"})
+    public int blockKb;
+
+    private File directory;
+    private File logFile;
+    private ExecutorService executor;
+    private long singleThreadedSize;
+    private long parallelSize;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception
+    {
+        if ( logPath.length() > 0 )
+        {
+            logFile = new File(logPath);
+        }
+        else
+        {
+            directory = BenchmarkLogs.makeTempDirectory();
+            logFile = BenchmarkLogs.writeLog(directory, 1, 500000, 100);
+        }
+        executor = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder().setDaemon(true).setNameFormat("CompressionBenchmark-%d").build());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        executor.shutdownNow();
+        System.out.println();
+        System.out.println(String.format("%s: %d bytes. Single threaded ratio: %.3f. Parallel ratio: %.3f", logFile.getName(), logFile.length(), ratio(singleThreadedSize), ratio(parallelSize)));
+        if ( directory != null )
+        {
+            BenchmarkLogs.deleteDirectory(directory);
+        }
+    }
+
+    @Benchmark
+    public long singleThreaded() throws Exception
+    {
+        CountingOutputStream    counter = new CountingOutputStream();
+        InputStream             in = new FileInputStream(logFile);
+        try
+        {
+            OutputStream        out = new GZIPOutputStream(counter);
+            ByteStreams.copy(in, out);
+            out.close();
+        }
+        finally
+        {
+            CloseableUtils.closeQuietly(in);
+        }
+        singleThreadedSize = counter.count;
+        return counter.count;
+    }
+
+    @Benchmark
+    public long parallel() throws Exception
+    {
+        CountingOutputStream    counter = new CountingOutputStream();
+        InputStream             in = new ParallelGzipInputStream(new FileInputStream(logFile), executor, blockKb * 1024, threads * 2);
+        try
+        {
+            ByteStreams.copy(in, counter);
+        }
+        finally
+        {
+            CloseableUtils.closeQuietly(in);
+        }
+        parallelSize = counter.count;
+        return counter.count;
+    }
+
+    private double ratio(long compressedSize)
+    {
+        return (compressedSize > 0) ? ((double)compressedSize / logFile.length()) : 0;
+    }
+
+    private static class CountingOutputStream extends OutputStream
+    {
+        private long count = 0;
+
+        @Override
+        public void write(int b)
+        {
+            ++count;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len)
+        {
+            count += len;
+        }
+    }
+}
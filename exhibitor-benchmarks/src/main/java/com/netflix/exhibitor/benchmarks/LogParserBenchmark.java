@@ -0,0 +1,110 @@
+/*
+ * Copyright 2012 Netflix, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.netflix.exhibitor.benchmarks;
+
+import com.netflix.exhibitor.core.index.LogEntryReceiver;
+import com.netflix.exhibitor.core.index.MappedZooKeeperLogParser;
+import com.netflix.exhibitor.core.index.ZooKeeperLogParser;
+import org.apache.curator.utils.CloseableUtils;
+import org.apache.jute.Record;
+import org.apache.zookeeper.txn.TxnHeader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the stream based transaction log parser with the memory mapped parser
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class LogParserBenchmark
+{
+    @Param({"100000"})
+    public int entryQty;
+
+    @Param({"100"})
+    public int dataSize;
+
+    private File directory;
+    private File logFile;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception
+    {
+        directory = BenchmarkLogs.makeTempDirectory();
+        logFile = BenchmarkLogs.writeLog(directory, 1, entryQty, dataSize);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        BenchmarkLogs.deleteDirectory(directory);
+    }
+
+    @Benchmark
+    public void streamParser(final Blackhole blackhole) throws Exception
+    {
+        InputStream         in = new BufferedInputStream(new FileInputStream(logFile), 0x100000);
+        try
+        {
+            new ZooKeeperLogParser(in).parse(makeReceiver(blackhole));
+        }
+        finally
+        {
+            CloseableUtils.closeQuietly(in);
+        }
+    }
+
+    @Benchmark
+    public void mappedParser(final Blackhole blackhole) throws Exception
+    {
+        new MappedZooKeeperLogParser(logFile).parse(makeReceiver(blackhole));
+    }
+
+    private static LogEntryReceiver makeReceiver(final Blackhole blackhole)
+    {
+        return new LogEntryReceiver()
+        {
+            @Override
+            public void receiveEntry(TxnHeader header, Record record) throws Exception
+            {
+                blackhole.consume(header);
+                blackhole.consume(record);
+            }
+        };
+    }
+}
@@ -27,6 +27,7 @@ import com.netflix.exhibitor.core.automanage.AutomaticInstanceManagement;
 import com.netflix.exhibitor.core.automanage.RemoteInstanceRequestClient;
 import com.netflix.exhibitor.core.automanage.RemoteInstanceRequestClientImpl;
 import com.netflix.exhibitor.core.backup.BackupManager;
+import com.netflix.exhibitor.core.backup.BackupMetrics;
 import com.netflix.exhibitor.core.backup.BackupProvider;
 import com.netflix.exhibitor.core.config.ConfigListener;
 import com.netflix.exhibitor.core.config.ConfigManager;
@@ -36,6 +37,7 @@ import com.netflix.exhibitor.core.config.JQueryStyle;
 import com.netflix.exhibitor.core.controlpanel.ControlPanelValues;
 import com.netflix.exhibitor.core.controlpanel.FileBasedPreferences;
 import com.netflix.exhibitor.core.index.IndexCache;
+import com.netflix.exhibitor.core.index.LogIndexManager;
 import com.netflix.exhibitor.core.processes.ProcessMonitor;
 import com.netflix.exhibitor.core.processes.ProcessOperations;
 import com.netflix.exhibitor.core.processes.StandardProcessOperations;
@@ -64,11 +66,12 @@ import java.util.prefs.Preferences;
 public class Exhibitor implements Closeable
 {
     private final ActivityLog                   log;
-    private final ActivityQueue                 activityQueue = new ActivityQueue();
+    private final ActivityQueue                 activityQueue;
     private final MonitorRunningInstance        monitorRunningInstance;
     private final Collection<UITab>             additionalUITabs;
     private final ProcessOperations             processOperations;
     private final CleanupManager                cleanupManager;
+    private final LogIndexManager               logIndexManager;
     private final AtomicReference<State>        state = new AtomicReference<State>(State.LATENT);
     private final IndexCache                    indexCache;
     private final ControlPanelValues            controlPanelValues;
@@ -126,11 +129,13 @@ public class Exhibitor implements Closeable
 
         this.arguments = arguments;
         log = new ActivityLog(arguments.logWindowSizeLines);
+        activityQueue = new ActivityQueue(log);
         this.configManager = new ConfigManager(this, configProvider, arguments.configCheckMs);
         this.additionalUITabs = (additionalUITabs != null) ? ImmutableList.copyOf(additionalUITabs) : ImmutableList.<UITab>of();
         this.processOperations = new StandardProcessOperations(this);
         monitorRunningInstance = new MonitorRunningInstance(this);
         cleanupManager = new CleanupManager(this);
+        logIndexManager = new LogIndexManager(this);
         indexCache = new IndexCache(log);
         processMonitor = new ProcessMonitor(this);
         autoInstanceManagement = new RepeatingActivityImpl(log, activityQueue, QueueGroups.MAIN, new AutomaticInstanceManagement(this), getAutoInstanceManagementPeriod());
@@ -184,6 +189,7 @@ public class Exhibitor implements Closeable
         monitorRunningInstance.start();
         cleanupManager.start();
         backupManager.start();
+        logIndexManager.start();
         autoInstanceManagement.start();
         if ( servoMonitoring != null )
         {
@@ -223,11 +229,15 @@ public class Exhibitor implements Closeable
         if ( (arguments.servoRegistration != null) && (servoCompositeMonitor != null) )
         {
             arguments.servoRegistration.getMonitorRegistry().unregister(servoCompositeMonitor);
+            arguments.servoRegistration.getMonitorRegistry().unregister(BackupMetrics.getInstance().getMonitor());
+            arguments.servoRegistration.getMonitorRegistry().unregister(monitorRunningInstance.getMonitor());
+            activityQueue.getMetrics().unregister();
         }
 
         CloseableUtils.closeQuietly(servoMonitoring);
         CloseableUtils.closeQuietly(autoInstanceManagement);
         CloseableUtils.closeQuietly(processMonitor);
+        CloseableUtils.closeQuietly(logIndexManager);
         CloseableUtils.closeQuietly(indexCache);
         CloseableUtils.closeQuietly(backupManager);
         CloseableUtils.closeQuietly(cleanupManager);
@@ -411,6 +421,9 @@ public class Exhibitor implements Closeable
             GetMonitorData          getMonitorData = new GetMonitorData(exhibitor, zookeeperMonitoredData);
             localServoMonitoring = new RepeatingActivityImpl(log, activityQueue, QueueGroups.IO, getMonitorData, arguments.servoRegistration.getZookeeperPollMs());
             arguments.servoRegistration.getMonitorRegistry().register(compositeMonitor);
+            arguments.servoRegistration.getMonitorRegistry().register(BackupMetrics.getInstance().getMonitor());
+            arguments.servoRegistration.getMonitorRegistry().register(exhibitor.getMonitorRunningInstance().getMonitor());
+            activityQueue.getMetrics().register(arguments.servoRegistration.getMonitorRegistry());
 
             theMonitor.set(compositeMonitor);
         }
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2012 Netflix, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.netflix.exhibitor.core.activity;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Returned by {@link ActivityQueue} for each queued activity
+ */
+public interface ActivityHandle
+{
+    /**
+     * Remove the activity from the queue if it hasn't started yet
+     *
+     * @return true if the activity was cancelled, false if it had already started or been cancelled
+     */
+    public boolean          cancel();
+
+    /**
+     * Cancel this entry and queue the activity again in the same group
+     *
+     * @param delay the new delay
+     * @param unit the delay unit
+     * @return handle of the new entry
+     */
+    public ActivityHandle   reschedule(long delay, TimeUnit unit);
+
+    /**
+     * @return true if the activity is still waiting to run
+     */
+    public boolean          isPending();
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright 2012 Netflix, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.netflix.exhibitor.core.activity;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.netflix.servo.MonitorRegistry;
+import com.netflix.servo.monitor.BasicCompositeMonitor;
+import com.netflix.servo.monitor.BasicCounter;
+import com.netflix.servo.monitor.BasicGauge;
+import com.netflix.servo.monitor.BasicTimer;
+import com.netflix.servo.monitor.BucketConfig;
+import com.netflix.servo.monitor.BucketTimer;
+import com.netflix.servo.monitor.CompositeMonitor;
+import com.netflix.servo.monitor.Monitor;
+import com.netflix.servo.monitor.MonitorConfig;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Execution metrics of an {@link ActivityQueue}: the queue depth of each group and, per group and activity
+ * class, the queue wait (actual vs. scheduled start), an execution time histogram, success/failure counts
+ * and the number of runs that went past the group's budget. Exposed via Servo (see {@link #register(MonitorRegistry)})
+ * and the REST API.
+ */
+public class ActivityMetrics
+{
+    private final Map<QueueGroups, GroupDepth> depths;
+    private final ConcurrentMap<String, ActivityStats> stats = Maps.newConcurrentMap();
+    private final CompositeMonitor<?> depthMonitor;
+    private volatile MonitorRegistry registry = null;
+
+    /**
+     * Upper bounds of the execution time histogram buckets. Longer runs go in an overflow bucket.
+     */
+    private static final long[] HISTOGRAM_BUCKETS_MS = {10, 100, 1000, 10000, 60000, 600000};
+
+    private static class GroupDepth
+    {
+        private final AtomicInteger     queued = new AtomicInteger(0);
+        private final AtomicInteger     ready = new AtomicInteger(0);
+        private final AtomicInteger     running = new AtomicInteger(0);
+    }
+
+    private static class ActivityStats
+    {
+        private final BasicTimer        wait;
+        private final BucketTimer       run;
+        private final AtomicLongArray   histogram = new AtomicLongArray(HISTOGRAM_BUCKETS_MS.length + 1);
+        private final BasicCounter      successes;
+        private final BasicCounter      failures;
+        private final BasicCounter      slow;
+        private final CompositeMonitor<?> monitor;
+
+        private ActivityStats(String name)
+        {
+            String      prefix = "activity_" + name.toLowerCase(Locale.ENGLISH).replace('.', '_');
+            wait = new BasicTimer(MonitorConfig.builder(prefix + "_wait").build(), TimeUnit.MILLISECONDS);
+            run = new BucketTimer(MonitorConfig.builder(prefix + "_run").build(), new BucketConfig.Builder().withTimeUnit(TimeUnit.MILLISECONDS).withBuckets(HISTOGRAM_BUCKETS_MS).build(), TimeUnit.MILLISECONDS);
+            successes = new BasicCounter(MonitorConfig.builder(prefix + "_successes").build());
+            failures = new BasicCounter(MonitorConfig.builder(prefix + "_failures").build());
+            slow = new BasicCounter(MonitorConfig.builder(prefix + "_slow").build());
+            monitor = new BasicCompositeMonitor(MonitorConfig.builder("exhibitor_" + prefix).build(), ImmutableList.<Monitor<?>>of(wait, run, successes, failures, slow));
+        }
+    }
+
+    ActivityMetrics()
+    {
+        ImmutableMap.Builder<QueueGroups, GroupDepth>   depthsBuilder = ImmutableMap.builder();
+        ImmutableList.Builder<Monitor<?>>               monitorsBuilder = ImmutableList.builder();
+        for ( QueueGroups group : QueueGroups.values() )
+        {
+            final GroupDepth    depth = new GroupDepth();
+            depthsBuilder.put(group, depth);
+
+            String              prefix = "activity_queue_" + group.name().toLowerCase(Locale.ENGLISH);
+            monitorsBuilder.add(newGauge(prefix + "_queued", depth.queued));
+            monitorsBuilder.add(newGauge(prefix + "_ready", depth.ready));
+            monitorsBuilder.add(newGauge(prefix + "_running", depth.running));
+        }
+        depths = depthsBuilder.build();
+        depthMonitor = new BasicCompositeMonitor(MonitorConfig.builder("exhibitor_activity_queue").build(), monitorsBuilder.build());
+    }
+
+    /**
+     * Register all current and future monitors with Servo
+     *
+     * @param registry the registry
+     */
+    public synchronized void register(MonitorRegistry registry)
+    {
+        this.registry = registry;
+        registry.register(depthMonitor);
+        for ( ActivityStats activityStats : stats.values() )
+        {
+            registry.register(activityStats.monitor);
+        }
+    }
+
+    /**
+     * Unregister the monitors from the registry passed to {@link #register(MonitorRegistry)}
+     */
+    public synchronized void unregister()
+    {
+        if ( registry != null )
+        {
+            registry.unregister(depthMonitor);
+            for ( ActivityStats activityStats : stats.values() )
+            {
+                registry.unregister(activityStats.monitor);
+            }
+            registry = null;
+        }
+    }
+
+    /**
+     * @return a snapshot of the queue depth of each group by group name: "queued" is every entry that
+     * hasn't started (including delayed ones), "ready" is entries that are due and waiting for a worker
+     */
+    public Map<String, Map<String, Number>> getGroupValues()
+    {
+        Map<String, Map<String, Number>>    values = Maps.newTreeMap();
+        for ( Map.Entry<QueueGroups, GroupDepth> entry : depths.entrySet() )
+        {
+            Map<String, Number>     groupValues = Maps.newTreeMap();
+            groupValues.put("queued", entry.getValue().queued.get());
+            groupValues.put("ready", entry.getValue().ready.get());
+            groupValues.put("running", entry.getValue().running.get());
+            values.put(entry.getKey().name(), groupValues);
+        }
+        return values;
+    }
+
+    /**
+     * @return a snapshot of each activity's values by "GROUP.ActivityName"
+     */
+    public Map<String, Map<String, Number>> getActivityValues()
+    {
+        Map<String, Map<String, Number>>    values = Maps.newTreeMap();
+        for ( Map.Entry<String, ActivityStats> entry : stats.entrySet() )
+        {
+            ActivityStats           activityStats = entry.getValue();
+            Map<String, Number>     activityValues = Maps.newLinkedHashMap();
+            activityValues.put("successes", activityStats.successes.getValue());
+            activityValues.put("failures", activityStats.failures.getValue());
+            activityValues.put("slow", activityStats.slow.getValue());
+            activityValues.put("waitTotalMs", activityStats.wait.getTotalTime());
+            activityValues.put("waitMaxMs", activityStats.wait.getMax());
+            activityValues.put("runCount", activityStats.run.getCount());
+            activityValues.put("runTotalMs", activityStats.run.getTotalTime());
+            activityValues.put("runMaxMs", activityStats.run.getMax());
+            for ( int i = 0; i < HISTOGRAM_BUCKETS_MS.length; ++i )
+            {
+                activityValues.put("runUpTo" + HISTOGRAM_BUCKETS_MS[i] + "Ms", activityStats.histogram.get(i));
+            }
+            activityValues.put("runOver" + HISTOGRAM_BUCKETS_MS[HISTOGRAM_BUCKETS_MS.length - 1] + "Ms", activityStats.histogram.get(HISTOGRAM_BUCKETS_MS.length));
+            values.put(entry.getKey(), activityValues);
+        }
+        return values;
+    }
+
+    /**
+     * @param activity an activity
+     * @return the name metrics are recorded under: the class name or, for anonymous classes, the name of the enclosing class
+     */
+    static String getName(Activity activity)
+    {
+        Class<?>    clazz = RepeatingActivityImpl.getActualActivity(activity).getClass();
+        while ( clazz.isAnonymousClass() && (clazz.getEnclosingClass() != null) )
+        {
+            clazz = clazz.getEnclosingClass();
+        }
+        return clazz.getSimpleName();
+    }
+
+    void queued(QueueGroups group, boolean isReady)
+    {
+        GroupDepth  depth = depths.get(group);
+        depth.queued.incrementAndGet();
+        if ( isReady )
+        {
+            depth.ready.incrementAndGet();
+        }
+    }
+
+    void readied(QueueGroups group)
+    {
+        depths.get(group).ready.incrementAndGet();
+    }
+
+    void cancelled(QueueGroups group, boolean wasReady)
+    {
+        GroupDepth  depth = depths.get(group);
+        depth.queued.decrementAndGet();
+        if ( wasReady )
+        {
+            depth.ready.decrementAndGet();
+        }
+    }
+
+    void started(QueueGroups group, String name, long waitMs)
+    {
+        GroupDepth  depth = depths.get(group);
+        depth.queued.decrementAndGet();
+        depth.ready.decrementAndGet();
+        depth.running.incrementAndGet();
+        getStats(group, name).wait.record(Math.max(0, waitMs), TimeUnit.MILLISECONDS);
+    }
+
+    void completed(QueueGroups group, String name, long runMs, boolean success)
+    {
+        depths.get(group).running.decrementAndGet();
+
+        ActivityStats   activityStats = getStats(group, name);
+        activityStats.run.record(runMs, TimeUnit.MILLISECONDS);
+        int             bucket = 0;
+        while ( (bucket < HISTOGRAM_BUCKETS_MS.length) && (runMs > HISTOGRAM_BUCKETS_MS[bucket]) )
+        {
+            ++bucket;
+        }
+        activityStats.histogram.incrementAndGet(bucket);
+        (success ? activityStats.successes : activityStats.failures).increment();
+    }
+
+    void slow(QueueGroups group, String name)
+    {
+        getStats(group, name).slow.increment();
+    }
+
+    private ActivityStats getStats(QueueGroups group, String name)
+    {
+        String          key = group.name() + "." + name;
+        ActivityStats   activityStats = stats.get(key);
+        return (activityStats != null) ? activityStats : newStats(key);
+    }
+
+    private synchronized ActivityStats newStats(String key)
+    {
+        ActivityStats   activityStats = stats.get(key);
+        if ( activityStats == null )
+        {
+            activityStats = new ActivityStats(key);
+            stats.put(key, activityStats);
+            if ( registry != null )
+            {
+                registry.register(activityStats.monitor);
+            }
+        }
+        return activityStats;
+    }
+
+    private static Monitor<?> newGauge(String name, final AtomicInteger value)
+    {
+        return new BasicGauge<Integer>
+        (
+            MonitorConfig.builder(name).build(),
+            new Callable<Integer>()
+            {
+                @Override
+                public Integer call() throws Exception
+                {
+                    return value.get();
+                }
+            }
+        );
+    }
+}
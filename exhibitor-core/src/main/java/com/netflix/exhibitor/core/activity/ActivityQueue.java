@@ -16,89 +16,333 @@
 
 package com.netflix.exhibitor.core.activity;
 
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.MapMaker;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.Comparator;
+import java.util.Iterator;
 import java.util.Map;
-import java.util.concurrent.DelayQueue;
-import java.util.concurrent.Delayed;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * Runs activities in groups. Each group has its own worker threads (see {@link #ActivityQueue()} for
+ * the concurrency settings) plus one worker that only runs {@link SchedulableActivity.Priority#HIGH}
+ * activities. Workers share the group's ready set: the next due activity in priority/deadline order
+ * whose serialization key isn't already running is taken by whichever worker is free. Activities
+ * that aren't {@link SchedulableActivity}s share a per-group key and so still run one at a time.
+ * Delayed activities wait in a {@link TimerWheel} - adding, replacing and cancelling don't lock.
+ * Executions are recorded in {@link ActivityMetrics} and runs that take longer than their group's budget
+ * are reported to the {@link ActivityLog}.
+ */
 public class ActivityQueue implements Closeable
 {
     private static final Logger log = LoggerFactory.getLogger(ActivityQueue.class);
 
     private final ExecutorService               service = Executors.newCachedThreadPool(new ThreadFactoryBuilder().setNameFormat("ActivityQueue-%d").build());
-    private final Map<QueueGroups, DelayQueue<ActivityHolder>> queues;
+    private final Map<QueueGroups, Group>       groups;
+    private final AtomicLong                    sequence = new AtomicLong(0);
+    private final TimerWheel                    timerWheel = new TimerWheel(Integer.getInteger("ActivityQueueTickMs", 10), Integer.getInteger("ActivityQueueWheelSize", 512));
+    private final ActivityMetrics               metrics = new ActivityMetrics();
+    private final ActivityLog                   activityLog;
+
+    private static final int    STATE_SCHEDULED = 0;
+    private static final int    STATE_READY = 1;
+    private static final int    STATE_RUNNING = 2;
+    private static final int    STATE_CANCELLED = 3;
+
+    private static final Comparator<ActivityHolder> READY_ORDER = new Comparator<ActivityHolder>()
+    {
+        @Override
+        public int compare(ActivityHolder lhs, ActivityHolder rhs)
+        {
+            int     diff = lhs.priority.compareTo(rhs.priority);
+            if ( diff == 0 )
+            {
+                diff = compareNs(lhs.deadlineNs, rhs.deadlineNs);
+            }
+            if ( diff == 0 )
+            {
+                diff = compareNs(lhs.dueNs, rhs.dueNs);
+            }
+            return (diff == 0) ? compareSequence(lhs, rhs) : diff;
+        }
+    };
 
-    private static class ActivityHolder implements Delayed
+    private class ActivityHolder implements ActivityHandle, TimerWheel.Timeout
     {
-        private final Activity      activity;
-        private final long          endNs;
+        private final Group                         group;
+        private final Activity                      activity;
+        private final SchedulableActivity.Priority  priority;
+        private final String                        serializationKey;
+        private final long                          dueNs;
+        private final long                          deadlineNs;
+        private final boolean                       hasDeadline;
+        private final long                          sequence;
+        private final AtomicInteger                 state;
 
-        private ActivityHolder(Activity activity, long delayMs)
+        private ActivityHolder(Group group, Activity activity, long delayMs)
         {
+            this.group = group;
             this.activity = activity;
-            endNs = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMs);
+            sequence = ActivityQueue.this.sequence.getAndIncrement();
+            state = new AtomicInteger((delayMs > 0) ? STATE_SCHEDULED : STATE_READY);
+            dueNs = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMs);
+
+            long    deadlineMs = 0;
+            if ( activity instanceof SchedulableActivity )
+            {
+                SchedulableActivity     schedulable = (SchedulableActivity)activity;
+                priority = Preconditions.checkNotNull(schedulable.getPriority(), "priority cannot be null");
+                String                  key = schedulable.getSerializationKey();
+                serializationKey = SchedulableActivity.DEFAULT_SERIALIZATION_KEY.equals(key) ? getDefaultSerializationKey(group.group) : key;
+                deadlineMs = schedulable.getDeadlineMs();
+            }
+            else
+            {
+                priority = SchedulableActivity.Priority.NORMAL;
+                serializationKey = getDefaultSerializationKey(group.group);
+            }
+            hasDeadline = (deadlineMs > 0);
+            deadlineNs = hasDeadline ? (dueNs + TimeUnit.MILLISECONDS.toNanos(deadlineMs)) : (dueNs + Long.MAX_VALUE / 2);
+        }
+
+        @Override
+        public boolean cancel()
+        {
+            if ( state.compareAndSet(STATE_SCHEDULED, STATE_CANCELLED) )
+            {
+                metrics.cancelled(group.group, false);
+                return true;
+            }
+            if ( state.compareAndSet(STATE_READY, STATE_CANCELLED) )
+            {
+                metrics.cancelled(group.group, true);
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public ActivityHandle reschedule(long delay, TimeUnit unit)
+        {
+            return replace(group.group, activity, delay, unit);
+        }
+
+        @Override
+        public boolean isPending()
+        {
+            int     currentState = state.get();
+            return (currentState == STATE_SCHEDULED) || (currentState == STATE_READY);
+        }
+
+        @Override
+        public long getDueNs()
+        {
+            return dueNs;
         }
 
         @Override
-        public long getDelay(TimeUnit unit)
+        public boolean isCancelled()
         {
-            return unit.convert(endNs - System.nanoTime(), TimeUnit.NANOSECONDS);
+            return state.get() == STATE_CANCELLED;
         }
 
         @Override
-        // Note: this class has a natural ordering that is inconsistent with equals
-        public int compareTo(Delayed rhs)
+        public void expire()
         {
-            if ( rhs == this )
+            if ( state.compareAndSet(STATE_SCHEDULED, STATE_READY) )
             {
-                return 0;
+                metrics.readied(group.group);
+                group.ready(this);
             }
+        }
+    }
+
+    private class Group
+    {
+        private final QueueGroups                   group;
+        private final ReentrantLock                 lock = new ReentrantLock();
+        private final Condition                     changed = lock.newCondition();
+        private final NavigableSet<ActivityHolder>  ready = Sets.newTreeSet(READY_ORDER);
+        private final Set<String>                   runningKeys = Sets.newHashSet();
+        private final ConcurrentMap<Activity, ActivityHolder> latest = new MapMaker().weakKeys().makeMap();   // note: weakKeys() compares keys by identity
+        private final int                           threads;
+        private final int                           budgetMs;
 
-            long    diff = getDelay(TimeUnit.NANOSECONDS) - rhs.getDelay(TimeUnit.NANOSECONDS);
-            return (diff == 0) ? 0 : ((diff < 0) ? -1 : 1);
+        private Group(QueueGroups group, int threads, int budgetMs)
+        {
+            this.group = group;
+            this.threads = threads;
+            this.budgetMs = budgetMs;
         }
 
-        @Override
-        public boolean equals(Object o)
+        private ActivityHandle add(Activity activity, long delay, TimeUnit unit, boolean replace)
         {
-            if ( this == o )
+            ActivityHolder  holder = new ActivityHolder(this, activity, TimeUnit.MILLISECONDS.convert(delay, unit));
+            ActivityHolder  previous = latest.put(activity, holder);
+            if ( replace && (previous != null) )
             {
-                return true;
+                previous.cancel();
+            }
+
+            metrics.queued(group, holder.state.get() == STATE_READY);
+            if ( holder.state.get() == STATE_READY )
+            {
+                ready(holder);
             }
-            if ( o == null || getClass() != o.getClass() )
+            else
             {
-                return false;
+                timerWheel.schedule(holder);
             }
+            return holder;
+        }
 
-            ActivityHolder rhs = (ActivityHolder)o;
-            return activity == rhs.activity;    // ID comparison on purpose
+        private void ready(ActivityHolder holder)
+        {
+            lock.lock();
+            try
+            {
+                ready.add(holder);
+                changed.signalAll();
+            }
+            finally
+            {
+                lock.unlock();
+            }
         }
 
-        @Override
-        public int hashCode()
+        private ActivityHolder take(boolean highPriorityOnly) throws InterruptedException
+        {
+            lock.lock();
+            try
+            {
+                for(;;)
+                {
+                    Iterator<ActivityHolder>    iterator = ready.iterator();
+                    while ( iterator.hasNext() )
+                    {
+                        ActivityHolder  holder = iterator.next();
+                        if ( holder.state.get() != STATE_READY )
+                        {
+                            iterator.remove();  // cancelled
+                            continue;
+                        }
+                        if ( highPriorityOnly && (holder.priority != SchedulableActivity.Priority.HIGH) )
+                        {
+                            break;  // the ready set is in priority order
+                        }
+                        if ( (holder.serializationKey == null) || runningKeys.add(holder.serializationKey) )
+                        {
+                            iterator.remove();
+                            if ( holder.state.compareAndSet(STATE_READY, STATE_RUNNING) )
+                            {
+                                latest.remove(holder.activity, holder);
+                                return holder;
+                            }
+                            if ( holder.serializationKey != null )
+                            {
+                                runningKeys.remove(holder.serializationKey);    // cancelled in the meantime
+                            }
+                        }
+                    }
+
+                    changed.await();
+                }
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+
+        private void done(ActivityHolder holder)
         {
-            int result = activity.hashCode();
-            result = 31 * result + (int)(endNs ^ (endNs >>> 32));
-            return result;
+            if ( holder.serializationKey != null )
+            {
+                lock.lock();
+                try
+                {
+                    runningKeys.remove(holder.serializationKey);
+                    changed.signalAll();
+                }
+                finally
+                {
+                    lock.unlock();
+                }
+            }
         }
     }
 
     public ActivityQueue()
     {
-        ImmutableMap.Builder<QueueGroups, DelayQueue<ActivityHolder>>   builder = ImmutableMap.builder();
+        this((ActivityLog)null);
+    }
+
+    /**
+     * Worker concurrency per group comes from the system properties "ActivityQueueMAINThreads" and
+     * "ActivityQueueIOThreads" (default: 2 each). The additional high priority worker is not included.
+     * The run time budget per group comes from "ActivityQueueMAINBudgetMs" (default: 30 seconds) and
+     * "ActivityQueueIOBudgetMs" (default: 30 minutes). 0 disables the check.
+     *
+     * @param activityLog log for slow activities or null to use the process log
+     */
+    public ActivityQueue(ActivityLog activityLog)
+    {
+        this(getConfiguredThreads(), activityLog, getConfiguredBudgets());
+    }
+
+    /**
+     * @param threads workers per group - groups that aren't in the map get 1
+     */
+    @VisibleForTesting
+    ActivityQueue(Map<QueueGroups, Integer> threads)
+    {
+        this(threads, null, getConfiguredBudgets());
+    }
+
+    /**
+     * @param threads workers per group - groups that aren't in the map get 1
+     * @param activityLog log for slow activities or null
+     * @param budgetsMs run time budget per group - groups that aren't in the map aren't checked
+     */
+    @VisibleForTesting
+    ActivityQueue(Map<QueueGroups, Integer> threads, ActivityLog activityLog, Map<QueueGroups, Integer> budgetsMs)
+    {
+        this.activityLog = activityLog;
+
+        ImmutableMap.Builder<QueueGroups, Group>    builder = ImmutableMap.builder();
         for ( QueueGroups group : QueueGroups.values() )
         {
-            builder.put(group, new DelayQueue<ActivityHolder>());
+            Integer     thisThreads = threads.get(group);
+            Integer     thisBudgetMs = budgetsMs.get(group);
+            builder.put(group, new Group(group, Math.max(1, (thisThreads != null) ? thisThreads : 1), (thisBudgetMs != null) ? thisBudgetMs : 0));
         }
-        queues = builder.build();
+        groups = builder.build();
+    }
+
+    /**
+     * @return execution metrics
+     */
+    public ActivityMetrics getMetrics()
+    {
+        return metrics;
     }
 
     /**
@@ -106,65 +350,41 @@ public class ActivityQueue implements Closeable
      */
     public void start()
     {
-        for ( QueueGroups group : QueueGroups.values() )
+        service.submit(timerWheel);
+        for ( Group group : groups.values() )
         {
-            final DelayQueue<ActivityHolder>      thisQueue = queues.get(group);
-            service.submit
-            (
-                new Runnable()
-                {
-                    @Override
-                    public void run()
-                    {
-                        try
-                        {
-                            while ( !Thread.currentThread().isInterrupted() )
-                            {
-                                ActivityHolder holder = thisQueue.take();
-                                try
-                                {
-                                    Boolean result = holder.activity.call();
-                                    holder.activity.completed((result != null) && result);
-                                }
-                                catch ( Throwable e )
-                                {
-                                    log.error("Unhandled exception in background task", e);
-                                }
-                            }
-                        }
-                        catch ( InterruptedException dummy )
-                        {
-                            Thread.currentThread().interrupt();
-                        }
-                    }
-                }
-            );
+            for ( int i = 0; i < group.threads; ++i )
+            {
+                service.submit(new Worker(group, false));
+            }
+            service.submit(new Worker(group, true));
         }
     }
 
     /**
      * Add an activity to the given queue
      *
-     * @param group the queue - all activities within a queue are executed serially
+     * @param group the queue
      * @param activity the activity
+     * @return handle for the queued entry
      */
-    public synchronized void     add(QueueGroups group, Activity activity)
+    public ActivityHandle add(QueueGroups group, Activity activity)
     {
-        add(group, activity, 0, TimeUnit.MILLISECONDS);
+        return add(group, activity, 0, TimeUnit.MILLISECONDS);
     }
 
     /**
      * Add an activity to the given queue that executes after a specified delay
      *
-     * @param group the queue - all activities within a queue are executed serially
+     * @param group the queue
      * @param activity the activity
      * @param delay the delay
      * @param unit the delay unit
+     * @return handle for the queued entry
      */
-    public synchronized void     add(QueueGroups group, Activity activity, long delay, TimeUnit unit)
+    public ActivityHandle add(QueueGroups group, Activity activity, long delay, TimeUnit unit)
     {
-        ActivityHolder  holder = new ActivityHolder(activity, TimeUnit.MILLISECONDS.convert(delay, unit));
-        queues.get(group).offer(holder);
+        return groups.get(group).add(activity, delay, unit, false);
     }
 
     @Override
@@ -176,28 +396,172 @@ public class ActivityQueue implements Closeable
     /**
      * Replace the given activity in the given queue. If not in the queue, adds it to the queue.
      *
-     * @param group the queue - all activities within a queue are executed serially
+     * @param group the queue
      * @param activity the activity
+     * @return handle for the queued entry
      */
-    public synchronized void     replace(QueueGroups group, Activity activity)
+    public ActivityHandle replace(QueueGroups group, Activity activity)
     {
-        replace(group, activity, 0, TimeUnit.MILLISECONDS);
+        return replace(group, activity, 0, TimeUnit.MILLISECONDS);
     }
 
     /**
      * Replace the given activity in the given queue. If not in the queue, adds it to the queue. The activity
-     * runs after the specified delay (the delay of the previous entry, if any, is ignored)
+     * runs after the specified delay (the delay of the previous entry, if any, is ignored). Note: only the
+     * most recently queued entry of the activity is replaced.
      *
-     * @param group the queue - all activities within a queue are executed serially
+     * @param group the queue
      * @param activity the activity
      * @param delay the delay
      * @param unit the delay unit
+     * @return handle for the queued entry
+     */
+    public ActivityHandle replace(QueueGroups group, Activity activity, long delay, TimeUnit unit)
+    {
+        return groups.get(group).add(activity, delay, unit, true);
+    }
+
+    /**
+     * @param group the group
+     * @return the serialization key used for activities of the group that aren't {@link SchedulableActivity}s
      */
-    public synchronized void     replace(QueueGroups group, Activity activity, long delay, TimeUnit unit)
+    static String getDefaultSerializationKey(QueueGroups group)
+    {
+        return "ActivityQueue-" + group.name();
+    }
+
+    private class Worker implements Runnable
+    {
+        private final Group     group;
+        private final boolean   highPriorityOnly;
+
+        private Worker(Group group, boolean highPriorityOnly)
+        {
+            this.group = group;
+            this.highPriorityOnly = highPriorityOnly;
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                while ( !Thread.currentThread().isInterrupted() )
+                {
+                    ActivityHolder  holder = group.take(highPriorityOnly);
+                    String          name = ActivityMetrics.getName(holder.activity);
+                    long            startNs = System.nanoTime();
+                    metrics.started(group.group, name, TimeUnit.NANOSECONDS.toMillis(startNs - holder.dueNs));
+                    if ( holder.hasDeadline && ((startNs - holder.deadlineNs) > 0) )
+                    {
+                        log.warn(String.format("%s activity (%s) missed its deadline by %d ms", group.group, name, TimeUnit.NANOSECONDS.toMillis(startNs - holder.deadlineNs)));
+                    }
+
+                    SlowCheck       slowCheck = null;
+                    if ( group.budgetMs > 0 )
+                    {
+                        slowCheck = new SlowCheck(group, name, startNs);
+                        timerWheel.schedule(slowCheck);
+                    }
+
+                    boolean         success = false;
+                    try
+                    {
+                        Boolean result = holder.activity.call();
+                        success = (result != null) && result;
+                        holder.activity.completed(success);
+                    }
+                    catch ( Throwable e )
+                    {
+                        log.error("Unhandled exception in background task", e);
+                    }
+                    finally
+                    {
+                        if ( slowCheck != null )
+                        {
+                            slowCheck.isDone = true;
+                        }
+                        metrics.completed(group.group, name, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNs), success);
+                        group.done(holder);
+                    }
+                }
+            }
+            catch ( InterruptedException dummy )
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private class SlowCheck implements TimerWheel.Timeout
+    {
+        private final Group         group;
+        private final String        name;
+        private final long          dueNs;
+        private volatile boolean    isDone = false;
+
+        private SlowCheck(Group group, String name, long startNs)
+        {
+            this.group = group;
+            this.name = name;
+            dueNs = startNs + TimeUnit.MILLISECONDS.toNanos(group.budgetMs);
+        }
+
+        @Override
+        public long getDueNs()
+        {
+            return dueNs;
+        }
+
+        @Override
+        public boolean isCancelled()
+        {
+            return isDone;
+        }
+
+        @Override
+        public void expire()
+        {
+            metrics.slow(group.group, name);
+
+            String      message = String.format("%s activity (%s) has been running for more than its budget of %d ms", group.group, name, group.budgetMs);
+            if ( activityLog != null )
+            {
+                activityLog.add(ActivityLog.Type.INFO, message);
+            }
+            else
+            {
+                log.warn(message);
+            }
+        }
+    }
+
+    private static Map<QueueGroups, Integer> getConfiguredBudgets()
+    {
+        Map<QueueGroups, Integer>   budgets = Maps.newEnumMap(QueueGroups.class);
+        budgets.put(QueueGroups.MAIN, Integer.getInteger("ActivityQueueMAINBudgetMs", (int)TimeUnit.SECONDS.toMillis(30)));
+        budgets.put(QueueGroups.IO, Integer.getInteger("ActivityQueueIOBudgetMs", (int)TimeUnit.MINUTES.toMillis(30)));
+        return budgets;
+    }
+
+    private static Map<QueueGroups, Integer> getConfiguredThreads()
+    {
+        Map<QueueGroups, Integer>   threads = Maps.newEnumMap(QueueGroups.class);
+        for ( QueueGroups group : QueueGroups.values() )
+        {
+            threads.put(group, Integer.getInteger("ActivityQueue" + group.name() + "Threads", 2));
+        }
+        return threads;
+    }
+
+    private static int compareNs(long lhs, long rhs)
+    {
+        long    diff = lhs - rhs;   // nanoTime values must be compared by difference
+        return (diff == 0) ? 0 : ((diff < 0) ? -1 : 1);
+    }
+
+    private static int compareSequence(ActivityHolder lhs, ActivityHolder rhs)
     {
-        ActivityHolder  holder = new ActivityHolder(activity, TimeUnit.MILLISECONDS.convert(delay, unit));
-        DelayQueue<ActivityHolder> queue = queues.get(group);
-        queue.remove(holder);
-        queue.offer(holder);
+        return (lhs.sequence == rhs.sequence) ? 0 : ((lhs.sequence < rhs.sequence) ? -1 : 1);
     }
 }
@@ -20,6 +20,7 @@ import java.io.IOException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class RepeatingActivityImpl implements RepeatingActivity
 {
@@ -28,6 +29,7 @@ public class RepeatingActivityImpl implements RepeatingActivity
     private final Activity      activity;
     private final AtomicLong    timePeriodMs;
     private final ActivityQueue queue;
+    private final AtomicReference<ActivityHandle> handle = new AtomicReference<ActivityHandle>();
 
     private static final int    MIN_TIME_PERIOD_MS = 5;
 
@@ -35,43 +37,14 @@ public class RepeatingActivityImpl implements RepeatingActivity
      * @param log the log
      * @param queue the queue to add to
      * @param group the queue group
-     * @param actualActivity the repeating activity
+     * @param actualActivity the repeating activity - if it's a {@link SchedulableActivity} its scheduling attributes are used
      * @param timePeriodMs the period between executions
      */
-    public RepeatingActivityImpl(final ActivityLog log, ActivityQueue queue, QueueGroups group, final Activity actualActivity, long timePeriodMs)
+    public RepeatingActivityImpl(ActivityLog log, ActivityQueue queue, QueueGroups group, Activity actualActivity, long timePeriodMs)
     {
         this.queue = queue;
         this.group = group;
-        this.activity = new Activity()
-        {
-            @Override
-            public void completed(boolean wasSuccessful)
-            {
-                actualActivity.completed(wasSuccessful);
-            }
-
-            @Override
-            public Boolean call() throws Exception
-            {
-                boolean     result = false;
-                if ( isStarted.get() )
-                {
-                    try
-                    {
-                        result = actualActivity.call();
-                    }
-                    catch ( Throwable e )
-                    {
-                        if ( log != null )
-                        {
-                            log.add(ActivityLog.Type.ERROR, String.format("Unhandled exception in repeating activity (%s) - re-queueing", actualActivity.getClass().getSimpleName()), e);
-                        }
-                    }
-                    reQueue();
-                }
-                return result;
-            }
-        };
+        this.activity = new Wrapper(log, actualActivity);
         this.timePeriodMs = new AtomicLong(Math.max(MIN_TIME_PERIOD_MS, timePeriodMs));
     }
 
@@ -86,17 +59,95 @@ public class RepeatingActivityImpl implements RepeatingActivity
     public void close() throws IOException
     {
         isStarted.set(false);
+        ActivityHandle  currentHandle = handle.getAndSet(null);
+        if ( currentHandle != null )
+        {
+            currentHandle.cancel();
+        }
     }
 
     @Override
     public void setTimePeriodMs(long newTimePeriodMs)
     {
         timePeriodMs.set(Math.max(MIN_TIME_PERIOD_MS, newTimePeriodMs));
-        queue.replace(group, activity, timePeriodMs.get(), TimeUnit.MILLISECONDS);
+
+        ActivityHandle  currentHandle = handle.get();
+        if ( (currentHandle != null) && currentHandle.cancel() )
+        {
+            reQueue();
+        }
+        // otherwise, it's not started or is running now and re-queues itself with the new period
     }
 
     private void reQueue()
     {
-        queue.add(group, activity, timePeriodMs.get(), TimeUnit.MILLISECONDS);
+        handle.set(queue.add(group, activity, timePeriodMs.get(), TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * @param activity an activity from the queue
+     * @return the repeated activity if the given activity is the queue entry of a {@link RepeatingActivityImpl}, otherwise the activity itself
+     */
+    static Activity getActualActivity(Activity activity)
+    {
+        return (activity instanceof Wrapper) ? ((Wrapper)activity).actualActivity : activity;
+    }
+
+    private class Wrapper implements SchedulableActivity
+    {
+        private final ActivityLog   log;
+        private final Activity      actualActivity;
+
+        private Wrapper(ActivityLog log, Activity actualActivity)
+        {
+            this.log = log;
+            this.actualActivity = actualActivity;
+        }
+
+        @Override
+        public Priority getPriority()
+        {
+            return (actualActivity instanceof SchedulableActivity) ? ((SchedulableActivity)actualActivity).getPriority() : Priority.NORMAL;
+        }
+
+        @Override
+        public String getSerializationKey()
+        {
+            return (actualActivity instanceof SchedulableActivity) ? ((SchedulableActivity)actualActivity).getSerializationKey() : ActivityQueue.getDefaultSerializationKey(group);
+        }
+
+        @Override
+        public long getDeadlineMs()
+        {
+            return (actualActivity instanceof SchedulableActivity) ? ((SchedulableActivity)actualActivity).getDeadlineMs() : 0;
+        }
+
+        @Override
+        public void completed(boolean wasSuccessful)
+        {
+            actualActivity.completed(wasSuccessful);
+        }
+
+        @Override
+        public Boolean call() throws Exception
+        {
+            boolean     result = false;
+            if ( isStarted.get() )
+            {
+                try
+                {
+                    result = actualActivity.call();
+                }
+                catch ( Throwable e )
+                {
+                    if ( log != null )
+                    {
+                        log.add(ActivityLog.Type.ERROR, String.format("Unhandled exception in repeating activity (%s) - re-queueing", actualActivity.getClass().getSimpleName()), e);
+                    }
+                }
+                reQueue();
+            }
+            return result;
+        }
     }
 }
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2012 Netflix, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.netflix.exhibitor.core.activity;
+
+/**
+ * Optional extension of {@link Activity} that tells {@link ActivityQueue} how to schedule it.
+ * Activities that don't implement this run at {@link Priority#NORMAL}, have no deadline and
+ * are executed serially with the other such activities of their group - i.e. the original
+ * one-at-a-time behavior of the queue. Extend {@link SchedulableActivityAdapter} to only override
+ * what differs from that.
+ */
+public interface SchedulableActivity extends Activity
+{
+    /**
+     * Serialization key that stands for the group's default key - i.e. the activity runs serially
+     * with the group's other default activities as if it weren't a {@link SchedulableActivity}
+     */
+    public static final String  DEFAULT_SERIALIZATION_KEY = "ActivityQueue-default";
+
+    public enum Priority
+    {
+        /**
+         * Health checks and operator actions. Each group keeps a worker that only runs these
+         * so that they never wait behind slower work
+         */
+        HIGH,
+
+        NORMAL,
+
+        /**
+         * Bulk work such as backups and indexing
+         */
+        LOW
+    }
+
+    /**
+     * @return the priority - higher priority activities that are due run before lower priority ones
+     */
+    public Priority     getPriority();
+
+    /**
+     * Activities in the same group with the same key never run at the same time. Use this
+     * where ordering actually matters (e.g. killing/starting the instance).
+     *
+     * @return the key, {@link #DEFAULT_SERIALIZATION_KEY} for the group's default or null if the activity can run concurrently with anything
+     */
+    public String       getSerializationKey();
+
+    /**
+     * A soft deadline: among due activities of the same priority, the earliest deadline runs first
+     * and an activity that starts after its deadline is logged.
+     *
+     * @return max ms between the activity becoming due and it starting or 0 for no deadline
+     */
+    public long         getDeadlineMs();
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2012 Netflix, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.netflix.exhibitor.core.activity;
+
+/**
+ * {@link SchedulableActivity} with the same scheduling as a plain {@link Activity}: {@link Priority#NORMAL},
+ * the group's default serialization key and no deadline. Subclasses override what differs.
+ */
+public abstract class SchedulableActivityAdapter implements SchedulableActivity
+{
+    @Override
+    public Priority getPriority()
+    {
+        return Priority.NORMAL;
+    }
+
+    @Override
+    public String getSerializationKey()
+    {
+        return DEFAULT_SERIALIZATION_KEY;
+    }
+
+    @Override
+    public long getDeadlineMs()
+    {
+        return 0;
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2012 Netflix, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.netflix.exhibitor.core.activity;
+
+import com.google.common.base.Preconditions;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A hashed timer wheel. {@link #schedule(Timeout)} only appends to a lock-free queue; the single
+ * thread that {@link #run()}s the wheel moves new timeouts into their buckets and expires the bucket
+ * of each tick. Cancelled timeouts are dropped when their bucket is next visited, so cancelling is
+ * just a state change on the timeout. Timeouts never expire early but can expire up to a tick late.
+ * The thread doesn't wake for empty buckets: it parks until the tick of the next bucket that has
+ * timeouts (indefinitely if there are none) and {@link #schedule(Timeout)} unparks it if the new
+ * timeout is due before then.
+ */
+class TimerWheel implements Runnable
+{
+    private final long                      tickNs;
+    private final int                       mask;
+    private final Queue<Timeout>[]          buckets;
+    private final Queue<Timeout>            newTimeouts = new ConcurrentLinkedQueue<Timeout>();
+    private final long                      startNs = System.nanoTime();
+    private volatile Thread                 wheelThread = null;
+    private volatile long                   wakeTick = 0;   // while parked past the next tick: the tick the thread will wake at
+
+    interface Timeout
+    {
+        /**
+         * @return the System.nanoTime() at which the timeout expires
+         */
+        public long     getDueNs();
+
+        /**
+         * @return true if the timeout has been cancelled and should be dropped
+         */
+        public boolean  isCancelled();
+
+        /**
+         * Called from the wheel thread when the timeout is due
+         */
+        public void     expire();
+    }
+
+    /**
+     * @param tickMs wheel resolution
+     * @param wheelSize number of buckets - rounded up to a power of 2
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    TimerWheel(long tickMs, int wheelSize)
+    {
+        Preconditions.checkArgument(tickMs > 0, "tickMs must be greater than 0");
+        Preconditions.checkArgument(wheelSize > 0, "wheelSize must be greater than 0");
+
+        tickNs = TimeUnit.MILLISECONDS.toNanos(tickMs);
+        int     size = Integer.highestOneBit(wheelSize);
+        if ( size < wheelSize )
+        {
+            size <<= 1;
+        }
+        mask = size - 1;
+        buckets = new Queue[size];
+        for ( int i = 0; i < size; ++i )
+        {
+            buckets[i] = new ArrayDeque<Timeout>();
+        }
+    }
+
+    /**
+     * Schedule the timeout. Thread safe and lock-free.
+     *
+     * @param timeout timeout
+     */
+    void schedule(Timeout timeout)
+    {
+        newTimeouts.add(timeout);
+
+        Thread      thread = wheelThread;
+        if ( (thread != null) && (toTick(timeout.getDueNs()) < wakeTick) )
+        {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    @Override
+    public void run()
+    {
+        wheelThread = Thread.currentThread();
+
+        long    tick = 0;
+        while ( !Thread.currentThread().isInterrupted() )
+        {
+            long    waitNs = (startNs + (tick * tickNs)) - System.nanoTime();
+            if ( waitNs > 0 )
+            {
+                LockSupport.parkNanos(this, waitNs);
+                continue;
+            }
+
+            transferNewTimeouts(tick);
+            expireBucket(tick);
+            ++tick;
+
+            tick = skipEmptyBuckets(tick);
+        }
+    }
+
+    private long skipEmptyBuckets(long tick)
+    {
+        long    nextTick = getNextOccupiedTick(tick);
+        if ( nextTick == tick )
+        {
+            return tick;
+        }
+
+        wakeTick = (nextTick < 0) ? Long.MAX_VALUE : nextTick;
+        try
+        {
+            // schedule() adds before reading wakeTick so either the timeout is seen here or the thread gets unparked
+            if ( newTimeouts.isEmpty() )
+            {
+                if ( nextTick < 0 )
+                {
+                    LockSupport.park(this);
+                }
+                else
+                {
+                    long    waitNs = (startNs + (nextTick * tickNs)) - System.nanoTime();
+                    if ( waitNs > 0 )
+                    {
+                        LockSupport.parkNanos(this, waitNs);
+                    }
+                }
+            }
+        }
+        finally
+        {
+            wakeTick = 0;
+        }
+
+        // the skipped buckets are empty but new timeouts are placed relative to the tick - so don't go past the current time
+        long    currentTick = (System.nanoTime() - startNs) / tickNs;
+        long    resumeTick = (nextTick < 0) ? currentTick : Math.min(currentTick, nextTick);
+        return Math.max(tick, resumeTick);
+    }
+
+    private long getNextOccupiedTick(long tick)
+    {
+        for ( int i = 0; i < buckets.length; ++i )
+        {
+            if ( !buckets[(int)((tick + i) & mask)].isEmpty() )
+            {
+                return tick + i;
+            }
+        }
+        return -1;
+    }
+
+    private long toTick(long ns)
+    {
+        // round up so that a timeout never expires before it's due
+        return ((ns - startNs) + tickNs - 1) / tickNs;
+    }
+
+    private void transferNewTimeouts(long tick)
+    {
+        Timeout     timeout;
+        while ( (timeout = newTimeouts.poll()) != null )
+        {
+            if ( timeout.isCancelled() )
+            {
+                continue;
+            }
+
+            long    dueTick = Math.max(tick, toTick(timeout.getDueNs()));
+            buckets[(int)(dueTick & mask)].add(timeout);
+        }
+    }
+
+    private void expireBucket(long tick)
+    {
+        Queue<Timeout>  bucket = buckets[(int)(tick & mask)];
+        long            tickEndNs = startNs + (tick * tickNs);
+        for ( int i = bucket.size(); i > 0; --i )
+        {
+            Timeout     timeout = bucket.poll();
+            if ( timeout.isCancelled() )
+            {
+                continue;
+            }
+            if ( (timeout.getDueNs() - tickEndNs) <= 0 )
+            {
+                timeout.expire();
+            }
+            else
+            {
+                bucket.add(timeout);    // due in a later round
+            }
+        }
+    }
+}
@@ -18,8 +18,9 @@ package com.netflix.exhibitor.core.automanage;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.netflix.exhibitor.core.Exhibitor;
-import com.netflix.exhibitor.core.activity.Activity;
 import com.netflix.exhibitor.core.activity.ActivityLog;
+import com.netflix.exhibitor.core.activity.SchedulableActivityAdapter;
+import com.netflix.exhibitor.core.config.ConfigManager;
 import com.netflix.exhibitor.core.config.InstanceConfig;
 import com.netflix.exhibitor.core.config.IntConfigs;
 import com.netflix.exhibitor.core.config.PseudoLock;
@@ -30,7 +31,7 @@ import com.netflix.exhibitor.core.state.ServerList;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 
-public class AutomaticInstanceManagement implements Activity
+public class AutomaticInstanceManagement extends SchedulableActivityAdapter
 {
     private final Exhibitor exhibitor;
     private final ClusterState clusterState = new ClusterState();
@@ -40,6 +41,12 @@ public class AutomaticInstanceManagement implements Activity
         this.exhibitor = exhibitor;
     }
 
+    @Override
+    public String getSerializationKey()
+    {
+        return ConfigManager.CONFIG_SERIALIZATION_KEY;
+    }
+
     @Override
     public void completed(boolean wasSuccessful)
     {
@@ -20,6 +20,7 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.netflix.exhibitor.core.Exhibitor;
 import com.netflix.exhibitor.core.entities.ServerStatus;
+import com.netflix.exhibitor.core.state.HealthSnapshot;
 import com.netflix.exhibitor.core.state.InstanceStateTypes;
 import com.netflix.exhibitor.core.state.ServerSpec;
 import com.netflix.exhibitor.core.state.UsState;
@@ -88,8 +89,8 @@ public class ClusterStatusTask extends RecursiveTask<List<ServerStatus>>
     {
         if ( spec.equals(us) )
         {
-            InstanceStateTypes state = exhibitor.getMonitorRunningInstance().getCurrentInstanceState();
-            return new ServerStatus(spec.getHostname(), state.getCode(), state.getDescription(), exhibitor.getMonitorRunningInstance().isCurrentlyLeader());
+            HealthSnapshot      snapshot = exhibitor.getMonitorRunningInstance().getHealthSnapshot();
+            return new ServerStatus(spec.getHostname(), snapshot.getState().getCode(), snapshot.getState().getDescription(), snapshot.isLeader());
         }
 
         try
@@ -16,15 +16,24 @@
 
 package com.netflix.exhibitor.core.backup;
 
+import com.google.common.base.Objects;
 import com.google.common.base.Optional;
+import com.google.common.base.Predicate;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingInputStream;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.netflix.exhibitor.core.Exhibitor;
-import com.netflix.exhibitor.core.activity.Activity;
 import com.netflix.exhibitor.core.activity.ActivityLog;
 import com.netflix.exhibitor.core.activity.OnOffRepeatingActivity;
 import com.netflix.exhibitor.core.activity.QueueGroups;
 import com.netflix.exhibitor.core.activity.RepeatingActivity;
 import com.netflix.exhibitor.core.activity.RepeatingActivityImpl;
+import com.netflix.exhibitor.core.activity.SchedulableActivity;
+import com.netflix.exhibitor.core.activity.SchedulableActivityAdapter;
 import com.netflix.exhibitor.core.config.ConfigListener;
 import com.netflix.exhibitor.core.config.EncodedConfigParser;
 import com.netflix.exhibitor.core.config.InstanceConfig;
@@ -32,6 +41,8 @@ import com.netflix.exhibitor.core.config.IntConfigs;
 import com.netflix.exhibitor.core.config.StringConfigs;
 import com.netflix.exhibitor.core.controlpanel.ControlPanelTypes;
 import com.netflix.exhibitor.core.index.ZooKeeperLogFiles;
+import com.netflix.exhibitor.core.state.CleanupManager;
+import java.io.BufferedOutputStream;
 import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
@@ -39,10 +50,18 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.zip.GZIPInputStream;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.Checksum;
 import org.apache.curator.utils.CloseableUtils;
 import org.apache.log4j.Logger;
 
@@ -53,6 +72,28 @@ public class BackupManager implements Closeable
     private final Optional<BackupProvider> backupProvider;
     private final RepeatingActivity repeatingActivity;
     private final AtomicLong lastRollCheck = new AtomicLong(0);
+    private BackupManifest manifest = new BackupManifest();
+    private final ChunkedBackups chunkedBackups;
+    private final BackupMetrics metrics = BackupMetrics.getInstance();
+    private List<BackupMetaData> cachedBackups = null;
+    private Map<String, String> cachedBackupsConfig = null;
+    private long cachedBackupsMs = 0;
+
+    private static final int        COMPRESSION_THREADS = Integer.getInteger("BackupManagerCompressionThreads", Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+    private static final int        COMPRESSION_BLOCK_SIZE = Integer.getInteger("BackupManagerCompressionBlockKb", 1024) * 1024;
+    private static final int        RESTORE_THREADS = Integer.getInteger("BackupManagerRestoreThreads", 4);
+    private static final int        RESTORE_BUFFER_SIZE = 64 * 1024;
+    private static final boolean    CHUNKED_BACKUPS = Boolean.getBoolean("BackupManagerChunkedBackups");
+    private static final int        LISTING_TTL_MS = Integer.getInteger("BackupManagerListingTtlMs", (int)TimeUnit.MINUTES.toMillis(5));
+
+    private static final Predicate<BackupMetaData> IS_CHUNK = new Predicate<BackupMetaData>()
+    {
+        @Override
+        public boolean apply(BackupMetaData backup)
+        {
+            return ChunkedBackups.isChunk(backup);
+        }
+    };
 
     /**
      * @param exhibitor main instance
@@ -62,9 +103,22 @@ public class BackupManager implements Closeable
     {
         this.exhibitor = exhibitor;
         this.backupProvider = Optional.fromNullable(backupProvider);
+        chunkedBackups = new ChunkedBackups(exhibitor, backupProvider);
 
-        final Activity activity = new Activity()
+        final SchedulableActivity activity = new SchedulableActivityAdapter()
         {
+            @Override
+            public Priority getPriority()
+            {
+                return Priority.LOW;
+            }
+
+            @Override
+            public String getSerializationKey()
+            {
+                return CleanupManager.DATA_SERIALIZATION_KEY;
+            }
+
             @Override
             public void completed(boolean wasSuccessful)
             {
@@ -148,7 +202,15 @@ public class BackupManager implements Closeable
     public List<BackupMetaData> getAvailableBackups() throws Exception
     {
         Map<String, String>       config = getBackupConfig();
-        return backupProvider.get().getAvailableBackups(exhibitor, config);
+        List<BackupMetaData>      backups = Lists.newArrayList();
+        for ( BackupMetaData backup : backupProvider.get().getAvailableBackups(exhibitor, config) )
+        {
+            if ( !ChunkedBackups.isChunk(backup) )
+            {
+                backups.add(backup);
+            }
+        }
+        return backups;
     }
 
     /**
@@ -160,7 +222,7 @@ public class BackupManager implements Closeable
      */
     public BackupStream getBackupStream(BackupMetaData metaData) throws Exception
     {
-        return backupProvider.get().getBackupStream(exhibitor, metaData, getBackupConfig());
+        return chunkedBackups.open(metaData, getBackupConfig());
     }
 
     /**
@@ -184,62 +246,208 @@ public class BackupManager implements Closeable
     }
 
     /**
-     * Restore all known logs
+     * Restore all known logs. Logs are restored concurrently. Logs whose local copy is non-empty and
+     * at least as new as the backup are skipped - backups don't record their uncompressed size so it
+     * isn't compared. If any restore fails, the first failure is thrown once all restores have finished.
      */
-    public void restoreAll() throws Exception {
-
+    public void restoreAll() throws Exception
+    {
         ZooKeeperLogFiles logFiles = new ZooKeeperLogFiles(exhibitor);
         log.info("Restoring log files from backup.");
-        if (!logFiles.isValid()) {
+        if ( !logFiles.isValid() )
+        {
             log.error("Backup path invalid. Skipping restore.");
             return;
         }
-        if (logFiles.getPaths().isEmpty()) {
+        if ( logFiles.getPaths().isEmpty() )
+        {
             log.info("Backup path(s) empty. Skipping restore.");
             return;
         }
-        File dataDir = ZooKeeperLogFiles.getDataDir(exhibitor);
-        for (BackupMetaData data : getAvailableBackups()) {
-            String fileName = data.getName();
-            log.info(String.format("Restoring file: %s", fileName));
-            File file = new File(dataDir, fileName);
-            restore(data, file);
+
+        // there can briefly be more than one version of a log while it is being replaced - only the newest matters
+        Map<String, BackupMetaData>     newestBackups = Maps.newTreeMap();
+        for ( BackupMetaData data : getAvailableBackups() )
+        {
+            BackupMetaData      existing = newestBackups.get(data.getName());
+            if ( (existing == null) || (data.getModifiedDate() > existing.getModifiedDate()) )
+            {
+                newestBackups.put(data.getName(), data);
+            }
+        }
+
+        long                    startMs = System.currentTimeMillis();
+        File                    dataDir = ZooKeeperLogFiles.getDataDir(exhibitor);
+        List<Future<Boolean>>   futures = Lists.newArrayList();
+        int                     skippedQty = 0;
+        ExecutorService         restoreService = Executors.newFixedThreadPool(RESTORE_THREADS, new ThreadFactoryBuilder().setNameFormat("BackupManager-restore-%d").build());
+        try
+        {
+            for ( final BackupMetaData data : newestBackups.values() )
+            {
+                final File      file = new File(dataDir, data.getName());
+                if ( isAlreadyRestored(data, file) )
+                {
+                    log.info(String.format("Skipping restore of file: %s - local copy is current", data.getName()));
+                    ++skippedQty;
+                    continue;
+                }
+
+                futures.add
+                (
+                    restoreService.submit
+                    (
+                        new Callable<Boolean>()
+                        {
+                            @Override
+                            public Boolean call() throws Exception
+                            {
+                                return restoreFile(data, file);
+                            }
+                        }
+                    )
+                );
+            }
+
+            int         restoredQty = 0;
+            Exception   firstException = null;
+            for ( Future<Boolean> future : futures )
+            {
+                try
+                {
+                    if ( future.get() )
+                    {
+                        ++restoredQty;
+                    }
+                }
+                catch ( ExecutionException e )
+                {
+                    Exception   exception = (e.getCause() instanceof Exception) ? (Exception)e.getCause() : e;
+                    log.error("Restore failed", exception);
+                    if ( firstException == null )
+                    {
+                        firstException = exception;
+                    }
+                }
+            }
+
+            log.info(String.format("Restoring logs from backup done. Restored: %d, Skipped: %d, Time: %d ms", restoredQty, skippedQty, System.currentTimeMillis() - startMs));
+            if ( firstException != null )
+            {
+                throw firstException;
+            }
+        }
+        finally
+        {
+            restoreService.shutdownNow();
         }
-        log.info("Restoring logs from backup done.");
     }
 
     /**
-     * Restore the given key to the given file
+     * Restore the given key to the given file. The backup is decompressed as it is downloaded. Providers
+     * that support it (e.g. S3) deliver the stream from concurrently fetched byte ranges and re-fetch
+     * only the rest of a range if its connection fails.
      *
      * @param backup the backup to pull down
      * @param destinationFile the file
+     * @return false if the backup doesn't exist
      * @throws Exception errors
      */
-    public void restore(BackupMetaData backup, File destinationFile) throws Exception
+    public boolean restore(BackupMetaData backup, File destinationFile) throws Exception
     {
-        File                    tempFile = File.createTempFile("exhibitor-backup", ".tmp");
-        OutputStream            out = new FileOutputStream(tempFile);
-        InputStream in = null;
-        try
+        BackupStream            backupStream = getBackupStream(backup);
+        if ( backupStream == null )
         {
-            backupProvider.get().downloadBackup(exhibitor, backup, out, getBackupConfig());
-            CloseableUtils.closeQuietly(out);
-            out = null;
-
-            out = new FileOutputStream(destinationFile);
-            in = new GZIPInputStream(new FileInputStream(tempFile));
+            return false;
+        }
 
-            ByteStreams.copy(in, out);
+        long                    startMs = System.currentTimeMillis();
+        InputStream             in = null;
+        OutputStream            out = null;
+        boolean                 success = false;
+        try
+        {
+            in = new MultiMemberGzipInputStream(backupStream.getStream(), RESTORE_BUFFER_SIZE);
+            out = new BufferedOutputStream(new FileOutputStream(destinationFile), RESTORE_BUFFER_SIZE);
+            metrics.recordRestoredBytes(ByteStreams.copy(in, out));
+            out.flush();
+            success = true;
         }
         finally
         {
+            metrics.record(BackupMetrics.Stage.RESTORE, startMs, success);
             CloseableUtils.closeQuietly(in);
             CloseableUtils.closeQuietly(out);
-            if ( !tempFile.delete() )
+            CloseableUtils.closeQuietly(backupStream);
+            if ( !success && destinationFile.exists() && !destinationFile.delete() )
             {
-                exhibitor.getLog().add(ActivityLog.Type.ERROR, "Could not delete temp file (for restore): " + tempFile);
+                exhibitor.getLog().add(ActivityLog.Type.ERROR, "Could not delete partially restored file: " + destinationFile);
             }
         }
+
+        // lets the next restore see that this file is current
+        if ( !destinationFile.setLastModified(backup.getModifiedDate()) )
+        {
+            log.warn("Could not set modified date of restored file: " + destinationFile);
+        }
+        return true;
+    }
+
+    private boolean restoreFile(BackupMetaData data, File file) throws Exception
+    {
+        long        startMs = System.currentTimeMillis();
+        log.info(String.format("Restoring file: %s", data.getName()));
+        if ( !restore(data, file) )
+        {
+            log.warn(String.format("Backup not found for file: %s", data.getName()));
+            return false;
+        }
+        log.info(String.format("Restored file: %s - %d bytes in %d ms", data.getName(), file.length(), System.currentTimeMillis() - startMs));
+        return true;
+    }
+
+    private static boolean isAlreadyRestored(BackupMetaData data, File file)
+    {
+        // backups don't record the uncompressed size so a local copy is current when it's non-empty
+        // and was modified no earlier than the backed up version
+        return file.exists() && (file.length() > 0) && (file.lastModified() >= data.getModifiedDate());
+    }
+
+    /**
+     * Download the given backup, as stored, into the given file. Providers that support it
+     * download the file in concurrent ranges.
+     *
+     * @param backup the backup to pull down
+     * @param destinationFile the file
+     * @return false if the provider reports that the backup doesn't exist
+     * @throws Exception errors
+     */
+    public boolean downloadBackup(BackupMetaData backup, File destinationFile) throws Exception
+    {
+        BackupProvider          provider = backupProvider.get();
+        Map<String, String>     config = getBackupConfig();
+        if ( provider instanceof FileDownloadBackupProvider )
+        {
+            if ( !((FileDownloadBackupProvider)provider).downloadBackupToFile(exhibitor, backup, destinationFile, config) )
+            {
+                return false;
+            }
+        }
+        else
+        {
+            OutputStream        out = new FileOutputStream(destinationFile);
+            try
+            {
+                provider.downloadBackup(exhibitor, backup, out, config);
+            }
+            finally
+            {
+                CloseableUtils.closeQuietly(out);
+            }
+        }
+
+        chunkedBackups.expandIfManifest(destinationFile, config);
+        return true;
     }
 
     private void doBackup() throws Exception
@@ -263,15 +471,58 @@ public class BackupManager implements Closeable
             return;
         }
 
-        for ( File f : zooKeeperLogFiles.getPaths() )
+        List<BackupMetaData>    availableBackups = getCachedBackups(config);
+        BackupManifest          manifest = getManifest();
+        ExecutorService         compressionService = null;
+        try
         {
-            TempCompressedFile      tempCompressedFile = new TempCompressedFile(f);
-            try
+            for ( File f : zooKeeperLogFiles.getPaths() )
             {
-                tempCompressedFile.compress();
+                if ( manifest.isBackedUp(f, availableBackups) )
+                {
+                    continue;
+                }
+
+                long                        size = f.length();
+                BackupMetaData              metaData = new BackupMetaData(f.getName(), f.lastModified());
+                BackupManifest.FileChecksum checksum = new BackupManifest.FileChecksum();
+                BackupProvider.UploadResult result;
+                if ( CHUNKED_BACKUPS )
+                {
+                    long        startMs = System.currentTimeMillis();
+                    result = BackupProvider.UploadResult.FAILED;
+                    try
+                    {
+                        result = chunkedBackups.upload(metaData, f, checksum, config, availableBackups);
+                    }
+                    finally
+                    {
+                        metrics.record(BackupMetrics.Stage.UPLOAD, startMs, result != BackupProvider.UploadResult.FAILED);
+                    }
+                }
+                else
+                {
+                    if ( compressionService == null )
+                    {
+                        compressionService = Executors.newFixedThreadPool(COMPRESSION_THREADS, new ThreadFactoryBuilder().setNameFormat("BackupManager-compress-%d").build());
+                    }
+                    result = (provider instanceof StreamingBackupProvider)
+                        ? streamBackup((StreamingBackupProvider)provider, metaData, f, size, checksum, compressionService, config, availableBackups)
+                        : fileBackup(provider, metaData, f, size, checksum, compressionService, config);
+                }
+
+                if ( result != BackupProvider.UploadResult.FAILED )
+                {
+                    if ( f.lastModified() == metaData.getModifiedDate() )
+                    {
+                        // only if the file didn't change while it was being backed up. A duplicate may not have
+                        // been read to the end so its checksum is computed separately
+                        long    value = checksum.isComplete(size) ? checksum.getValue() : BackupManifest.checksum(f);
+                        manifest.recordBackup(metaData.getName(), size, metaData.getModifiedDate(), value);
+                    }
+                    updateCachedBackups(metaData);
+                }
 
-                BackupMetaData          metaData = new BackupMetaData(f.getName(), f.lastModified());
-                BackupProvider.UploadResult result = provider.uploadBackup(exhibitor, metaData, tempCompressedFile.getTempFile(), config);
                 switch ( result )
                 {
                     case SUCCEEDED:
@@ -293,16 +544,157 @@ public class BackupManager implements Closeable
                     }
                 }
             }
-            finally
+        }
+        finally
+        {
+            if ( compressionService != null )
             {
-                if ( !tempCompressedFile.getTempFile().delete() )
+                compressionService.shutdownNow();
+            }
+            saveManifest(manifest);
+        }
+
+        doRoll(config);
+    }
+
+    /**
+     * The manifest is kept in the log index directory. It is (re)loaded when that directory changes.
+     * It's only kept in memory if the directory isn't set.
+     */
+    private BackupManifest getManifest()
+    {
+        String      indexDirectory = exhibitor.getConfigManager().getConfig().getString(StringConfigs.LOG_INDEX_DIRECTORY);
+        File        file = ((indexDirectory != null) && (indexDirectory.trim().length() > 0)) ? new File(indexDirectory, BackupManifest.FILE_NAME) : null;
+        if ( !Objects.equal(file, manifest.getFile()) )
+        {
+            try
+            {
+                if ( file != null )
                 {
-                    exhibitor.getLog().add(ActivityLog.Type.ERROR, "Could not delete temp file: " + tempCompressedFile.getTempFile());
+                    Files.createParentDirs(file);
                 }
+                manifest = (file != null) ? new BackupManifest(file) : new BackupManifest();
+            }
+            catch ( IOException e )
+            {
+                exhibitor.getLog().add(ActivityLog.Type.ERROR, "Could not load backup manifest: " + file, e);
+                manifest = new BackupManifest();
             }
         }
+        return manifest;
+    }
 
-        doRoll(config);
+    private void saveManifest(BackupManifest manifest)
+    {
+        try
+        {
+            manifest.save();
+        }
+        catch ( IOException e )
+        {
+            exhibitor.getLog().add(ActivityLog.Type.ERROR, "Could not save backup manifest: " + manifest.getFile(), e);
+        }
+    }
+
+    private BackupProvider.UploadResult streamBackup(StreamingBackupProvider provider, BackupMetaData metaData, File f, long size, Checksum checksum, ExecutorService compressionService, Map<String, String> config, List<BackupMetaData> availableBackups) throws Exception
+    {
+        // compressed blocks go straight to the provider - no temp file
+        CountingInputStream         in = new CountingInputStream(new ParallelGzipInputStream(new CheckedInputStream(new FileInputStream(f), checksum), compressionService, COMPRESSION_BLOCK_SIZE, COMPRESSION_THREADS * 2));
+        long                        startMs = System.currentTimeMillis();
+        BackupProvider.UploadResult result = BackupProvider.UploadResult.FAILED;
+        try
+        {
+            result = provider.uploadBackupStream(exhibitor, metaData, in, config, availableBackups);
+            if ( result != BackupProvider.UploadResult.DUPLICATE )
+            {
+                metrics.recordCompression(size, in.getCount());
+            }
+            return result;
+        }
+        finally
+        {
+            metrics.record(BackupMetrics.Stage.UPLOAD, startMs, result != BackupProvider.UploadResult.FAILED);
+            CloseableUtils.closeQuietly(in);
+        }
+    }
+
+    private BackupProvider.UploadResult fileBackup(BackupProvider provider, BackupMetaData metaData, File f, long size, Checksum checksum, ExecutorService compressionService, Map<String, String> config) throws Exception
+    {
+        TempCompressedFile      tempCompressedFile = new TempCompressedFile(f, compressionService, COMPRESSION_BLOCK_SIZE, COMPRESSION_THREADS * 2);
+        try
+        {
+            long                        startMs = System.currentTimeMillis();
+            boolean                     compressed = false;
+            try
+            {
+                tempCompressedFile.compress(checksum);
+                compressed = true;
+            }
+            finally
+            {
+                metrics.record(BackupMetrics.Stage.COMPRESS, startMs, compressed);
+            }
+            metrics.recordCompression(size, tempCompressedFile.getTempFile().length());
+
+            startMs = System.currentTimeMillis();
+            BackupProvider.UploadResult result = BackupProvider.UploadResult.FAILED;
+            try
+            {
+                result = provider.uploadBackup(exhibitor, metaData, tempCompressedFile.getTempFile(), config);
+                return result;
+            }
+            finally
+            {
+                metrics.record(BackupMetrics.Stage.UPLOAD, startMs, result != BackupProvider.UploadResult.FAILED);
+            }
+        }
+        finally
+        {
+            if ( !tempCompressedFile.getTempFile().delete() )
+            {
+                exhibitor.getLog().add(ActivityLog.Type.ERROR, "Could not delete temp file: " + tempCompressedFile.getTempFile());
+            }
+        }
+    }
+
+    private List<BackupMetaData> getCachedBackups(Map<String, String> config) throws Exception
+    {
+        // listing can be expensive (a paginated S3 listing) - it's done at most once per TTL and then
+        // kept current with this instance's own uploads and deletes. Only accessed from the backup activity.
+        boolean     isStale = (cachedBackups == null)
+            || !config.equals(cachedBackupsConfig)
+            || ((System.currentTimeMillis() - cachedBackupsMs) >= LISTING_TTL_MS);
+        if ( isStale )
+        {
+            long        startMs = System.currentTimeMillis();
+            boolean     success = false;
+            try
+            {
+                cachedBackups = Lists.newArrayList(backupProvider.get().getAvailableBackups(exhibitor, config));
+                success = true;
+            }
+            finally
+            {
+                metrics.record(BackupMetrics.Stage.LIST, startMs, success);
+            }
+            cachedBackupsConfig = config;
+            cachedBackupsMs = System.currentTimeMillis();
+        }
+        return cachedBackups;
+    }
+
+    private void updateCachedBackups(BackupMetaData uploaded)
+    {
+        // the provider replaces older versions with the same name
+        Iterator<BackupMetaData>    iterator = cachedBackups.iterator();
+        while ( iterator.hasNext() )
+        {
+            if ( iterator.next().getName().equals(uploaded.getName()) )
+            {
+                iterator.remove();
+            }
+        }
+        cachedBackups.add(uploaded);
     }
 
     private Map<String, String> getBackupConfig()
@@ -322,17 +714,47 @@ public class BackupManager implements Closeable
 
         exhibitor.getLog().add(ActivityLog.Type.DEBUG, "Checking for elapsed backups");
 
-        List<BackupMetaData>        availableBackups = backupProvider.get().getAvailableBackups(exhibitor, config);
-        for ( BackupMetaData backup : availableBackups )
+        List<BackupMetaData>        availableBackups = getCachedBackups(config);
+        long                        startMs = System.currentTimeMillis();
+        boolean                     success = false;
+        try
+        {
+            rollBackups(availableBackups, config);
+            success = true;
+        }
+        finally
+        {
+            metrics.record(BackupMetrics.Stage.ROLL, startMs, success);
+        }
+
+        lastRollCheck.set(System.currentTimeMillis());
+    }
+
+    private void rollBackups(List<BackupMetaData> availableBackups, Map<String, String> config) throws Exception
+    {
+        for ( BackupMetaData backup : Lists.newArrayList(availableBackups) )
         {
+            if ( ChunkedBackups.isChunk(backup) )
+            {
+                continue;   // chunks are removed once no manifest references them
+            }
+
             long        age = System.currentTimeMillis() - backup.getModifiedDate();
             if ( age > exhibitor.getConfigManager().getConfig().getInt(IntConfigs.BACKUP_MAX_STORE_MS) )
             {
                 exhibitor.getLog().add(ActivityLog.Type.DEBUG, "Cleaning backup: " + backup);
                 backupProvider.get().deleteBackup(exhibitor, backup, config);
+                availableBackups.remove(backup);
             }
         }
 
-        lastRollCheck.set(System.currentTimeMillis());
+        if ( Iterables.any(availableBackups, IS_CHUNK) )
+        {
+            int     deletedQty = chunkedBackups.collectGarbage(availableBackups, config);
+            if ( deletedQty > 0 )
+            {
+                exhibitor.getLog().add(ActivityLog.Type.DEBUG, "Cleaned unreferenced backup chunks: " + deletedQty);
+            }
+        }
     }
 }
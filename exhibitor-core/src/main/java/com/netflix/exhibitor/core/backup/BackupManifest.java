@@ -0,0 +1,315 @@
+/*
+ * Copyright 2012 Netflix, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.netflix.exhibitor.core.backup;
+
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
+import org.apache.curator.utils.CloseableUtils;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.Checksum;
+
+/**
+ * Local record of the logs that have been backed up: name, size, modified date and checksum of
+ * the content that was uploaded. Lets {@link BackupManager} skip unchanged logs before spending
+ * any effort compressing them. The remote listing is the source of truth - entries whose backup
+ * is no longer listed are dropped, and entries are seeded from the listing on the first cycle.
+ * If given a file, the manifest is loaded from it and {@link #save()} writes it back so that
+ * logs aren't re-read after a restart.
+ */
+class BackupManifest
+{
+    private final File file;
+    private final Map<String, Entry> entries = Maps.newConcurrentMap();
+    private final AtomicBoolean isDirty = new AtomicBoolean(false);
+
+    /**
+     * Name of the manifest file in the log index directory
+     */
+    static final String FILE_NAME = "exhibitor-backup-manifest.properties";
+
+    /**
+     * Checksum that also counts the bytes it has seen so that a checksum of a partially read
+     * file isn't recorded
+     */
+    static class FileChecksum implements Checksum
+    {
+        private final CRC32     crc = new CRC32();
+        private long            count = 0;
+
+        @Override
+        public void update(int b)
+        {
+            crc.update(b);
+            ++count;
+        }
+
+        @Override
+        public void update(byte[] b, int off, int len)
+        {
+            crc.update(b, off, len);
+            count += len;
+        }
+
+        @Override
+        public long getValue()
+        {
+            return crc.getValue();
+        }
+
+        @Override
+        public void reset()
+        {
+            crc.reset();
+            count = 0;
+        }
+
+        /**
+         * @param size size of the file
+         * @return true if every byte of the file was checksummed
+         */
+        boolean isComplete(long size)
+        {
+            return count == size;
+        }
+    }
+
+    private static class Entry
+    {
+        private final long      size;
+        private final long      lastModified;
+        private final long      checksum;
+        private final long      backupModifiedDate;
+
+        private Entry(long size, long lastModified, long checksum, long backupModifiedDate)
+        {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.checksum = checksum;
+            this.backupModifiedDate = backupModifiedDate;
+        }
+
+        private static Entry parse(String value)
+        {
+            String[]    parts = value.split(",");
+            if ( parts.length != 4 )
+            {
+                return null;
+            }
+            try
+            {
+                return new Entry(Long.parseLong(parts[0]), Long.parseLong(parts[1]), Long.parseLong(parts[2]), Long.parseLong(parts[3]));
+            }
+            catch ( NumberFormatException e )
+            {
+                return null;
+            }
+        }
+
+        private String format()
+        {
+            return size + "," + lastModified + "," + checksum + "," + backupModifiedDate;
+        }
+    }
+
+    /**
+     * A manifest that is only kept in memory
+     */
+    BackupManifest()
+    {
+        file = null;
+    }
+
+    /**
+     * @param file file to load the manifest from (if it exists) and save it to
+     * @throws IOException errors reading the file
+     */
+    BackupManifest(File file) throws IOException
+    {
+        this.file = file;
+        if ( file.exists() )
+        {
+            Properties      properties = new Properties();
+            InputStream     in = new FileInputStream(file);
+            try
+            {
+                properties.load(in);
+            }
+            finally
+            {
+                CloseableUtils.closeQuietly(in);
+            }
+
+            for ( String name : properties.stringPropertyNames() )
+            {
+                Entry       entry = Entry.parse(properties.getProperty(name));
+                if ( entry != null )
+                {
+                    entries.put(name, entry);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the file the manifest is saved to or null
+     */
+    File getFile()
+    {
+        return file;
+    }
+
+    /**
+     * Write the manifest to its file if it has changed. The file is replaced atomically.
+     *
+     * @throws IOException errors
+     */
+    void save() throws IOException
+    {
+        if ( (file == null) || !isDirty.compareAndSet(true, false) )
+        {
+            return;
+        }
+
+        Properties      properties = new Properties();
+        for ( Map.Entry<String, Entry> entry : entries.entrySet() )
+        {
+            properties.setProperty(entry.getKey(), entry.getValue().format());
+        }
+
+        File            tempFile = new File(file.getParentFile(), file.getName() + ".tmp");
+        boolean         success = false;
+        OutputStream    out = new FileOutputStream(tempFile);
+        try
+        {
+            properties.store(out, "Exhibitor backup manifest - name=size,lastModified,checksum,backupModifiedDate");
+            out.close();
+            out = null;
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            success = true;
+        }
+        finally
+        {
+            CloseableUtils.closeQuietly(out);
+            if ( !success )
+            {
+                isDirty.set(true);
+                //noinspection ResultOfMethodCallIgnored
+                tempFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Returns true if the current content of the given file is already backed up
+     *
+     * @param f the log file
+     * @param backups the current remote backups
+     * @return true/false
+     * @throws IOException errors reading the file
+     */
+    boolean isBackedUp(File f, Collection<BackupMetaData> backups) throws IOException
+    {
+        String      name = f.getName();
+        long        size = f.length();
+        long        lastModified = f.lastModified();
+
+        Entry       entry = entries.get(name);
+        if ( (entry != null) && !backups.contains(new BackupMetaData(name, entry.backupModifiedDate)) )
+        {
+            // the backup has been rolled or replaced
+            entries.remove(name);
+            isDirty.set(true);
+            entry = null;
+        }
+
+        if ( (entry != null) && (entry.size == size) && (entry.lastModified == lastModified) )
+        {
+            return true;
+        }
+
+        if ( backups.contains(new BackupMetaData(name, lastModified)) )
+        {
+            // backed up before this manifest knew about it
+            entries.put(name, new Entry(size, lastModified, checksum(f), lastModified));
+            isDirty.set(true);
+            return true;
+        }
+
+        if ( (entry != null) && (entry.size == size) )
+        {
+            // touched but possibly not changed - the checksum is much cheaper than compressing and uploading
+            long        checksum = checksum(f);
+            if ( checksum == entry.checksum )
+            {
+                entries.put(name, new Entry(size, lastModified, checksum, entry.backupModifiedDate));
+                isDirty.set(true);
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Record a successful backup
+     *
+     * @param name log name
+     * @param size size of the log that was backed up
+     * @param lastModified modified date of the log that was backed up - also the backup's modified date
+     * @param checksum CRC32 of the content that was backed up
+     */
+    void recordBackup(String name, long size, long lastModified, long checksum)
+    {
+        entries.put(name, new Entry(size, lastModified, checksum, lastModified));
+        isDirty.set(true);
+    }
+
+    /**
+     * @return number of entries
+     */
+    int size()
+    {
+        return entries.size();
+    }
+
+    static long checksum(File f) throws IOException
+    {
+        CheckedInputStream     in = new CheckedInputStream(new FileInputStream(f), new CRC32());
+        try
+        {
+            ByteStreams.copy(in, ByteStreams.nullOutputStream());
+            return in.getChecksum().getValue();
+        }
+        finally
+        {
+            CloseableUtils.closeQuietly(in);
+        }
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2012 Netflix, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.netflix.exhibitor.core.backup;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import com.netflix.servo.monitor.BasicCompositeMonitor;
+import com.netflix.servo.monitor.BasicCounter;
+import com.netflix.servo.monitor.BasicGauge;
+import com.netflix.servo.monitor.BasicTimer;
+import com.netflix.servo.monitor.CompositeMonitor;
+import com.netflix.servo.monitor.Monitor;
+import com.netflix.servo.monitor.MonitorConfig;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timers and counters for each stage of the backup pipeline. Like {@link BackupThrottle} there is one
+ * instance per process so that providers can record into it. Exposed via Servo (see {@link #getMonitor()})
+ * and the REST API.
+ */
+public class BackupMetrics
+{
+    private static final BackupMetrics instance = new BackupMetrics();
+
+    public enum Stage
+    {
+        /**
+         * Compressing a log into a temp file. Logs that are streamed to the provider are compressed
+         * while uploading and are counted in {@link #UPLOAD}
+         */
+        COMPRESS,
+
+        /**
+         * Listing the available backups
+         */
+        LIST,
+
+        /**
+         * Uploading a backup
+         */
+        UPLOAD,
+
+        /**
+         * Deleting expired backups
+         */
+        ROLL,
+
+        /**
+         * Restoring a log
+         */
+        RESTORE
+    }
+
+    private final Map<Stage, BasicTimer> timers = Maps.newEnumMap(Stage.class);
+    private final Map<Stage, BasicCounter> errors = Maps.newEnumMap(Stage.class);
+    private final BasicCounter uncompressedBytes = new BasicCounter(MonitorConfig.builder("backup_uncompressed_bytes").build());
+    private final BasicCounter compressedBytes = new BasicCounter(MonitorConfig.builder("backup_compressed_bytes").build());
+    private final BasicCounter restoredBytes = new BasicCounter(MonitorConfig.builder("backup_restored_bytes").build());
+    private final BasicCounter retries = new BasicCounter(MonitorConfig.builder("backup_retries").build());
+    private final CompositeMonitor<?> monitor;
+
+    /**
+     * @return the process-wide instance
+     */
+    public static BackupMetrics getInstance()
+    {
+        return instance;
+    }
+
+    /**
+     * Record a completed stage
+     *
+     * @param stage the stage
+     * @param startMs when the stage started
+     * @param success false if the stage failed
+     */
+    public void record(Stage stage, long startMs, boolean success)
+    {
+        timers.get(stage).record(System.currentTimeMillis() - startMs, TimeUnit.MILLISECONDS);
+        if ( !success )
+        {
+            errors.get(stage).increment();
+        }
+    }
+
+    /**
+     * Record a compressed log
+     *
+     * @param uncompressed size of the log
+     * @param compressed size of the backup
+     */
+    public void recordCompression(long uncompressed, long compressed)
+    {
+        uncompressedBytes.increment(uncompressed);
+        compressedBytes.increment(compressed);
+    }
+
+    /**
+     * @param bytes bytes written by a restore
+     */
+    public void recordRestoredBytes(long bytes)
+    {
+        restoredBytes.increment(bytes);
+    }
+
+    /**
+     * Record that a provider retried a request
+     */
+    public void recordRetry()
+    {
+        retries.increment();
+    }
+
+    /**
+     * @return all metrics as a Servo monitor
+     */
+    public CompositeMonitor<?> getMonitor()
+    {
+        return monitor;
+    }
+
+    /**
+     * @return a snapshot of all values, by name
+     */
+    public Map<String, Number> getValues()
+    {
+        Map<String, Number>     values = Maps.newTreeMap();
+        for ( Stage stage : Stage.values() )
+        {
+            BasicTimer      timer = timers.get(stage);
+            String          prefix = stage.name().toLowerCase(Locale.ENGLISH);
+            values.put(prefix + "Count", timer.getCount());
+            values.put(prefix + "TotalMs", timer.getTotalTime());
+            values.put(prefix + "MaxMs", timer.getMax());
+            values.put(prefix + "Errors", errors.get(stage).getValue());
+        }
+        values.put("uncompressedBytes", uncompressedBytes.getValue());
+        values.put("compressedBytes", compressedBytes.getValue());
+        values.put("compressionRatioPercent", getCompressionRatioPercent());
+        values.put("restoredBytes", restoredBytes.getValue());
+        values.put("retries", retries.getValue());
+        for ( BackupThrottle.OperationClass operationClass : BackupThrottle.OperationClass.values() )
+        {
+            String          prefix = operationClass.name().toLowerCase(Locale.ENGLISH);
+            values.put(prefix + "ThrottledMs", BackupThrottle.getInstance().getThrottledMs(operationClass));
+        }
+        return values;
+    }
+
+    private BackupMetrics()
+    {
+        ImmutableList.Builder<Monitor<?>>   builder = ImmutableList.builder();
+        for ( Stage stage : Stage.values() )
+        {
+            String          name = "backup_" + stage.name().toLowerCase(Locale.ENGLISH);
+            BasicTimer      timer = new BasicTimer(MonitorConfig.builder(name).build(), TimeUnit.MILLISECONDS);
+            BasicCounter    errorCounter = new BasicCounter(MonitorConfig.builder(name + "_errors").build());
+            timers.put(stage, timer);
+            errors.put(stage, errorCounter);
+            builder.add(timer);
+            builder.add(errorCounter);
+        }
+        builder.add(uncompressedBytes);
+        builder.add(compressedBytes);
+        builder.add(restoredBytes);
+        builder.add(retries);
+        builder.add
+        (
+            new BasicGauge<Integer>
+            (
+                MonitorConfig.builder("backup_compression_ratio_percent").build(),
+                new Callable<Integer>()
+                {
+                    @Override
+                    public Integer call() throws Exception
+                    {
+                        return getCompressionRatioPercent();
+                    }
+                }
+            )
+        );
+        for ( final BackupThrottle.OperationClass operationClass : BackupThrottle.OperationClass.values() )
+        {
+            builder.add
+            (
+                new BasicGauge<Long>
+                (
+                    MonitorConfig.builder("backup_throttled_ms_" + operationClass.name().toLowerCase(Locale.ENGLISH)).build(),
+                    new Callable<Long>()
+                    {
+                        @Override
+                        public Long call() throws Exception
+                        {
+                            return BackupThrottle.getInstance().getThrottledMs(operationClass);
+                        }
+                    }
+                )
+            );
+        }
+        monitor = new BasicCompositeMonitor(MonitorConfig.builder("exhibitor_backup").build(), builder.build());
+    }
+
+    private int getCompressionRatioPercent()
+    {
+        long    uncompressed = uncompressedBytes.getValue().longValue();
+        return (uncompressed > 0) ? (int)((compressedBytes.getValue().longValue() * 100) / uncompressed) : 0;
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright 2012 Netflix, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.netflix.exhibitor.core.backup;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Maps;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide bandwidth limit for all backup, restore and index streams. All streams draw from one
+ * token bucket whose rate is the provider's configured throttle. Each operation class can optionally
+ * have its own (lower) rate via system properties - a stream then draws from both buckets. Buckets are
+ * lock-free: a caller reserves its bytes with a CAS and then sleeps off any debt, so concurrent streams
+ * share the budget fairly without blocking each other while reserving.
+ */
+public class BackupThrottle
+{
+    private static final Logger log = LoggerFactory.getLogger(BackupThrottle.class);
+
+    private static final BackupThrottle instance = new BackupThrottle
+    (
+        Integer.getInteger("BackupThrottleBurstMs", 1000),
+        Integer.getInteger("BackupThrottleBackupBytesPerMs", 0),
+        Integer.getInteger("BackupThrottleRestoreBytesPerMs", 0),
+        Integer.getInteger("BackupThrottleIndexBytesPerMs", 0)
+    );
+
+    public enum OperationClass
+    {
+        /**
+         * Uploading backups
+         */
+        BACKUP,
+
+        /**
+         * Restoring backups
+         */
+        RESTORE,
+
+        /**
+         * Downloading backups for indexing
+         */
+        INDEX
+    }
+
+    private final long burstNanos;
+    private final TokenBucket globalBucket = new TokenBucket();
+    private final Map<OperationClass, ClassBudget> classBudgets = Maps.newEnumMap(OperationClass.class);
+
+    /**
+     * Bandwidth for one stream of the given class
+     */
+    public class Budget
+    {
+        private final OperationClass    operationClass;
+        private final int               bytesPerMs;
+
+        private Budget(OperationClass operationClass, int bytesPerMs)
+        {
+            this.operationClass = operationClass;
+            this.bytesPerMs = bytesPerMs;
+        }
+
+        /**
+         * Account for bytes transferred and sleep if the stream is over its budget
+         *
+         * @param bytes bytes transferred since the last call
+         * @throws InterruptedIOException if the thread is interrupted while sleeping. The interrupt flag is preserved.
+         */
+        public void acquire(long bytes) throws InterruptedIOException
+        {
+            BackupThrottle.this.acquire(operationClass, bytesPerMs, bytes);
+        }
+    }
+
+    /**
+     * @return the process-wide instance
+     */
+    public static BackupThrottle getInstance()
+    {
+        return instance;
+    }
+
+    /**
+     * @param burstMs how much unused bandwidth (in ms worth of the rate) can be saved up for a burst
+     * @param backupBytesPerMs rate for {@link OperationClass#BACKUP} or 0 for only the global rate
+     * @param restoreBytesPerMs rate for {@link OperationClass#RESTORE} or 0 for only the global rate
+     * @param indexBytesPerMs rate for {@link OperationClass#INDEX} or 0 for only the global rate
+     */
+    @VisibleForTesting
+    BackupThrottle(int burstMs, int backupBytesPerMs, int restoreBytesPerMs, int indexBytesPerMs)
+    {
+        burstNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(burstMs, 0));
+        classBudgets.put(OperationClass.BACKUP, new ClassBudget(backupBytesPerMs));
+        classBudgets.put(OperationClass.RESTORE, new ClassBudget(restoreBytesPerMs));
+        classBudgets.put(OperationClass.INDEX, new ClassBudget(indexBytesPerMs));
+    }
+
+    /**
+     * Return a budget for a stream
+     *
+     * @param operationClass what the stream is used for
+     * @param bytesPerMs the configured global rate. Values less than 1 disable the global limit
+     * @return budget
+     */
+    public Budget newBudget(OperationClass operationClass, int bytesPerMs)
+    {
+        return new Budget(operationClass, bytesPerMs);
+    }
+
+    /**
+     * @param operationClass class
+     * @return total bytes transferred by the class
+     */
+    public long getBytes(OperationClass operationClass)
+    {
+        return classBudgets.get(operationClass).bytes.get();
+    }
+
+    /**
+     * @param operationClass class
+     * @return total time in milliseconds that streams of the class spent sleeping for the throttle
+     */
+    public long getThrottledMs(OperationClass operationClass)
+    {
+        return TimeUnit.NANOSECONDS.toMillis(classBudgets.get(operationClass).throttledNanos.get());
+    }
+
+    /**
+     * @param operationClass class
+     * @return number of times that streams of the class were slowed down
+     */
+    public long getThrottledCount(OperationClass operationClass)
+    {
+        return classBudgets.get(operationClass).throttledCount.get();
+    }
+
+    private void acquire(OperationClass operationClass, int bytesPerMs, long bytes) throws InterruptedIOException
+    {
+        if ( bytes <= 0 )
+        {
+            return;
+        }
+
+        ClassBudget     classBudget = classBudgets.get(operationClass);
+        classBudget.bytes.addAndGet(bytes);
+
+        long            now = System.nanoTime();
+        long            waitNanos = 0;
+        if ( bytesPerMs > 0 )
+        {
+            waitNanos = globalBucket.reserve(bytes, bytesPerMs, burstNanos, now);
+        }
+        if ( classBudget.bytesPerMs > 0 )
+        {
+            waitNanos = Math.max(waitNanos, classBudget.bucket.reserve(bytes, classBudget.bytesPerMs, burstNanos, now));
+        }
+
+        if ( waitNanos > 0 )
+        {
+            if ( log.isTraceEnabled() )
+            {
+                log.trace(String.format("%s stream over budget by %d bytes: throttling for %d ms", operationClass, bytes, TimeUnit.NANOSECONDS.toMillis(waitNanos)));
+            }
+
+            classBudget.throttledCount.incrementAndGet();
+            try
+            {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            }
+            catch ( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+                InterruptedIOException      ioException = new InterruptedIOException("Interrupted while throttling");
+                ioException.initCause(e);
+                throw ioException;
+            }
+            finally
+            {
+                classBudget.throttledNanos.addAndGet(System.nanoTime() - now);
+            }
+        }
+    }
+
+    private static class ClassBudget
+    {
+        private final int           bytesPerMs;
+        private final TokenBucket   bucket = new TokenBucket();
+        private final AtomicLong    bytes = new AtomicLong(0);
+        private final AtomicLong    throttledNanos = new AtomicLong(0);
+        private final AtomicLong    throttledCount = new AtomicLong(0);
+
+        private ClassBudget(int bytesPerMs)
+        {
+            this.bytesPerMs = bytesPerMs;
+        }
+    }
+
+    @VisibleForTesting
+    static class TokenBucket
+    {
+        // the time at which the bucket is (or was) empty. Tokens accrue as time passes this point - up
+        // to the burst. A reservation that exceeds the tokens on hand moves this point into the future
+        private final AtomicLong    emptyAtNanos = new AtomicLong(System.nanoTime());
+
+        /**
+         * @param bytes bytes to take
+         * @param bytesPerMs refill rate
+         * @param burstNanos max tokens that can be saved, expressed as time at the rate
+         * @param now current nano time
+         * @return nanos that the caller must wait to honor the reservation
+         */
+        long reserve(long bytes, int bytesPerMs, long burstNanos, long now)
+        {
+            long    costNanos = (bytes * TimeUnit.MILLISECONDS.toNanos(1)) / bytesPerMs;
+            for(;;)
+            {
+                long    emptyAt = emptyAtNanos.get();
+                long    oldest = now - burstNanos;
+                long    start = ((emptyAt - oldest) > 0) ? emptyAt : oldest;
+                long    newEmptyAt = start + costNanos;
+                if ( emptyAtNanos.compareAndSet(emptyAt, newEmptyAt) )
+                {
+                    return Math.max(newEmptyAt - now, 0);
+                }
+            }
+        }
+    }
+}
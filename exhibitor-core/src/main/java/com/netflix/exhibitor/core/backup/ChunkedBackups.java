@@ -0,0 +1,549 @@
+/*
+ * Copyright 2012 Netflix, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.netflix.exhibitor.core.backup;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import com.netflix.exhibitor.core.Exhibitor;
+import org.apache.curator.utils.CloseableUtils;
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.Checksum;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * <p>
+ *     Deduplicated backup format. A log is split into content-defined chunks (see {@link ContentDefinedChunker}).
+ *     Each distinct chunk is stored once, gzipped, as a backup named "chunk-" + its SHA-1. The log's own
+ *     backup is then a small text manifest listing its chunks in order. Transaction logs are preallocated
+ *     and written in place, so a new version of an active log shares all but a few chunks with the
+ *     previous version and only those are uploaded.
+ * </p>
+ *
+ * <p>
+ *     Chunks and manifests are ordinary backups so any {@link BackupProvider} can store them. As each chunk
+ *     is a separate gzip member, the chunks of a manifest concatenated are a standard (multi-member) gzip
+ *     of the log - readers see the same bytes as for a non-chunked backup. Chunks no longer referenced by
+ *     any manifest are removed by {@link #collectGarbage(List, Map)}.
+ * </p>
+ *
+ * <p>
+ *     A listing only has names and modified dates so a manifest can't be told from a plain backup without
+ *     reading it. A backup never changes once written, so the chunks each backup references (none for a
+ *     plain backup) are cached by name and modified date - each backup is read at most once and after that
+ *     the listing alone is enough. The instances of an ensemble share the store without coordinating: a
+ *     chunk is only deleted once it has been seen unreferenced for the whole grace period and an upload only
+ *     reuses an old chunk while a manifest still references it.
+ * </p>
+ */
+class ChunkedBackups
+{
+    private final Exhibitor exhibitor;
+    private final BackupProvider provider;
+    private final long garbageGraceMs;
+    private final ConcurrentMap<BackupMetaData, Set<BackupMetaData>> manifests = Maps.newConcurrentMap();
+    private final ConcurrentMap<BackupMetaData, Long> unreferencedSince = Maps.newConcurrentMap();
+
+    static final String             CHUNK_PREFIX = "chunk-";
+
+    private static final byte[]     MAGIC = "exhibitor-chunked-backup 1\n".getBytes(Charsets.UTF_8);
+    private static final int        MIN_CHUNK_SIZE = 256 * 1024;
+    private static final int        AVERAGE_CHUNK_SIZE_BITS = 20;   // 1 MB
+    private static final int        MAX_CHUNK_SIZE = 4 * 1024 * 1024;
+    private static final long       DEFAULT_GARBAGE_GRACE_MS = TimeUnit.HOURS.toMillis(1);  // don't remove chunks that a manifest being written may reference
+
+    private static class ChunkRef
+    {
+        private final BackupMetaData    metaData;
+        private final long              length;
+
+        private ChunkRef(BackupMetaData metaData, long length)
+        {
+            this.metaData = metaData;
+            this.length = length;
+        }
+    }
+
+    ChunkedBackups(Exhibitor exhibitor, BackupProvider provider)
+    {
+        this(exhibitor, provider, DEFAULT_GARBAGE_GRACE_MS);
+    }
+
+    @VisibleForTesting
+    ChunkedBackups(Exhibitor exhibitor, BackupProvider provider, long garbageGraceMs)
+    {
+        this.exhibitor = exhibitor;
+        this.provider = provider;
+        this.garbageGraceMs = garbageGraceMs;
+    }
+
+    static boolean isChunk(BackupMetaData metaData)
+    {
+        return metaData.getName().startsWith(CHUNK_PREFIX);
+    }
+
+    /**
+     * Back up a log as chunks plus a manifest
+     *
+     * @param metaData identity of the backup
+     * @param source the uncompressed log
+     * @param checksum updated with the bytes of the log
+     * @param configValues provider config
+     * @param availableBackups the available backups - chunks that are uploaded are added to it
+     * @return result of the manifest upload
+     * @throws Exception errors
+     */
+    BackupProvider.UploadResult upload(BackupMetaData metaData, File source, Checksum checksum, Map<String, String> configValues, List<BackupMetaData> availableBackups) throws Exception
+    {
+        if ( availableBackups.contains(metaData) )
+        {
+            return BackupProvider.UploadResult.DUPLICATE;
+        }
+
+        // an old chunk that no manifest references may be deleted by another instance at any time - it's
+        // uploaded again rather than reused
+        Set<BackupMetaData>             referenced = getReferencedChunks(availableBackups, configValues);
+        long                            reusableAfter = System.currentTimeMillis() - (garbageGraceMs / 2);
+        Map<String, BackupMetaData>     chunks = Maps.newHashMap();
+        for ( BackupMetaData backup : availableBackups )
+        {
+            if ( isChunk(backup) && (referenced.contains(backup) || (backup.getModifiedDate() > reusableAfter)) )
+            {
+                chunks.put(backup.getName(), backup);
+            }
+        }
+
+        Set<BackupMetaData>     manifestChunks = Sets.newHashSet();
+        ByteArrayOutputStream   manifest = new ByteArrayOutputStream();
+        manifest.write(MAGIC);
+        InputStream             in = new CheckedInputStream(new FileInputStream(source), checksum);
+        try
+        {
+            ContentDefinedChunker   chunker = new ContentDefinedChunker(in, MIN_CHUNK_SIZE, AVERAGE_CHUNK_SIZE_BITS, MAX_CHUNK_SIZE);
+            for ( byte[] chunk = chunker.next(); chunk != null; chunk = chunker.next() )
+            {
+                String          name = CHUNK_PREFIX + Hashing.sha1().hashBytes(chunk).toString();
+                BackupMetaData  chunkMetaData = chunks.get(name);
+                if ( chunkMetaData == null )
+                {
+                    chunkMetaData = new BackupMetaData(name, System.currentTimeMillis());
+                    uploadBytes(chunkMetaData, compress(chunk), configValues, availableBackups);
+                    removeVersions(name, availableBackups);    // the provider replaces any old version
+                    chunks.put(name, chunkMetaData);
+                    availableBackups.add(chunkMetaData);
+                }
+                manifestChunks.add(chunkMetaData);
+
+                String          line = name + " " + chunkMetaData.getModifiedDate() + " " + chunk.length + "\n";
+                manifest.write(line.getBytes(Charsets.UTF_8));
+            }
+        }
+        finally
+        {
+            CloseableUtils.closeQuietly(in);
+        }
+
+        BackupProvider.UploadResult     result = uploadBytes(metaData, manifest.toByteArray(), configValues, availableBackups);
+        manifests.put(metaData, ImmutableSet.copyOf(manifestChunks));
+        return result;
+    }
+
+    /**
+     * Open a backup. If the backup is a manifest, the stream is the backup's chunks in order. Otherwise it's
+     * the backup as stored.
+     *
+     * @param metaData the backup
+     * @param configValues provider config
+     * @return stream or null if the backup doesn't exist
+     * @throws Exception errors
+     */
+    BackupStream open(BackupMetaData metaData, final Map<String, String> configValues) throws Exception
+    {
+        final BackupStream      raw = provider.getBackupStream(exhibitor, metaData, configValues);
+        if ( raw == null )
+        {
+            return null;
+        }
+
+        final BufferedInputStream     in = new BufferedInputStream(raw.getStream());
+        if ( !startsWithMagic(in) )
+        {
+            return new BackupStream()
+            {
+                @Override
+                public InputStream getStream()
+                {
+                    return in;
+                }
+
+                @Override
+                public void close() throws IOException
+                {
+                    raw.close();
+                }
+            };
+        }
+
+        List<ChunkRef>          refs;
+        try
+        {
+            refs = readManifest(in);
+        }
+        finally
+        {
+            CloseableUtils.closeQuietly(raw);
+        }
+
+        final InputStream       chunksStream = new ChunksInputStream(refs, configValues);
+        return new BackupStream()
+        {
+            @Override
+            public InputStream getStream()
+            {
+                return chunksStream;
+            }
+
+            @Override
+            public void close() throws IOException
+            {
+                chunksStream.close();
+            }
+        };
+    }
+
+    /**
+     * If the given downloaded backup is a manifest, replace its content with the chunks it lists
+     *
+     * @param downloadedFile the downloaded backup
+     * @param configValues provider config
+     * @throws Exception errors
+     */
+    void expandIfManifest(File downloadedFile, Map<String, String> configValues) throws Exception
+    {
+        List<ChunkRef>      refs;
+        InputStream         in = new BufferedInputStream(new FileInputStream(downloadedFile));
+        try
+        {
+            if ( !startsWithMagic(in) )
+            {
+                return;
+            }
+            refs = readManifest(in);
+        }
+        finally
+        {
+            CloseableUtils.closeQuietly(in);
+        }
+
+        InputStream         chunksStream = new ChunksInputStream(refs, configValues);
+        OutputStream        out = new FileOutputStream(downloadedFile);
+        try
+        {
+            ByteStreams.copy(chunksStream, out);
+        }
+        finally
+        {
+            CloseableUtils.closeQuietly(chunksStream);
+            CloseableUtils.closeQuietly(out);
+        }
+    }
+
+    /**
+     * Delete chunks that no manifest has referenced for the grace period
+     *
+     * @param availableBackups the available backups - deleted chunks are removed from it
+     * @param configValues provider config
+     * @return number of chunks deleted
+     * @throws Exception errors
+     */
+    int collectGarbage(List<BackupMetaData> availableBackups, Map<String, String> configValues) throws Exception
+    {
+        Set<BackupMetaData>     referenced = getReferencedChunks(availableBackups, configValues);
+        int                     deletedQty = 0;
+        long                    now = System.currentTimeMillis();
+        Set<BackupMetaData>     unreferenced = Sets.newHashSet();
+        for ( BackupMetaData chunk : ImmutableList.copyOf(availableBackups) )
+        {
+            if ( !isChunk(chunk) || referenced.contains(chunk) )
+            {
+                continue;
+            }
+
+            unreferenced.add(chunk);
+            Long        previous = unreferencedSince.putIfAbsent(chunk, now);
+            long        since = (previous != null) ? previous : now;
+            if ( ((now - since) >= garbageGraceMs) && ((now - chunk.getModifiedDate()) >= garbageGraceMs) )
+            {
+                provider.deleteBackup(exhibitor, chunk, configValues);
+                availableBackups.remove(chunk);
+                unreferencedSince.remove(chunk);
+                ++deletedQty;
+            }
+        }
+        unreferencedSince.keySet().retainAll(unreferenced);   // referenced again or deleted elsewhere
+
+        return deletedQty;
+    }
+
+    /**
+     * Return the chunks referenced by the given backups' manifests. Backups not seen before are read
+     * once - the result is cached for as long as the backup is listed.
+     *
+     * @param availableBackups the available backups
+     * @param configValues provider config
+     * @return referenced chunks
+     * @throws Exception errors
+     */
+    private Set<BackupMetaData> getReferencedChunks(List<BackupMetaData> availableBackups, Map<String, String> configValues) throws Exception
+    {
+        Set<BackupMetaData>     referenced = Sets.newHashSet();
+        Set<BackupMetaData>     listed = Sets.newHashSet();
+        for ( BackupMetaData backup : ImmutableList.copyOf(availableBackups) )
+        {
+            if ( isChunk(backup) )
+            {
+                continue;
+            }
+
+            listed.add(backup);
+            Set<BackupMetaData>     chunks = manifests.get(backup);
+            if ( chunks == null )
+            {
+                chunks = readReferencedChunks(backup, configValues);
+                if ( chunks == null )
+                {
+                    continue;   // deleted since the listing
+                }
+                manifests.put(backup, chunks);
+            }
+            referenced.addAll(chunks);
+        }
+        manifests.keySet().retainAll(listed);
+
+        return referenced;
+    }
+
+    private Set<BackupMetaData> readReferencedChunks(BackupMetaData backup, Map<String, String> configValues) throws Exception
+    {
+        BackupStream        raw = provider.getBackupStream(exhibitor, backup, configValues);
+        if ( raw == null )
+        {
+            return null;
+        }
+        try
+        {
+            InputStream     in = new BufferedInputStream(raw.getStream());
+            if ( !startsWithMagic(in) )
+            {
+                return ImmutableSet.of();
+            }
+
+            ImmutableSet.Builder<BackupMetaData>    builder = ImmutableSet.builder();
+            for ( ChunkRef ref : readManifest(in) )
+            {
+                builder.add(ref.metaData);
+            }
+            return builder.build();
+        }
+        finally
+        {
+            CloseableUtils.closeQuietly(raw);
+        }
+    }
+
+    private static void removeVersions(String name, List<BackupMetaData> availableBackups)
+    {
+        Iterator<BackupMetaData>    iterator = availableBackups.iterator();
+        while ( iterator.hasNext() )
+        {
+            if ( iterator.next().getName().equals(name) )
+            {
+                iterator.remove();
+            }
+        }
+    }
+
+    private BackupProvider.UploadResult uploadBytes(BackupMetaData metaData, byte[] bytes, Map<String, String> configValues, List<BackupMetaData> availableBackups) throws Exception
+    {
+        if ( provider instanceof StreamingBackupProvider )
+        {
+            return ((StreamingBackupProvider)provider).uploadBackupStream(exhibitor, metaData, new ByteArrayInputStream(bytes), configValues, availableBackups);
+        }
+
+        File        tempFile = File.createTempFile("exhibitor-chunk", ".tmp");
+        try
+        {
+            Files.write(bytes, tempFile);
+            return provider.uploadBackup(exhibitor, metaData, tempFile, configValues);
+        }
+        finally
+        {
+            //noinspection ResultOfMethodCallIgnored
+            tempFile.delete();
+        }
+    }
+
+    private static byte[] compress(byte[] chunk) throws IOException
+    {
+        ByteArrayOutputStream   out = new ByteArrayOutputStream((chunk.length / 2) + 64);
+        GZIPOutputStream        gzip = new GZIPOutputStream(out);
+        gzip.write(chunk);
+        gzip.close();
+        return out.toByteArray();
+    }
+
+    private static boolean startsWithMagic(InputStream in) throws IOException
+    {
+        byte[]      bytes = new byte[MAGIC.length];
+        in.mark(MAGIC.length);
+        int         bytesRead = ByteStreams.read(in, bytes, 0, bytes.length);
+        in.reset();
+        return (bytesRead == MAGIC.length) && Arrays.equals(bytes, MAGIC);
+    }
+
+    private static List<ChunkRef> readManifest(InputStream in) throws IOException
+    {
+        ByteStreams.skipFully(in, MAGIC.length);
+
+        List<ChunkRef>      refs = Lists.newArrayList();
+        BufferedReader      reader = new BufferedReader(new InputStreamReader(in, Charsets.UTF_8));
+        for ( String line = reader.readLine(); line != null; line = reader.readLine() )
+        {
+            String[]        parts = line.trim().split(" ");
+            if ( parts.length != 3 )
+            {
+                throw new IOException("Bad chunk manifest line: " + line);
+            }
+            refs.add(new ChunkRef(new BackupMetaData(parts[0], Long.parseLong(parts[1])), Long.parseLong(parts[2])));
+        }
+        return refs;
+    }
+
+    private class ChunksInputStream extends InputStream
+    {
+        private final Iterator<ChunkRef>    refs;
+        private final Map<String, String>   configValues;
+        private BackupStream                current = null;
+
+        private ChunksInputStream(List<ChunkRef> refs, Map<String, String> configValues)
+        {
+            this.refs = refs.iterator();
+            this.configValues = configValues;
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            byte[]      b = new byte[1];
+            int         bytesRead = read(b, 0, 1);
+            return (bytesRead < 0) ? -1 : (b[0] & 0xff);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            if ( len == 0 )
+            {
+                return 0;
+            }
+
+            for(;;)
+            {
+                if ( current == null )
+                {
+                    if ( !refs.hasNext() )
+                    {
+                        return -1;
+                    }
+                    current = openChunk(refs.next());
+                }
+
+                int     bytesRead = current.getStream().read(b, off, len);
+                if ( bytesRead >= 0 )
+                {
+                    return bytesRead;
+                }
+                CloseableUtils.closeQuietly(current);
+                current = null;
+            }
+        }
+
+        @Override
+        public int available() throws IOException
+        {
+            return (current != null) ? current.getStream().available() : 0;
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            if ( current != null )
+            {
+                current.close();
+                current = null;
+            }
+        }
+
+        private BackupStream openChunk(ChunkRef ref) throws IOException
+        {
+            BackupStream    stream;
+            try
+            {
+                stream = provider.getBackupStream(exhibitor, ref.metaData, configValues);
+            }
+            catch ( IOException e )
+            {
+                throw e;
+            }
+            catch ( Exception e )
+            {
+                throw new IOException(e);
+            }
+            if ( stream == null )
+            {
+                throw new FileNotFoundException("Missing backup chunk: " + ref.metaData + " (" + ref.length + " bytes)");
+            }
+            return stream;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2012 Netflix, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.netflix.exhibitor.core.backup;
+
+import com.google.common.base.Preconditions;
+import com.google.common.io.ByteStreams;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Splits a stream into content-defined chunks using a gear rolling hash. A chunk ends where the
+ * hash of the preceding bytes matches a bit mask, so boundaries depend only on nearby content:
+ * when part of a log changes, chunks before and after the change keep their boundaries and are
+ * identical to the previous version's chunks.
+ */
+class ContentDefinedChunker
+{
+    private final InputStream in;
+    private final int minSize;
+    private final int maxSize;
+    private final long mask;
+    private final byte[] buffer;
+    private int bufferLength = 0;
+    private boolean sourceIsDone = false;
+
+    private static final int        WINDOW_SIZE = 64;   // the hash only depends on the last 64 bytes
+    private static final long[]     GEAR = new long[256];
+    static
+    {
+        // the table must never change - it determines where chunk boundaries fall for existing backups
+        Random      random = new Random(0x6578686962L);
+        for ( int i = 0; i < GEAR.length; ++i )
+        {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    /**
+     * @param in source
+     * @param minSize minimum chunk size
+     * @param averageSizeBits log2 of the average chunk size (beyond the minimum)
+     * @param maxSize maximum chunk size
+     */
+    ContentDefinedChunker(InputStream in, int minSize, int averageSizeBits, int maxSize)
+    {
+        Preconditions.checkArgument((minSize > WINDOW_SIZE) && (minSize <= maxSize), "minSize must be greater than %s and no more than maxSize", WINDOW_SIZE);
+        Preconditions.checkArgument((averageSizeBits > 0) && (averageSizeBits < 64), "averageSizeBits must be between 1 and 63");
+
+        this.in = in;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        mask = -1L << (64 - averageSizeBits);   // the high bits are the best mixed
+        buffer = new byte[maxSize];
+    }
+
+    /**
+     * Return the next chunk
+     *
+     * @return chunk or null at the end of the stream
+     * @throws IOException errors reading the source
+     */
+    byte[] next() throws IOException
+    {
+        if ( !sourceIsDone && (bufferLength < buffer.length) )
+        {
+            int     bytesRead = ByteStreams.read(in, buffer, bufferLength, buffer.length - bufferLength);
+            bufferLength += bytesRead;
+            sourceIsDone = (bufferLength < buffer.length);
+        }
+        if ( bufferLength == 0 )
+        {
+            return null;
+        }
+
+        int         cut = findBoundary();
+        byte[]      chunk = Arrays.copyOf(buffer, cut);
+        System.arraycopy(buffer, cut, buffer, 0, bufferLength - cut);
+        bufferLength -= cut;
+        return chunk;
+    }
+
+    private int findBoundary()
+    {
+        if ( bufferLength <= minSize )
+        {
+            return bufferLength;
+        }
+
+        long        hash = 0;
+        for ( int i = minSize - WINDOW_SIZE; i < bufferLength; ++i )
+        {
+            hash = (hash << 1) + GEAR[buffer[i] & 0xff];
+            if ( (i >= minSize) && ((hash & mask) == 0) )
+            {
+                return i + 1;
+            }
+        }
+        return bufferLength;    // either maxSize or the end of the stream
+    }
+}
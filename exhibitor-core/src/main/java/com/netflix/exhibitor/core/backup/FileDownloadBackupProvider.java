@@ -0,0 +1,41 @@
+/*
+ * Copyright 2012 Netflix, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.netflix.exhibitor.core.backup;
+
+import com.netflix.exhibitor.core.Exhibitor;
+import java.io.File;
+import java.util.Map;
+
+/**
+ * Optional extension for providers that can download a backup directly into a file. As the
+ * destination is random access, the provider is free to fetch pieces of the backup concurrently
+ * and in any order.
+ */
+public interface FileDownloadBackupProvider extends BackupProvider
+{
+    /**
+     * Download a backed-up object into the given file. Any existing content of the file is replaced.
+     *
+     * @param exhibitor instance
+     * @param backup the backup to pull down
+     * @param destination destination file
+     * @param configValues values for provider-specific config
+     * @return true if the backup was downloaded, false if the backup doesn't exist
+     * @throws Exception any errors
+     */
+    public boolean downloadBackupToFile(Exhibitor exhibitor, BackupMetaData backup, File destination, Map<String, String> configValues) throws Exception;
+}
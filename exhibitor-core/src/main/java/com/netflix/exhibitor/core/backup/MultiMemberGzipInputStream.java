@@ -0,0 +1,66 @@
+/*
+ * Copyright 2012 Netflix, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.netflix.exhibitor.core.backup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Backups are written as multi-member gzip streams (see {@link ParallelGzipInputStream}). {@link GZIPInputStream}
+ * only moves on to the next member when the source's <code>available()</code> is non-zero, which network
+ * streams don't guarantee. This version reads ahead a byte at member boundaries so that every member is
+ * decompressed no matter what the source reports.
+ */
+public class MultiMemberGzipInputStream extends GZIPInputStream
+{
+    /**
+     * @param in the compressed source
+     * @param size buffer size
+     * @throws IOException errors reading the first header
+     */
+    public MultiMemberGzipInputStream(InputStream in, int size) throws IOException
+    {
+        super(new ReadAheadInputStream(in), size);
+    }
+
+    private static class ReadAheadInputStream extends PushbackInputStream
+    {
+        private ReadAheadInputStream(InputStream in)
+        {
+            super(in);
+        }
+
+        @Override
+        public int available() throws IOException
+        {
+            int     available = super.available();
+            if ( available == 0 )
+            {
+                int     b = read();
+                if ( b < 0 )
+                {
+                    return 0;
+                }
+                unread(b);
+                available = 1;
+            }
+            return available;
+        }
+    }
+}
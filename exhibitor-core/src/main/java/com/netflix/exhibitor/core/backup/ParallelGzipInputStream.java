@@ -0,0 +1,190 @@
+/*
+ * Copyright 2012 Netflix, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.netflix.exhibitor.core.backup;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Queues;
+import com.google.common.io.ByteStreams;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Reads gzip compressed bytes of a source stream. The source is split into fixed size blocks
+ * that are compressed concurrently on the given executor - each block becomes a separate gzip
+ * member. Members are returned in source order so the result is a standard multi-member gzip
+ * stream that {@link java.util.zip.GZIPInputStream} decompresses as a whole. At most maxInFlight
+ * blocks are buffered at a time.
+ */
+public class ParallelGzipInputStream extends InputStream
+{
+    private final InputStream source;
+    private final ExecutorService executor;
+    private final int blockSize;
+    private final int maxInFlight;
+    private final Deque<Future<byte[]>> pending = Queues.newArrayDeque();
+    private boolean sourceIsDone = false;
+    private boolean hasBlocks = false;
+    private byte[] current = new byte[0];
+    private int currentOffset = 0;
+
+    /**
+     * @param source uncompressed source - closed when this stream is closed
+     * @param executor executor for compression
+     * @param blockSize size of uncompressed blocks
+     * @param maxInFlight max number of blocks being compressed/buffered at once
+     */
+    public ParallelGzipInputStream(InputStream source, ExecutorService executor, int blockSize, int maxInFlight)
+    {
+        Preconditions.checkArgument(blockSize > 0, "blockSize must be greater than 0");
+        Preconditions.checkArgument(maxInFlight > 0, "maxInFlight must be greater than 0");
+
+        this.source = source;
+        this.executor = executor;
+        this.blockSize = blockSize;
+        this.maxInFlight = maxInFlight;
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        byte[]      b = new byte[1];
+        int         bytesRead = read(b, 0, 1);
+        return (bytesRead < 0) ? -1 : (b[0] & 0xff);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+        if ( len == 0 )
+        {
+            return 0;
+        }
+
+        while ( currentOffset >= current.length )
+        {
+            if ( !nextBlock() )
+            {
+                return -1;
+            }
+        }
+
+        int     qty = Math.min(len, current.length - currentOffset);
+        System.arraycopy(current, currentOffset, b, off, qty);
+        currentOffset += qty;
+        return qty;
+    }
+
+    @Override
+    public int available() throws IOException
+    {
+        int     available = current.length - currentOffset;
+        if ( (available == 0) && (!pending.isEmpty() || !sourceIsDone) )
+        {
+            // GZIPInputStream only looks for another member when available() is non-zero
+            available = 1;
+        }
+        return available;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        for ( Future<byte[]> future : pending )
+        {
+            future.cancel(true);
+        }
+        pending.clear();
+        source.close();
+    }
+
+    private boolean nextBlock() throws IOException
+    {
+        fill();
+
+        Future<byte[]>  future = pending.poll();
+        if ( future == null )
+        {
+            return false;
+        }
+
+        try
+        {
+            current = future.get();
+            currentOffset = 0;
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+        catch ( ExecutionException e )
+        {
+            throw new IOException(e.getCause());
+        }
+
+        fill(); // keep the pipeline full while the caller consumes this block
+        return true;
+    }
+
+    private void fill() throws IOException
+    {
+        while ( !sourceIsDone && (pending.size() < maxInFlight) )
+        {
+            byte[]          block = new byte[blockSize];
+            int             bytesRead = ByteStreams.read(source, block, 0, blockSize);
+            if ( bytesRead < blockSize )
+            {
+                sourceIsDone = true;
+                if ( (bytesRead == 0) && hasBlocks )
+                {
+                    break;
+                }
+                block = Arrays.copyOf(block, bytesRead);    // note: an empty source still gets one (empty) member
+            }
+            hasBlocks = true;
+            pending.add(executor.submit(new CompressBlock(block)));
+        }
+    }
+
+    private static class CompressBlock implements Callable<byte[]>
+    {
+        private final byte[]    block;
+
+        private CompressBlock(byte[] block)
+        {
+            this.block = block;
+        }
+
+        @Override
+        public byte[] call() throws Exception
+        {
+            ByteArrayOutputStream   out = new ByteArrayOutputStream((block.length / 2) + 64);
+            GZIPOutputStream        gzip = new GZIPOutputStream(out);
+            gzip.write(block);
+            gzip.close();
+            return out.toByteArray();
+        }
+    }
+}
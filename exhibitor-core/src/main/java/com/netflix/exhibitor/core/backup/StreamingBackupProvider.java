@@ -0,0 +1,44 @@
+/*
+ * Copyright 2012 Netflix, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.netflix.exhibitor.core.backup;
+
+import com.netflix.exhibitor.core.Exhibitor;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Optional extension for providers that can upload a backup while it is being compressed. When
+ * the provider implements this, {@link BackupManager} streams the compressed log directly to the
+ * provider instead of first writing it to a temp file.
+ */
+public interface StreamingBackupProvider extends BackupProvider
+{
+    /**
+     * Upload an object into the backup.
+     *
+     * @param exhibitor instance
+     * @param metaData identity of the backup
+     * @param source the compressed bytes of the backup. The length is not known in advance. The caller closes the stream.
+     * @param configValues values for provider-specific config
+     * @param availableBackups the available backups as recently listed by the caller. The provider uses these to
+     *                         detect duplicates and old versions instead of listing the backups itself.
+     * @return the upload result
+     * @throws Exception any errors
+     */
+    public UploadResult uploadBackupStream(Exhibitor exhibitor, BackupMetaData metaData, InputStream source, Map<String, String> configValues, List<BackupMetaData> availableBackups) throws Exception;
+}
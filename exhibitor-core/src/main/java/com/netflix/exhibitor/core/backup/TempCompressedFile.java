@@ -23,22 +23,45 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.zip.GZIPOutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.Checksum;
 
+/**
+ * Compresses a log into a temp file. Blocks of the log are compressed concurrently - the
+ * file is a multi-member gzip (see {@link ParallelGzipInputStream}).
+ */
 class TempCompressedFile
 {
     private final File      tempFile;
     private final File      source;
+    private final ExecutorService executor;
+    private final int       blockSize;
+    private final int       maxInFlight;
 
     private static final int        BUFFER_SIZE = 1024 * 1024;  // 1 MB
 
-    TempCompressedFile(File source) throws IOException
+    /**
+     * @param source file to compress
+     * @param executor executor for compressing blocks
+     * @param blockSize size of uncompressed blocks
+     * @param maxInFlight max blocks being compressed at once
+     * @throws IOException errors creating the temp file
+     */
+    TempCompressedFile(File source, ExecutorService executor, int blockSize, int maxInFlight) throws IOException
     {
         this.source = source;
+        this.executor = executor;
+        this.blockSize = blockSize;
+        this.maxInFlight = maxInFlight;
         tempFile = File.createTempFile("exhibitor", ".tmp");
     }
 
-    void        compress() throws IOException
+    /**
+     * @param checksum updated with the uncompressed bytes
+     * @throws IOException errors
+     */
+    void        compress(Checksum checksum) throws IOException
     {
         byte[]          buffer = new byte[BUFFER_SIZE];
 
@@ -46,8 +69,8 @@ class TempCompressedFile
         OutputStream    out = null;
         try
         {
-            in = new FileInputStream(source);
-            out = new GZIPOutputStream(new FileOutputStream(tempFile));
+            in = new ParallelGzipInputStream(new CheckedInputStream(new FileInputStream(source), checksum), executor, blockSize, maxInFlight);
+            out = new FileOutputStream(tempFile);
 
             for(;;)
             {
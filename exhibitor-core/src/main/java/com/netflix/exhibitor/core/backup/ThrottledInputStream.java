@@ -0,0 +1,68 @@
+/*
+ * Copyright 2012 Netflix, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.netflix.exhibitor.core.backup;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Charges all bytes read to a {@link BackupThrottle.Budget}
+ */
+public class ThrottledInputStream extends FilterInputStream
+{
+    private final BackupThrottle.Budget budget;
+
+    public ThrottledInputStream(InputStream in, BackupThrottle.Budget budget)
+    {
+        super(in);
+        this.budget = budget;
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        int     b = in.read();
+        if ( b >= 0 )
+        {
+            budget.acquire(1);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+        int     bytesRead = in.read(b, off, len);
+        if ( bytesRead > 0 )
+        {
+            budget.acquire(bytesRead);
+        }
+        return bytesRead;
+    }
+
+    @Override
+    public long skip(long n) throws IOException
+    {
+        long    skipped = in.skip(n);
+        if ( skipped > 0 )
+        {
+            budget.acquire(skipped);
+        }
+        return skipped;
+    }
+}
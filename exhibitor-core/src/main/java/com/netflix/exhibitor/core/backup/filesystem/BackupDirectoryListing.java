@@ -0,0 +1,353 @@
+/*
+ * Copyright 2012 Netflix, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.netflix.exhibitor.core.backup.filesystem;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.netflix.exhibitor.core.backup.BackupMetaData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * In-memory listing of the backups in a backup directory (one sub directory per backup name, one
+ * file per version). The provider records its own changes directly and a {@link WatchService} picks
+ * up changes made by anyone else. Watch events aren't delivered for every file system (e.g. changes
+ * made by other hosts on NFS) so the tree is also rescanned when the listing is older than rescanMs.
+ */
+class BackupDirectoryListing implements Closeable
+{
+    private static final Logger log = LoggerFactory.getLogger(BackupDirectoryListing.class);
+
+    private final File directory;
+    private final Path root;
+    private final long rescanMs;
+    private final WatchService watchService;
+    private final ExecutorService watcher;
+    private final Set<Path> registered = Sets.newConcurrentHashSet();
+    private volatile ConcurrentMap<String, Set<Long>> versions = Maps.newConcurrentMap();
+    private volatile long lastScanMs = 0;
+
+    /**
+     * @param directory the backup directory - it doesn't have to exist yet
+     * @param rescanMs max age of the listing before it is rebuilt from the file system
+     */
+    BackupDirectoryListing(File directory, long rescanMs)
+    {
+        this.directory = directory;
+        this.root = directory.toPath();
+        this.rescanMs = rescanMs;
+
+        WatchService    localWatchService = null;
+        try
+        {
+            localWatchService = FileSystems.getDefault().newWatchService();
+        }
+        catch ( IOException e )
+        {
+            log.info("Could not create a watch service for backup directory - only rescans will be used: " + directory, e);
+        }
+        watchService = localWatchService;
+
+        if ( watchService != null )
+        {
+            watcher = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setDaemon(true).setNameFormat("BackupDirectoryListing-%d").build());
+            watcher.submit
+            (
+                new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        watch();
+                    }
+                }
+            );
+        }
+        else
+        {
+            watcher = null;
+        }
+    }
+
+    File getDirectory()
+    {
+        return directory;
+    }
+
+    /**
+     * @return all backups
+     */
+    List<BackupMetaData> getBackups()
+    {
+        ImmutableList.Builder<BackupMetaData>   builder = ImmutableList.builder();
+        for ( Map.Entry<String, Set<Long>> entry : getVersions().entrySet() )
+        {
+            for ( Long version : entry.getValue() )
+            {
+                builder.add(new BackupMetaData(entry.getKey(), version));
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * @param name backup name
+     * @return the versions of the given backup
+     */
+    Collection<Long> getVersions(String name)
+    {
+        Set<Long>       nameVersions = getVersions().get(name);
+        return (nameVersions != null) ? ImmutableSet.copyOf(nameVersions) : ImmutableSet.<Long>of();
+    }
+
+    /**
+     * Record a version written by the provider
+     *
+     * @param name backup name
+     * @param version the version
+     */
+    void added(String name, long version)
+    {
+        register(root);
+        register(root.resolve(name));
+        getVersionSet(versions, name).add(version);
+    }
+
+    /**
+     * Record a version deleted by the provider
+     *
+     * @param name backup name
+     * @param version the version
+     */
+    void removed(String name, long version)
+    {
+        Set<Long>       nameVersions = versions.get(name);
+        if ( nameVersions != null )
+        {
+            nameVersions.remove(version);
+        }
+    }
+
+    /**
+     * @param name a version file name
+     * @return the version or null if the file isn't a backup version (e.g. an in-progress upload)
+     */
+    static Long parseVersion(String name)
+    {
+        try
+        {
+            return Long.parseLong(name);
+        }
+        catch ( NumberFormatException e )
+        {
+            return null;
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        if ( watchService != null )
+        {
+            watcher.shutdownNow();
+            watchService.close();
+        }
+    }
+
+    private ConcurrentMap<String, Set<Long>> getVersions()
+    {
+        if ( (System.currentTimeMillis() - lastScanMs) > rescanMs )
+        {
+            rescan();
+        }
+        return versions;
+    }
+
+    private synchronized void rescan()
+    {
+        if ( (System.currentTimeMillis() - lastScanMs) <= rescanMs )
+        {
+            return; // another thread just did it
+        }
+
+        ConcurrentMap<String, Set<Long>>    newVersions = Maps.newConcurrentMap();
+        if ( directory.isDirectory() )
+        {
+            register(root);
+            File[]      nameDirs = directory.listFiles();
+            if ( nameDirs != null )
+            {
+                for ( File nameDir : nameDirs )
+                {
+                    if ( nameDir.isDirectory() )
+                    {
+                        register(nameDir.toPath());
+                        scanNameDirectory(newVersions, nameDir);
+                    }
+                }
+            }
+        }
+        versions = newVersions;
+        lastScanMs = System.currentTimeMillis();
+    }
+
+    private void scanNameDirectory(ConcurrentMap<String, Set<Long>> map, File nameDir)
+    {
+        Set<Long>   nameVersions = getVersionSet(map, nameDir.getName());
+        File[]      files = nameDir.listFiles();
+        if ( files != null )
+        {
+            for ( File file : files )
+            {
+                Long    version = parseVersion(file.getName());
+                if ( (version != null) && file.isFile() )
+                {
+                    nameVersions.add(version);
+                }
+            }
+        }
+    }
+
+    private static Set<Long> getVersionSet(ConcurrentMap<String, Set<Long>> map, String name)
+    {
+        Set<Long>       nameVersions = map.get(name);
+        if ( nameVersions == null )
+        {
+            Set<Long>   newVersions = Sets.newConcurrentHashSet();
+            nameVersions = map.putIfAbsent(name, newVersions);
+            if ( nameVersions == null )
+            {
+                nameVersions = newVersions;
+            }
+        }
+        return nameVersions;
+    }
+
+    private void register(Path path)
+    {
+        if ( (watchService != null) && !registered.contains(path) )
+        {
+            try
+            {
+                path.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE);
+                registered.add(path);
+            }
+            catch ( IOException e )
+            {
+                log.debug("Could not watch backup directory: " + path, e);
+            }
+            catch ( ClosedWatchServiceException e )
+            {
+                // closing
+            }
+        }
+    }
+
+    private void watch()
+    {
+        try
+        {
+            while ( !Thread.currentThread().isInterrupted() )
+            {
+                WatchKey    key = watchService.take();
+                Path        dir = (Path)key.watchable();
+                for ( WatchEvent<?> event : key.pollEvents() )
+                {
+                    if ( event.kind() == StandardWatchEventKinds.OVERFLOW )
+                    {
+                        lastScanMs = 0;
+                        continue;
+                    }
+
+                    Path        child = dir.resolve((Path)event.context());
+                    boolean     isCreate = (event.kind() == StandardWatchEventKinds.ENTRY_CREATE);
+                    if ( dir.equals(root) )
+                    {
+                        String      name = child.getFileName().toString();
+                        if ( isCreate )
+                        {
+                            File    nameDir = child.toFile();
+                            if ( nameDir.isDirectory() )
+                            {
+                                register(child);
+                                scanNameDirectory(versions, nameDir);   // files may have been written before the register
+                            }
+                        }
+                        else
+                        {
+                            versions.remove(name);
+                            registered.remove(child);
+                        }
+                    }
+                    else
+                    {
+                        String      name = dir.getFileName().toString();
+                        Long        version = parseVersion(child.getFileName().toString());
+                        if ( version != null )
+                        {
+                            if ( isCreate )
+                            {
+                                getVersionSet(versions, name).add(version);
+                            }
+                            else
+                            {
+                                removed(name, version);
+                            }
+                        }
+                    }
+                }
+
+                if ( !key.reset() )
+                {
+                    registered.remove(dir);
+                    if ( dir.equals(root) )
+                    {
+                        lastScanMs = 0;
+                    }
+                }
+            }
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+        }
+        catch ( ClosedWatchServiceException e )
+        {
+            // closing
+        }
+    }
+}
@@ -16,29 +16,53 @@
 
 package com.netflix.exhibitor.core.backup.filesystem;
 
-import com.google.common.collect.ImmutableList;
-import com.google.common.io.Files;
 import com.netflix.exhibitor.core.backup.BackupMetaData;
-import com.netflix.exhibitor.core.backup.BackupProvider;
+import com.netflix.exhibitor.core.backup.FileDownloadBackupProvider;
 import com.netflix.exhibitor.core.Exhibitor;
 import com.netflix.exhibitor.core.activity.ActivityLog;
 import com.netflix.exhibitor.core.backup.BackupConfigSpec;
 import com.netflix.exhibitor.core.backup.BackupStream;
+import com.netflix.exhibitor.core.backup.BackupThrottle;
+import com.netflix.exhibitor.core.backup.ThrottledInputStream;
+import org.apache.curator.utils.CloseableUtils;
 import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 
-public class FileSystemBackupProvider implements BackupProvider
+import static com.netflix.exhibitor.core.config.DefaultProperties.asInt;
+
+/**
+ * Stores backups in a directory (e.g. an NFS or EBS mount). Files are moved with {@link FileChannel#transferTo(long, long, WritableByteChannel)}
+ * so the bytes don't pass through the JVM. Uploads are written to a temp file, synced and then atomically
+ * renamed so that partially written backups are never visible.
+ */
+public class FileSystemBackupProvider implements FileDownloadBackupProvider
 {
     private static final BackupConfigSpec CONFIG_DIRECTORY = new BackupConfigSpec("directory", "Destination Path", "The path of the directory where backups are written to", "", BackupConfigSpec.Type.STRING);
 
-    private static final List<BackupConfigSpec> BACKUP_CONFIGS = Arrays.asList(CONFIG_DIRECTORY);
+    private static final BackupConfigSpec CONFIG_THROTTLE = new BackupConfigSpec("throttle", "Throttle (bytes/ms)", "Data throttling. Maximum bytes per millisecond shared by all backup, restore and index transfers. 0 for no limit.", Integer.toString(1024 * 1024), BackupConfigSpec.Type.INTEGER);
+
+    private static final List<BackupConfigSpec> BACKUP_CONFIGS = Arrays.asList(CONFIG_DIRECTORY, CONFIG_THROTTLE);
+
+    private static final String     TEMP_FILE_PREFIX = ".upload-";
+    private static final long       TRANSFER_CHUNK_SIZE = 4 * 1024 * 1024;  // throttle granularity
+    private static final int        RESCAN_MS = Integer.getInteger("FileSystemBackupProviderRescanMs", 5 * 60 * 1000);
+
+    private BackupDirectoryListing  listing = null;
 
     @Override
     public List<BackupConfigSpec> getConfigs()
@@ -76,16 +100,41 @@ public class FileSystemBackupProvider implements BackupProvider
             return UploadResult.FAILED;
         }
 
-        List<BackupMetaData>    availableBackups = getAvailableBackups(exhibitor, configValues);
+        BackupDirectoryListing  directoryListing = getListing(configValues);
+        Collection<Long>        existingVersions = directoryListing.getVersions(backup.getName());
+
+        File                    tempFile = new File(destinationDirectory, TEMP_FILE_PREFIX + backup.getModifiedDate() + "-" + System.nanoTime());
+        try
+        {
+            FileChannel         in = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+            FileChannel         out = FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            try
+            {
+                transfer(in, out, makeThrottle(BackupThrottle.OperationClass.BACKUP, configValues));
+                out.force(true);
+            }
+            finally
+            {
+                CloseableUtils.closeQuietly(in);
+                CloseableUtils.closeQuietly(out);
+            }
 
-        Files.copy(source, destinationFile);
+            Files.move(tempFile.toPath(), destinationFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            syncDirectory(destinationDirectory);
+        }
+        finally
+        {
+            //noinspection ResultOfMethodCallIgnored
+            tempFile.delete();  // no-op once it has been renamed
+        }
+        directoryListing.added(backup.getName(), backup.getModifiedDate());
 
         UploadResult        result = UploadResult.SUCCEEDED;
-        for ( BackupMetaData existing : availableBackups )
+        for ( Long version : existingVersions )
         {
-            if ( existing.getName().equals(backup.getName()) )
+            if ( version != backup.getModifiedDate() )
             {
-                deleteBackup(exhibitor, existing, configValues);
+                deleteBackup(exhibitor, new BackupMetaData(backup.getName(), version), configValues);
                 result = UploadResult.REPLACED_OLD_VERSION;
             }
         }
@@ -95,37 +144,7 @@ public class FileSystemBackupProvider implements BackupProvider
     @Override
     public List<BackupMetaData> getAvailableBackups(Exhibitor exhibitor, Map<String, String> configValues) throws Exception
     {
-        ImmutableList.Builder<BackupMetaData>   builder = ImmutableList.builder();
-        String                                  pathname = configValues.get(CONFIG_DIRECTORY.getKey());
-        if ( pathname != null )
-        {
-            File                                    directory = new File(pathname);
-            if ( directory.isDirectory() )
-            {
-                File[] files = directory.listFiles();
-                if ( files != null )
-                {
-                    for ( File nameDir : files )
-                    {
-                        if ( nameDir.isDirectory() )
-                        {
-                            File[] subFiles = nameDir.listFiles();
-                            if ( subFiles != null )
-                            {
-                                for ( File version : subFiles )
-                                {
-                                    if ( version.isFile() )
-                                    {
-                                        builder.add(new BackupMetaData(nameDir.getName(), Long.parseLong(version.getName())));
-                                    }
-                                }
-                            }
-                        }
-                    }
-                }
-            }
-        }
-        return builder.build();
+        return getListing(configValues).getBackups();
     }
 
     @Override
@@ -138,20 +157,19 @@ public class FileSystemBackupProvider implements BackupProvider
         {
             exhibitor.getLog().add(ActivityLog.Type.ERROR, "Could not delete old backup: " + destinationFile);
         }
+        getListing(configValues).removed(backup.getName(), backup.getModifiedDate());
     }
 
     @Override
     public BackupStream getBackupStream(Exhibitor exhibitor, BackupMetaData backup, Map<String, String> configValues) throws Exception
     {
-        File        directory = new File(configValues.get(CONFIG_DIRECTORY.getKey()));
-        File        nameDirectory = new File(directory, backup.getName());
-        File        source = new File(nameDirectory, Long.toString(backup.getModifiedDate()));
+        File        source = getSourceFile(backup, configValues);
         if ( !source.exists() )
         {
             return null;
         }
 
-        final InputStream   in = new BufferedInputStream(new FileInputStream(source));
+        final InputStream   in = new ThrottledInputStream(new BufferedInputStream(new FileInputStream(source)), makeThrottle(BackupThrottle.OperationClass.RESTORE, configValues));
         return new BackupStream()
         {
             @Override
@@ -170,10 +188,98 @@ public class FileSystemBackupProvider implements BackupProvider
 
     @Override
     public void downloadBackup(Exhibitor exhibitor, BackupMetaData backup, OutputStream destination, Map<String, String> configValues) throws Exception
+    {
+        // a file destination gets a zero-copy transfer - the channel shares the stream's position and is closed with it
+        WritableByteChannel     out = (destination instanceof FileOutputStream) ? ((FileOutputStream)destination).getChannel() : Channels.newChannel(destination);
+        FileChannel             in = FileChannel.open(getSourceFile(backup, configValues).toPath(), StandardOpenOption.READ);
+        try
+        {
+            transfer(in, out, makeThrottle(BackupThrottle.OperationClass.INDEX, configValues));
+        }
+        finally
+        {
+            CloseableUtils.closeQuietly(in);
+        }
+    }
+
+    @Override
+    public boolean downloadBackupToFile(Exhibitor exhibitor, BackupMetaData backup, File destination, Map<String, String> configValues) throws Exception
+    {
+        File        source = getSourceFile(backup, configValues);
+        if ( !source.exists() )
+        {
+            return false;
+        }
+
+        FileChannel     in = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+        FileChannel     out = FileChannel.open(destination.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try
+        {
+            transfer(in, out, makeThrottle(BackupThrottle.OperationClass.INDEX, configValues));
+        }
+        finally
+        {
+            CloseableUtils.closeQuietly(in);
+            CloseableUtils.closeQuietly(out);
+        }
+        return true;
+    }
+
+    private synchronized BackupDirectoryListing getListing(Map<String, String> configValues)
+    {
+        File        directory = new File(configValues.get(CONFIG_DIRECTORY.getKey()));
+        if ( (listing == null) || !listing.getDirectory().equals(directory) )
+        {
+            CloseableUtils.closeQuietly(listing);
+            listing = new BackupDirectoryListing(directory, RESCAN_MS);
+        }
+        return listing;
+    }
+
+    private static File getSourceFile(BackupMetaData backup, Map<String, String> configValues)
     {
         File        directory = new File(configValues.get(CONFIG_DIRECTORY.getKey()));
         File        nameDirectory = new File(directory, backup.getName());
-        File        source = new File(nameDirectory, Long.toString(backup.getModifiedDate()));
-        Files.copy(source, destination);
+        return new File(nameDirectory, Long.toString(backup.getModifiedDate()));
+    }
+
+    private static void transfer(FileChannel in, WritableByteChannel out, BackupThrottle.Budget throttle) throws IOException
+    {
+        long        size = in.size();
+        long        position = 0;
+        while ( position < size )
+        {
+            long    qty = in.transferTo(position, Math.min(TRANSFER_CHUNK_SIZE, size - position), out);
+            if ( qty <= 0 )
+            {
+                break;  // the source was truncated
+            }
+            throttle.acquire(qty);
+            position += qty;
+        }
+    }
+
+    private static void syncDirectory(File directory)
+    {
+        // makes the rename itself durable. Not every platform can open a directory - the rename is atomic regardless
+        FileChannel     channel = null;
+        try
+        {
+            channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ);
+            channel.force(true);
+        }
+        catch ( IOException e )
+        {
+            // ignore
+        }
+        finally
+        {
+            CloseableUtils.closeQuietly(channel);
+        }
+    }
+
+    private static BackupThrottle.Budget makeThrottle(BackupThrottle.OperationClass operationClass, Map<String, String> configValues)
+    {
+        return BackupThrottle.getInstance().newBudget(operationClass, asInt(configValues.get(CONFIG_THROTTLE.getKey())));
     }
 }
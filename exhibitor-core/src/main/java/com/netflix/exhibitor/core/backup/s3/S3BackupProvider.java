@@ -23,13 +23,20 @@ import com.google.common.base.Function;
 import com.google.common.base.Predicate;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Queues;
+import com.google.common.io.ByteStreams;
 import com.google.common.io.Files;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.netflix.exhibitor.core.Exhibitor;
 import com.netflix.exhibitor.core.activity.ActivityLog;
 import com.netflix.exhibitor.core.backup.BackupConfigSpec;
 import com.netflix.exhibitor.core.backup.BackupMetaData;
+import com.netflix.exhibitor.core.backup.BackupMetrics;
 import com.netflix.exhibitor.core.backup.BackupProvider;
 import com.netflix.exhibitor.core.backup.BackupStream;
+import com.netflix.exhibitor.core.backup.BackupThrottle;
+import com.netflix.exhibitor.core.backup.FileDownloadBackupProvider;
+import com.netflix.exhibitor.core.backup.StreamingBackupProvider;
 import com.netflix.exhibitor.core.s3.S3Client;
 import com.netflix.exhibitor.core.s3.S3ClientConfig;
 import com.netflix.exhibitor.core.s3.S3ClientFactory;
@@ -47,24 +54,37 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.Arrays;
+import java.util.Deque;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static com.netflix.exhibitor.core.config.DefaultProperties.asInt;
 
-public class S3BackupProvider implements BackupProvider
+public class S3BackupProvider implements StreamingBackupProvider, FileDownloadBackupProvider
 {
     private final S3Client s3Client;
 
-    private static final BackupConfigSpec CONFIG_THROTTLE = new BackupConfigSpec("throttle", "Throttle (bytes/ms)", "Data throttling. Maximum bytes per millisecond.", Integer.toString(1024 * 1024), BackupConfigSpec.Type.INTEGER);
+    private static final BackupConfigSpec CONFIG_THROTTLE = new BackupConfigSpec("throttle", "Throttle (bytes/ms)", "Data throttling. Maximum bytes per millisecond shared by all backup, restore and index transfers. 0 for no limit.", Integer.toString(1024 * 1024), BackupConfigSpec.Type.INTEGER);
     private static final BackupConfigSpec CONFIG_BUCKET = new BackupConfigSpec("bucket-name", "S3 Bucket Name", "The S3 bucket to use", "", BackupConfigSpec.Type.STRING);
     private static final BackupConfigSpec CONFIG_KEY_PREFIX = new BackupConfigSpec("key-prefix", "S3 Key Prefix", "The prefix for S3 backup keys", "exhibitor-backup", BackupConfigSpec.Type.STRING);
     private static final BackupConfigSpec CONFIG_MAX_RETRIES = new BackupConfigSpec("max-retries", "Max Retries", "Maximum retries when uploading/downloading S3 data", "3", BackupConfigSpec.Type.INTEGER);
     private static final BackupConfigSpec CONFIG_RETRY_SLEEP_MS = new BackupConfigSpec("retry-sleep-ms", "Retry Sleep (ms)", "Sleep time in milliseconds when retrying", "1000", BackupConfigSpec.Type.INTEGER);
+    private static final BackupConfigSpec CONFIG_PART_SIZE_MB = new BackupConfigSpec("part-size-mb", "Upload Part Size (MB)", "Size in megabytes of each part of a multipart upload and of each range of a download. Parts are buffered in memory: the size must be between 5 and 64 and upload/download concurrency is reduced so that at most 256 MB of parts are buffered per transfer.", "5", BackupConfigSpec.Type.INTEGER);
+    private static final BackupConfigSpec CONFIG_UPLOAD_CONCURRENCY = new BackupConfigSpec("upload-concurrency", "Upload Concurrency", "Maximum number of parts of a multipart upload that are uploaded at the same time", "4", BackupConfigSpec.Type.INTEGER);
+    private static final BackupConfigSpec CONFIG_DOWNLOAD_CONCURRENCY = new BackupConfigSpec("download-concurrency", "Download Concurrency", "Maximum number of ranges of a backup that are downloaded at the same time", "4", BackupConfigSpec.Type.INTEGER);
 
-    private static final List<BackupConfigSpec>     CONFIGS = Arrays.asList(CONFIG_THROTTLE, CONFIG_BUCKET, CONFIG_KEY_PREFIX, CONFIG_MAX_RETRIES, CONFIG_RETRY_SLEEP_MS);
+    private static final List<BackupConfigSpec>     CONFIGS = Arrays.asList(CONFIG_THROTTLE, CONFIG_BUCKET, CONFIG_KEY_PREFIX, CONFIG_MAX_RETRIES, CONFIG_RETRY_SLEEP_MS, CONFIG_PART_SIZE_MB, CONFIG_UPLOAD_CONCURRENCY, CONFIG_DOWNLOAD_CONCURRENCY);
     
     private static final int        MIN_S3_PART_SIZE = 5 * (1024 * 1024);
+    private static final int        MAX_PART_SIZE_MB = 64;      // parts are buffered in memory
+    private static final long       MAX_BUFFERED_BYTES = Integer.getInteger("S3BackupProviderMaxBufferedMb", 256) * (1024L * 1024L);  // per upload/download - bounds part size * concurrency
+    private static final int        DEFAULT_UPLOAD_CONCURRENCY = 4;
+    private static final int        DEFAULT_DOWNLOAD_CONCURRENCY = 4;
 
     @VisibleForTesting
     static final String       SEPARATOR = "/";
@@ -143,21 +163,64 @@ public class S3BackupProvider implements BackupProvider
             return UploadResult.DUPLICATE;
         }
 
-        RetryPolicy retryPolicy = makeRetryPolicy(configValues);
-        Throttle    throttle = makeThrottle(configValues);
+        RetryPolicy                     retryPolicy = makeRetryPolicy(configValues);
+        BackupThrottle.Budget           throttle = makeThrottle(BackupThrottle.OperationClass.BACKUP, configValues);
 
         String                          key = toKey(backup, configValues);
 
         if ( source.length() < MIN_S3_PART_SIZE )
         {
             byte[]          bytes = Files.toByteArray(source);
+            throttle.acquire(bytes.length);
             S3Utils.simpleUploadFile(s3Client, bytes, configValues.get(CONFIG_BUCKET.getKey()), key);
         }
         else
         {
-            multiPartUpload(source, configValues, retryPolicy, throttle, key);
+            InputStream     in = new FileInputStream(source);
+            try
+            {
+                multiPartUpload(in, null, 0, configValues, retryPolicy, throttle, key);
+            }
+            finally
+            {
+                CloseableUtils.closeQuietly(in);
+            }
         }
 
+        return removeOldVersions(exhibitor, backup, availableBackups, configValues);
+    }
+
+    @Override
+    public UploadResult uploadBackupStream(Exhibitor exhibitor, BackupMetaData backup, InputStream source, Map<String, String> configValues, List<BackupMetaData> availableBackups) throws Exception
+    {
+        if ( availableBackups.contains(backup) )
+        {
+            return UploadResult.DUPLICATE;
+        }
+
+        RetryPolicy             retryPolicy = makeRetryPolicy(configValues);
+        BackupThrottle.Budget   throttle = makeThrottle(BackupThrottle.OperationClass.BACKUP, configValues);
+
+        String      key = toKey(backup, configValues);
+
+        // the length isn't known - read one part's worth to decide between a simple and multipart upload
+        byte[]      firstPart = new byte[getPartSize(configValues)];
+        int         firstPartLength = ByteStreams.read(source, firstPart, 0, firstPart.length);
+        if ( firstPartLength < MIN_S3_PART_SIZE )
+        {
+            throttle.acquire(firstPartLength);
+            S3Utils.simpleUploadFile(s3Client, Arrays.copyOf(firstPart, firstPartLength), configValues.get(CONFIG_BUCKET.getKey()), key);
+        }
+        else
+        {
+            multiPartUpload(source, firstPart, firstPartLength, configValues, retryPolicy, throttle, key);
+        }
+
+        return removeOldVersions(exhibitor, backup, availableBackups, configValues);
+    }
+
+    private UploadResult removeOldVersions(Exhibitor exhibitor, BackupMetaData backup, List<BackupMetaData> availableBackups, Map<String, String> configValues) throws Exception
+    {
         UploadResult        result = UploadResult.SUCCEEDED;
         for ( BackupMetaData existing : availableBackups )
         {
@@ -170,120 +233,151 @@ public class S3BackupProvider implements BackupProvider
         return result;
     }
 
-    private void multiPartUpload(File source, Map<String, String> configValues, RetryPolicy retryPolicy, Throttle throttle, String key) throws Exception
+    private void multiPartUpload(InputStream in, byte[] firstPart, int firstPartLength, Map<String, String> configValues, final RetryPolicy retryPolicy, BackupThrottle.Budget throttle, String key) throws Exception
     {
+        int         partSize = getPartSize(configValues);
+        int         concurrency = getUploadConcurrency(configValues);
+
         InitiateMultipartUploadRequest initRequest = new InitiateMultipartUploadRequest(configValues.get(CONFIG_BUCKET.getKey()), key);
-        InitiateMultipartUploadResult initResponse = s3Client.initiateMultipartUpload(initRequest);
+        final InitiateMultipartUploadResult initResponse = s3Client.initiateMultipartUpload(initRequest);
 
-        byte[]      buffer = new byte[MIN_S3_PART_SIZE];
-        InputStream in = null;
+        // parts are read in order on this thread and uploaded on the pool. At most "concurrency" parts are
+        // in flight - the oldest one is waited for (and its buffer reused) before reading another
+        ExecutorService         executor = Executors.newFixedThreadPool(concurrency, new ThreadFactoryBuilder().setDaemon(true).setNameFormat("S3BackupProvider-upload-%d").build());
+        Deque<PendingPart>      pending = Queues.newArrayDeque();
         try
         {
             List<PartETag>      eTags = Lists.newArrayList();
             int                 index = 1;
 
-            in = new FileInputStream(source);
-            for(;;)
+            byte[]              buffer = (firstPart != null) ? firstPart : new byte[partSize];
+            int                 bytesRead = (firstPart != null) ? firstPartLength : ByteStreams.read(in, buffer, 0, buffer.length);
+            while ( bytesRead > 0 )
             {
-                int     bytesRead = in.read(buffer);
-                if ( bytesRead < 0 )
+                throttle.acquire(bytesRead);
+
+                final byte[]    partBuffer = buffer;
+                final int       partLength = bytesRead;
+                final int       partNumber = index++;
+                Future<PartETag> future = executor.submit
+                (
+                    new Callable<PartETag>()
+                    {
+                        @Override
+                        public PartETag call() throws Exception
+                        {
+                            return uploadChunkWithRetry(partBuffer, partLength, initResponse, partNumber, retryPolicy);
+                        }
+                    }
+                );
+                pending.add(new PendingPart(partBuffer, future));
+
+                buffer = null;
+                if ( pending.size() >= concurrency )
+                {
+                    PendingPart     oldest = pending.remove();
+                    eTags.add(getETag(oldest.future));
+                    buffer = oldest.buffer;
+                }
+                if ( (buffer == null) || (buffer.length != partSize) )
                 {
-                    break;
+                    buffer = new byte[partSize];
                 }
-                throttle.throttle(bytesRead);
 
-                PartETag eTag = uploadChunkWithRetry(buffer, bytesRead, initResponse, index++, retryPolicy);
-                eTags.add(eTag);
+                // parts other than the last must be full sized
+                bytesRead = ByteStreams.read(in, buffer, 0, buffer.length);
+            }
+
+            while ( !pending.isEmpty() )
+            {
+                eTags.add(getETag(pending.remove().future));
             }
 
             completeUpload(initResponse, eTags);
         }
         catch ( Exception e )
         {
+            for ( PendingPart part : pending )
+            {
+                part.future.cancel(true);
+            }
             abortUpload(initResponse);
             throw e;
         }
         finally
         {
-            CloseableUtils.closeQuietly(in);
+            executor.shutdownNow();
         }
     }
 
-    @Override
-    public BackupStream getBackupStream(Exhibitor exhibitor, BackupMetaData backup, Map<String, String> configValues) throws Exception
+    private static class PendingPart
     {
-        long            startMs = System.currentTimeMillis();
-        RetryPolicy     retryPolicy = makeRetryPolicy(configValues);
-        S3Object        object = null;
-        int             retryCount = 0;
-        while ( object == null )
-        {
-            try
-            {
-                object = s3Client.getObject(configValues.get(CONFIG_BUCKET.getKey()), toKey(backup, configValues));
-            }
-            catch ( AmazonS3Exception e)
-            {
-                if ( e.getErrorType() == AmazonServiceException.ErrorType.Client )
-                {
-                    exhibitor.getLog().add(ActivityLog.Type.ERROR, "Amazon client error: " + ActivityLog.getExceptionMessage(e));
-                    return null;
-                }
+        private final byte[]            buffer;
+        private final Future<PartETag>  future;
 
-                if ( !retryPolicy.allowRetry(retryCount++, System.currentTimeMillis() - startMs, RetryLoop.getDefaultRetrySleeper()) )
-                {
-                    exhibitor.getLog().add(ActivityLog.Type.ERROR, "Retries exhausted: " + ActivityLog.getExceptionMessage(e));
-                    return null;
-                }
-            }
+        private PendingPart(byte[] buffer, Future<PartETag> future)
+        {
+            this.buffer = buffer;
+            this.future = future;
         }
+    }
 
-        final Throttle      throttle = makeThrottle(configValues);
-        final InputStream   in = object.getObjectContent();
-        final InputStream   wrappedstream = new InputStream()
+    private static PartETag getETag(Future<PartETag> future) throws Exception
+    {
+        try
         {
-            @Override
-            public void close() throws IOException
-            {
-                in.close();
-            }
-
-            @Override
-            public int read() throws IOException
-            {
-                throttle.throttle(1);
-                return in.read();
-            }
-
-            @Override
-            public int read(byte[] b) throws IOException
+            return future.get();
+        }
+        catch ( ExecutionException e )
+        {
+            if ( e.getCause() instanceof Exception )
             {
-                int bytesRead = in.read(b);
-                if ( bytesRead > 0 )
-                {
-                    throttle.throttle(bytesRead);
-                }
-                return bytesRead;
+                throw (Exception)e.getCause();
             }
+            throw e;
+        }
+    }
 
-            @Override
-            public int read(byte[] b, int off, int len) throws IOException
+    @Override
+    public BackupStream getBackupStream(Exhibitor exhibitor, BackupMetaData backup, Map<String, String> configValues) throws Exception
+    {
+        // ranges are fetched concurrently and a connection that drops part way through only re-fetches the rest of its range
+        S3RangedDownload    download = new S3RangedDownload
+        (
+            s3Client,
+            configValues.get(CONFIG_BUCKET.getKey()),
+            toKey(backup, configValues),
+            getPartSize(configValues),
+            getDownloadConcurrency(configValues),
+            makeRetryPolicy(configValues),
+            makeThrottle(BackupThrottle.OperationClass.RESTORE, configValues)
+        );
+
+        final InputStream   in;
+        try
+        {
+            in = download.openStream();
+        }
+        catch ( AmazonS3Exception e )
+        {
+            if ( e.getErrorType() == AmazonServiceException.ErrorType.Client )
             {
-                int bytesRead = in.read(b, off, len);
-                if ( bytesRead > 0 )
-                {
-                    throttle.throttle(bytesRead);
-                }
-                return bytesRead;
+                exhibitor.getLog().add(ActivityLog.Type.ERROR, "Amazon client error: " + ActivityLog.getExceptionMessage(e));
+                return null;
             }
-        };
+            throw e;
+        }
+        if ( in == null )
+        {
+            return null;
+        }
 
         return new BackupStream()
         {
             @Override
             public InputStream getStream()
             {
-                return wrappedstream;
+                return in;
             }
 
             @Override
@@ -297,20 +391,27 @@ public class S3BackupProvider implements BackupProvider
     @Override
     public void downloadBackup(Exhibitor exhibitor, BackupMetaData backup, OutputStream destination, Map<String, String> configValues) throws Exception
     {
-        byte[]          buffer = new byte[MIN_S3_PART_SIZE];
+        byte[]                  buffer = new byte[MIN_S3_PART_SIZE];
 
-        long            startMs = System.currentTimeMillis();
-        RetryPolicy     retryPolicy = makeRetryPolicy(configValues);
-        int             retryCount = 0;
-        boolean         done = false;
+        long                    startMs = System.currentTimeMillis();
+        RetryPolicy             retryPolicy = makeRetryPolicy(configValues);
+        BackupThrottle.Budget   throttle = makeThrottle(BackupThrottle.OperationClass.INDEX, configValues);
+        int                     retryCount = 0;
+        long                    bytesWritten = 0;
+        boolean                 done = false;
 
         while ( !done )
         {
-            Throttle            throttle = makeThrottle(configValues);
             InputStream         in = null;
             try
             {
-                S3Object            object = s3Client.getObject(configValues.get(CONFIG_BUCKET.getKey()), toKey(backup, configValues));
+                // the destination can't be rewound - on a retry, continue from the last byte written
+                GetObjectRequest    request = new GetObjectRequest(configValues.get(CONFIG_BUCKET.getKey()), toKey(backup, configValues));
+                if ( bytesWritten > 0 )
+                {
+                    request.setRange(bytesWritten);
+                }
+                S3Object            object = s3Client.getObject(request);
                 in = object.getObjectContent();
 
                 for(;;)
@@ -321,8 +422,9 @@ public class S3BackupProvider implements BackupProvider
                         break;
                     }
 
-                    throttle.throttle(bytesRead);
+                    throttle.acquire(bytesRead);
                     destination.write(buffer, 0, bytesRead);
+                    bytesWritten += bytesRead;
                 }
 
                 done = true;
@@ -331,8 +433,9 @@ public class S3BackupProvider implements BackupProvider
             {
                 if ( !retryPolicy.allowRetry(retryCount++, System.currentTimeMillis() - startMs, RetryLoop.getDefaultRetrySleeper()) )
                 {
-                    done = true;
+                    throw e;
                 }
+                BackupMetrics.getInstance().recordRetry();
             }
             finally
             {
@@ -341,6 +444,22 @@ public class S3BackupProvider implements BackupProvider
         }
     }
 
+    @Override
+    public boolean downloadBackupToFile(Exhibitor exhibitor, BackupMetaData backup, File destination, Map<String, String> configValues) throws Exception
+    {
+        S3RangedDownload    download = new S3RangedDownload
+        (
+            s3Client,
+            configValues.get(CONFIG_BUCKET.getKey()),
+            toKey(backup, configValues),
+            getPartSize(configValues),
+            getDownloadConcurrency(configValues),
+            makeRetryPolicy(configValues),
+            makeThrottle(BackupThrottle.OperationClass.INDEX, configValues)
+        );
+        return download.downloadTo(destination);
+    }
+
     @Override
     public List<BackupMetaData> getAvailableBackups(Exhibitor exhibitor, Map<String, String> configValues) throws Exception
     {
@@ -394,15 +513,36 @@ public class S3BackupProvider implements BackupProvider
         s3Client.deleteObject(configValues.get(CONFIG_BUCKET.getKey()), toKey(backup, configValues));
     }
 
-    private Throttle makeThrottle(final Map<String, String> configValues)
+    private BackupThrottle.Budget makeThrottle(BackupThrottle.OperationClass operationClass, Map<String, String> configValues)
     {
-        return new Throttle(this.getClass().getCanonicalName(), new Throttle.ThroughputFunction()
-        {
-            public int targetThroughput()
-            {
-                return Math.max(asInt(configValues.get(CONFIG_THROTTLE.getKey())), Integer.MAX_VALUE);
-            }
-        });
+        return BackupThrottle.getInstance().newBudget(operationClass, asInt(configValues.get(CONFIG_THROTTLE.getKey())));
+    }
+
+    int getPartSize(Map<String, String> configValues)
+    {
+        int     partSizeMb = Math.min(asInt(configValues.get(CONFIG_PART_SIZE_MB.getKey())), MAX_PART_SIZE_MB);
+        return Math.max(partSizeMb * (1024 * 1024), MIN_S3_PART_SIZE);
+    }
+
+    int getUploadConcurrency(Map<String, String> configValues)
+    {
+        int     concurrency = asInt(configValues.get(CONFIG_UPLOAD_CONCURRENCY.getKey()));
+        concurrency = (concurrency > 0) ? concurrency : DEFAULT_UPLOAD_CONCURRENCY;
+
+        // the in-flight parts plus the one being read
+        return Math.min(concurrency, getMaxBufferedParts(configValues) - 1);
+    }
+
+    int getDownloadConcurrency(Map<String, String> configValues)
+    {
+        int     concurrency = asInt(configValues.get(CONFIG_DOWNLOAD_CONCURRENCY.getKey()));
+        concurrency = (concurrency > 0) ? concurrency : DEFAULT_DOWNLOAD_CONCURRENCY;
+        return Math.min(concurrency, getMaxBufferedParts(configValues));
+    }
+
+    private int getMaxBufferedParts(Map<String, String> configValues)
+    {
+        return (int)Math.max(2, MAX_BUFFERED_BYTES / getPartSize(configValues));
     }
 
     private ExponentialBackoffRetry makeRetryPolicy(Map<String, String> configValues)
@@ -427,6 +567,7 @@ public class S3BackupProvider implements BackupProvider
                 {
                     throw e;
                 }
+                BackupMetrics.getInstance().recordRetry();
             }
         }
     }
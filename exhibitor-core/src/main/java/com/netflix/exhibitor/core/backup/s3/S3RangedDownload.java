@@ -0,0 +1,393 @@
+/*
+ * Copyright 2012 Netflix, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.netflix.exhibitor.core.backup.s3;
+
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Queues;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.netflix.exhibitor.core.backup.BackupMetrics;
+import com.netflix.exhibitor.core.backup.BackupThrottle;
+import com.netflix.exhibitor.core.s3.S3Client;
+import org.apache.curator.RetryLoop;
+import org.apache.curator.RetryPolicy;
+import org.apache.curator.utils.CloseableUtils;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Downloads an S3 object as a set of byte ranges that are fetched concurrently with ranged GETs.
+ * When a range fails, only the remainder of that range is fetched again. The object can be
+ * written into a file - each range at its own offset so ranges can complete in any order - or
+ * read as a stream that delivers the ranges in order while the following ones are fetched.
+ */
+class S3RangedDownload
+{
+    private final S3Client s3Client;
+    private final String bucket;
+    private final String key;
+    private final int rangeSize;
+    private final int concurrency;
+    private final RetryPolicy retryPolicy;
+    private final BackupThrottle.Budget throttle;
+
+    private static final int        BUFFER_SIZE = 64 * 1024;
+    private static final int        NOT_FOUND = 404;
+
+    /**
+     * @param s3Client the client
+     * @param bucket bucket of the object
+     * @param key key of the object
+     * @param rangeSize size of each range
+     * @param concurrency max ranges to fetch at the same time
+     * @param retryPolicy retry policy applied to each range separately
+     * @param throttle throttle shared by all ranges
+     */
+    S3RangedDownload(S3Client s3Client, String bucket, String key, int rangeSize, int concurrency, RetryPolicy retryPolicy, BackupThrottle.Budget throttle)
+    {
+        this.s3Client = s3Client;
+        this.bucket = bucket;
+        this.key = key;
+        this.rangeSize = rangeSize;
+        this.concurrency = concurrency;
+        this.retryPolicy = retryPolicy;
+        this.throttle = throttle;
+    }
+
+    /**
+     * Download the object into the given file
+     *
+     * @param destination the file
+     * @return false if the object doesn't exist
+     * @throws Exception errors
+     */
+    boolean downloadTo(File destination) throws Exception
+    {
+        long                length = getLength();
+        if ( length < 0 )
+        {
+            return false;
+        }
+
+        RandomAccessFile    file = new RandomAccessFile(destination, "rw");
+        ExecutorService     executor = null;
+        List<Future<Void>>  futures = Lists.newArrayList();
+        try
+        {
+            file.setLength(length);
+            final FileChannel   channel = file.getChannel();
+
+            executor = Executors.newFixedThreadPool(concurrency, new ThreadFactoryBuilder().setDaemon(true).setNameFormat("S3RangedDownload-%d").build());
+            for ( long start = 0; start < length; start += rangeSize )
+            {
+                final long      rangeStart = start;
+                final long      rangeEnd = Math.min(start + rangeSize, length) - 1;
+                futures.add
+                (
+                    executor.submit
+                    (
+                        new Callable<Void>()
+                        {
+                            @Override
+                            public Void call() throws Exception
+                            {
+                                downloadRange
+                                (
+                                    new RangeWriter()
+                                    {
+                                        @Override
+                                        public void write(ByteBuffer buffer, long position) throws IOException
+                                        {
+                                            while ( buffer.hasRemaining() )
+                                            {
+                                                position += channel.write(buffer, position);
+                                            }
+                                        }
+                                    },
+                                    rangeStart,
+                                    rangeEnd
+                                );
+                                return null;
+                            }
+                        }
+                    )
+                );
+            }
+
+            for ( Future<Void> future : futures )
+            {
+                try
+                {
+                    future.get();
+                }
+                catch ( ExecutionException e )
+                {
+                    if ( e.getCause() instanceof Exception )
+                    {
+                        throw (Exception)e.getCause();
+                    }
+                    throw e;
+                }
+            }
+
+            channel.force(false);
+        }
+        finally
+        {
+            for ( Future<Void> future : futures )
+            {
+                future.cancel(true);
+            }
+            if ( executor != null )
+            {
+                executor.shutdownNow();
+            }
+            CloseableUtils.closeQuietly(file);
+        }
+
+        return true;
+    }
+
+    /**
+     * Open the object as a stream. Up to "concurrency" ranges are fetched ahead of the reader and
+     * each is buffered in memory until it is read.
+     *
+     * @return the stream or null if the object doesn't exist
+     * @throws Exception errors
+     */
+    InputStream openStream() throws Exception
+    {
+        long        length = getLength();
+        return (length >= 0) ? new RangedInputStream(length) : null;
+    }
+
+    private interface RangeWriter
+    {
+        void write(ByteBuffer buffer, long position) throws IOException;
+    }
+
+    private class RangedInputStream extends InputStream
+    {
+        private final long                      length;
+        private final ExecutorService           executor;
+        private final Deque<Future<byte[]>>     pending = Queues.newArrayDeque();
+        private long                            nextRangeStart = 0;
+        private byte[]                          current = new byte[0];
+        private int                             currentOffset = 0;
+
+        private RangedInputStream(long length)
+        {
+            this.length = length;
+            executor = Executors.newFixedThreadPool(concurrency, new ThreadFactoryBuilder().setDaemon(true).setNameFormat("S3RangedDownload-stream-%d").build());
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            byte[]      b = new byte[1];
+            int         bytesRead = read(b, 0, 1);
+            return (bytesRead < 0) ? -1 : (b[0] & 0xff);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            if ( len == 0 )
+            {
+                return 0;
+            }
+
+            while ( currentOffset >= current.length )
+            {
+                if ( !nextRange() )
+                {
+                    return -1;
+                }
+            }
+
+            int     qty = Math.min(len, current.length - currentOffset);
+            System.arraycopy(current, currentOffset, b, off, qty);
+            currentOffset += qty;
+            return qty;
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            for ( Future<byte[]> future : pending )
+            {
+                future.cancel(true);
+            }
+            pending.clear();
+            executor.shutdownNow();
+        }
+
+        private boolean nextRange() throws IOException
+        {
+            fill();
+
+            Future<byte[]>  future = pending.poll();
+            if ( future == null )
+            {
+                return false;
+            }
+
+            try
+            {
+                current = future.get();
+                currentOffset = 0;
+            }
+            catch ( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            }
+            catch ( ExecutionException e )
+            {
+                throw new IOException(e.getCause());
+            }
+
+            fill(); // keep fetching ahead while the caller consumes this range
+            return true;
+        }
+
+        private void fill()
+        {
+            while ( (nextRangeStart < length) && (pending.size() < concurrency) )
+            {
+                final long      rangeStart = nextRangeStart;
+                final long      rangeEnd = Math.min(rangeStart + rangeSize, length) - 1;
+                nextRangeStart = rangeEnd + 1;
+                pending.add
+                (
+                    executor.submit
+                    (
+                        new Callable<byte[]>()
+                        {
+                            @Override
+                            public byte[] call() throws Exception
+                            {
+                                final byte[]    bytes = new byte[(int)(rangeEnd - rangeStart + 1)];
+                                downloadRange
+                                (
+                                    new RangeWriter()
+                                    {
+                                        @Override
+                                        public void write(ByteBuffer buffer, long position)
+                                        {
+                                            buffer.get(bytes, (int)(position - rangeStart), buffer.remaining());
+                                        }
+                                    },
+                                    rangeStart,
+                                    rangeEnd
+                                );
+                                return bytes;
+                            }
+                        }
+                    )
+                );
+            }
+        }
+    }
+
+    /**
+     * @return the object's length or -1 if it doesn't exist
+     */
+    private long getLength() throws Exception
+    {
+        ObjectMetadata      metadata;
+        try
+        {
+            metadata = s3Client.getObjectMetadata(bucket, key);
+        }
+        catch ( AmazonS3Exception e )
+        {
+            if ( e.getStatusCode() == NOT_FOUND )
+            {
+                return -1;
+            }
+            throw e;
+        }
+        return (metadata != null) ? metadata.getContentLength() : -1;
+    }
+
+    private void downloadRange(RangeWriter writer, long rangeStart, long rangeEnd) throws Exception
+    {
+        byte[]          buffer = new byte[BUFFER_SIZE];
+        long            position = rangeStart;
+        long            startMs = System.currentTimeMillis();
+        int             retries = 0;
+        while ( position <= rangeEnd )
+        {
+            InputStream     in = null;
+            try
+            {
+                GetObjectRequest    request = new GetObjectRequest(bucket, key);
+                request.setRange(position, rangeEnd);
+                S3Object            object = s3Client.getObject(request);
+                in = object.getObjectContent();
+
+                for(;;)
+                {
+                    int     bytesRead = in.read(buffer);
+                    if ( bytesRead < 0 )
+                    {
+                        break;
+                    }
+
+                    throttle.acquire(bytesRead);
+
+                    writer.write(ByteBuffer.wrap(buffer, 0, bytesRead), position);
+                    position += bytesRead;
+                }
+
+                if ( position <= rangeEnd )
+                {
+                    throw new EOFException("Range ended early at " + position + " - expected " + rangeEnd);
+                }
+            }
+            catch ( Exception e )
+            {
+                if ( Thread.currentThread().isInterrupted() || !retryPolicy.allowRetry(retries++, System.currentTimeMillis() - startMs, RetryLoop.getDefaultRetrySleeper()) )
+                {
+                    throw e;
+                }
+                BackupMetrics.getInstance().recordRetry();
+                // the next request picks up from the last byte written
+            }
+            finally
+            {
+                CloseableUtils.closeQuietly(in);
+            }
+        }
+    }
+}
@@ -16,23 +16,23 @@
 
 package com.netflix.exhibitor.core.backup.s3;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import com.google.common.base.Throwables;
+import com.netflix.exhibitor.core.backup.BackupThrottle;
+import com.netflix.exhibitor.core.backup.ThrottledInputStream;
+import java.io.InterruptedIOException;
 
+/**
+ * @deprecated throttling is shared by all streams of the process - use {@link BackupThrottle} (and
+ * {@link ThrottledInputStream} to throttle a stream). This adapter charges the bytes to the
+ * {@link BackupThrottle.OperationClass#BACKUP} budget at the function's current rate.
+ */
+@Deprecated
 public class Throttle
 {
-    private static final Logger logger = LoggerFactory.getLogger(Throttle.class);
-
     private final String name;
     private final ThroughputFunction fun;
 
-    // the bytes that had been handled the last time we delayed to throttle,
-    // and the time in milliseconds when we last throttled
-    private long bytesAtLastDelay;
-    private long timeAtLastDelay = System.currentTimeMillis();  // JLZ - need to initialize
-
-    // current target bytes of throughput per millisecond
-    private int targetBytesPerMS = -1;
+    private long bytesAtLastDelay = 0;
 
     public Throttle(String name, ThroughputFunction fun)
     {
@@ -49,45 +49,15 @@ public class Throttle
     /** @param bytesDelta Bytes of throughput since the last call to throttle*(). */
     public void throttleDelta(long bytesDelta)
     {
-        int newTargetBytesPerMS = fun.targetThroughput();
-        if ( newTargetBytesPerMS < 1 )
-        // throttling disabled
+        try
         {
-            return;
+            BackupThrottle.getInstance().newBudget(BackupThrottle.OperationClass.BACKUP, fun.targetThroughput()).acquire(bytesDelta);
         }
-
-        // if the target changed, log
-        if ( newTargetBytesPerMS != targetBytesPerMS )
+        catch ( InterruptedIOException e )
         {
-            logger.debug("{} target throughput now {} bytes/ms.", this, newTargetBytesPerMS);
-        }
-        targetBytesPerMS = newTargetBytesPerMS;
-
-        // time passed since last delay
-        long msSinceLast = System.currentTimeMillis() - timeAtLastDelay;
-        // the excess bytes in this period
-        long excessBytes = bytesDelta - msSinceLast * targetBytesPerMS;
-
-        // the time to delay to recap the deficit
-        long timeToDelay = excessBytes / Math.max(1, targetBytesPerMS);
-        if (timeToDelay > 0)
-        {
-            if ( logger.isTraceEnabled() )
-            {
-                logger.trace(String.format("%s actual throughput was %d bytes in %d ms: throttling for %d ms",
-                    this, bytesDelta, msSinceLast, timeToDelay));
-            }
-            try
-            {
-                Thread.sleep(timeToDelay);
-            }
-            catch (InterruptedException e)
-            {
-                throw new AssertionError(e);
-            }
+            throw Throwables.propagate(e);
         }
         bytesAtLastDelay += bytesDelta;
-        timeAtLastDelay = System.currentTimeMillis();
     }
 
     @Override
@@ -95,7 +65,7 @@ public class Throttle
     {
         return "Throttle(for=" + name + ")";
     }
-    
+
     public interface ThroughputFunction
     {
         /**
@@ -22,11 +22,12 @@ import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.google.common.io.Closeables;
 import com.netflix.exhibitor.core.Exhibitor;
-import com.netflix.exhibitor.core.activity.Activity;
 import com.netflix.exhibitor.core.activity.ActivityLog;
 import com.netflix.exhibitor.core.activity.QueueGroups;
 import com.netflix.exhibitor.core.activity.RepeatingActivity;
 import com.netflix.exhibitor.core.activity.RepeatingActivityImpl;
+import com.netflix.exhibitor.core.activity.SchedulableActivity;
+import com.netflix.exhibitor.core.activity.SchedulableActivityAdapter;
 import com.netflix.exhibitor.core.automanage.RemoteInstanceRequest;
 import com.netflix.exhibitor.core.config.none.NoneConfigProvider;
 import com.netflix.exhibitor.core.state.InstanceState;
@@ -54,6 +55,11 @@ public class ConfigManager implements Closeable
     @VisibleForTesting
     final static int DEFAULT_MAX_ATTEMPTS = 4;
 
+    /**
+     * Serialization key of activities that read and change the shared config (see {@link SchedulableActivity#getSerializationKey()})
+     */
+    public static final String CONFIG_SERIALIZATION_KEY = "config";
+
     public ConfigManager(Exhibitor exhibitor, ConfigProvider provider, int checkMs) throws Exception
     {
         this(exhibitor, provider, checkMs, DEFAULT_MAX_ATTEMPTS);
@@ -66,8 +72,14 @@ public class ConfigManager implements Closeable
         this.provider = provider;
         this.maxAttempts = maxAttempts;
 
-        Activity    activity = new Activity()
+        SchedulableActivity activity = new SchedulableActivityAdapter()
         {
+            @Override
+            public String getSerializationKey()
+            {
+                return CONFIG_SERIALIZATION_KEY;
+            }
+
             @Override
             public void completed(boolean wasSuccessful)
             {
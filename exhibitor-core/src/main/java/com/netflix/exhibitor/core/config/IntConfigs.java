@@ -114,6 +114,18 @@ public enum IntConfigs
         }
     },
 
+    /**
+     * Period in ms to incrementally update the rolling log index - 0 disables - default: 0
+     */
+    LOG_INDEX_PERIOD_MS()
+    {
+        @Override
+        public boolean isRestartSignificant()
+        {
+            return false;
+        }
+    },
+
     /**
      * true/false (0 or 1) - determine if automatic instance management is on/off - default is false
      */
@@ -30,6 +30,7 @@ public class SearchRequest
     private int         operationType;
     private String      reuseHandle;
     private int         maxResults;
+    private String      sessionId;
 
     public SearchRequest()
     {
@@ -37,6 +38,11 @@ public class SearchRequest
     }
 
     public SearchRequest(String indexName, String pathPrefix, Date firstDate, Date secondDate, int operationType, String reuseHandle, int maxResults)
+    {
+        this(indexName, pathPrefix, firstDate, secondDate, operationType, reuseHandle, maxResults, null);
+    }
+
+    public SearchRequest(String indexName, String pathPrefix, Date firstDate, Date secondDate, int operationType, String reuseHandle, int maxResults, String sessionId)
     {
         this.indexName = indexName;
         this.pathPrefix = pathPrefix;
@@ -45,6 +51,7 @@ public class SearchRequest
         this.operationType = operationType;
         this.reuseHandle = reuseHandle;
         this.maxResults = maxResults;
+        this.sessionId = sessionId;
     }
 
     public int getMaxResults()
@@ -116,4 +123,14 @@ public class SearchRequest
     {
         this.operationType = operationType;
     }
+
+    public String getSessionId()
+    {
+        return sessionId;
+    }
+
+    public void setSessionId(String sessionId)
+    {
+        this.sessionId = sessionId;
+    }
 }
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2012 Netflix, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.netflix.exhibitor.core.index;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Describes the aggregates to compute with {@link LogSearch#aggregate(org.apache.lucene.search.Query, Aggregation)}.
+ * All aggregates are computed in a single pass over the matching documents.
+ */
+public class Aggregation
+{
+    private long                        histogramIntervalMs = 0;
+    private final Map<TermField, Integer> topTerms = Maps.newEnumMap(TermField.class);
+
+    /**
+     * Fields that can be counted with {@link #topTerms(TermField, int)}
+     */
+    public enum TermField
+    {
+        PATH(FieldNames.PATH),
+        TYPE(FieldNames.TYPE),
+        SESSION(FieldNames.SESSION)
+        ;
+
+        private final String fieldName;
+
+        private TermField(String fieldName)
+        {
+            this.fieldName = fieldName;
+        }
+
+        String getFieldName()
+        {
+            return fieldName;
+        }
+    }
+
+    public static Aggregation      builder()
+    {
+        return new Aggregation();
+    }
+
+    /**
+     * Count matching entries per date interval
+     *
+     * @param intervalMs bucket size. Note: the interval may be widened if the index's date range would
+     *                   need too many buckets - {@link AggregationResult#getHistogramIntervalMs()} has the
+     *                   interval that was used
+     * @return this
+     */
+    public Aggregation dateHistogram(long intervalMs)
+    {
+        Preconditions.checkArgument(intervalMs > 0, "intervalMs must be greater than 0");
+        this.histogramIntervalMs = intervalMs;
+        return this;
+    }
+
+    /**
+     * Count matching entries per term of the given field and keep the top n
+     *
+     * @param field the field
+     * @param n number of terms to return
+     * @return this
+     */
+    public Aggregation topTerms(TermField field, int n)
+    {
+        Preconditions.checkArgument(n > 0, "n must be greater than 0");
+        topTerms.put(field, n);
+        return this;
+    }
+
+    long getHistogramIntervalMs()
+    {
+        return histogramIntervalMs;
+    }
+
+    Map<TermField, Integer> getTopTerms()
+    {
+        return Collections.unmodifiableMap(topTerms);
+    }
+
+    private Aggregation()
+    {
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2012 Netflix, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.netflix.exhibitor.core.index;
+
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multiset;
+import com.google.common.collect.Multisets;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.FieldCache;
+import org.apache.lucene.search.Scorer;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Computes an {@link Aggregation} from the per-segment field caches - documents are never loaded.
+ * Term counts are kept per segment ordinal in a primitive array and folded into the overall counts
+ * when the segment is done.
+ */
+class AggregationCollector extends Collector
+{
+    private final long originMs;
+    private final long intervalMs;
+    private final int[] buckets;
+    private final List<TermCounter> termCounters;
+    private long[] dates;
+    private int totalHits = 0;
+
+    private static class TermCounter
+    {
+        private final Aggregation.TermField     field;
+        private final int                       n;
+        private final Multiset<String>          counts = HashMultiset.create();
+        private FieldCache.StringIndex          segmentIndex;
+        private int[]                           segmentCounts;
+
+        private TermCounter(Aggregation.TermField field, int n)
+        {
+            this.field = field;
+            this.n = n;
+        }
+
+        private void setNextReader(IndexReader reader) throws IOException
+        {
+            flush();
+            segmentIndex = FieldCache.DEFAULT.getStringIndex(reader, field.getFieldName());
+            segmentCounts = new int[segmentIndex.lookup.length];
+        }
+
+        private void collect(int doc)
+        {
+            ++segmentCounts[segmentIndex.order[doc]];
+        }
+
+        private void flush()
+        {
+            if ( segmentCounts != null )
+            {
+                // ordinal 0 is documents that don't have the field
+                for ( int ord = 1; ord < segmentCounts.length; ++ord )
+                {
+                    if ( segmentCounts[ord] > 0 )
+                    {
+                        counts.add(segmentIndex.lookup[ord], segmentCounts[ord]);
+                    }
+                }
+            }
+            segmentIndex = null;
+            segmentCounts = null;
+        }
+
+        private List<AggregationResult.TermCount> getTop()
+        {
+            flush();
+
+            ImmutableList.Builder<AggregationResult.TermCount>  builder = ImmutableList.builder();
+            int                                                 qty = 0;
+            for ( Multiset.Entry<String> entry : Multisets.copyHighestCountFirst(counts).entrySet() )
+            {
+                if ( qty++ >= n )
+                {
+                    break;
+                }
+                builder.add(new AggregationResult.TermCount(entry.getElement(), entry.getCount()));
+            }
+            return builder.build();
+        }
+    }
+
+    /**
+     * @param aggregation what to compute
+     * @param originMs start of the first histogram bucket
+     * @param intervalMs histogram bucket size or 0 for no histogram
+     * @param bucketQty number of histogram buckets
+     */
+    AggregationCollector(Aggregation aggregation, long originMs, long intervalMs, int bucketQty)
+    {
+        this.originMs = originMs;
+        this.intervalMs = intervalMs;
+        buckets = new int[(intervalMs > 0) ? bucketQty : 0];
+
+        termCounters = Lists.newArrayList();
+        for ( Map.Entry<Aggregation.TermField, Integer> entry : aggregation.getTopTerms().entrySet() )
+        {
+            termCounters.add(new TermCounter(entry.getKey(), entry.getValue()));
+        }
+    }
+
+    @Override
+    public void setScorer(Scorer scorer)
+    {
+        // scores aren't used
+    }
+
+    @Override
+    public void collect(int doc)
+    {
+        ++totalHits;
+        if ( buckets.length > 0 )
+        {
+            long    index = (dates[doc] - originMs) / intervalMs;
+            if ( (index >= 0) && (index < buckets.length) )
+            {
+                ++buckets[(int)index];
+            }
+        }
+        for ( TermCounter counter : termCounters )
+        {
+            counter.collect(doc);
+        }
+    }
+
+    @Override
+    public void setNextReader(IndexReader reader, int docBase) throws IOException
+    {
+        if ( buckets.length > 0 )
+        {
+            // the same cache entry that date sorting uses
+            dates = FieldCache.DEFAULT.getLongs(reader, FieldNames.DATE);
+        }
+        for ( TermCounter counter : termCounters )
+        {
+            counter.setNextReader(reader);
+        }
+    }
+
+    @Override
+    public boolean acceptsDocsOutOfOrder()
+    {
+        return true;
+    }
+
+    AggregationResult getResult()
+    {
+        int     first = 0;
+        while ( (first < buckets.length) && (buckets[first] == 0) )
+        {
+            ++first;
+        }
+        int     last = buckets.length - 1;
+        while ( (last >= first) && (buckets[last] == 0) )
+        {
+            --last;
+        }
+
+        List<AggregationResult.Bucket>    histogram = Lists.newArrayList();
+        for ( int i = first; i <= last; ++i )
+        {
+            histogram.add(new AggregationResult.Bucket(originMs + (i * intervalMs), buckets[i]));
+        }
+
+        Map<Aggregation.TermField, List<AggregationResult.TermCount>>   topTerms = Maps.newEnumMap(Aggregation.TermField.class);
+        for ( TermCounter counter : termCounters )
+        {
+            topTerms.put(counter.field, counter.getTop());
+        }
+
+        return new AggregationResult(totalHits, intervalMs, histogram, topTerms);
+    }
+}
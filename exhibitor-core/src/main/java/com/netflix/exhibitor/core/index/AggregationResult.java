@@ -0,0 +1,117 @@
+/*
+ * Copyright 2012 Netflix, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.netflix.exhibitor.core.index;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import java.util.List;
+import java.util.Map;
+
+public class AggregationResult
+{
+    private final int totalHits;
+    private final long histogramIntervalMs;
+    private final List<Bucket> histogram;
+    private final Map<Aggregation.TermField, List<TermCount>> topTerms;
+
+    public static class Bucket
+    {
+        private final long      startMs;
+        private final int       count;
+
+        public Bucket(long startMs, int count)
+        {
+            this.startMs = startMs;
+            this.count = count;
+        }
+
+        public long getStartMs()
+        {
+            return startMs;
+        }
+
+        public int getCount()
+        {
+            return count;
+        }
+    }
+
+    public static class TermCount
+    {
+        private final String    term;
+        private final int       count;
+
+        public TermCount(String term, int count)
+        {
+            this.term = term;
+            this.count = count;
+        }
+
+        public String getTerm()
+        {
+            return term;
+        }
+
+        public int getCount()
+        {
+            return count;
+        }
+    }
+
+    AggregationResult(int totalHits, long histogramIntervalMs, List<Bucket> histogram, Map<Aggregation.TermField, List<TermCount>> topTerms)
+    {
+        this.totalHits = totalHits;
+        this.histogramIntervalMs = histogramIntervalMs;
+        this.histogram = ImmutableList.copyOf(histogram);
+        this.topTerms = ImmutableMap.copyOf(topTerms);
+    }
+
+    /**
+     * @return number of matching entries
+     */
+    public int getTotalHits()
+    {
+        return totalHits;
+    }
+
+    /**
+     * @return the histogram interval actually used or 0 if no histogram was requested
+     */
+    public long getHistogramIntervalMs()
+    {
+        return histogramIntervalMs;
+    }
+
+    /**
+     * @return histogram buckets in date order. Buckets with no entries are included so that the
+     * list is continuous between the first and last non-empty buckets
+     */
+    public List<Bucket> getHistogram()
+    {
+        return histogram;
+    }
+
+    /**
+     * @param field the field
+     * @return the top terms, highest count first, or an empty list if the field was not requested
+     */
+    public List<TermCount> getTopTerms(Aggregation.TermField field)
+    {
+        List<TermCount>     terms = topTerms.get(field);
+        return (terms != null) ? terms : ImmutableList.<TermCount>of();
+    }
+}
@@ -18,24 +18,77 @@ package com.netflix.exhibitor.core.index;
 
 import org.apache.lucene.search.TopDocs;
 
+/**
+ * The doc ids of a cached search in result order. Only the ids are retained - not the
+ * TopDocs/ScoreDoc graph. Results that form a run of consecutive doc ids (the common case
+ * for searches that match most of an index, as docs are written in zxid order) are stored
+ * as just the first id and direction.
+ */
 public class CachedSearch
 {
-    private final TopDocs docs;
-    private final int totalDocs;
+    private final int[] docIds;
+    private final int totalHits;
+    private final int firstDocId;
+    private final int step;
+
+    private static final int    OBJECT_OVERHEAD = 32;
 
-    CachedSearch(TopDocs docs, int totalDocs)
+    static CachedSearch allDocs(int totalDocs)
     {
-        this.docs = docs;
-        this.totalDocs = totalDocs;
+        return new CachedSearch(null, totalDocs, 0, 1);
+    }
+
+    static CachedSearch from(TopDocs docs, int maxResults)
+    {
+        int         totalHits = Math.min(Math.min(maxResults, docs.totalHits), docs.scoreDocs.length);
+        if ( totalHits == 0 )
+        {
+            return new CachedSearch(null, 0, 0, 1);
+        }
+
+        int         firstDocId = docs.scoreDocs[0].doc;
+        int         step = ((totalHits > 1) && (docs.scoreDocs[1].doc < firstDocId)) ? -1 : 1;
+        boolean     isRun = true;
+        for ( int i = 1; isRun && (i < totalHits); ++i )
+        {
+            isRun = (docs.scoreDocs[i].doc == (firstDocId + (i * step)));
+        }
+        if ( isRun )
+        {
+            return new CachedSearch(null, totalHits, firstDocId, step);
+        }
+
+        int[]       docIds = new int[totalHits];
+        for ( int i = 0; i < totalHits; ++i )
+        {
+            docIds[i] = docs.scoreDocs[i].doc;
+        }
+        return new CachedSearch(docIds, totalHits, 0, 1);
+    }
+
+    private CachedSearch(int[] docIds, int totalHits, int firstDocId, int step)
+    {
+        this.docIds = docIds;
+        this.totalHits = totalHits;
+        this.firstDocId = firstDocId;
+        this.step = step;
     }
 
     public int  getTotalHits()
     {
-        return (docs != null) ? docs.totalHits : totalDocs;
+        return totalHits;
     }
     
     public int  getNthDocId(int n)
     {
-        return (docs != null) ? docs.scoreDocs[n].doc : n;
+        return (docIds != null) ? docIds[n] : (firstDocId + (n * step));
+    }
+
+    /**
+     * @return approximate retained size in bytes
+     */
+    int         getWeight()
+    {
+        return OBJECT_OVERHEAD + ((docIds != null) ? (docIds.length * 4) : 0);
     }
 }
@@ -21,7 +21,12 @@ public enum EntryTypes
     CREATE_PERSISTENT(0),
     CREATE_EPHEMERAL(1),
     DELETE(2),
-    SET_DATA(3)
+    SET_DATA(3),
+    CREATE_SESSION(4),
+    CLOSE_SESSION(5),
+    SET_ACL(6),
+    ERROR(7),
+    CHECK_VERSION(8)
     ;
 
     private final int id;
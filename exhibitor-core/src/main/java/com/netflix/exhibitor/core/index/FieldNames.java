@@ -23,6 +23,10 @@ class FieldNames
     static final String      DATE = "date";
     static final String      DATA = "data";
     static final String      VERSION = "version";
+    static final String      ZXID = "zxid";
+    static final String      SESSION = "session";
+    static final String      TIMEOUT = "timeout";
+    static final String      ERROR = "error";
 
     private FieldNames()
     {
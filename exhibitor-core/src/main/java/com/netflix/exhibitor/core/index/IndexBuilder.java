@@ -16,6 +16,7 @@
 
 package com.netflix.exhibitor.core.index;
 
+import com.google.common.collect.Sets;
 import org.apache.curator.utils.CloseableUtils;
 import org.apache.jute.Record;
 import org.apache.lucene.analysis.KeywordAnalyzer;
@@ -27,27 +28,33 @@ import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.store.NIOFSDirectory;
 import org.apache.lucene.store.SingleInstanceLockFactory;
 import org.apache.lucene.util.Version;
+import org.apache.zookeeper.txn.CreateSessionTxn;
 import org.apache.zookeeper.txn.CreateTxn;
 import org.apache.zookeeper.txn.DeleteTxn;
+import org.apache.zookeeper.txn.ErrorTxn;
 import org.apache.zookeeper.txn.SetDataTxn;
 import org.apache.zookeeper.txn.TxnHeader;
-import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Date;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicLong;
 
-public class IndexBuilder implements Closeable
+/**
+ * Writes ZooKeeper transaction log entries to a sharded Lucene index - each added log becomes
+ * its own {@link IndexShard}. The add methods are thread safe so that several logs can be
+ * indexed concurrently. If the index directory already has shards, new ones are added next to
+ * them and replace any older shards of the same source logs. The replaced shards aren't deleted
+ * here as searchers may still be reading them - {@link IndexCache} deletes them once released.
+ */
+public class IndexBuilder
 {
     private final File              directory;
+    private final long              generation = System.currentTimeMillis();
     private final AtomicInteger     count = new AtomicInteger(0);
-    private final AtomicLong        from = new AtomicLong(Long.MAX_VALUE);
-    private final AtomicLong        to = new AtomicLong(Long.MIN_VALUE);
-
-    private NIOFSDirectory niofsDirectory;
-    private IndexWriter writer;
+    private final Set<File>         newShards = Sets.newConcurrentHashSet();
 
     public IndexBuilder(File directory)
     {
@@ -60,86 +67,259 @@ public class IndexBuilder implements Closeable
         {
             throw new IOException("Could not make: " + directory);
         }
-
-        IndexWriterConfig conf = new IndexWriterConfig(Version.LUCENE_35, new KeywordAnalyzer()).setOpenMode(IndexWriterConfig.OpenMode.CREATE);
-
-        niofsDirectory = new NIOFSDirectory(directory, new SingleInstanceLockFactory());
-        writer = new IndexWriter(niofsDirectory, conf);
     }
 
-    public void add(InputStream stream) throws Exception
+    /**
+     * Add a log as a new shard
+     *
+     * @param stream the log
+     * @param sourceName name of the log/backup
+     * @throws Exception errors
+     */
+    public void add(InputStream stream, String sourceName) throws Exception
     {
         ZooKeeperLogParser  logParser = new ZooKeeperLogParser(stream);
         if ( logParser.isValid() )
         {
-            logParser.parse
-            (
-                new LogEntryReceiver()
-                {
-                    @Override
-                    public void receiveEntry(TxnHeader header, Record record) throws Exception
-                    {
-                        indexRecord(header, record, count, from, to);
-                    }
-                }
-            );
+            ShardWriter     shardWriter = new ShardWriter(sourceName);
+            try
+            {
+                logParser.parse(shardWriter);
+                shardWriter.commit();
+            }
+            finally
+            {
+                shardWriter.close();
+            }
         }
     }
 
+    /**
+     * Add a log file from local disk as a new shard. The file is memory mapped rather than streamed.
+     *
+     * @param file the log file
+     * @param sourceName name of the log/backup
+     * @throws Exception errors
+     */
+    public void add(File file, String sourceName) throws Exception
+    {
+        MappedZooKeeperLogParser    logParser = new MappedZooKeeperLogParser(file);
+        if ( logParser.isValid() )
+        {
+            ShardWriter     shardWriter = new ShardWriter(sourceName);
+            try
+            {
+                logParser.parse(shardWriter);
+                shardWriter.commit();
+            }
+            finally
+            {
+                shardWriter.close();
+            }
+        }
+    }
+
+    /**
+     * Write the index meta data which covers the current shards - i.e. not the ones replaced
+     * by this builder
+     *
+     * @throws Exception errors
+     */
     public void writeMetaData() throws Exception
     {
-        IndexMetaData       metaData = new IndexMetaData(new Date(from.get()), new Date(to.get()), count.get());
+        long                fromMs = Long.MAX_VALUE;
+        long                toMs = Long.MIN_VALUE;
+        int                 totalCount = 0;
+        long                minZxid = Long.MAX_VALUE;
+        long                maxZxid = -1;
+        List<IndexShard>    shards = IndexShard.getShards(directory);
+        for ( IndexShard shard : shards )
+        {
+            IndexMetaData   shardMetaData = shard.getMetaData();
+            fromMs = Math.min(fromMs, shardMetaData.getFrom().getTime());
+            toMs = Math.max(toMs, shardMetaData.getTo().getTime());
+            totalCount += shardMetaData.getEntryCount();
+            minZxid = Math.min(minZxid, shardMetaData.getMinZxid());
+            maxZxid = Math.max(maxZxid, shardMetaData.getMaxZxid());
+        }
+        if ( totalCount == 0 )
+        {
+            fromMs = toMs = System.currentTimeMillis();
+            minZxid = -1;
+        }
+
+        IndexMetaData       metaData = new IndexMetaData(new Date(fromMs), new Date(toMs), totalCount, minZxid, maxZxid);
         IndexMetaData.write(metaData, IndexMetaData.getMetaDataFile(directory));
     }
 
-    @Override
-    public void close() throws IOException
+    /**
+     * Discard all shards written by this builder
+     *
+     * @throws IOException errors
+     */
+    public void rollback() throws IOException
     {
-        CloseableUtils.closeQuietly(writer);
-        CloseableUtils.closeQuietly(niofsDirectory);
+        for ( File shardDirectory : newShards )
+        {
+            IndexShard.delete(shardDirectory);
+        }
+        newShards.clear();
     }
 
+    /**
+     * @return number of entries added by this builder (not including any previous entries)
+     */
     public int  getCurrentCount()
     {
         return count.get();
     }
 
-    private void indexRecord(TxnHeader header, Record record, AtomicInteger count, AtomicLong from, AtomicLong to) throws IOException
+    private class ShardWriter implements LogEntryReceiver
     {
-        if ( record instanceof CreateTxn )
+        private final File              shardDirectory;
+        private final NIOFSDirectory    niofsDirectory;
+        private final IndexWriter       writer;
+        private int                     shardCount = 0;
+        private long                    fromMs = Long.MAX_VALUE;
+        private long                    toMs = Long.MIN_VALUE;
+        private long                    minZxid = Long.MAX_VALUE;
+        private long                    maxZxid = Long.MIN_VALUE;
+        private boolean                 isWriterOpen = true;
+        private boolean                 isCommitted = false;
+
+        ShardWriter(String sourceName) throws IOException
+        {
+            long    shardGeneration = generation;
+            File    candidate;
+            while ( (candidate = IndexShard.makeShardDirectory(directory, sourceName, shardGeneration)).exists() )
+            {
+                ++shardGeneration;  // never overwrite an existing shard
+            }
+            shardDirectory = candidate;
+
+            IndexWriterConfig   conf = new IndexWriterConfig(Version.LUCENE_35, new KeywordAnalyzer()).setOpenMode(IndexWriterConfig.OpenMode.CREATE);
+            niofsDirectory = new NIOFSDirectory(shardDirectory, new SingleInstanceLockFactory());
+            writer = new IndexWriter(niofsDirectory, conf);
+        }
+
+        @Override
+        public void receiveEntry(TxnHeader header, Record record) throws Exception
+        {
+            for ( Record operation : TxnRecords.getOperations(record) )
+            {
+                Document    document = makeDocument(header, operation);
+                if ( document != null )
+                {
+                    writer.addDocument(document);
+
+                    ++shardCount;
+                    fromMs = Math.min(fromMs, header.getTime());
+                    toMs = Math.max(toMs, header.getTime());
+                    minZxid = Math.min(minZxid, header.getZxid());
+                    maxZxid = Math.max(maxZxid, header.getZxid());
+                }
+            }
+        }
+
+        void commit() throws Exception
         {
-            CreateTxn   createTxn = (CreateTxn)record;
+            if ( shardCount == 0 )
+            {
+                return; // nothing to keep - close() removes the directory
+            }
 
-            EntryTypes type = createTxn.getEphemeral() ? EntryTypes.CREATE_EPHEMERAL: EntryTypes.CREATE_PERSISTENT;
-            Document document = makeDocument(header, type, count, from, to);
-            addPath(document, createTxn.getPath());
-            addData(document, createTxn.getData());
-            writer.addDocument(document);
+            isWriterOpen = false;
+            writer.close();
+            IndexMetaData       metaData = new IndexMetaData(new Date(fromMs), new Date(toMs), shardCount, minZxid, maxZxid);
+            IndexMetaData.write(metaData, IndexMetaData.getMetaDataFile(shardDirectory));
+
+            newShards.add(shardDirectory);
+            count.addAndGet(shardCount);
+            isCommitted = true;
         }
-        else if ( record instanceof DeleteTxn )
+
+        void close() throws IOException
         {
-            DeleteTxn   deleteTxn = (DeleteTxn)record;
+            if ( isWriterOpen )
+            {
+                writer.rollback();
+            }
+            CloseableUtils.closeQuietly(niofsDirectory);
+            if ( !isCommitted )
+            {
+                IndexShard.delete(shardDirectory);
+            }
+        }
+    }
 
-            Document document = makeDocument(header, EntryTypes.DELETE, count, from, to);
-            addPath(document, deleteTxn.getPath());
-            writer.addDocument(document);
+    private static Document makeDocument(TxnHeader header, Record record)
+    {
+        EntryTypes  type = TxnRecords.getType(header, record);
+        if ( type == null )
+        {
+            return null;
         }
-        else if ( record instanceof SetDataTxn )
+
+        Document    document = makeDocument(header, type);
+        switch ( type )
         {
-            SetDataTxn   setDataTxn = (SetDataTxn)record;
+            case CREATE_PERSISTENT:
+            case CREATE_EPHEMERAL:
+            {
+                CreateTxn   createTxn = (CreateTxn)record;
+                addPath(document, createTxn.getPath());
+                addData(document, createTxn.getData());
+                break;
+            }
+
+            case DELETE:
+            {
+                addPath(document, ((DeleteTxn)record).getPath());
+                break;
+            }
+
+            case SET_DATA:
+            {
+                SetDataTxn   setDataTxn = (SetDataTxn)record;
+                addPath(document, setDataTxn.getPath());
+                addData(document, setDataTxn.getData());
+                addVersion(document, setDataTxn.getVersion());
+                break;
+            }
 
-            NumericField versionField = new NumericField(FieldNames.VERSION, Field.Store.YES, true);
-            versionField.setIntValue(setDataTxn.getVersion());
+            case SET_ACL:
+            case CHECK_VERSION:
+            {
+                addPath(document, TxnRecords.getPath(record));
+                addVersion(document, TxnRecords.getVersion(record));
+                break;
+            }
 
-            Document document = makeDocument(header, EntryTypes.SET_DATA, count, from, to);
-            addPath(document, setDataTxn.getPath());
-            addData(document, setDataTxn.getData());
-            document.add(versionField);
-            writer.addDocument(document);
+            case CREATE_SESSION:
+            {
+                NumericField timeoutField = new NumericField(FieldNames.TIMEOUT, Field.Store.YES, false);
+                timeoutField.setIntValue(((CreateSessionTxn)record).getTimeOut());
+                document.add(timeoutField);
+                break;
+            }
+
+            case ERROR:
+            {
+                NumericField errorField = new NumericField(FieldNames.ERROR, Field.Store.YES, true);
+                errorField.setIntValue(((ErrorTxn)record).getErr());
+                document.add(errorField);
+                break;
+            }
+
+            case CLOSE_SESSION:
+            {
+                break;  // the session id is all there is
+            }
         }
+        return document;
     }
 
-    private void addData(Document document, byte[] data)
+    private static void addData(Document document, byte[] data)
     {
         if ( data == null )
         {
@@ -148,29 +328,36 @@ public class IndexBuilder implements Closeable
         document.add(new Field(FieldNames.DATA, data));
     }
 
-    private void addPath(Document document, String path)
+    private static void addPath(Document document, String path)
     {
         document.add(new Field(FieldNames.PATH, path, Field.Store.YES, Field.Index.NOT_ANALYZED));
     }
 
-    private Document makeDocument(TxnHeader header, EntryTypes type, AtomicInteger count, AtomicLong from, AtomicLong to)
+    private static void addVersion(Document document, int version)
     {
-        count.incrementAndGet();
-        if ( header.getTime() < from.get() )
-        {
-            from.set(header.getTime());
-        }
-        if ( header.getTime() > to.get() )
-        {
-            to.set(header.getTime());
-        }
+        NumericField versionField = new NumericField(FieldNames.VERSION, Field.Store.YES, true);
+        versionField.setIntValue(version);
+        document.add(versionField);
+    }
 
+    private static Document makeDocument(TxnHeader header, EntryTypes type)
+    {
         NumericField dateField = new NumericField(FieldNames.DATE, Field.Store.YES, true);
         dateField.setLongValue(header.getTime());
 
+        NumericField zxidField = new NumericField(FieldNames.ZXID, Field.Store.YES, true);
+        zxidField.setLongValue(header.getZxid());
+
         Document    document = new Document();
         document.add(new Field(FieldNames.TYPE, Integer.toString(type.getId()), Field.Store.YES, Field.Index.NOT_ANALYZED));
         document.add(dateField);
+        document.add(zxidField);
+        document.add(new Field(FieldNames.SESSION, sessionIdToString(header.getClientId()), Field.Store.YES, Field.Index.NOT_ANALYZED));
         return document;
     }
+
+    static String sessionIdToString(long sessionId)
+    {
+        return Long.toHexString(sessionId);
+    }
 }
@@ -21,12 +21,13 @@ import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.netflix.exhibitor.core.activity.ActivityLog;
 import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
-import java.util.Iterator;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -56,8 +57,8 @@ public class IndexCache implements Closeable
     private static class LogSearchHolder
     {
         // all protected by synchronization
-        private LogSearch               logSearch;
-        private int                     useCount = 0;
+        private LogSearch               logSearch;      // the current generation - the cache holds one reference to it
+        private final Set<LogSearch>    openLogSearches = Sets.newHashSet();  // instances of all generations that haven't been closed yet
         private long                    lastUse = System.currentTimeMillis();
         private boolean                 markedForDeletion = false;
     }
@@ -95,7 +96,86 @@ public class IndexCache implements Closeable
         clean();
     }
 
-    public LogSearch        getLogSearch(File indexDirectory) throws Exception
+    /**
+     * Called when an existing index has been added to. Cached meta data is dropped and, if the
+     * index is open, it is reopened and warmed and then swapped in for new searches. Searches
+     * that are in progress keep using the instance they acquired.
+     *
+     * @param indexDirectory the index
+     */
+    public void     indexUpdated(File indexDirectory)
+    {
+        Preconditions.checkArgument(isOpen.get(), "Cache is closed");
+
+        metaDataCache.invalidate(indexDirectory);
+        LogSearchHolder     holder = indexCache.get(indexDirectory);
+        if ( holder == null )
+        {
+            deleteReplacedShards(indexDirectory, null);    // not open - nothing can be reading the replaced shards
+            return;
+        }
+
+        LogSearch           current;
+        synchronized(holder)
+        {
+            current = holder.logSearch;
+            if ( current == null )
+            {
+                deleteReplacedShards(indexDirectory, holder);
+                return;
+            }
+            current.incRef();
+        }
+
+        try
+        {
+            LogSearch       newLogSearch = current.reopen();    // done outside of the lock so that searches aren't blocked while warming
+            if ( newLogSearch != null )
+            {
+                try
+                {
+                    newLogSearch.refreshCachedSearches();
+                }
+                catch ( Exception e )
+                {
+                    log.add(ActivityLog.Type.ERROR, "Refreshing cached searches: " + indexDirectory.getName(), e);
+                }
+
+                synchronized(holder)
+                {
+                    holder.openLogSearches.add(newLogSearch);
+                    if ( (holder.logSearch == current) && !holder.markedForDeletion )
+                    {
+                        holder.logSearch = newLogSearch;
+                        current.decRef();
+                    }
+                    else
+                    {
+                        newLogSearch.decRef();
+                    }
+                }
+                log.add(ActivityLog.Type.INFO, "Index reopened: " + indexDirectory.getName());
+            }
+        }
+        catch ( Exception e )
+        {
+            log.add(ActivityLog.Type.ERROR, "Reopening index: " + indexDirectory.getName(), e);
+        }
+        finally
+        {
+            current.decRef();
+        }
+    }
+
+    /**
+     * Return the current searcher for the given index. The searcher's reference count is incremented
+     * and it must be returned via {@link #releaseLogSearch(LogSearch)}
+     *
+     * @param indexDirectory the index
+     * @return searcher
+     * @throws Exception errors
+     */
+    public LogSearch        getLogSearch(final File indexDirectory) throws Exception
     {
         Preconditions.checkArgument(isOpen.get(), "Cache is closed");
 
@@ -108,13 +188,19 @@ public class IndexCache implements Closeable
         {
             if ( holder.logSearch == null )
             {
-                Preconditions.checkArgument(holder.useCount == 0, "use count is non zero but instance is null: " + holder.useCount);
-                holder.logSearch = new LogSearch(indexDirectory);
+                LogSearch.CloseListener closeListener = new LogSearch.CloseListener()
+                {
+                    @Override
+                    public void closed(LogSearch logSearch)
+                    {
+                        logSearchClosed(indexDirectory, holder, logSearch);
+                    }
+                };
+                holder.logSearch = new LogSearch(indexDirectory, closeListener);
+                holder.openLogSearches.add(holder.logSearch);
             }
 
-            ++holder.useCount;
-            Preconditions.checkArgument(holder.useCount > 0, "use count has rolled over: " + holder.useCount);
-
+            holder.logSearch.incRef();
             holder.lastUse = System.currentTimeMillis();
 
             logSearch = holder.logSearch;
@@ -123,18 +209,11 @@ public class IndexCache implements Closeable
         return logSearch;
     }
 
-    public void             releaseLogSearch(File indexDirectory)
+    public void             releaseLogSearch(LogSearch logSearch)
     {
         Preconditions.checkArgument(isOpen.get(), "Cache is closed");
 
-        LogSearchHolder     holder = indexCache.get(indexDirectory);
-        holder = Preconditions.checkNotNull(holder, "No entry found for index being released: " + indexDirectory);
-
-        synchronized(holder)
-        {
-            Preconditions.checkArgument(holder.useCount > 0, "non positive use count in release: " + holder.useCount);
-            --holder.useCount;
-        }
+        logSearch.decRef();
     }
 
     private LogSearchHolder getHolder(File indexDirectory)
@@ -151,7 +230,18 @@ public class IndexCache implements Closeable
         {
             for ( File f : files )
             {
-                if ( !f.delete() )
+                if ( f.isDirectory() )
+                {
+                    try
+                    {
+                        IndexShard.delete(f);
+                    }
+                    catch ( IOException e )
+                    {
+                        log.add(ActivityLog.Type.ERROR, "Could not delete shard: " + f, e);
+                    }
+                }
+                else if ( f.exists() && !f.delete() )   // a shard's meta data file may already be gone
                 {
                     log.add(ActivityLog.Type.ERROR, "Could not delete: " + f);
                 }
@@ -170,26 +260,74 @@ public class IndexCache implements Closeable
         log.add(ActivityLog.Type.INFO, "Index deleted: " + indexDirectory.getName());
     }
 
+    private void        logSearchClosed(File indexDirectory, LogSearchHolder holder, LogSearch logSearch)
+    {
+        synchronized(holder)
+        {
+            Preconditions.checkState(holder.openLogSearches.remove(logSearch), "closed instance was not open: " + indexDirectory);
+            if ( holder.openLogSearches.isEmpty() && (holder.logSearch == null) && holder.markedForDeletion )
+            {
+                if ( indexCache.remove(indexDirectory, holder) )
+                {
+                    delete(indexDirectory);
+                }
+            }
+            else if ( !holder.markedForDeletion )
+            {
+                // an instance from before an update may have been the last one reading replaced shards
+                deleteReplacedShards(indexDirectory, holder);
+            }
+        }
+    }
+
+    /**
+     * Delete shards that have been replaced by an update and aren't used by any open instance. Must
+     * be called with the holder locked.
+     *
+     * @param indexDirectory the index
+     * @param holder the index's holder or null if it isn't open
+     */
+    private void        deleteReplacedShards(File indexDirectory, LogSearchHolder holder)
+    {
+        Set<File>       inUse = Sets.newHashSet();
+        if ( holder != null )
+        {
+            for ( LogSearch logSearch : holder.openLogSearches )
+            {
+                inUse.addAll(logSearch.getShardDirectories());
+            }
+        }
+
+        try
+        {
+            IndexShard.deleteReplacedShards(indexDirectory, inUse);
+        }
+        catch ( IOException e )
+        {
+            log.add(ActivityLog.Type.ERROR, "Could not delete replaced shards: " + indexDirectory.getName(), e);
+        }
+    }
+
     private void        clean()
     {
-        Iterator<Map.Entry<File, LogSearchHolder>> iterator = indexCache.entrySet().iterator();
-        while ( iterator.hasNext() )
+        for ( Map.Entry<File, LogSearchHolder> entry : indexCache.entrySet() )
         {
-            final Map.Entry<File, LogSearchHolder> entry = iterator.next();
             final LogSearchHolder     holder = entry.getValue();
             synchronized(holder)
             {
-                if ( holder.useCount == 0 )
+                if ( !isOpen.get() || holder.markedForDeletion || ((System.currentTimeMillis() - holder.lastUse) > MAX_CACHE_MS) )
                 {
-                    if ( !isOpen.get() || holder.markedForDeletion || ((System.currentTimeMillis() - holder.lastUse) > MAX_CACHE_MS) )
+                    if ( holder.logSearch != null )
                     {
-                        if ( holder.logSearch != null )
-                        {
-                            holder.logSearch.close();
-                            holder.logSearch = null;
-                        }
-                        iterator.remove();
+                        // searches that are in progress hold their own references
+                        LogSearch   logSearch = holder.logSearch;
+                        holder.logSearch = null;
+                        logSearch.decRef();
+                    }
 
+                    // closing the last instance may have already removed (and deleted) the entry
+                    if ( holder.openLogSearches.isEmpty() && indexCache.remove(entry.getKey(), holder) )
+                    {
                         if ( holder.markedForDeletion )
                         {
                             delete(entry.getKey());
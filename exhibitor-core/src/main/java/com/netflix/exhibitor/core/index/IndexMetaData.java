@@ -33,15 +33,23 @@ public class IndexMetaData
     private final Date  from;
     private final Date  to;
     private final int   entryCount;
+    private final long  minZxid;
+    private final long  maxZxid;
+    private final int   version;
 
     private static final String         META_DATA_FILE_EXTENSION = ".properties";
 
-    private static final int        VERSION = 1;
-    
+    private static final int        VERSION = 4;
+    private static final int        VERSION_NO_SESSIONS = 3;
+    private static final int        VERSION_NO_SHARDS = 2;
+    private static final int        VERSION_NO_ZXID = 1;
+
     private static final String     PROPERTY_FROM = "from";
     private static final String     PROPERTY_TO = "to";
     private static final String     PROPERTY_COUNT = "count";
     private static final String     PROPERTY_VERSION = "version";
+    private static final String     PROPERTY_MIN_ZXID = "min-zxid";
+    private static final String     PROPERTY_MAX_ZXID = "max-zxid";
 
     public static boolean isValid(File indexDirectory)
     {
@@ -62,6 +70,8 @@ public class IndexMetaData
         properties.setProperty(PROPERTY_TO, format.format(meta.to));
         properties.setProperty(PROPERTY_VERSION, Integer.toString(VERSION));
         properties.setProperty(PROPERTY_COUNT, Integer.toString(meta.entryCount));
+        properties.setProperty(PROPERTY_MIN_ZXID, Long.toString(meta.minZxid));
+        properties.setProperty(PROPERTY_MAX_ZXID, Long.toString(meta.maxZxid));
         
         OutputStream    out = new BufferedOutputStream(new FileOutputStream(to));
         try
@@ -90,7 +100,7 @@ public class IndexMetaData
         }
 
         String version = properties.getProperty(PROPERTY_VERSION, "0");
-        if ( !version.equals(Integer.toString(VERSION)) )
+        if ( !version.equals(Integer.toString(VERSION)) && !version.equals(Integer.toString(VERSION_NO_SESSIONS)) && !version.equals(Integer.toString(VERSION_NO_SHARDS)) && !version.equals(Integer.toString(VERSION_NO_ZXID)) )
         {
             throw new Exception("Unknown version: " + version);
         }
@@ -99,15 +109,38 @@ public class IndexMetaData
         (
             format.parse(properties.getProperty(PROPERTY_FROM)),
             format.parse(properties.getProperty(PROPERTY_TO)),
-            Integer.parseInt(properties.getProperty(PROPERTY_COUNT))
+            Integer.parseInt(properties.getProperty(PROPERTY_COUNT)),
+            Long.parseLong(properties.getProperty(PROPERTY_MIN_ZXID, "-1")),
+            Long.parseLong(properties.getProperty(PROPERTY_MAX_ZXID, "-1")),
+            Integer.parseInt(version)
         );
     }
 
     public IndexMetaData(Date from, Date to, int entryCount)
     {
+        this(from, to, entryCount, -1, -1);
+    }
+
+    /**
+     * @param from date of the oldest entry
+     * @param to date of the newest entry
+     * @param entryCount number of indexed entries
+     * @param minZxid lowest transaction id that has been processed or -1 if unknown
+     * @param maxZxid highest transaction id that has been processed or -1 if unknown
+     */
+    public IndexMetaData(Date from, Date to, int entryCount, long minZxid, long maxZxid)
+    {
+        this(from, to, entryCount, minZxid, maxZxid, VERSION);
+    }
+
+    private IndexMetaData(Date from, Date to, int entryCount, long minZxid, long maxZxid, int version)
+    {
+        this.version = version;
         this.from = from;
         this.to = to;
         this.entryCount = entryCount;
+        this.minZxid = minZxid;
+        this.maxZxid = maxZxid;
     }
 
     public Date getFrom()
@@ -124,4 +157,22 @@ public class IndexMetaData
     {
         return entryCount;
     }
+
+    public long getMinZxid()
+    {
+        return minZxid;
+    }
+
+    public long getMaxZxid()
+    {
+        return maxZxid;
+    }
+
+    /**
+     * @return false if the index was written by an older version that didn't index every entry type
+     */
+    public boolean isCurrentVersion()
+    {
+        return version == VERSION;
+    }
 }
@@ -17,43 +17,117 @@
 package com.netflix.exhibitor.core.index;
 
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.netflix.exhibitor.core.Exhibitor;
 import com.netflix.exhibitor.core.activity.ActivityLog;
 import com.netflix.exhibitor.core.backup.BackupMetaData;
 import com.netflix.exhibitor.core.backup.BackupStream;
+import com.netflix.exhibitor.core.backup.MultiMemberGzipInputStream;
 import org.apache.curator.utils.CloseableUtils;
+import org.apache.zookeeper.server.persistence.Util;
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
 
+/**
+ * Builds an index from all available backups and active logs. The build is pipelined: a bounded
+ * pool of fetch threads pulls down and decompresses backups into staging files while a pool of
+ * index threads parses staged backups and active logs, each into its own {@link IndexShard}.
+ * Shards are written in whatever order they complete - searches sort by date.
+ * <p>
+ * In incremental mode an existing index is appended to: logs that are entirely older than the
+ * max zxid recorded in the index's {@link IndexMetaData} are skipped without being fetched and
+ * the remaining logs get new shards that replace any earlier shards of the same logs.
+ * </p>
+ */
 public class IndexProcessor
 {
     private final Exhibitor exhibitor;
+    private final int fetchThreads;
+    private final int indexThreads;
+
+    private static final int        DEFAULT_FETCH_THREADS = Integer.getInteger("IndexProcessorFetchThreads", 2);
+    private static final int        DEFAULT_INDEX_THREADS = Integer.getInteger("IndexProcessorIndexThreads", Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+    private static final int        BUFFER_SIZE = 1024 * 1024;  // 1 MB
 
     public IndexProcessor(Exhibitor exhibitor)
+    {
+        this(exhibitor, DEFAULT_FETCH_THREADS, DEFAULT_INDEX_THREADS);
+    }
+
+    /**
+     * @param exhibitor main instance
+     * @param fetchThreads number of threads that download/decompress backups
+     * @param indexThreads number of threads that parse logs and write to the index
+     */
+    public IndexProcessor(Exhibitor exhibitor, int fetchThreads, int indexThreads)
     {
         this.exhibitor = exhibitor;
+        this.fetchThreads = Math.max(1, fetchThreads);
+        this.indexThreads = Math.max(1, indexThreads);
     }
 
     public void     process(File directory) throws Exception
+    {
+        process(directory, false);
+    }
+
+    /**
+     * @param directory the index directory
+     * @param incremental if true and the directory already contains an index, only logs that
+     *                    aren't completely indexed are (re)indexed
+     * @throws Exception errors
+     */
+    public void     process(File directory, boolean incremental) throws Exception
     {
         if ( !directory.exists() && !directory.mkdirs() )
         {
             throw new IOException("Index Build: could not make directory: " + directory);
         }
 
+        IndexMetaData       previous = incremental ? readPrevious(directory) : null;
+        long                watermark = (previous != null) ? previous.getMaxZxid() : -1;
+        ActivityLog.Type    progressType = (previous != null) ? ActivityLog.Type.DEBUG : ActivityLog.Type.INFO;   // incremental runs are frequent - only full builds are logged as INFO
+
         Exception           exception = null;
         IndexBuilder        builder = new IndexBuilder(directory);
+        long                startMs = System.currentTimeMillis();
         try
         {
             builder.open();
-            addBackups(builder);
-            addActive(builder);
+
+            List<File>              activeLogs = getActive();
+            List<BackupMetaData>    backups = getBackups(activeLogs, progressType);
+            if ( watermark >= 0 )
+            {
+                removeIndexed(backups, activeLogs, watermark);
+            }
+            runPipeline(builder, backups, activeLogs, progressType);
 
             builder.writeMetaData();
         }
@@ -63,27 +137,321 @@ public class IndexProcessor
         }
         finally
         {
-            builder.close();
             if ( exception != null )
             {
-                cleanDirectory(directory);
+                builder.rollback();
+                if ( previous == null )
+                {
+                    cleanDirectory(directory);
+                }
                 //noinspection ThrowFromFinallyBlock
                 throw exception;
             }
         }
 
-        if ( builder.getCurrentCount() == 0 )
+        long        elapsedMs = System.currentTimeMillis() - startMs;
+        if ( previous != null )
+        {
+            exhibitor.getLog().add(progressType, String.format("Index updated: %s - %d new entries in %d ms", directory, builder.getCurrentCount(), elapsedMs));
+        }
+        else if ( builder.getCurrentCount() == 0 )
         {
             exhibitor.getLog().add(ActivityLog.Type.INFO, "Index is empty and will be deleted: " + directory);
             cleanDirectory(directory);
         }
         else
         {
-            exhibitor.getLog().add(ActivityLog.Type.INFO, "Index completed: " + directory);
+            exhibitor.getLog().add(ActivityLog.Type.INFO, String.format("Index completed: %s - %d entries in %d ms (%d entries/sec)", directory, builder.getCurrentCount(), elapsedMs, perSecond(builder.getCurrentCount(), elapsedMs)));
+        }
+    }
+
+    private IndexMetaData readPrevious(File directory) throws Exception
+    {
+        File        metaDataFile = IndexMetaData.getMetaDataFile(directory);
+        if ( !metaDataFile.exists() )
+        {
+            return null;
+        }
+
+        IndexMetaData   previous = IndexMetaData.read(metaDataFile);
+        if ( previous.getMaxZxid() < 0 )
+        {
+            exhibitor.getLog().add(ActivityLog.Type.INFO, "Index Build: index has no zxid information and will be rebuilt: " + directory);
+            previous = null;
         }
+        else if ( IndexShard.isLegacy(directory) )
+        {
+            exhibitor.getLog().add(ActivityLog.Type.INFO, "Index Build: index is not sharded and will be rebuilt: " + directory);
+            previous = null;
+        }
+        else if ( !previous.isCurrentVersion() )
+        {
+            exhibitor.getLog().add(ActivityLog.Type.INFO, "Index Build: index does not have session/ACL entries and will be rebuilt: " + directory);
+            previous = null;
+        }
+
+        if ( previous == null )
+        {
+            cleanDirectory(directory);
+            if ( !metaDataFile.delete() || !directory.mkdirs() )
+            {
+                throw new IOException("Index Build: could not reset directory: " + directory);
+            }
+        }
+        return previous;
     }
 
-    private void addActive(IndexBuilder builder) throws Exception
+    private void removeIndexed(List<BackupMetaData> backups, List<File> activeLogs, long watermark)
+    {
+        // log files are named for the first zxid they contain and each log ends where the next begins.
+        // So, a log is completely indexed if the log that follows it starts at or before the watermark.
+        TreeSet<Long>   startZxids = Sets.newTreeSet();
+        for ( BackupMetaData metaData : backups )
+        {
+            startZxids.add(getStartZxid(metaData.getName()));
+        }
+        for ( File f : activeLogs )
+        {
+            startZxids.add(getStartZxid(f.getName()));
+        }
+
+        int             skipped = 0;
+        Iterator<BackupMetaData>    backupIterator = backups.iterator();
+        while ( backupIterator.hasNext() )
+        {
+            if ( isIndexed(backupIterator.next().getName(), startZxids, watermark) )
+            {
+                backupIterator.remove();
+                ++skipped;
+            }
+        }
+        Iterator<File>              activeIterator = activeLogs.iterator();
+        while ( activeIterator.hasNext() )
+        {
+            if ( isIndexed(activeIterator.next().getName(), startZxids, watermark) )
+            {
+                activeIterator.remove();
+                ++skipped;
+            }
+        }
+
+        exhibitor.getLog().add(ActivityLog.Type.DEBUG, String.format("Index Build: skipping %d logs that are already indexed (max zxid 0x%x)", skipped, watermark));
+    }
+
+    private static boolean isIndexed(String name, TreeSet<Long> startZxids, long watermark)
+    {
+        long        startZxid = getStartZxid(name);
+        if ( startZxid < 0 )
+        {
+            return false;
+        }
+        Long        nextStartZxid = startZxids.higher(startZxid);
+        return (nextStartZxid != null) && (nextStartZxid <= (watermark + 1));
+    }
+
+    private static long getStartZxid(String name)
+    {
+        return Util.getZxidFromName(name, "log");
+    }
+
+    private void runPipeline(final IndexBuilder builder, List<BackupMetaData> backups, List<File> activeLogs, ActivityLog.Type progressType) throws Exception
+    {
+        final Set<File>                 stagedFiles = Sets.newConcurrentHashSet();
+        final Semaphore                 stagingPermits = new Semaphore(fetchThreads + indexThreads);  // bounds the number of decompressed backups waiting on disk
+        final Progress                  progress = new Progress(builder, backups.size() + activeLogs.size(), progressType);
+        ListeningExecutorService        fetchService = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(fetchThreads, new ThreadFactoryBuilder().setNameFormat("IndexProcessor-fetch-%d").build()));
+        ListeningExecutorService        indexService = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(indexThreads, new ThreadFactoryBuilder().setNameFormat("IndexProcessor-index-%d").build()));
+        try
+        {
+            exhibitor.getLog().add(progressType, String.format("Index Build: indexing %d backups and %d active logs (%d fetch threads, %d index threads)", backups.size(), activeLogs.size(), fetchThreads, indexThreads));
+
+            List<ListenableFuture<Void>>    futures = Lists.newArrayList();
+            for ( final BackupMetaData metaData : backups )
+            {
+                ListenableFuture<File>  staged = fetchService.submit
+                (
+                    new Callable<File>()
+                    {
+                        @Override
+                        public File call() throws Exception
+                        {
+                            stagingPermits.acquire();
+                            boolean     isStaged = false;
+                            try
+                            {
+                                File    stagedFile = stageBackup(metaData, stagedFiles);
+                                if ( stagedFile == null )
+                                {
+                                    progress.completed(metaData.getName());
+                                }
+                                isStaged = (stagedFile != null);
+                                return stagedFile;
+                            }
+                            finally
+                            {
+                                if ( !isStaged )
+                                {
+                                    stagingPermits.release();
+                                }
+                            }
+                        }
+                    }
+                );
+
+                AsyncFunction<File, Void>   indexStaged = new AsyncFunction<File, Void>()
+                {
+                    @Override
+                    public ListenableFuture<Void> apply(File stagedFile) throws Exception
+                    {
+                        if ( stagedFile != null )
+                        {
+                            try
+                            {
+                                indexFile(builder, stagedFile, metaData.getName());
+                            }
+                            finally
+                            {
+                                deleteStaged(stagedFile, stagedFiles);
+                                stagingPermits.release();
+                                progress.completed(metaData.getName());
+                            }
+                        }
+                        return Futures.immediateFuture(null);
+                    }
+                };
+                futures.add(Futures.transform(staged, indexStaged, indexService));
+            }
+
+            for ( final File f : activeLogs )
+            {
+                futures.add
+                (
+                    indexService.submit
+                    (
+                        new Callable<Void>()
+                        {
+                            @Override
+                            public Void call() throws Exception
+                            {
+                                try
+                                {
+                                    if ( f.exists() )
+                                    {
+                                        indexFile(builder, f, f.getName());
+                                    }
+                                }
+                                finally
+                                {
+                                    progress.completed(f.getName());
+                                }
+                                return null;
+                            }
+                        }
+                    )
+                );
+            }
+
+            try
+            {
+                Futures.allAsList(futures).get();
+            }
+            catch ( ExecutionException e )
+            {
+                if ( e.getCause() instanceof Exception )
+                {
+                    throw (Exception)e.getCause();
+                }
+                throw e;
+            }
+        }
+        finally
+        {
+            fetchService.shutdownNow();
+            indexService.shutdownNow();
+            fetchService.awaitTermination(1, TimeUnit.MINUTES);
+            indexService.awaitTermination(1, TimeUnit.MINUTES);
+
+            for ( File f : stagedFiles )
+            {
+                deleteStaged(f, stagedFiles);
+            }
+        }
+    }
+
+    private File stageBackup(BackupMetaData metaData, Set<File> stagedFiles) throws Exception
+    {
+        // decompress as the backup is downloaded (in concurrent ranges if the provider supports it) - only the staged file is written
+        BackupStream    backupStream = exhibitor.getBackupManager().getBackupStream(metaData);
+        if ( backupStream == null )
+        {
+            return null;
+        }
+
+        File            stagedFile = File.createTempFile("exhibitor-index", ".tmp");
+        stagedFiles.add(stagedFile);
+
+        InputStream     in = null;
+        OutputStream    out = null;
+        boolean         success = false;
+        try
+        {
+            in = decompressIfNeeded(backupStream.getStream());
+            out = new BufferedOutputStream(new FileOutputStream(stagedFile), BUFFER_SIZE);
+
+            byte[]      buffer = new byte[BUFFER_SIZE];
+            for(;;)
+            {
+                int     bytesRead = in.read(buffer);
+                if ( bytesRead < 0 )
+                {
+                    break;
+                }
+                out.write(buffer, 0, bytesRead);
+            }
+            success = true;
+        }
+        finally
+        {
+            CloseableUtils.closeQuietly(in);
+            CloseableUtils.closeQuietly(out);
+            CloseableUtils.closeQuietly(backupStream);
+            if ( !success )
+            {
+                deleteStaged(stagedFile, stagedFiles);
+            }
+        }
+        return stagedFile;
+    }
+
+    static InputStream decompressIfNeeded(InputStream stream) throws IOException
+    {
+        // backups are stored gzipped - check the magic number to be safe
+        BufferedInputStream     in = new BufferedInputStream(stream, BUFFER_SIZE);
+        in.mark(2);
+        int         b1 = in.read();
+        int         b2 = in.read();
+        in.reset();
+        if ( (b1 | (b2 << 8)) == GZIPInputStream.GZIP_MAGIC )
+        {
+            return new MultiMemberGzipInputStream(in, BUFFER_SIZE);
+        }
+        return in;
+    }
+
+    private void deleteStaged(File stagedFile, Set<File> stagedFiles)
+    {
+        if ( stagedFiles.remove(stagedFile) && !stagedFile.delete() )
+        {
+            exhibitor.getLog().add(ActivityLog.Type.ERROR, "Index Build: could not delete temp file: " + stagedFile);
+        }
+    }
+
+    private void indexFile(IndexBuilder builder, File f, String sourceName) throws Exception
+    {
+        builder.add(f, sourceName);
+    }
+
+    private List<File> getActive() throws Exception
     {
         ZooKeeperLogFiles       zooKeeperLogFiles = new ZooKeeperLogFiles(exhibitor);
         List<File>              paths = zooKeeperLogFiles.getPaths();
@@ -100,30 +468,17 @@ public class IndexProcessor
                 }
             }
         );
+        return paths;
+    }
 
-        int     index = 0;
-        for ( File f : paths )
+    private List<BackupMetaData> getBackups(List<File> activeLogs, ActivityLog.Type progressType) throws Exception
+    {
+        if ( !exhibitor.getBackupManager().isActive() )
         {
-            exhibitor.getLog().add(ActivityLog.Type.INFO, String.format("Indexing active log %d of %d", ++index, paths.size()));
-
-            if ( f.exists() )
-            {
-                InputStream         in = new BufferedInputStream(new FileInputStream(f));
-                try
-                {
-                    builder.add(in);
-                }
-                finally
-                {
-                    CloseableUtils.closeQuietly(in);
-                }
-            }
+            return Lists.newArrayList();
         }
-    }
 
-    private void addBackups(IndexBuilder builder) throws Exception
-    {
-        exhibitor.getLog().add(ActivityLog.Type.ERROR, "Index Build: Getting available backups");
+        exhibitor.getLog().add(progressType, "Index Build: Getting available backups");
         List<BackupMetaData> availableBackups = Lists.newArrayList(exhibitor.getBackupManager().getAvailableBackups());
         Collections.sort
         (
@@ -138,25 +493,48 @@ public class IndexProcessor
                 }
             }
         );
-        exhibitor.getLog().add(ActivityLog.Type.ERROR, "Index Build: there are " + availableBackups.size() + " available backups");
+        exhibitor.getLog().add(progressType, "Index Build: there are " + availableBackups.size() + " available backups");
 
-        int     index = 0;
+        // logs only ever grow, so the local copy of an active log supersedes any of its backups and
+        // only the newest backup of any other log is needed
+        Map<String, BackupMetaData> newestBackups = Maps.newLinkedHashMap();
         for ( BackupMetaData metaData : availableBackups )
         {
-            exhibitor.getLog().add(ActivityLog.Type.INFO, String.format("Index Build: indexing backup log %d of %d", ++index, availableBackups.size()));
+            newestBackups.put(metaData.getName(), metaData);
+        }
+        for ( File f : activeLogs )
+        {
+            newestBackups.remove(f.getName());
+        }
+        return Lists.newArrayList(newestBackups.values());
+    }
 
-            BackupStream backupStream = exhibitor.getBackupManager().getBackupStream(metaData);
-            if ( backupStream != null )
-            {
-                try
-                {
-                    builder.add(backupStream.getStream());
-                }
-                finally
-                {
-                    CloseableUtils.closeQuietly(backupStream);
-                }
-            }
+    private static long perSecond(long count, long elapsedMs)
+    {
+        return (count * 1000) / Math.max(1, elapsedMs);
+    }
+
+    private class Progress
+    {
+        private final IndexBuilder      builder;
+        private final int               total;
+        private final ActivityLog.Type  logType;
+        private final AtomicInteger     completed = new AtomicInteger(0);
+        private final long              startMs = System.currentTimeMillis();
+
+        private Progress(IndexBuilder builder, int total, ActivityLog.Type logType)
+        {
+            this.builder = builder;
+            this.total = total;
+            this.logType = logType;
+        }
+
+        private void completed(String name)
+        {
+            int         thisCompleted = completed.incrementAndGet();
+            long        elapsedMs = System.currentTimeMillis() - startMs;
+            int         count = builder.getCurrentCount();
+            exhibitor.getLog().add(logType, String.format("Index Build: indexed %s (%d of %d) - %d entries so far, %d entries/sec", name, thisCompleted, total, count, perSecond(count, elapsedMs)));
         }
     }
 
@@ -17,18 +17,50 @@
 package com.netflix.exhibitor.core.index;
 
 import com.netflix.exhibitor.core.Exhibitor;
-import com.netflix.exhibitor.core.activity.Activity;
 import com.netflix.exhibitor.core.activity.ActivityLog;
+import com.netflix.exhibitor.core.activity.SchedulableActivityAdapter;
 import com.netflix.exhibitor.core.config.StringConfigs;
+import com.netflix.exhibitor.core.state.CleanupManager;
 import java.io.File;
 
-public class IndexProcessorActivity implements Activity
+public class IndexProcessorActivity extends SchedulableActivityAdapter
 {
-    private Exhibitor exhibitor;
+    private final Exhibitor exhibitor;
+    private final boolean incremental;
+
+    /**
+     * Name of the index that is kept up to date by incremental builds
+     */
+    public static final String      ROLLING_INDEX_NAME = "exhibitor-rolling";
 
     public IndexProcessorActivity(Exhibitor exhibitor)
+    {
+        this(exhibitor, false);
+    }
+
+    /**
+     * @param exhibitor main instance
+     * @param incremental if true, the rolling index is updated with new transactions. Otherwise,
+     *                    a new index is built from scratch.
+     */
+    public IndexProcessorActivity(Exhibitor exhibitor, boolean incremental)
     {
         this.exhibitor = exhibitor;
+        this.incremental = incremental;
+    }
+
+    @Override
+    public Priority getPriority()
+    {
+        return Priority.LOW;
+    }
+
+    @Override
+    public String getSerializationKey()
+    {
+        // builds read the logs - never run them while the logs are purged. This also keeps builds,
+        // incremental updates of the rolling index included, from running at the same time
+        return CleanupManager.DATA_SERIALIZATION_KEY;
     }
 
     @Override
@@ -47,12 +79,16 @@ public class IndexProcessorActivity implements Activity
         }
         else
         {
-            exhibitor.getLog().add(ActivityLog.Type.INFO, "Starting index build");
+            exhibitor.getLog().add(incremental ? ActivityLog.Type.DEBUG : ActivityLog.Type.INFO, incremental ? "Starting incremental index update" : "Starting index build");
             try
             {
-                File            indexDirectory = new File(path, "exhibitor-" + System.currentTimeMillis());
+                File            indexDirectory = new File(path, incremental ? ROLLING_INDEX_NAME : ("exhibitor-" + System.currentTimeMillis()));
                 IndexProcessor  processor = new IndexProcessor(exhibitor);
-                processor.process(indexDirectory);
+                processor.process(indexDirectory, incremental);
+                if ( incremental )
+                {
+                    exhibitor.getIndexCache().indexUpdated(indexDirectory);
+                }
             }
             catch ( Exception e )
             {
@@ -0,0 +1,231 @@
+/*
+ * Copyright 2012 Netflix, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.netflix.exhibitor.core.index;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A log index is made up of shards - one Lucene index per source log/backup file. Each shard
+ * is a sub-directory of the index directory with its own {@link IndexMetaData} so that searches
+ * can skip shards whose date range doesn't overlap the query. Shard directories are named
+ * <code>[source name]_[generation]</code> so that a source that is re-indexed (e.g. the active
+ * log in a rolling index) can be written next to the shard it replaces. Only the newest generation
+ * of each source is part of the index - replaced shards stay on disk until searchers that were
+ * opened before the replacement have been released (see {@link #deleteReplacedShards(File, Set)}).
+ * <p>
+ * Indexes written before shards were introduced contain the Lucene files directly in the
+ * index directory. These are treated as a single shard.
+ * </p>
+ */
+public class IndexShard
+{
+    private final File              directory;
+    private final IndexMetaData     metaData;
+
+    private static final char       GENERATION_SEPARATOR = '_';
+    private static final String     LUCENE_SEGMENTS_PREFIX = "segments";
+
+    /**
+     * Return the shards of the given index ordered by zxid
+     *
+     * @param indexDirectory index directory
+     * @return shards
+     * @throws Exception errors
+     */
+    public static List<IndexShard>  getShards(File indexDirectory) throws Exception
+    {
+        List<IndexShard>    shards = Lists.newArrayList();
+        if ( isLegacy(indexDirectory) )
+        {
+            shards.add(new IndexShard(indexDirectory, IndexMetaData.read(IndexMetaData.getMetaDataFile(indexDirectory))));
+            return shards;
+        }
+
+        for ( File shardDirectory : getNewestShardDirectories(indexDirectory).values() )
+        {
+            shards.add(new IndexShard(shardDirectory, IndexMetaData.read(IndexMetaData.getMetaDataFile(shardDirectory))));
+        }
+        Collections.sort
+        (
+            shards,
+            new Comparator<IndexShard>()
+            {
+                @Override
+                public int compare(IndexShard o1, IndexShard o2)
+                {
+                    long        diff = o1.metaData.getMinZxid() - o2.metaData.getMinZxid();
+                    return (diff < 0) ? -1 : ((diff > 0) ? 1 : o1.directory.getName().compareTo(o2.directory.getName()));
+                }
+            }
+        );
+        return shards;
+    }
+
+    /**
+     * Delete the shards that have been replaced by a newer shard of the same source
+     *
+     * @param indexDirectory index directory
+     * @param inUse shard directories that open searchers may still read - these aren't deleted
+     * @throws IOException if a shard could not be deleted
+     */
+    static void                     deleteReplacedShards(File indexDirectory, Set<File> inUse) throws IOException
+    {
+        if ( isLegacy(indexDirectory) )
+        {
+            return;
+        }
+
+        Collection<File>    newest = getNewestShardDirectories(indexDirectory).values();
+        for ( File shardDirectory : new IndexList(indexDirectory).getIndexes() )
+        {
+            if ( !newest.contains(shardDirectory) && !inUse.contains(shardDirectory) )
+            {
+                delete(shardDirectory);
+            }
+        }
+    }
+
+    /**
+     * @param indexDirectory index directory
+     * @return true if the index was written before shards were introduced
+     */
+    public static boolean           isLegacy(File indexDirectory)
+    {
+        File[]      files = indexDirectory.listFiles();
+        if ( files != null )
+        {
+            for ( File f : files )
+            {
+                if ( f.isFile() && f.getName().startsWith(LUCENE_SEGMENTS_PREFIX) )
+                {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    static File     makeShardDirectory(File indexDirectory, String sourceName, long generation)
+    {
+        return new File(indexDirectory, sourceName + GENERATION_SEPARATOR + Long.toHexString(generation));
+    }
+
+    static String   getSourceName(File shardDirectory)
+    {
+        String      name = shardDirectory.getName();
+        int         index = name.lastIndexOf(GENERATION_SEPARATOR);
+        return (index >= 0) ? name.substring(0, index) : name;
+    }
+
+    static long     getGeneration(File shardDirectory)
+    {
+        String      name = shardDirectory.getName();
+        int         index = name.lastIndexOf(GENERATION_SEPARATOR);
+        try
+        {
+            return (index >= 0) ? Long.parseLong(name.substring(index + 1), 16) : -1;
+        }
+        catch ( NumberFormatException e )
+        {
+            return -1;
+        }
+    }
+
+    private static Map<String, File> getNewestShardDirectories(File indexDirectory)
+    {
+        Map<String, File>   newest = Maps.newHashMap();
+        for ( File shardDirectory : new IndexList(indexDirectory).getIndexes() )
+        {
+            String      sourceName = getSourceName(shardDirectory);
+            File        current = newest.get(sourceName);
+            if ( (current == null) || (getGeneration(shardDirectory) > getGeneration(current)) )
+            {
+                newest.put(sourceName, shardDirectory);
+            }
+        }
+        return newest;
+    }
+
+    IndexShard(File directory, IndexMetaData metaData)
+    {
+        this.directory = directory;
+        this.metaData = metaData;
+    }
+
+    public File getDirectory()
+    {
+        return directory;
+    }
+
+    public IndexMetaData getMetaData()
+    {
+        return metaData;
+    }
+
+    /**
+     * @return the name of the log/backup this shard was built from
+     */
+    public String getSourceName()
+    {
+        return getSourceName(directory);
+    }
+
+    /**
+     * @param startMs start of the range
+     * @param endMs end of the range
+     * @return true if any of this shard's entries could fall in the given range (inclusive)
+     */
+    public boolean overlaps(long startMs, long endMs)
+    {
+        return (metaData.getTo().getTime() >= startMs) && (metaData.getFrom().getTime() <= endMs);
+    }
+
+    /**
+     * Delete a shard's files and meta data
+     *
+     * @param shardDirectory the shard
+     * @throws IOException if a file could not be deleted
+     */
+    static void delete(File shardDirectory) throws IOException
+    {
+        File[]      files = shardDirectory.listFiles();
+        if ( files != null )
+        {
+            for ( File f : files )
+            {
+                if ( !f.delete() )
+                {
+                    throw new IOException("Could not delete: " + f);
+                }
+            }
+        }
+        File        metaDataFile = IndexMetaData.getMetaDataFile(shardDirectory);
+        if ( (shardDirectory.exists() && !shardDirectory.delete()) || (metaDataFile.exists() && !metaDataFile.delete()) )
+        {
+            throw new IOException("Could not delete: " + shardDirectory);
+        }
+    }
+}
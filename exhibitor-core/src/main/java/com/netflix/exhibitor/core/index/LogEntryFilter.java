@@ -0,0 +1,147 @@
+/*
+ * Copyright 2012 Netflix, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.netflix.exhibitor.core.index;
+
+import org.apache.jute.Record;
+import org.apache.zookeeper.txn.TxnHeader;
+import java.util.Date;
+
+/**
+ * The {@link QueryBuilder} criteria applied directly to raw log entries. All
+ * criteria are ANDed. Date and zxid ranges are start inclusive/end exclusive
+ * as with {@link QueryBuilder#dateRange(Date, Date)}
+ */
+public class LogEntryFilter
+{
+    private String      pathPrefix = null;
+    private int         operationType = -1;
+    private long        startDateMs = Long.MIN_VALUE;
+    private long        endDateMs = Long.MAX_VALUE;
+    private long        startZxid = Long.MIN_VALUE;
+    private long        endZxid = Long.MAX_VALUE;
+    private Long        sessionId = null;
+
+    public static LogEntryFilter    builder()
+    {
+        return new LogEntryFilter();
+    }
+
+    public LogEntryFilter pathPrefix(String pathPrefix)
+    {
+        this.pathPrefix = pathPrefix;
+        return this;
+    }
+
+    public LogEntryFilter operationType(int type)
+    {
+        this.operationType = type;
+        return this;
+    }
+
+    public LogEntryFilter dateRange(Date startDate, Date endDate)
+    {
+        startDateMs = startDate.getTime();
+        endDateMs = endDate.getTime();
+        return this;
+    }
+
+    public LogEntryFilter zxidRange(long startZxid, long endZxid)
+    {
+        this.startZxid = startZxid;
+        this.endZxid = endZxid;
+        return this;
+    }
+
+    public LogEntryFilter sessionId(long sessionId)
+    {
+        this.sessionId = sessionId;
+        return this;
+    }
+
+    /**
+     * @param header entry header
+     * @param record entry operation as returned by {@link TxnRecords#getOperations(Record)}
+     * @return true if the operation matches all criteria
+     */
+    public boolean matches(TxnHeader header, Record record)
+    {
+        if ( (header.getTime() < startDateMs) || (header.getTime() >= endDateMs) )
+        {
+            return false;
+        }
+        if ( (header.getZxid() < startZxid) || (header.getZxid() >= endZxid) )
+        {
+            return false;
+        }
+
+        if ( (sessionId != null) && (header.getClientId() != sessionId) )
+        {
+            return false;
+        }
+
+        EntryTypes      type = TxnRecords.getType(header, record);
+        if ( type == null )
+        {
+            return false;
+        }
+        if ( (operationType >= 0) && (type.getId() != operationType) )
+        {
+            return false;
+        }
+
+        if ( pathPrefix != null )
+        {
+            String      path = TxnRecords.getPath(record);
+            if ( (path == null) || !path.startsWith(pathPrefix) )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if no entry at or after the given point can match. Entries are
+     * written in zxid order and their times are assigned by the leader so both
+     * only move forward.
+     *
+     * @param zxid entry zxid
+     * @param timeMs entry time
+     * @return true if the entry and all following entries are past the end of the criteria
+     */
+    public boolean isPastEnd(long zxid, long timeMs)
+    {
+        return (zxid >= endZxid) || (timeMs >= endDateMs);
+    }
+
+    /**
+     * Returns true if a log whose entries fall in the given ranges cannot contain a match
+     *
+     * @param firstZxid the log's first zxid
+     * @param lastZxid the log's last zxid (inclusive)
+     * @param lastTimeMs upper bound for the log's entry times
+     * @return true if the log can be skipped
+     */
+    public boolean canSkip(long firstZxid, long lastZxid, long lastTimeMs)
+    {
+        return (lastZxid < startZxid) || (firstZxid >= endZxid) || (lastTimeMs < startDateMs);
+    }
+
+    private LogEntryFilter()
+    {
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2012 Netflix, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.netflix.exhibitor.core.index;
+
+import com.netflix.exhibitor.core.Exhibitor;
+import com.netflix.exhibitor.core.activity.OnOffRepeatingActivity;
+import com.netflix.exhibitor.core.activity.QueueGroups;
+import com.netflix.exhibitor.core.activity.RepeatingActivity;
+import com.netflix.exhibitor.core.activity.RepeatingActivityImpl;
+import com.netflix.exhibitor.core.config.ConfigListener;
+import com.netflix.exhibitor.core.config.IntConfigs;
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Periodically updates the rolling log index (see {@link IndexProcessorActivity#ROLLING_INDEX_NAME})
+ * based on {@link IntConfigs#LOG_INDEX_PERIOD_MS}
+ */
+public class LogIndexManager implements Closeable
+{
+    private final RepeatingActivity repeatingActivity;
+    private final Exhibitor exhibitor;
+
+    public LogIndexManager(final Exhibitor exhibitor)
+    {
+        this.exhibitor = exhibitor;
+        final IndexProcessorActivity activity = new IndexProcessorActivity(exhibitor, true);
+        repeatingActivity = new OnOffRepeatingActivity
+        (
+            new OnOffRepeatingActivity.Factory()
+            {
+                @Override
+                public RepeatingActivity newRepeatingActivity(long timePeriodMs)
+                {
+                    return new RepeatingActivityImpl(exhibitor.getLog(), exhibitor.getActivityQueue(), QueueGroups.IO, activity, exhibitor.getConfigManager().getConfig().getInt(IntConfigs.LOG_INDEX_PERIOD_MS));
+                }
+            },
+            exhibitor.getConfigManager().getConfig().getInt(IntConfigs.LOG_INDEX_PERIOD_MS)
+        );
+    }
+
+    public void start()
+    {
+        repeatingActivity.start();
+        exhibitor.getConfigManager().addConfigListener
+        (
+            new ConfigListener()
+            {
+                @Override
+                public void configUpdated()
+                {
+                    repeatingActivity.setTimePeriodMs(exhibitor.getConfigManager().getConfig().getInt(IntConfigs.LOG_INDEX_PERIOD_MS));
+                }
+            }
+        );
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        repeatingActivity.close();
+    }
+}
@@ -16,15 +16,25 @@
 
 package com.netflix.exhibitor.core.index;
 
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.primitives.UnsignedLongs;
 import org.apache.curator.utils.CloseableUtils;
 import org.apache.lucene.document.Document;
+import org.apache.lucene.document.FieldSelector;
 import org.apache.lucene.document.Fieldable;
+import org.apache.lucene.document.MapFieldSelector;
 import org.apache.lucene.document.NumericField;
 import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.NumericRangeQuery;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.search.Sort;
 import org.apache.lucene.search.SortField;
 import org.apache.lucene.search.TopDocs;
@@ -34,28 +44,235 @@ import org.apache.lucene.store.NativeFSLockFactory;
 import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Searches a sharded log index. Shards are opened on first use and only the shards whose date
+ * range overlaps the query's {@link QueryBuilder#dateRange(Date, Date)} are searched - the
+ * results from each are merged. Document ids are global: each shard's ids are offset by the
+ * number of entries in the shards that precede it.
+ * <p>
+ * Instances are reference counted: {@link #incRef()}/{@link #decRef()} work like Lucene's
+ * IndexReader. {@link #reopen()} returns a new instance that picks up shards added to (or
+ * removed from) the index. Unchanged shards, and their open readers, are shared between the
+ * instances and new shards are warmed before the new instance is returned.
+ * </p>
+ */
 public class LogSearch implements Closeable
 {
-    private final Directory directory;
-    private final IndexReader reader;
-    private final IndexSearcher searcher;
     private final File file;
-    private final Cache<String, TopDocs> cache = CacheBuilder.newBuilder()
-        .expireAfterAccess(5, TimeUnit.MINUTES) // does this need to be configurable?
-        .build();
+    private final List<Shard> shards;
+    private final int[] docBases;
+    private final int docQty;
+    private final int generation;
+    private final SearchCache searchCache;
+    private final String cacheKeyPrefix;
+    private final AtomicInteger refCount = new AtomicInteger(1);
+    private final CloseListener closeListener;
 
     private static final int            MAX_RESULTS = 5000; // does this need to be configurable?
+    private static final int            MAX_HISTOGRAM_BUCKETS = 10000;
+    private static final Sort           SORT = new Sort(new SortField(FieldNames.DATE, SortField.LONG, true));
+    private static final FieldSelector  RESULT_FIELDS = new MapFieldSelector(FieldNames.TYPE, FieldNames.DATE, FieldNames.PATH, FieldNames.VERSION, FieldNames.ZXID, FieldNames.SESSION);
+    private static final FieldSelector  DATA_FIELD = new MapFieldSelector(FieldNames.DATA);
+
+    /**
+     * Notified when an instance's reference count drops to zero and it has been closed
+     */
+    public interface CloseListener
+    {
+        public void     closed(LogSearch logSearch);
+    }
+
+    private static class Shard
+    {
+        private final IndexShard    indexShard;
+        private final AtomicInteger refCount = new AtomicInteger(1);
+
+        // all protected by synchronization
+        private Directory           directory;
+        private IndexReader         reader;
+        private IndexSearcher       searcher;
+
+        private Shard(IndexShard indexShard)
+        {
+            this.indexShard = indexShard;
+        }
+
+        private synchronized IndexSearcher getSearcher() throws IOException
+        {
+            Preconditions.checkState(refCount.get() > 0, "Shard is closed: " + indexShard.getDirectory());
+            if ( searcher == null )
+            {
+                directory = new NIOFSDirectory(indexShard.getDirectory(), new NativeFSLockFactory());
+                reader = IndexReader.open(directory);
+                searcher = new IndexSearcher(reader);
+            }
+            return searcher;
+        }
+
+        private void warm() throws IOException
+        {
+            // loads the date field cache used for sorting
+            getSearcher().search(new MatchAllDocsQuery(), 1, SORT);
+        }
+
+        private synchronized boolean isOpen()
+        {
+            return searcher != null;
+        }
+
+        private void incRef()
+        {
+            int     newCount = refCount.incrementAndGet();
+            Preconditions.checkState(newCount > 1, "Shard is closed: " + indexShard.getDirectory());
+        }
+
+        private void decRef()
+        {
+            int     newCount = refCount.decrementAndGet();
+            Preconditions.checkState(newCount >= 0, "Shard reference count is negative: " + indexShard.getDirectory());
+            if ( newCount == 0 )
+            {
+                close();
+            }
+        }
+
+        private synchronized void close()
+        {
+            CloseableUtils.closeQuietly(searcher);
+            CloseableUtils.closeQuietly(reader);
+            CloseableUtils.closeQuietly(directory);
+            searcher = null;
+            reader = null;
+            directory = null;
+        }
+    }
 
     public LogSearch(File file) throws Exception
+    {
+        this(file, null);
+    }
+
+    /**
+     * @param file index directory
+     * @param closeListener if not null, notified when the reference count drops to zero. The listener
+     *                      carries over to instances returned by {@link #reopen()}
+     * @throws Exception errors
+     */
+    public LogSearch(File file, CloseListener closeListener) throws Exception
+    {
+        this(file, closeListener, SearchCache.getInstance());
+    }
+
+    LogSearch(File file, CloseListener closeListener, SearchCache searchCache) throws Exception
+    {
+        this(file, makeShards(IndexShard.getShards(file), ImmutableList.<Shard>of()), 0, searchCache, UUID.randomUUID().toString() + "/", closeListener);
+    }
+
+    private LogSearch(File file, List<Shard> shards, int generation, SearchCache searchCache, String cacheKeyPrefix, CloseListener closeListener)
     {
         this.file = file;
-        directory = new NIOFSDirectory(file, new NativeFSLockFactory());
-        reader = IndexReader.open(directory);
-        searcher = new IndexSearcher(reader);
+        this.shards = shards;
+        this.generation = generation;
+        this.searchCache = searchCache;
+        this.cacheKeyPrefix = cacheKeyPrefix;
+        this.closeListener = closeListener;
+
+        docBases = new int[shards.size()];
+        int     docBase = 0;
+        for ( int i = 0; i < shards.size(); ++i )
+        {
+            docBases[i] = docBase;
+            docBase += shards.get(i).indexShard.getMetaData().getEntryCount();
+        }
+        docQty = docBase;
+    }
+
+    /**
+     * Check the index for shard changes
+     *
+     * @return a new instance (with a reference count of 1) if the index's shards have changed or null
+     * @throws Exception errors
+     */
+    public LogSearch reopen() throws Exception
+    {
+        List<IndexShard>    indexShards = IndexShard.getShards(file);
+        boolean             isChanged = (indexShards.size() != shards.size());
+        for ( int i = 0; !isChanged && (i < indexShards.size()); ++i )
+        {
+            isChanged = !indexShards.get(i).getDirectory().equals(shards.get(i).indexShard.getDirectory());
+        }
+        if ( !isChanged )
+        {
+            return null;
+        }
+
+        List<Shard>     newShards = makeShards(indexShards, shards);
+        try
+        {
+            for ( Shard shard : newShards )
+            {
+                if ( !shards.contains(shard) )
+                {
+                    shard.warm();
+                }
+            }
+        }
+        catch ( Exception e )
+        {
+            for ( Shard shard : newShards )
+            {
+                shard.decRef();
+            }
+            throw e;
+        }
+        return new LogSearch(file, newShards, generation + 1, searchCache, cacheKeyPrefix, closeListener);
+    }
+
+    /**
+     * Increment the reference count
+     *
+     * @throws IllegalStateException if the instance has already been closed
+     */
+    public void     incRef()
+    {
+        for(;;)
+        {
+            int     count = refCount.get();
+            Preconditions.checkState(count > 0, "LogSearch is closed: " + file);
+            if ( refCount.compareAndSet(count, count + 1) )
+            {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Decrement the reference count. The instance is closed when it reaches zero.
+     */
+    public void     decRef()
+    {
+        int     newCount = refCount.decrementAndGet();
+        Preconditions.checkState(newCount >= 0, "LogSearch reference count is negative: " + file);
+        if ( newCount == 0 )
+        {
+            for ( Shard shard : shards )
+            {
+                shard.decRef();
+            }
+            if ( closeListener != null )
+            {
+                closeListener.closed(this);
+            }
+        }
     }
 
     public File getFile()
@@ -65,12 +282,12 @@ public class LogSearch implements Closeable
 
     public int      getDocQty()
     {
-        return reader.numDocs();
+        return docQty;
     }
 
     public void     releaseCache(String id)
     {
-        cache.invalidate(id);
+        searchCache.invalidate(cacheKeyPrefix + id);
     }
 
     public String    cacheSearch(Query query, String reuseId, int maxResults) throws IOException
@@ -83,52 +300,333 @@ public class LogSearch implements Closeable
         String      id = ((reuseId != null) && (reuseId.length() > 0)) ? reuseId : UUID.randomUUID().toString();
         if ( query != null )    // otherwise it's an All Docs search which is the default
         {
-            TopDocs docs = search(query, maxResults);
-            docs.totalHits = Math.min(maxResults, docs.totalHits);
-            cache.put(id, docs);
+            searchCache.put(cacheKeyPrefix + id, runCachedQuery(query, maxResults));
         }
         return id;
     }
     
-    public CachedSearch getCachedSearch(String id)
+    public CachedSearch getCachedSearch(String id) throws IOException
     {
-        return new CachedSearch(cache.getIfPresent(id), getDocQty());
+        SearchCache.Entry   entry = searchCache.get(cacheKeyPrefix + id);
+        if ( entry == null )
+        {
+            return CachedSearch.allDocs(getDocQty());
+        }
+        if ( entry.generation != generation )
+        {
+            // doc ids from another generation of the index may not be valid for this one. Only replace the
+            // entry if it's older so that instances that are still in use don't undo refreshCachedSearches()
+            SearchCache.Entry   newEntry = runCachedQuery(entry.query, entry.maxResults);
+            if ( entry.generation < generation )
+            {
+                searchCache.replace(cacheKeyPrefix + id, entry, newEntry);
+            }
+            entry = newEntry;
+        }
+        return entry.search;
+    }
+
+    /**
+     * Re-run the cached searches of earlier generations of the index and replace them so that they
+     * don't each miss when they're next used
+     *
+     * @throws IOException errors
+     */
+    public void refreshCachedSearches() throws IOException
+    {
+        for ( Map.Entry<String, SearchCache.Entry> entry : searchCache.getEntries(cacheKeyPrefix).entrySet() )
+        {
+            SearchCache.Entry   oldEntry = entry.getValue();
+            if ( oldEntry.generation < generation )
+            {
+                searchCache.replace(entry.getKey(), oldEntry, runCachedQuery(oldEntry.query, oldEntry.maxResults));
+            }
+        }
     }
 
     public TopDocs   search(Query query, int maxResults) throws IOException
     {
-        Sort sort = new Sort(new SortField(FieldNames.DATE, SortField.LONG, true));
-        return searcher.search(query, maxResults, sort);
+        DateBounds          bounds = DateBounds.from(query);
+        List<Integer>       searched = Lists.newArrayList();
+        List<TopDocs>       shardHits = Lists.newArrayList();
+        for ( int i = 0; i < shards.size(); ++i )
+        {
+            Shard       shard = shards.get(i);
+            if ( shard.indexShard.overlaps(bounds.startMs, bounds.endMs) )
+            {
+                searched.add(i);
+                shardHits.add(shard.getSearcher().search(query, maxResults, SORT));
+            }
+        }
+
+        TopDocs             merged = TopDocs.merge(SORT, maxResults, shardHits.toArray(new TopDocs[shardHits.size()]));
+        for ( ScoreDoc scoreDoc : merged.scoreDocs )
+        {
+            scoreDoc.doc += docBases[searched.get(scoreDoc.shardIndex)];
+        }
+        return merged;
+    }
+
+    /**
+     * Compute aggregates over all entries that match the query in a single pass. Values are read
+     * from the field caches so documents are never loaded and the result is not limited by
+     * the maximum number of search results.
+     *
+     * @param query the query or null for all entries
+     * @param aggregation what to compute
+     * @return the result
+     * @throws IOException errors
+     */
+    public AggregationResult aggregate(Query query, Aggregation aggregation) throws IOException
+    {
+        if ( query == null )
+        {
+            query = new MatchAllDocsQuery();
+        }
+
+        DateBounds          bounds = DateBounds.from(query);
+        List<Shard>         searched = Lists.newArrayList();
+        long                fromMs = Long.MAX_VALUE;
+        long                toMs = Long.MIN_VALUE;
+        for ( Shard shard : shards )
+        {
+            if ( shard.indexShard.overlaps(bounds.startMs, bounds.endMs) )
+            {
+                searched.add(shard);
+                fromMs = Math.min(fromMs, shard.indexShard.getMetaData().getFrom().getTime());
+                toMs = Math.max(toMs, shard.indexShard.getMetaData().getTo().getTime());
+            }
+        }
+        fromMs = Math.max(fromMs, bounds.startMs);
+        toMs = Math.min(toMs, bounds.endMs);
+
+        long                intervalMs = aggregation.getHistogramIntervalMs();
+        long                originMs = 0;
+        int                 bucketQty = 0;
+        if ( (intervalMs > 0) && (fromMs <= toMs) )
+        {
+            long        qty = ((toMs - fromMs) / intervalMs) + 1;
+            if ( qty > MAX_HISTOGRAM_BUCKETS )
+            {
+                intervalMs *= (qty + MAX_HISTOGRAM_BUCKETS - 1) / MAX_HISTOGRAM_BUCKETS;
+            }
+            originMs = fromMs - (fromMs % intervalMs);
+            bucketQty = (int)((toMs - originMs) / intervalMs) + 1;
+        }
+
+        AggregationCollector    collector = new AggregationCollector(aggregation, originMs, intervalMs, bucketQty);
+        for ( Shard shard : searched )
+        {
+            shard.getSearcher().search(query, collector);
+        }
+        return collector.getResult();
     }
 
     public SearchItem toResult(int documentId) throws IOException
     {
-        Document        document = searcher.doc(documentId);
+        return toResult(getDocument(documentId, RESULT_FIELDS));
+    }
+
+    /**
+     * Load the results for a page of documents. Only the fields needed for a {@link SearchItem}
+     * are read (the data blob is skipped) and documents are read in doc id order so that
+     * stored fields are accessed sequentially.
+     *
+     * @param documentIds doc ids to load
+     * @return results in the same order as documentIds
+     * @throws IOException errors
+     */
+    public List<SearchItem> toResults(int[] documentIds) throws IOException
+    {
+        Integer[]       order = new Integer[documentIds.length];
+        for ( int i = 0; i < documentIds.length; ++i )
+        {
+            order[i] = i;
+        }
+        final int[]     ids = documentIds;
+        Arrays.sort
+        (
+            order,
+            new Comparator<Integer>()
+            {
+                @Override
+                public int compare(Integer o1, Integer o2)
+                {
+                    return (ids[o1] < ids[o2]) ? -1 : ((ids[o1] > ids[o2]) ? 1 : 0);
+                }
+            }
+        );
 
+        SearchItem[]    results = new SearchItem[documentIds.length];
+        for ( int i : order )
+        {
+            results[i] = toResult(getDocument(documentIds[i], RESULT_FIELDS));
+        }
+        return Arrays.asList(results);
+    }
+
+    private static SearchItem toResult(Document document)
+    {
         String          type = document.getFieldable(FieldNames.TYPE).stringValue();
         NumericField    date = (NumericField)document.getFieldable(FieldNames.DATE);
         Fieldable       path = document.getFieldable(FieldNames.PATH);
         NumericField    version = (NumericField)document.getFieldable(FieldNames.VERSION);
+        NumericField    zxid = (NumericField)document.getFieldable(FieldNames.ZXID);
+        Fieldable       session = document.getFieldable(FieldNames.SESSION);
         return new SearchItem
         (
             Integer.parseInt(type),
-            path.stringValue(),
+            (path != null) ? path.stringValue() : null,
             (version != null) ? version.getNumericValue().intValue() : -1,
-            new Date(date.getNumericValue().longValue())
+            new Date(date.getNumericValue().longValue()),
+            (zxid != null) ? zxid.getNumericValue().longValue() : -1,
+            (session != null) ? UnsignedLongs.parseUnsignedLong(session.stringValue(), 16) : 0
         );
     }
 
     public byte[]           toData(int documentId) throws IOException
     {
-        Document document = searcher.doc(documentId);
+        Document document = getDocument(documentId, DATA_FIELD);
         return document.getBinaryValue(FieldNames.DATA);
     }
 
+    /**
+     * Same as {@link #decRef()}
+     */
     @Override
     public void close()
     {
-        CloseableUtils.closeQuietly(searcher);
-        CloseableUtils.closeQuietly(reader);
-        CloseableUtils.closeQuietly(directory);
+        decRef();
+    }
+
+    /**
+     * @return the directories of the shards this instance searches
+     */
+    Set<File>   getShardDirectories()
+    {
+        Set<File>   directories = Sets.newHashSet();
+        for ( Shard shard : shards )
+        {
+            directories.add(shard.indexShard.getDirectory());
+        }
+        return directories;
+    }
+
+    /**
+     * @return the number of shards that have been opened
+     */
+    int     getOpenShardQty()
+    {
+        int     qty = 0;
+        for ( Shard shard : shards )
+        {
+            if ( shard.isOpen() )
+            {
+                ++qty;
+            }
+        }
+        return qty;
+    }
+
+    private static List<Shard> makeShards(List<IndexShard> indexShards, List<Shard> existingShards)
+    {
+        ImmutableList.Builder<Shard>    builder = ImmutableList.builder();
+        for ( IndexShard indexShard : indexShards )
+        {
+            Shard       shard = null;
+            for ( Shard existing : existingShards )
+            {
+                if ( existing.indexShard.getDirectory().equals(indexShard.getDirectory()) )
+                {
+                    existing.incRef();
+                    shard = existing;
+                    break;
+                }
+            }
+            builder.add((shard != null) ? shard : new Shard(indexShard));
+        }
+        return builder.build();
+    }
+
+    private SearchCache.Entry runCachedQuery(Query query, int maxResults) throws IOException
+    {
+        TopDocs docs = search(query, maxResults);
+        return new SearchCache.Entry(query, maxResults, CachedSearch.from(docs, maxResults), generation);
+    }
+
+    private Document getDocument(int documentId, FieldSelector fieldSelector) throws IOException
+    {
+        int         index = getShardIndex(documentId);
+        return shards.get(index).getSearcher().doc(documentId - docBases[index], fieldSelector);
+    }
+
+    private int getShardIndex(int documentId)
+    {
+        int     low = 0;
+        int     high = shards.size() - 1;
+        while ( low < high )
+        {
+            int     mid = (low + high + 1) >>> 1;
+            if ( docBases[mid] <= documentId )
+            {
+                low = mid;
+            }
+            else
+            {
+                high = mid - 1;
+            }
+        }
+        if ( (high < 0) || (documentId < 0) || (documentId >= docQty) )
+        {
+            throw new IndexOutOfBoundsException("No such document: " + documentId);
+        }
+        return low;
+    }
+
+    /**
+     * The date range a query is restricted to. AND-ed date ranges narrow the bounds, anything
+     * that can't be analyzed is treated as unbounded.
+     */
+    private static class DateBounds
+    {
+        private final long      startMs;
+        private final long      endMs;
+
+        private static final DateBounds     UNBOUNDED = new DateBounds(Long.MIN_VALUE, Long.MAX_VALUE);
+
+        private static DateBounds from(Query query)
+        {
+            if ( query instanceof NumericRangeQuery )
+            {
+                NumericRangeQuery<?>    rangeQuery = (NumericRangeQuery<?>)query;
+                if ( FieldNames.DATE.equals(rangeQuery.getField()) )
+                {
+                    Number  min = rangeQuery.getMin();
+                    Number  max = rangeQuery.getMax();
+                    return new DateBounds((min != null) ? min.longValue() : Long.MIN_VALUE, (max != null) ? max.longValue() : Long.MAX_VALUE);
+                }
+            }
+            else if ( query instanceof BooleanQuery )
+            {
+                DateBounds      bounds = UNBOUNDED;
+                for ( BooleanClause clause : ((BooleanQuery)query).getClauses() )
+                {
+                    if ( clause.getOccur() != BooleanClause.Occur.MUST )
+                    {
+                        return UNBOUNDED;
+                    }
+                    DateBounds  clauseBounds = from(clause.getQuery());
+                    bounds = new DateBounds(Math.max(bounds.startMs, clauseBounds.startMs), Math.min(bounds.endMs, clauseBounds.endMs));
+                }
+                return bounds;
+            }
+            return UNBOUNDED;
+        }
+
+        private DateBounds(long startMs, long endMs)
+        {
+            this.startMs = startMs;
+            this.endMs = endMs;
+        }
     }
 }
@@ -0,0 +1,252 @@
+/*
+ * Copyright 2012 Netflix, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.netflix.exhibitor.core.index;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import org.apache.curator.utils.CloseableUtils;
+import org.apache.jute.Record;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.data.ACL;
+import org.apache.zookeeper.data.Id;
+import org.apache.zookeeper.server.persistence.FileTxnLog;
+import org.apache.zookeeper.txn.CreateTxn;
+import org.apache.zookeeper.txn.DeleteTxn;
+import org.apache.zookeeper.txn.SetDataTxn;
+import org.apache.zookeeper.txn.TxnHeader;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.zip.Adler32;
+
+/**
+ * Alternate to {@link ZooKeeperLogParser} for log files on local disk. The file is memory mapped,
+ * CRCs are computed directly over the mapped bytes and the header and the common records (create,
+ * delete, setData) are decoded straight from the buffer. Other record types are copied out and
+ * handed to ZooKeeper's deserializer.
+ */
+public class MappedZooKeeperLogParser
+{
+    private final File              file;
+    private final ByteBuffer        log;
+    private final boolean           validHeader;
+    private final Adler32           crc = new Adler32();
+
+    private static final int        FILE_HEADER_SIZE = 4 + 4 + 8;   // magic, version, dbid
+    private static final int        TXN_HEADER_SIZE = 8 + 4 + 8 + 8 + 4;  // clientId, cxid, zxid, time, type
+    private static final byte       EOR = 'B';
+
+    public MappedZooKeeperLogParser(File file) throws IOException
+    {
+        this.file = file;
+
+        RandomAccessFile    randomAccessFile = new RandomAccessFile(file, "r");
+        try
+        {
+            FileChannel     channel = randomAccessFile.getChannel();
+            if ( channel.size() > Integer.MAX_VALUE )
+            {
+                throw new IOException("Log file is too large to map: " + file);
+            }
+            log = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());    // the mapping stays valid after the channel is closed
+        }
+        finally
+        {
+            CloseableUtils.closeQuietly(randomAccessFile);
+        }
+
+        validHeader = (log.remaining() >= FILE_HEADER_SIZE) && (log.getInt(0) == FileTxnLog.TXNLOG_MAGIC);
+        if ( validHeader )
+        {
+            log.position(FILE_HEADER_SIZE);
+        }
+    }
+
+    public boolean isValid()
+    {
+        return validHeader;
+    }
+
+    public void parse(LogEntryReceiver receiver) throws Exception
+    {
+        while ( next(receiver) )
+        {
+            // keep going
+        }
+    }
+
+    /**
+     * Read the next entry in the log and pass it to the receiver
+     *
+     * @param receiver the receiver
+     * @return true if an entry was read, false if the end of the log has been reached
+     * @throws Exception errors
+     */
+    public boolean next(LogEntryReceiver receiver) throws Exception
+    {
+        if ( !validHeader )
+        {
+            throw new Exception("Invalid magic number for: " + file);
+        }
+
+        if ( log.remaining() < (8 + 4) )
+        {
+            return false;
+        }
+
+        long        crcValue = log.getLong();
+        int         length = log.getInt();
+        if ( (length <= 0) || (length > (log.remaining() - 1)) )
+        {
+            // Since we preallocate, we define EOF to be an
+            // empty transaction. A length past the end is a partial write.
+            log.position(log.limit());
+            return false;
+        }
+
+        int         entryStart = log.position();
+        ByteBuffer  entry = log.slice();
+        entry.limit(length);
+        log.position(entryStart + length);
+        if ( log.get() != EOR )
+        {
+            log.position(log.limit());
+            return false;  // partial transaction
+        }
+
+        crc.reset();
+        crc.update(entry.duplicate());
+        if ( crcValue != crc.getValue() )
+        {
+            throw new IOException("CRC doesn't match " + crcValue + " vs " + crc.getValue());
+        }
+
+        TxnHeader   hdr = readHeader(entry);
+        Record      record = readRecord(entry, hdr);
+        receiver.receiveEntry(hdr, record);
+        return true;
+    }
+
+    private static TxnHeader readHeader(ByteBuffer entry) throws IOException
+    {
+        if ( entry.remaining() < TXN_HEADER_SIZE )
+        {
+            throw new IOException("Transaction entry is too short: " + entry.remaining());
+        }
+
+        long        clientId = entry.getLong();
+        int         cxid = entry.getInt();
+        long        zxid = entry.getLong();
+        long        time = entry.getLong();
+        int         type = entry.getInt();
+        return new TxnHeader(clientId, cxid, zxid, time, type);
+    }
+
+    private static Record readRecord(ByteBuffer entry, TxnHeader hdr) throws Exception
+    {
+        switch ( hdr.getType() )
+        {
+            case ZooDefs.OpCode.create:
+            {
+                String      path = readString(entry);
+                byte[]      data = readBuffer(entry);
+                List<ACL>   acl = readAcl(entry);
+                boolean     ephemeral = entry.get() != 0;
+                int         parentCVersion = (entry.remaining() >= 4) ? entry.getInt() : -1;  // older logs don't have parentCVersion
+                return new CreateTxn(path, data, acl, ephemeral, parentCVersion);
+            }
+
+            case ZooDefs.OpCode.delete:
+            {
+                return new DeleteTxn(readString(entry));
+            }
+
+            case ZooDefs.OpCode.setData:
+            {
+                String      path = readString(entry);
+                byte[]      data = readBuffer(entry);
+                int         version = entry.getInt();
+                return new SetDataTxn(path, data, version);
+            }
+
+            default:
+            {
+                entry.rewind();
+                byte[]      bytes = new byte[entry.remaining()];
+                entry.get(bytes);
+                return ZooKeeperLogParser.deserializeTxn(bytes, new TxnHeader());
+            }
+        }
+    }
+
+    private static String readString(ByteBuffer entry)
+    {
+        int     length = entry.getInt();
+        if ( length < 0 )
+        {
+            return null;
+        }
+
+        String  value;
+        if ( entry.hasArray() )
+        {
+            value = new String(entry.array(), entry.arrayOffset() + entry.position(), length, Charsets.UTF_8);
+            entry.position(entry.position() + length);
+        }
+        else
+        {
+            byte[]  bytes = new byte[length];
+            entry.get(bytes);
+            value = new String(bytes, Charsets.UTF_8);
+        }
+        return value;
+    }
+
+    private static byte[] readBuffer(ByteBuffer entry)
+    {
+        int     length = entry.getInt();
+        if ( length < 0 )
+        {
+            return null;
+        }
+        byte[]  bytes = new byte[length];
+        entry.get(bytes);
+        return bytes;
+    }
+
+    private static List<ACL> readAcl(ByteBuffer entry)
+    {
+        int         count = entry.getInt();
+        if ( count < 0 )
+        {
+            return null;
+        }
+
+        List<ACL>   acl = Lists.newArrayListWithCapacity(count);
+        for ( int i = 0; i < count; ++i )
+        {
+            int     perms = entry.getInt();
+            String  scheme = readString(entry);
+            String  id = readString(entry);
+            acl.add(new ACL(perms, new Id(scheme, id)));
+        }
+        return acl;
+    }
+}
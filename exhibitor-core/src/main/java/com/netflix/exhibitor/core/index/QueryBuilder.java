@@ -96,6 +96,20 @@ public class QueryBuilder
         return this;
     }
 
+    public QueryBuilder     zxidRange(long startZxid, long endZxid)
+    {
+        NumericRangeQuery<Long> query = NumericRangeQuery.newLongRange(FieldNames.ZXID, startZxid, endZxid, true, false);
+        queries.add(query);
+        return this;
+    }
+
+    public QueryBuilder     sessionId(long sessionId)
+    {
+        Term            term = new Term(FieldNames.SESSION, IndexBuilder.sessionIdToString(sessionId));
+        queries.add(new TermQuery(term));
+        return this;
+    }
+
     private QueryBuilder()
     {
         queries = Lists.newArrayList();
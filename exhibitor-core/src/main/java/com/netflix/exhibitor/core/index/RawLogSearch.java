@@ -0,0 +1,236 @@
+/*
+ * Copyright 2012 Netflix, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.netflix.exhibitor.core.index;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.netflix.exhibitor.core.Exhibitor;
+import com.netflix.exhibitor.core.activity.ActivityLog;
+import com.netflix.exhibitor.core.backup.BackupMetaData;
+import com.netflix.exhibitor.core.backup.BackupStream;
+import org.apache.curator.utils.CloseableUtils;
+import org.apache.jute.Record;
+import org.apache.zookeeper.server.persistence.Util;
+import org.apache.zookeeper.txn.TxnHeader;
+import java.io.File;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Searches the transaction logs directly, without an index. Logs are scanned in zxid
+ * order and matches are passed to the receiver as they are found. Logs whose zxid/time
+ * range cannot match are skipped without being opened and the scan ends as soon as
+ * either maxResults is reached or the entries move past the end of the filter's range.
+ * Multi-op entries are expanded and each matching sub-operation is passed separately.
+ */
+public class RawLogSearch
+{
+    private final Exhibitor         exhibitor;
+    private final LogEntryFilter    filter;
+    private final int               maxResults;
+    private final boolean           includeBackups;
+
+    public RawLogSearch(Exhibitor exhibitor, LogEntryFilter filter, int maxResults, boolean includeBackups)
+    {
+        this.exhibitor = exhibitor;
+        this.filter = filter;
+        this.maxResults = maxResults;
+        this.includeBackups = includeBackups;
+    }
+
+    /**
+     * Run the search
+     *
+     * @param receiver receives each match
+     * @return number of matches
+     * @throws Exception errors (including any thrown by the receiver)
+     */
+    public int search(final LogEntryReceiver receiver) throws Exception
+    {
+        long                    startMs = System.currentTimeMillis();
+        List<LogSource>         sources = getSources();
+
+        final AtomicInteger     matchCount = new AtomicInteger(0);
+        final AtomicBoolean     isDone = new AtomicBoolean(false);
+        LogEntryReceiver        filteringReceiver = new LogEntryReceiver()
+        {
+            @Override
+            public void receiveEntry(TxnHeader header, Record record) throws Exception
+            {
+                if ( filter.isPastEnd(header.getZxid(), header.getTime()) )
+                {
+                    isDone.set(true);
+                }
+                else
+                {
+                    for ( Record operation : TxnRecords.getOperations(record) )
+                    {
+                        if ( !isDone.get() && filter.matches(header, operation) )
+                        {
+                            receiver.receiveEntry(header, operation);
+                            isDone.set(matchCount.incrementAndGet() >= maxResults);
+                        }
+                    }
+                }
+            }
+        };
+
+        int     scannedQty = 0;
+        int     skippedQty = 0;
+        for ( int i = 0; !isDone.get() && (i < sources.size()); ++i )
+        {
+            LogSource   source = sources.get(i);
+            long        lastZxid = ((i + 1) < sources.size()) ? (sources.get(i + 1).startZxid - 1) : Long.MAX_VALUE;
+            if ( filter.isPastEnd(source.startZxid, Long.MIN_VALUE) )
+            {
+                break;
+            }
+            if ( filter.canSkip(source.startZxid, lastZxid, source.lastModifiedMs) )
+            {
+                ++skippedQty;
+                continue;
+            }
+
+            ++scannedQty;
+            source.scan(filteringReceiver, isDone);
+        }
+
+        exhibitor.getLog().add(ActivityLog.Type.INFO, String.format("Raw log search: %d matches - scanned %d logs, skipped %d in %d ms", matchCount.get(), scannedQty, skippedQty, System.currentTimeMillis() - startMs));
+        return matchCount.get();
+    }
+
+    private List<LogSource> getSources() throws Exception
+    {
+        List<LogSource>         sources = Lists.newArrayList();
+        Map<String, LogSource>  backups = Maps.newHashMap();
+        if ( includeBackups && exhibitor.getBackupManager().isActive() )
+        {
+            for ( BackupMetaData metaData : exhibitor.getBackupManager().getAvailableBackups() )
+            {
+                LogSource   existing = backups.get(metaData.getName());
+                if ( (existing == null) || (existing.lastModifiedMs < metaData.getModifiedDate()) )
+                {
+                    backups.put(metaData.getName(), new BackupLogSource(metaData));
+                }
+            }
+        }
+
+        for ( File f : new ZooKeeperLogFiles(exhibitor).getPaths() )
+        {
+            backups.remove(f.getName());    // the local copy supersedes any backup
+            sources.add(new FileLogSource(f));
+        }
+        sources.addAll(backups.values());
+
+        Collections.sort
+        (
+            sources,
+            new Comparator<LogSource>()
+            {
+                @Override
+                public int compare(LogSource o1, LogSource o2)
+                {
+                    return (o1.startZxid < o2.startZxid) ? -1 : ((o1.startZxid > o2.startZxid) ? 1 : 0);
+                }
+            }
+        );
+        return sources;
+    }
+
+    private static abstract class LogSource
+    {
+        final long      startZxid;
+        final long      lastModifiedMs;
+
+        LogSource(String name, long lastModifiedMs)
+        {
+            this.startZxid = Util.getZxidFromName(name, "log");
+            this.lastModifiedMs = lastModifiedMs;
+        }
+
+        abstract void scan(LogEntryReceiver receiver, AtomicBoolean isDone) throws Exception;
+    }
+
+    private static class FileLogSource extends LogSource
+    {
+        private final File      file;
+
+        FileLogSource(File file)
+        {
+            super(file.getName(), file.lastModified());
+            this.file = file;
+        }
+
+        @Override
+        void scan(LogEntryReceiver receiver, AtomicBoolean isDone) throws Exception
+        {
+            MappedZooKeeperLogParser    parser = new MappedZooKeeperLogParser(file);
+            if ( parser.isValid() )
+            {
+                while ( !isDone.get() && parser.next(receiver) )
+                {
+                    // keep going
+                }
+            }
+        }
+    }
+
+    private class BackupLogSource extends LogSource
+    {
+        private final BackupMetaData    metaData;
+
+        BackupLogSource(BackupMetaData metaData)
+        {
+            super(metaData.getName(), metaData.getModifiedDate());
+            this.metaData = metaData;
+        }
+
+        @Override
+        void scan(LogEntryReceiver receiver, AtomicBoolean isDone) throws Exception
+        {
+            BackupStream    backupStream = exhibitor.getBackupManager().getBackupStream(metaData);
+            if ( backupStream == null )
+            {
+                return;
+            }
+
+            InputStream     in = null;
+            try
+            {
+                in = IndexProcessor.decompressIfNeeded(backupStream.getStream());
+                ZooKeeperLogParser  parser = new ZooKeeperLogParser(in);
+                if ( parser.isValid() )
+                {
+                    while ( !isDone.get() && parser.next(receiver) )
+                    {
+                        // keep going
+                    }
+                }
+            }
+            finally
+            {
+                CloseableUtils.closeQuietly(in);
+                CloseableUtils.closeQuietly(backupStream);
+            }
+        }
+    }
+}
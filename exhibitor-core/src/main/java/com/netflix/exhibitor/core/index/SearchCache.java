@@ -0,0 +1,228 @@
+/*
+ * Copyright 2012 Netflix, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.netflix.exhibitor.core.index;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.Maps;
+import org.apache.lucene.search.Query;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process wide cache of search handles. The cache is bounded by the total weight (approximate
+ * bytes) of the cached doc ids rather than by entry count so that many small searches are cheap
+ * while a few large ones can't pin unbounded memory.
+ */
+public class SearchCache
+{
+    private final Cache<String, Entry> cache;
+    private final long maxWeight;
+    private final AtomicLong currentWeight = new AtomicLong(0);
+    private final AtomicLong sizeEvictions = new AtomicLong(0);
+    private final AtomicLong expirations = new AtomicLong(0);
+
+    private static final int    DEFAULT_MAX_WEIGHT_KB = Integer.getInteger("LogSearchCacheMaxKb", 16 * 1024);
+    private static final int    ENTRY_OVERHEAD = 128;   // key, query, etc.
+
+    private static final SearchCache    instance = new SearchCache(DEFAULT_MAX_WEIGHT_KB * 1024L, 5, TimeUnit.MINUTES);  // does this need to be configurable?
+
+    static class Entry
+    {
+        final Query         query;
+        final int           maxResults;
+        final CachedSearch  search;
+        final int           generation;
+
+        Entry(Query query, int maxResults, CachedSearch search, int generation)
+        {
+            this.query = query;
+            this.maxResults = maxResults;
+            this.search = search;
+            this.generation = generation;
+        }
+
+        int     getWeight()
+        {
+            return ENTRY_OVERHEAD + search.getWeight();
+        }
+    }
+
+    /**
+     * @return the cache shared by all {@link LogSearch} instances
+     */
+    public static SearchCache  getInstance()
+    {
+        return instance;
+    }
+
+    SearchCache(long maxWeight, long expiration, TimeUnit unit)
+    {
+        this.maxWeight = maxWeight;
+        cache = CacheBuilder.newBuilder()
+            .maximumWeight(maxWeight)
+            .weigher
+            (
+                new Weigher<String, Entry>()
+                {
+                    @Override
+                    public int weigh(String key, Entry entry)
+                    {
+                        return entry.getWeight();
+                    }
+                }
+            )
+            .expireAfterAccess(expiration, unit)
+            .removalListener
+            (
+                new RemovalListener<String, Entry>()
+                {
+                    @Override
+                    public void onRemoval(RemovalNotification<String, Entry> notification)
+                    {
+                        currentWeight.addAndGet(-notification.getValue().getWeight());
+                        switch ( notification.getCause() )
+                        {
+                            case SIZE:
+                            {
+                                sizeEvictions.incrementAndGet();
+                                break;
+                            }
+
+                            case EXPIRED:
+                            {
+                                expirations.incrementAndGet();
+                                break;
+                            }
+
+                            default:
+                            {
+                                // explicit release or replacement
+                                break;
+                            }
+                        }
+                    }
+                }
+            )
+            .recordStats()
+            .build();
+    }
+
+    public long getMaxWeight()
+    {
+        return maxWeight;
+    }
+
+    /**
+     * @return approximate bytes retained by cached searches
+     */
+    public long getCurrentWeight()
+    {
+        return currentWeight.get();
+    }
+
+    public long getSize()
+    {
+        return cache.size();
+    }
+
+    /**
+     * @return number of searches evicted to stay under the weight bound
+     */
+    public long getSizeEvictions()
+    {
+        return sizeEvictions.get();
+    }
+
+    /**
+     * @return number of searches that expired from lack of use
+     */
+    public long getExpirations()
+    {
+        return expirations.get();
+    }
+
+    public CacheStats getStats()
+    {
+        return cache.stats();
+    }
+
+    /**
+     * Process pending evictions/expirations
+     */
+    public void cleanUp()
+    {
+        cache.cleanUp();
+    }
+
+    Entry get(String key)
+    {
+        return cache.getIfPresent(key);
+    }
+
+    void put(String key, Entry entry)
+    {
+        currentWeight.addAndGet(entry.getWeight());
+        cache.put(key, entry);
+    }
+
+    /**
+     * Replace an entry only if it hasn't changed since it was read
+     *
+     * @param key key
+     * @param oldEntry the entry that was read
+     * @param newEntry the replacement
+     * @return true if replaced
+     */
+    boolean replace(String key, Entry oldEntry, Entry newEntry)
+    {
+        currentWeight.addAndGet(newEntry.getWeight());
+        if ( !cache.asMap().replace(key, oldEntry, newEntry) )
+        {
+            currentWeight.addAndGet(-newEntry.getWeight());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param keyPrefix key prefix of an index
+     * @return a snapshot of the index's entries
+     */
+    Map<String, Entry> getEntries(String keyPrefix)
+    {
+        Map<String, Entry>  entries = Maps.newHashMap();
+        for ( Map.Entry<String, Entry> entry : cache.asMap().entrySet() )
+        {
+            if ( entry.getKey().startsWith(keyPrefix) )
+            {
+                entries.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return entries;
+    }
+
+    void invalidate(String key)
+    {
+        cache.invalidate(key);
+    }
+}
@@ -24,13 +24,30 @@ public class SearchItem
     private final String        path;
     private final int           version;
     private final Date          date;
+    private final long          zxid;
+    private final long          sessionId;
 
     public SearchItem(int type, String path, int version, Date date)
+    {
+        this(type, path, version, date, -1, 0);
+    }
+
+    /**
+     * @param type entry type id
+     * @param path ZNode path or null for entries that don't have one (e.g. sessions)
+     * @param version ZNode version or -1
+     * @param date entry date
+     * @param zxid entry zxid or -1 if not known (older indexes)
+     * @param sessionId id of the session that made the change or 0 if not known
+     */
+    public SearchItem(int type, String path, int version, Date date, long zxid, long sessionId)
     {
         this.type = type;
         this.path = path;
         this.version = version;
         this.date = date;
+        this.zxid = zxid;
+        this.sessionId = sessionId;
     }
 
     public int getType()
@@ -53,6 +70,16 @@ public class SearchItem
         return date;
     }
 
+    public long getZxid()
+    {
+        return zxid;
+    }
+
+    public long getSessionId()
+    {
+        return sessionId;
+    }
+
     @Override
     public String toString()
     {
@@ -61,6 +88,8 @@ public class SearchItem
             ", path='" + path + '\'' +
             ", version=" + version +
             ", date=" + date +
+            ", zxid=" + zxid +
+            ", sessionId=" + sessionId +
             '}';
     }
 }
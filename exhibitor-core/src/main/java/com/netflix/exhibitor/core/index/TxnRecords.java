@@ -0,0 +1,222 @@
+/*
+ * Copyright 2012 Netflix, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.netflix.exhibitor.core.index;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.apache.jute.BinaryInputArchive;
+import org.apache.jute.Record;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.txn.CheckVersionTxn;
+import org.apache.zookeeper.txn.CreateSessionTxn;
+import org.apache.zookeeper.txn.CreateTxn;
+import org.apache.zookeeper.txn.DeleteTxn;
+import org.apache.zookeeper.txn.ErrorTxn;
+import org.apache.zookeeper.txn.MultiTxn;
+import org.apache.zookeeper.txn.SetACLTxn;
+import org.apache.zookeeper.txn.SetDataTxn;
+import org.apache.zookeeper.txn.Txn;
+import org.apache.zookeeper.txn.TxnHeader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Utilities for interpreting transaction log records
+ */
+public class TxnRecords
+{
+    private static final Logger         log = LoggerFactory.getLogger(TxnRecords.class);
+    private static final Set<Integer>   loggedUnknownTypes = Sets.newSetFromMap(Maps.<Integer, Boolean>newConcurrentMap());
+
+    /**
+     * Return the operations in an entry. A multi-op entry is expanded to its sub-operations,
+     * each as its own record. Sub-operations of types that aren't known (e.g. from newer ZooKeeper
+     * versions) are skipped. Any other entry is returned as is - note: the record for a
+     * closeSession entry is null.
+     *
+     * @param record the entry's record
+     * @return the operations
+     * @throws IOException if a sub-operation can't be deserialized
+     */
+    public static List<Record> getOperations(Record record) throws IOException
+    {
+        if ( !(record instanceof MultiTxn) )
+        {
+            return Collections.singletonList(record);
+        }
+
+        ImmutableList.Builder<Record>   builder = ImmutableList.builder();
+        for ( Txn txn : ((MultiTxn)record).getTxns() )
+        {
+            Record      subRecord = makeSubRecord(txn.getType());
+            if ( subRecord == null )
+            {
+                if ( loggedUnknownTypes.add(txn.getType()) )
+                {
+                    log.warn("Skipping multi sub-operations of unknown type: " + txn.getType());
+                }
+                continue;
+            }
+            subRecord.deserialize(BinaryInputArchive.getArchive(new ByteArrayInputStream(txn.getData())), "txn");
+            builder.add(subRecord);
+        }
+        return builder.build();
+    }
+
+    /**
+     * @param header entry header
+     * @param record an operation as returned by {@link #getOperations(Record)}
+     * @return the operation's type or null if it's not a type that is indexed
+     */
+    public static EntryTypes getType(TxnHeader header, Record record)
+    {
+        if ( record instanceof CreateTxn )
+        {
+            return ((CreateTxn)record).getEphemeral() ? EntryTypes.CREATE_EPHEMERAL : EntryTypes.CREATE_PERSISTENT;
+        }
+        if ( record instanceof DeleteTxn )
+        {
+            return EntryTypes.DELETE;
+        }
+        if ( record instanceof SetDataTxn )
+        {
+            return EntryTypes.SET_DATA;
+        }
+        if ( record instanceof CreateSessionTxn )
+        {
+            return EntryTypes.CREATE_SESSION;
+        }
+        if ( record instanceof SetACLTxn )
+        {
+            return EntryTypes.SET_ACL;
+        }
+        if ( record instanceof ErrorTxn )
+        {
+            return EntryTypes.ERROR;
+        }
+        if ( record instanceof CheckVersionTxn )
+        {
+            return EntryTypes.CHECK_VERSION;
+        }
+        if ( (record == null) && (header.getType() == ZooDefs.OpCode.closeSession) )
+        {
+            return EntryTypes.CLOSE_SESSION;
+        }
+        return null;
+    }
+
+    /**
+     * @param record an operation as returned by {@link #getOperations(Record)}
+     * @return the ZNode path the operation applies to or null
+     */
+    public static String getPath(Record record)
+    {
+        if ( record instanceof CreateTxn )
+        {
+            return ((CreateTxn)record).getPath();
+        }
+        if ( record instanceof DeleteTxn )
+        {
+            return ((DeleteTxn)record).getPath();
+        }
+        if ( record instanceof SetDataTxn )
+        {
+            return ((SetDataTxn)record).getPath();
+        }
+        if ( record instanceof SetACLTxn )
+        {
+            return ((SetACLTxn)record).getPath();
+        }
+        if ( record instanceof CheckVersionTxn )
+        {
+            return ((CheckVersionTxn)record).getPath();
+        }
+        return null;
+    }
+
+    /**
+     * @param record an operation as returned by {@link #getOperations(Record)}
+     * @return the ZNode version the operation applies to or -1
+     */
+    public static int getVersion(Record record)
+    {
+        if ( record instanceof SetDataTxn )
+        {
+            return ((SetDataTxn)record).getVersion();
+        }
+        if ( record instanceof SetACLTxn )
+        {
+            return ((SetACLTxn)record).getVersion();
+        }
+        if ( record instanceof CheckVersionTxn )
+        {
+            return ((CheckVersionTxn)record).getVersion();
+        }
+        return -1;
+    }
+
+    private static Record makeSubRecord(int type)
+    {
+        switch ( type )
+        {
+            case ZooDefs.OpCode.create:
+            {
+                return new CreateTxn();
+            }
+
+            case ZooDefs.OpCode.delete:
+            {
+                return new DeleteTxn();
+            }
+
+            case ZooDefs.OpCode.setData:
+            {
+                return new SetDataTxn();
+            }
+
+            case ZooDefs.OpCode.error:
+            {
+                return new ErrorTxn();
+            }
+
+            case ZooDefs.OpCode.check:
+            {
+                return new CheckVersionTxn();
+            }
+
+            case ZooDefs.OpCode.setACL:
+            {
+                return new SetACLTxn();
+            }
+
+            default:
+            {
+                return null;
+            }
+        }
+    }
+
+    private TxnRecords()
+    {
+    }
+}
@@ -16,6 +16,7 @@
 
 package com.netflix.exhibitor.core.index;
 
+import com.google.common.base.Throwables;
 import org.apache.jute.BinaryInputArchive;
 import org.apache.jute.InputArchive;
 import org.apache.jute.Record;
@@ -27,6 +28,8 @@ import java.io.ByteArrayInputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
 import java.lang.reflect.Method;
 import java.util.zip.Adler32;
 import java.util.zip.Checksum;
@@ -36,7 +39,7 @@ public class ZooKeeperLogParser
     private final BinaryInputArchive logStream;
     private final boolean            validHeader;
 
-    private static final Method             deserializeTxnMethod;
+    private static final MethodHandle       deserializeTxnMethod;
     private static final boolean            useOldDeserializeMethod;
     static
     {
@@ -61,10 +64,43 @@ public class ZooKeeperLogParser
                 throw new RuntimeException(e);
             }
         }
-        deserializeTxnMethod = localSeserializeTxnMethod;
+        try
+        {
+            deserializeTxnMethod = MethodHandles.publicLookup().unreflect(localSeserializeTxnMethod);
+        }
+        catch ( IllegalAccessException e )
+        {
+            throw new RuntimeException(e);
+        }
         useOldDeserializeMethod = localUseOldDeserializeMethod;
     }
 
+    /**
+     * Deserialize a single transaction entry (without the CRC/EOR framing)
+     *
+     * @param bytes the entry bytes
+     * @param hdr header to fill in
+     * @return the transaction record
+     * @throws Exception errors
+     */
+    static Record deserializeTxn(byte[] bytes, TxnHeader hdr) throws Exception
+    {
+        try
+        {
+            if ( useOldDeserializeMethod )
+            {
+                InputArchive    iab = BinaryInputArchive.getArchive(new ByteArrayInputStream(bytes));
+                return (Record)deserializeTxnMethod.invoke(iab, hdr);
+            }
+            return (Record)deserializeTxnMethod.invoke(bytes, hdr);
+        }
+        catch ( Throwable e )
+        {
+            Throwables.propagateIfPossible(e, Exception.class);
+            throw new Exception(e);
+        }
+    }
+
     public ZooKeeperLogParser(InputStream log)
     {
         logStream = BinaryInputArchive.getArchive(log);
@@ -89,51 +125,62 @@ public class ZooKeeperLogParser
     }
 
     public void parse(LogEntryReceiver receiver) throws Exception
+    {
+        while ( next(receiver) )
+        {
+            // keep going
+        }
+    }
+
+    /**
+     * Read the next entry in the log and pass it to the receiver
+     *
+     * @param receiver the receiver
+     * @return true if an entry was read, false if the end of the log has been reached
+     * @throws Exception errors
+     */
+    public boolean next(LogEntryReceiver receiver) throws Exception
     {
         if ( !validHeader )
         {
             throw new Exception("Invalid magic number for");
         }
 
-        while ( true )
+        long crcValue;
+        byte[] bytes;
+        try
         {
-            long crcValue;
-            byte[] bytes;
-            try
-            {
-                crcValue = logStream.readLong("crcvalue");
+            crcValue = logStream.readLong("crcvalue");
 
-                bytes = logStream.readBuffer("txnEntry");
-            }
-            catch ( EOFException e )
-            {
-                break;
-            }
-            if ( bytes.length == 0 )
-            {
-                // Since we preallocate, we define EOF to be an
-                // empty transaction
-                break;
-            }
-
-            Checksum crc = new Adler32();
-            crc.update(bytes, 0, bytes.length);
-            if ( crcValue != crc.getValue() )
-            {
-                throw new IOException("CRC doesn't match " + crcValue + " vs " + crc.getValue());
-            }
-
-            InputArchive    iab = BinaryInputArchive.getArchive(new ByteArrayInputStream(bytes));
-            TxnHeader       hdr = new TxnHeader();
+            bytes = logStream.readBuffer("txnEntry");
+        }
+        catch ( EOFException e )
+        {
+            return false;
+        }
+        if ( bytes.length == 0 )
+        {
+            // Since we preallocate, we define EOF to be an
+            // empty transaction
+            return false;
+        }
 
-            Record          record = useOldDeserializeMethod ? (Record)deserializeTxnMethod.invoke(null, iab, hdr) : (Record)deserializeTxnMethod.invoke(null, bytes, hdr);
+        Checksum crc = new Adler32();
+        crc.update(bytes, 0, bytes.length);
+        if ( crcValue != crc.getValue() )
+        {
+            throw new IOException("CRC doesn't match " + crcValue + " vs " + crc.getValue());
+        }
 
-            if ( logStream.readByte("EOR") != 'B' )
-            {
-                break;  // partial transaction
-            }
+        TxnHeader       hdr = new TxnHeader();
+        Record          record = deserializeTxn(bytes, hdr);
 
-            receiver.receiveEntry(hdr, record);
+        if ( logStream.readByte("EOR") != 'B' )
+        {
+            return false;  // partial transaction
         }
+
+        receiver.receiveEntry(hdr, record);
+        return true;
     }
 }
@@ -16,9 +16,11 @@
 
 package com.netflix.exhibitor.core.rest;
 
+import com.netflix.exhibitor.core.activity.ActivityMetrics;
 import com.netflix.exhibitor.core.activity.QueueGroups;
 import com.netflix.exhibitor.core.automanage.ClusterStatusTask;
 import com.netflix.exhibitor.core.automanage.RemoteInstanceRequest;
+import com.netflix.exhibitor.core.backup.BackupMetrics;
 import com.netflix.exhibitor.core.config.InstanceConfig;
 import com.netflix.exhibitor.core.config.IntConfigs;
 import com.netflix.exhibitor.core.config.StringConfigs;
@@ -26,9 +28,9 @@ import com.netflix.exhibitor.core.controlpanel.ControlPanelTypes;
 import com.netflix.exhibitor.core.entities.Result;
 import com.netflix.exhibitor.core.entities.ServerStatus;
 import com.netflix.exhibitor.core.state.FourLetterWord;
+import com.netflix.exhibitor.core.state.HealthSnapshot;
 import com.netflix.exhibitor.core.state.InstanceStateTypes;
 import com.netflix.exhibitor.core.state.KillRunningInstance;
-import com.netflix.exhibitor.core.state.MonitorRunningInstance;
 import com.netflix.exhibitor.core.state.ServerList;
 import com.netflix.exhibitor.core.state.ServerSpec;
 import com.netflix.exhibitor.core.state.StartInstance;
@@ -48,6 +50,7 @@ import javax.ws.rs.core.UriInfo;
 import javax.ws.rs.ext.ContextResolver;
 import java.net.URLEncoder;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
 
 @SuppressWarnings("UnusedDeclaration")
@@ -235,6 +238,32 @@ public class ClusterResource
         return JsonUtil.writeValueAsString(log);
     }
 
+    @Path("backup-metrics")
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    public String getBackupMetrics() throws Exception
+    {
+        ObjectNode      node = JsonNodeFactory.instance.objectNode();
+        for ( Map.Entry<String, Number> entry : BackupMetrics.getInstance().getValues().entrySet() )
+        {
+            node.put(entry.getKey(), entry.getValue().longValue());
+        }
+        return node.toString();
+    }
+
+    @Path("activity-metrics")
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    public String getActivityMetrics() throws Exception
+    {
+        ActivityMetrics metrics = context.getExhibitor().getActivityQueue().getMetrics();
+
+        ObjectNode      node = JsonNodeFactory.instance.objectNode();
+        node.put("groups", toNode(metrics.getGroupValues()));
+        node.put("activities", toNode(metrics.getActivityValues()));
+        return node.toString();
+    }
+
     @Path("4ltr/{word}")
     @GET
     @Produces(MediaType.APPLICATION_JSON)
@@ -338,11 +367,17 @@ public class ClusterResource
         }
         mainNode.put("switches", switchesNode);
 
-        MonitorRunningInstance  monitorRunningInstance = context.getExhibitor().getMonitorRunningInstance();
-        InstanceStateTypes      state = monitorRunningInstance.getCurrentInstanceState();
+        HealthSnapshot          snapshot = context.getExhibitor().getMonitorRunningInstance().getHealthSnapshot();
+        InstanceStateTypes      state = snapshot.getState();
         mainNode.put("state", state.getCode());
         mainNode.put("description", state.getDescription());
-        mainNode.put("isLeader", monitorRunningInstance.isCurrentlyLeader());
+        mainNode.put("isLeader", snapshot.isLeader());
+        mainNode.put("mode", snapshot.getMode());
+        mainNode.put("zxid", snapshot.getZxid());
+        mainNode.put("avgLatencyMs", snapshot.getAvgLatencyMs());
+        mainNode.put("maxLatencyMs", snapshot.getMaxLatencyMs());
+        mainNode.put("outstandingRequests", snapshot.getOutstandingRequests());
+        mainNode.put("checkedMs", snapshot.getTimestampMs());
 
         return JsonUtil.writeValueAsString(mainNode);
     }
@@ -391,6 +426,21 @@ public class ClusterResource
         return response.toString();
     }
 
+    private ObjectNode toNode(Map<String, Map<String, Number>> values)
+    {
+        ObjectNode      node = JsonNodeFactory.instance.objectNode();
+        for ( Map.Entry<String, Map<String, Number>> entry : values.entrySet() )
+        {
+            ObjectNode  valuesNode = JsonNodeFactory.instance.objectNode();
+            for ( Map.Entry<String, Number> value : entry.getValue().entrySet() )
+            {
+                valuesNode.put(value.getKey(), value.getValue().longValue());
+            }
+            node.put(entry.getKey(), valuesNode);
+        }
+        return node;
+    }
+
     private String    makeRemoteRequest(String methodName, String hostname, boolean responseIsJson, Callable<String> proc, Object... values) throws Exception
     {
         String      remoteResponse;
@@ -17,8 +17,10 @@
 package com.netflix.exhibitor.core.rest;
 
 import com.google.common.base.Function;
+import com.google.common.cache.CacheStats;
 import com.google.common.collect.Collections2;
 import com.google.common.collect.Lists;
+import com.google.common.primitives.UnsignedLongs;
 import com.netflix.exhibitor.core.activity.ActivityLog;
 import com.netflix.exhibitor.core.activity.QueueGroups;
 import com.netflix.exhibitor.core.backup.BackupMetaData;
@@ -29,33 +31,54 @@ import com.netflix.exhibitor.core.entities.Result;
 import com.netflix.exhibitor.core.entities.SearchId;
 import com.netflix.exhibitor.core.entities.SearchRequest;
 import com.netflix.exhibitor.core.entities.SearchResult;
+import com.netflix.exhibitor.core.index.Aggregation;
+import com.netflix.exhibitor.core.index.AggregationResult;
 import com.netflix.exhibitor.core.index.CachedSearch;
 import com.netflix.exhibitor.core.index.EntryTypes;
 import com.netflix.exhibitor.core.index.IndexCache;
 import com.netflix.exhibitor.core.index.IndexList;
 import com.netflix.exhibitor.core.index.IndexMetaData;
 import com.netflix.exhibitor.core.index.IndexProcessorActivity;
+import com.netflix.exhibitor.core.index.LogEntryFilter;
+import com.netflix.exhibitor.core.index.LogEntryReceiver;
 import com.netflix.exhibitor.core.index.LogSearch;
 import com.netflix.exhibitor.core.index.QueryBuilder;
+import com.netflix.exhibitor.core.index.RawLogSearch;
+import com.netflix.exhibitor.core.index.SearchCache;
 import com.netflix.exhibitor.core.index.SearchItem;
+import com.netflix.exhibitor.core.index.TxnRecords;
+import org.apache.jute.Record;
 import org.apache.lucene.search.Query;
+import org.apache.zookeeper.txn.CreateSessionTxn;
+import org.apache.zookeeper.txn.CreateTxn;
+import org.apache.zookeeper.txn.ErrorTxn;
+import org.apache.zookeeper.txn.SetDataTxn;
+import org.apache.zookeeper.txn.TxnHeader;
 import org.codehaus.jackson.node.ArrayNode;
 import org.codehaus.jackson.node.JsonNodeFactory;
 import org.codehaus.jackson.node.ObjectNode;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.DELETE;
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
+import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.GenericEntity;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 import javax.ws.rs.ext.ContextResolver;
 import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -71,6 +94,8 @@ public class IndexResource
 
     private static final int        MAX_PATH = 50;
     private static final String     DATE_FORMAT_STR = "MM/dd/yyyy-HH:mm:ss";
+    private static final String     NDJSON = "application/x-ndjson";
+    private static final int        MAX_RAW_RESULTS = 5000;
 
     public IndexResource(@Context ContextResolver<UIContext> resolver)
     {
@@ -86,6 +111,86 @@ public class IndexResource
         return Response.ok(new Result("OK", true)).build();
     }
 
+    @Path("update-index")
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response updateIndex() throws Exception
+    {
+        context.getExhibitor().getActivityQueue().add(QueueGroups.IO, new IndexProcessorActivity(context.getExhibitor(), true));
+        return Response.ok(new Result("OK", true)).build();
+    }
+
+    @Path("raw-search")
+    @GET
+    @Produces(NDJSON)
+    public Response rawSearch
+        (
+            @QueryParam("pathPrefix") String pathPrefix,
+            @QueryParam("operationType") @DefaultValue("-1") int operationType,
+            @QueryParam("sessionId") String sessionId,
+            @QueryParam("startDate") @DefaultValue("-1") long startDateMs,
+            @QueryParam("endDate") @DefaultValue("-1") long endDateMs,
+            @QueryParam("maxResults") int maxResults,
+            @QueryParam("includeBackups") boolean includeBackups
+        )
+    {
+        final LogEntryFilter    filter = LogEntryFilter.builder();
+        if ( (pathPrefix != null) && (pathPrefix.length() > 0) )
+        {
+            filter.pathPrefix(pathPrefix);
+        }
+        if ( operationType >= 0 )
+        {
+            filter.operationType(operationType);
+        }
+        if ( (sessionId != null) && (sessionId.length() > 0) )
+        {
+            filter.sessionId(parseSessionId(sessionId));
+        }
+        if ( (startDateMs >= 0) || (endDateMs >= 0) )
+        {
+            filter.dateRange(new Date((startDateMs >= 0) ? startDateMs : 0), new Date((endDateMs >= 0) ? endDateMs : Long.MAX_VALUE));
+        }
+        if ( (maxResults <= 0) || (maxResults > MAX_RAW_RESULTS) )
+        {
+            maxResults = MAX_RAW_RESULTS;
+        }
+
+        final RawLogSearch      search = new RawLogSearch(context.getExhibitor(), filter, maxResults, includeBackups);
+        StreamingOutput         output = new StreamingOutput()
+        {
+            @Override
+            public void write(OutputStream stream) throws IOException
+            {
+                final Writer        writer = new OutputStreamWriter(stream, "UTF-8");
+                final DateFormat    dateFormatter = new SimpleDateFormat(DATE_FORMAT_STR);
+                try
+                {
+                    search.search
+                    (
+                        new LogEntryReceiver()
+                        {
+                            @Override
+                            public void receiveEntry(TxnHeader header, Record record) throws Exception
+                            {
+                                writer.write(toRawSearchNode(header, record, dateFormatter).toString());
+                                writer.write('\n');
+                                writer.flush();
+                            }
+                        }
+                    );
+                }
+                catch ( Exception e )
+                {
+                    context.getExhibitor().getLog().add(ActivityLog.Type.ERROR, "Raw log search", e);
+                    throw new IOException(e);
+                }
+                writer.flush();
+            }
+        };
+        return Response.ok(output).build();
+    }
+
     @Path("{index-name}")
     @DELETE
     @Produces(MediaType.APPLICATION_JSON)
@@ -158,7 +263,7 @@ public class IndexResource
         }
         finally
         {
-            context.getExhibitor().getIndexCache().releaseLogSearch(logSearch.getFile());
+            context.getExhibitor().getIndexCache().releaseLogSearch(logSearch);
         }
 
         return Response.ok(result).build();
@@ -187,21 +292,25 @@ public class IndexResource
             CachedSearch        cachedSearch = logSearch.getCachedSearch(searchHandle);
             DateFormat          dateFormatter = new SimpleDateFormat(DATE_FORMAT_STR);
             ArrayNode           dataTab = JsonNodeFactory.instance.arrayNode();
-            for ( int i = iDisplayStart; i < (iDisplayStart + iDisplayLength); ++i )
+            int                 pageEnd = Math.min(iDisplayStart + iDisplayLength, cachedSearch.getTotalHits());
+            int[]               docIds = new int[Math.max(pageEnd - iDisplayStart, 0)];
+            for ( int i = 0; i < docIds.length; ++i )
             {
-                if ( i < cachedSearch.getTotalHits() )
-                {
-                    ObjectNode      data = JsonNodeFactory.instance.objectNode();
-                    int             docId = cachedSearch.getNthDocId(i);
-                    SearchItem      item = logSearch.toResult(docId);
-                    
-                    data.put("DT_RowId", "index-query-result-" + docId);
-                    data.put("0", getTypeName(EntryTypes.getFromId(item.getType())));
-                    data.put("1", dateFormatter.format(item.getDate()));
-                    data.put("2", trimPath(item.getPath()));
-
-                    dataTab.add(data);
-                }
+                docIds[i] = cachedSearch.getNthDocId(iDisplayStart + i);
+            }
+
+            List<SearchItem>    items = logSearch.toResults(docIds);
+            for ( int i = 0; i < docIds.length; ++i )
+            {
+                ObjectNode      data = JsonNodeFactory.instance.objectNode();
+                SearchItem      item = items.get(i);
+
+                data.put("DT_RowId", "index-query-result-" + docIds[i]);
+                data.put("0", getTypeName(EntryTypes.getFromId(item.getType())));
+                data.put("1", dateFormatter.format(item.getDate()));
+                data.put("2", (item.getPath() != null) ? trimPath(item.getPath()) : ("Session 0x" + Long.toHexString(item.getSessionId())));
+
+                dataTab.add(data);
             }
 
             node = JsonNodeFactory.instance.objectNode();
@@ -212,7 +321,7 @@ public class IndexResource
         }
         finally
         {
-            context.getExhibitor().getIndexCache().releaseLogSearch(logSearch.getFile());
+            context.getExhibitor().getIndexCache().releaseLogSearch(logSearch);
         }
 
         return node.toString();
@@ -260,6 +369,132 @@ public class IndexResource
         return Response.ok(entity).build();
     }
 
+    @Path("aggregate/{index-name}")
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response aggregate
+        (
+            @PathParam("index-name") String indexName,
+            @QueryParam("pathPrefix") String pathPrefix,
+            @QueryParam("operationType") @DefaultValue("-1") int operationType,
+            @QueryParam("sessionId") String sessionId,
+            @QueryParam("startDate") @DefaultValue("-1") long startDateMs,
+            @QueryParam("endDate") @DefaultValue("-1") long endDateMs,
+            @QueryParam("interval") long intervalMs,
+            @QueryParam("topPaths") int topPaths,
+            @QueryParam("topTypes") int topTypes,
+            @QueryParam("topSessions") int topSessions
+        ) throws Exception
+    {
+        boolean         hasTerms = false;
+        QueryBuilder    builder = QueryBuilder.builder();
+        if ( (pathPrefix != null) && (pathPrefix.length() > 0) )
+        {
+            hasTerms = true;
+            builder.pathPrefix(pathPrefix);
+        }
+        if ( operationType >= 0 )
+        {
+            hasTerms = true;
+            builder.operationType(operationType);
+        }
+        if ( (sessionId != null) && (sessionId.length() > 0) )
+        {
+            hasTerms = true;
+            builder.sessionId(parseSessionId(sessionId));
+        }
+        if ( (startDateMs >= 0) || (endDateMs >= 0) )
+        {
+            hasTerms = true;
+            builder.dateRange(new Date((startDateMs >= 0) ? startDateMs : 0), new Date((endDateMs >= 0) ? endDateMs : Long.MAX_VALUE));
+        }
+
+        Aggregation     aggregation = Aggregation.builder();
+        if ( intervalMs > 0 )
+        {
+            aggregation.dateHistogram(intervalMs);
+        }
+        if ( topPaths > 0 )
+        {
+            aggregation.topTerms(Aggregation.TermField.PATH, topPaths);
+        }
+        if ( topTypes > 0 )
+        {
+            aggregation.topTerms(Aggregation.TermField.TYPE, topTypes);
+        }
+        if ( topSessions > 0 )
+        {
+            aggregation.topTerms(Aggregation.TermField.SESSION, topSessions);
+        }
+
+        LogSearch       logSearch = getLogSearch(indexName);
+        if ( logSearch == null )
+        {
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+
+        AggregationResult   result;
+        try
+        {
+            result = logSearch.aggregate(hasTerms ? builder.build(QueryBuilder.Type.AND) : null, aggregation);
+        }
+        finally
+        {
+            context.getExhibitor().getIndexCache().releaseLogSearch(logSearch);
+        }
+
+        DateFormat      dateFormatter = new SimpleDateFormat(DATE_FORMAT_STR);
+        ObjectNode      node = JsonNodeFactory.instance.objectNode();
+        node.put("totalHits", result.getTotalHits());
+        if ( intervalMs > 0 )
+        {
+            ArrayNode   histogram = JsonNodeFactory.instance.arrayNode();
+            for ( AggregationResult.Bucket bucket : result.getHistogram() )
+            {
+                ObjectNode  bucketNode = JsonNodeFactory.instance.objectNode();
+                bucketNode.put("start", bucket.getStartMs());
+                bucketNode.put("date", dateFormatter.format(new Date(bucket.getStartMs())));
+                bucketNode.put("count", bucket.getCount());
+                histogram.add(bucketNode);
+            }
+            node.put("interval", result.getHistogramIntervalMs());
+            node.put("histogram", histogram);
+        }
+        if ( topPaths > 0 )
+        {
+            node.put("topPaths", toTermsNode(result.getTopTerms(Aggregation.TermField.PATH), Aggregation.TermField.PATH));
+        }
+        if ( topTypes > 0 )
+        {
+            node.put("topTypes", toTermsNode(result.getTopTerms(Aggregation.TermField.TYPE), Aggregation.TermField.TYPE));
+        }
+        if ( topSessions > 0 )
+        {
+            node.put("topSessions", toTermsNode(result.getTopTerms(Aggregation.TermField.SESSION), Aggregation.TermField.SESSION));
+        }
+        return Response.ok(node.toString()).build();
+    }
+
+    @Path("search-cache-stats")
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    public String getSearchCacheStats()
+    {
+        SearchCache     searchCache = SearchCache.getInstance();
+        searchCache.cleanUp();
+
+        CacheStats      stats = searchCache.getStats();
+        ObjectNode      node = JsonNodeFactory.instance.objectNode();
+        node.put("size", searchCache.getSize());
+        node.put("weight", searchCache.getCurrentWeight());
+        node.put("maxWeight", searchCache.getMaxWeight());
+        node.put("hits", stats.hitCount());
+        node.put("misses", stats.missCount());
+        node.put("sizeEvictions", searchCache.getSizeEvictions());
+        node.put("expirations", searchCache.getExpirations());
+        return node.toString();
+    }
+
     @Path("release-cache/{index-name}/{search-handle}")
     @GET
     @Produces(MediaType.APPLICATION_JSON)
@@ -276,7 +511,7 @@ public class IndexResource
         }
         finally
         {
-            context.getExhibitor().getIndexCache().releaseLogSearch(logSearch.getFile());
+            context.getExhibitor().getIndexCache().releaseLogSearch(logSearch);
         }
         return Response.ok(new Result("OK", true)).build();
     }
@@ -308,6 +543,11 @@ public class IndexResource
                 hasTerms = true;
                 builder.operationType(request.getOperationType());
             }
+            if ( (request.getSessionId() != null) && (request.getSessionId().length() > 0) )
+            {
+                hasTerms = true;
+                builder.sessionId(parseSessionId(request.getSessionId()));
+            }
             if ( (request.getFirstDate() != null) && (request.getSecondDate() != null) )
             {
                 hasTerms = true;
@@ -337,11 +577,102 @@ public class IndexResource
         }
         finally
         {
-            context.getExhibitor().getIndexCache().releaseLogSearch(logSearch.getFile());
+            context.getExhibitor().getIndexCache().releaseLogSearch(logSearch);
         }
         return Response.ok(searchHandle).build();
     }
 
+    private ObjectNode toRawSearchNode(TxnHeader header, Record record, DateFormat dateFormatter) throws UnsupportedEncodingException
+    {
+        ObjectNode      node = JsonNodeFactory.instance.objectNode();
+        node.put("zxid", header.getZxid());
+        node.put("date", dateFormatter.format(new Date(header.getTime())));
+        node.put("sessionId", Long.toHexString(header.getClientId()));
+        node.put("type", getTypeName(TxnRecords.getType(header, record)));
+
+        String          path = TxnRecords.getPath(record);
+        if ( path != null )
+        {
+            node.put("path", path);
+        }
+        if ( record instanceof CreateTxn )
+        {
+            node.put("data", toDataString(((CreateTxn)record).getData()));
+        }
+        else if ( record instanceof SetDataTxn )
+        {
+            node.put("data", toDataString(((SetDataTxn)record).getData()));
+        }
+        else if ( record instanceof CreateSessionTxn )
+        {
+            node.put("timeout", ((CreateSessionTxn)record).getTimeOut());
+        }
+        else if ( record instanceof ErrorTxn )
+        {
+            node.put("error", ((ErrorTxn)record).getErr());
+        }
+
+        int             version = TxnRecords.getVersion(record);
+        if ( version >= 0 )
+        {
+            node.put("version", version);
+        }
+        return node;
+    }
+
+    private String toDataString(byte[] bytes) throws UnsupportedEncodingException
+    {
+        return (bytes != null) ? new String(bytes, "UTF-8") : "";
+    }
+
+    private ArrayNode toTermsNode(List<AggregationResult.TermCount> terms, Aggregation.TermField field)
+    {
+        ArrayNode       termsNode = JsonNodeFactory.instance.arrayNode();
+        for ( AggregationResult.TermCount term : terms )
+        {
+            ObjectNode  termNode = JsonNodeFactory.instance.objectNode();
+            switch ( field )
+            {
+                case TYPE:
+                {
+                    termNode.put("term", getTypeName(EntryTypes.getFromId(term.getTerm())));
+                    break;
+                }
+
+                case SESSION:
+                {
+                    termNode.put("term", "0x" + term.getTerm());
+                    break;
+                }
+
+                default:
+                {
+                    termNode.put("term", term.getTerm());
+                    break;
+                }
+            }
+            termNode.put("count", term.getCount());
+            termsNode.add(termNode);
+        }
+        return termsNode;
+    }
+
+    private static long parseSessionId(String sessionId)
+    {
+        if ( sessionId.startsWith("0x") || sessionId.startsWith("0X") )
+        {
+            sessionId = sessionId.substring(2);
+        }
+        try
+        {
+            return UnsignedLongs.parseUnsignedLong(sessionId, 16);
+        }
+        catch ( NumberFormatException e )
+        {
+            throw new WebApplicationException(Response.Status.BAD_REQUEST);
+        }
+    }
+
     private String trimPath(String path)
     {
         if ( path.length() > MAX_PATH )
@@ -398,6 +729,31 @@ public class IndexResource
                 {
                     return "SetData";
                 }
+
+                case CREATE_SESSION:
+                {
+                    return "Create-Session";
+                }
+
+                case CLOSE_SESSION:
+                {
+                    return "Close-Session";
+                }
+
+                case SET_ACL:
+                {
+                    return "SetACL";
+                }
+
+                case ERROR:
+                {
+                    return "Error";
+                }
+
+                case CHECK_VERSION:
+                {
+                    return "Check-Version";
+                }
             }
         }
         return "n/a";
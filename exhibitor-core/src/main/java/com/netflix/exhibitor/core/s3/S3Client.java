@@ -29,6 +29,8 @@ public interface S3Client extends Closeable
 
     public S3Object getObject(String bucket, String key) throws Exception;
 
+    public S3Object getObject(GetObjectRequest request) throws Exception;
+
     public ObjectMetadata getObjectMetadata(String bucket, String key) throws Exception;
 
     public ObjectListing listObjects(ListObjectsRequest request) throws Exception;
@@ -18,13 +18,13 @@ package com.netflix.exhibitor.core.servo;
 
 import com.google.common.collect.Maps;
 import com.netflix.exhibitor.core.Exhibitor;
-import com.netflix.exhibitor.core.activity.Activity;
+import com.netflix.exhibitor.core.activity.SchedulableActivityAdapter;
 import com.netflix.exhibitor.core.state.FourLetterWord;
 import com.netflix.servo.monitor.BasicCounter;
 import java.util.List;
 import java.util.Map;
 
-public class GetMonitorData implements Activity
+public class GetMonitorData extends SchedulableActivityAdapter
 {
     private final Exhibitor exhibitor;
     private final ZookeeperMonitoredData monitor;
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2012 Netflix, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.netflix.exhibitor.core.state;
+
+import org.codehaus.jackson.JsonNode;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Maps four letter words to ZooKeeper AdminServer commands and converts the JSON results
+ * back into the text the four letter word would have returned
+ */
+class AdminServerCommands
+{
+    /**
+     * @param word the word
+     * @return the AdminServer command or null if the word has no equivalent that's used here
+     */
+    static String getCommand(FourLetterWord.Word word)
+    {
+        switch ( word )
+        {
+            case RUOK:
+            {
+                return "ruok";
+            }
+
+            case SRVR:
+            {
+                return "server_stats";
+            }
+
+            case MNTR:
+            {
+                return "monitor";
+            }
+
+            default:
+            {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * @param word the word
+     * @param result the AdminServer JSON result
+     * @return the equivalent four letter word response or null if the result can't be converted
+     */
+    static String toFourLetterWordResponse(FourLetterWord.Word word, JsonNode result)
+    {
+        if ( (result == null) || !result.isObject() )
+        {
+            return null;
+        }
+        JsonNode    error = result.path("error");
+        if ( !error.isNull() && !error.isMissingNode() )
+        {
+            return null;
+        }
+
+        switch ( word )
+        {
+            case RUOK:
+            {
+                return "imok";
+            }
+
+            case SRVR:
+            {
+                JsonNode    serverStats = result.path("server_stats");
+                if ( !serverStats.isObject() )
+                {
+                    return null;
+                }
+                StringBuilder   str = new StringBuilder();
+                str.append("Zookeeper version: ").append(result.path("version").asText()).append('\n');
+                if ( serverStats.has("min_latency") && serverStats.has("avg_latency") && serverStats.has("max_latency") )
+                {
+                    str.append("Latency min/avg/max: ").append(serverStats.get("min_latency").asText()).append('/').append(serverStats.get("avg_latency").asText()).append('/').append(serverStats.get("max_latency").asText()).append('\n');
+                }
+                if ( serverStats.has("outstanding_requests") )
+                {
+                    str.append("Outstanding: ").append(serverStats.get("outstanding_requests").asLong()).append('\n');
+                }
+                if ( serverStats.has("last_processed_zxid") )
+                {
+                    str.append("Zxid: 0x").append(Long.toHexString(serverStats.get("last_processed_zxid").asLong())).append('\n');
+                }
+                str.append("Mode: ").append(serverStats.path("server_state").asText()).append('\n');
+                return str.toString();
+            }
+
+            case MNTR:
+            {
+                StringBuilder                           str = new StringBuilder();
+                Iterator<Map.Entry<String, JsonNode>>   fields = result.getFields();
+                while ( fields.hasNext() )
+                {
+                    Map.Entry<String, JsonNode>     entry = fields.next();
+                    if ( entry.getKey().equals("command") || entry.getKey().equals("error") || entry.getValue().isContainerNode() )
+                    {
+                        continue;
+                    }
+                    str.append("zk_").append(entry.getKey()).append('\t').append(entry.getValue().asText()).append('\n');
+                }
+                return str.toString();
+            }
+
+            default:
+            {
+                return null;
+            }
+        }
+    }
+}
@@ -19,7 +19,6 @@ package com.netflix.exhibitor.core.state;
 import com.netflix.exhibitor.core.Exhibitor;
 import com.netflix.exhibitor.core.config.InstanceConfig;
 import com.netflix.exhibitor.core.config.StringConfigs;
-import java.util.List;
 
 public class Checker
 {
@@ -37,50 +36,24 @@ public class Checker
         this.hostname = hostname;
     }
 
-    public StateAndLeader calculateState() throws Exception
+    /**
+     * Probe the instance with a single "srvr" request
+     *
+     * @return the state, leadership and stats of the instance
+     * @throws Exception errors
+     */
+    public HealthSnapshot calculateState() throws Exception
     {
         InstanceConfig          config = exhibitor.getConfigManager().getConfig();
+        long                    nowMs = System.currentTimeMillis();
 
         if ( !isSet(config, StringConfigs.ZOOKEEPER_DATA_DIRECTORY) || !isSet(config, StringConfigs.CONFLUENT_INSTALL_DIRECTORY) )
         {
-            return new StateAndLeader(InstanceStateTypes.LATENT, false);
+            return HealthSnapshot.forState(InstanceStateTypes.LATENT, nowMs);
         }
 
-        InstanceStateTypes      actualState = InstanceStateTypes.DOWN;
-        boolean                 isLeader = false;
-        String                  ruok = new FourLetterWord(FourLetterWord.Word.RUOK, hostname, config, exhibitor.getConnectionTimeOutMs()).getResponse();
-        if ( "imok".equals(ruok) )
-        {
-            // The following code depends on inside knowledge of the "srvr" response. If they change it
-            // this code might break
-
-            List<String> lines = new FourLetterWord(FourLetterWord.Word.SRVR, hostname, config, exhibitor.getConnectionTimeOutMs()).getResponseLines();
-            for ( String line : lines )
-            {
-                if ( line.contains("not currently serving") )
-                {
-                    actualState = InstanceStateTypes.NOT_SERVING;
-                    break;
-                }
-
-                if ( line.toLowerCase().startsWith("mode") )
-                {
-                    actualState = InstanceStateTypes.SERVING;
-                    String[]        parts = line.split(":");
-                    if ( parts.length > 1 )
-                    {
-                        String mode = parts[1].trim();
-                        if ( mode.equalsIgnoreCase("leader") || mode.equalsIgnoreCase("standalone") )
-                        {
-                            isLeader = true;
-                        }
-                    }
-                    break;
-                }
-            }
-        }
-
-        return new StateAndLeader(actualState, isLeader);
+        String                  srvr = new FourLetterWord(FourLetterWord.Word.SRVR, hostname, config, exhibitor.getConnectionTimeOutMs()).getResponse();
+        return HealthSnapshot.parse(srvr, nowMs);
     }
 
     private boolean isSet(InstanceConfig config, StringConfigs type)
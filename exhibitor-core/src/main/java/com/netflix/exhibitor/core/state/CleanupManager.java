@@ -17,12 +17,13 @@
 package com.netflix.exhibitor.core.state;
 
 import com.netflix.exhibitor.core.Exhibitor;
-import com.netflix.exhibitor.core.activity.Activity;
 import com.netflix.exhibitor.core.activity.ActivityLog;
 import com.netflix.exhibitor.core.activity.OnOffRepeatingActivity;
 import com.netflix.exhibitor.core.activity.QueueGroups;
 import com.netflix.exhibitor.core.activity.RepeatingActivity;
 import com.netflix.exhibitor.core.activity.RepeatingActivityImpl;
+import com.netflix.exhibitor.core.activity.SchedulableActivity;
+import com.netflix.exhibitor.core.activity.SchedulableActivityAdapter;
 import com.netflix.exhibitor.core.config.ConfigListener;
 import com.netflix.exhibitor.core.config.IntConfigs;
 import com.netflix.exhibitor.core.controlpanel.ControlPanelTypes;
@@ -34,11 +35,28 @@ public class CleanupManager implements Closeable
     private final RepeatingActivity repeatingActivity;
     private final Exhibitor exhibitor;
 
+    /**
+     * Serializes purging the ZooKeeper logs/snapshots with the activities that read them
+     */
+    public static final String DATA_SERIALIZATION_KEY = "zookeeper-data";
+
     public CleanupManager(final Exhibitor exhibitor)
     {
         this.exhibitor = exhibitor;
-        final Activity activity = new Activity()
+        final SchedulableActivity activity = new SchedulableActivityAdapter()
         {
+            @Override
+            public Priority getPriority()
+            {
+                return Priority.LOW;
+            }
+
+            @Override
+            public String getSerializationKey()
+            {
+                return DATA_SERIALIZATION_KEY;
+            }
+
             @Override
             public void completed(boolean wasSuccessful)
             {
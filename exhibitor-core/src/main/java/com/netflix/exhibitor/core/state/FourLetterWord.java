@@ -19,20 +19,15 @@ package com.netflix.exhibitor.core.state;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
-import com.google.common.io.CharStreams;
 import com.netflix.exhibitor.core.config.InstanceConfig;
 import com.netflix.exhibitor.core.config.IntConfigs;
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.StringReader;
-import java.net.Socket;
 import java.util.List;
 import java.util.Map;
 
 public class FourLetterWord
 {
     private final String response;
+    private volatile List<String> lines = null;
 
     public enum Word
     {
@@ -58,62 +53,42 @@ public class FourLetterWord
     {
         Preconditions.checkNotNull(word);
 
-        String  localResponse = "";
-        Socket  s = null;
-        try
-        {
-            s = new Socket(hostname, config.getInt(IntConfigs.CLIENT_PORT));
-            s.setTcpNoDelay(true);
-            s.setSoTimeout(connectionTimeOutMs);
-
-            s.getOutputStream().write(word.name().toLowerCase().getBytes());
-            s.getOutputStream().flush();
-
-            localResponse = CharStreams.toString(new InputStreamReader(s.getInputStream()));
-        }
-        catch ( Exception e )
-        {
-            // ignore - treat as server not running
-        }
-        finally
-        {
-            try
-            {
-                if ( s != null )
-                {
-                    s.close();
-                }
-            }
-            catch ( IOException e )
-            {
-                // ignore
-            }
-        }
+        response = FourLetterWordClient.getInstance().get(word, hostname, config.getInt(IntConfigs.CLIENT_PORT), connectionTimeOutMs).getResponse();
+    }
 
-        response = localResponse;
+    FourLetterWord(String response)
+    {
+        this.response = response;
     }
 
     public List<String> getResponseLines()
     {
-        ImmutableList.Builder<String> builder = ImmutableList.builder();
-        BufferedReader                in = new BufferedReader(new StringReader(response));
-        for(;;)
+        List<String>    localLines = lines;
+        if ( localLines == null )
         {
-            try
+            // same line breaks as BufferedReader.readLine()
+            ImmutableList.Builder<String>   builder = ImmutableList.builder();
+            int                             length = response.length();
+            int                             start = 0;
+            while ( start < length )
             {
-                String      line = in.readLine();
-                if ( line == null )
+                int     end = start;
+                char    c = 0;
+                while ( (end < length) && ((c = response.charAt(end)) != '\n') && (c != '\r') )
                 {
-                    break;
+                    ++end;
+                }
+                builder.add(response.substring(start, end));
+                start = end + 1;
+                if ( (c == '\r') && (start < length) && (response.charAt(start) == '\n') )
+                {
+                    ++start;
                 }
-                builder.add(line);
-            }
-            catch ( IOException ignore )
-            {
-                break;  // will never happen
             }
+            localLines = builder.build();
+            lines = localLines;
         }
-        return builder.build();
+        return localLines;
     }
 
     public Map<String, String>  getResponseMap()
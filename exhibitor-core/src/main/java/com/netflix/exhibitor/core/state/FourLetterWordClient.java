@@ -0,0 +1,484 @@
+/*
+ * Copyright 2012 Netflix, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.netflix.exhibitor.core.state;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.base.Objects;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.curator.utils.CloseableUtils;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends four letter words to ZooKeeper. Requests on the client port are handled by a single selector
+ * thread with non-blocking sockets (ZooKeeper closes the connection after each word, so these can't be
+ * pooled). If an AdminServer port is set, RUOK, SRVR and MNTR are sent to the AdminServer's HTTP
+ * commands instead - those connections are kept alive between requests - falling back to the client
+ * port if the AdminServer can't be reached.<br><br>
+ *
+ * Concurrent probes of the same word/server share one request so that e.g. the health check, Servo
+ * and the UI don't each open a connection. Successful responses can also be reused for a short time
+ * (system property "FourLetterWordCacheMs"). That is off by default as the health check and
+ * starting/killing the instance need the server's current state.
+ */
+public class FourLetterWordClient implements Closeable
+{
+    private static final Logger log = LoggerFactory.getLogger(FourLetterWordClient.class);
+
+    private static final FourLetterWordClient instance = new FourLetterWordClient
+    (
+        Integer.getInteger("FourLetterWordCacheMs", 0),
+        Integer.getInteger("FourLetterWordAdminServerPort", 0)
+    );
+
+    private final long cacheNs;
+    private final int adminServerPort;
+    private final ConcurrentMap<ProbeKey, Probe> probes = Maps.newConcurrentMap();
+    private final Queue<Request> newRequests = new ConcurrentLinkedQueue<Request>();
+    private final Selector selector;
+    private final Thread selectorThread;
+    private final ExecutorService adminService;
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    private static class ProbeKey
+    {
+        private final FourLetterWord.Word   word;
+        private final String                hostname;
+        private final int                   port;
+
+        private ProbeKey(FourLetterWord.Word word, String hostname, int port)
+        {
+            this.word = word;
+            this.hostname = hostname;
+            this.port = port;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if ( this == o )
+            {
+                return true;
+            }
+            if ( o == null || getClass() != o.getClass() )
+            {
+                return false;
+            }
+
+            ProbeKey rhs = (ProbeKey)o;
+            return (word == rhs.word) && (port == rhs.port) && hostname.equals(rhs.hostname);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hashCode(word, hostname, port);
+        }
+    }
+
+    private static class Probe
+    {
+        private final SettableFuture<FourLetterWord>    future = SettableFuture.create();
+        private volatile long                           completedNs = 0;
+        private volatile boolean                        succeeded = false;
+
+        private boolean isUsable(long nowNs, long cacheNs)
+        {
+            return !future.isDone() || (succeeded && ((nowNs - completedNs) < cacheNs));
+        }
+
+        private void complete(String response)
+        {
+            completedNs = System.nanoTime();
+            succeeded = true;
+            future.set(new FourLetterWord(response));
+        }
+
+        private void fail(Throwable e)
+        {
+            completedNs = System.nanoTime();
+            future.setException(e);
+        }
+    }
+
+    private static class Request
+    {
+        private final Probe                     probe;
+        private final InetSocketAddress         address;
+        private final ByteBuffer                word;
+        private final long                      deadlineNs;
+        private final ByteArrayOutputStream     response = new ByteArrayOutputStream();
+        private SocketChannel                   channel;
+
+        private Request(Probe probe, FourLetterWord.Word word, String hostname, int port, int timeoutMs)
+        {
+            this.probe = probe;
+            this.word = ByteBuffer.wrap(word.name().toLowerCase().getBytes(Charsets.US_ASCII));
+            address = new InetSocketAddress(hostname, port);
+            deadlineNs = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        }
+    }
+
+    /**
+     * @return the process-wide instance
+     */
+    public static FourLetterWordClient getInstance()
+    {
+        return instance;
+    }
+
+    /**
+     * @param cacheMs how long successful responses are reused or 0 to not reuse them
+     * @param adminServerPort AdminServer HTTP port or 0 to only use the client port
+     */
+    @VisibleForTesting
+    FourLetterWordClient(int cacheMs, int adminServerPort)
+    {
+        cacheNs = TimeUnit.MILLISECONDS.toNanos(cacheMs);
+        this.adminServerPort = adminServerPort;
+        try
+        {
+            selector = Selector.open();
+        }
+        catch ( IOException e )
+        {
+            throw Throwables.propagate(e);
+        }
+
+        ThreadFactoryBuilder    threadFactory = new ThreadFactoryBuilder().setDaemon(true);
+        adminService = Executors.newCachedThreadPool(threadFactory.setNameFormat("FourLetterWordClient-admin-%d").build());
+        selectorThread = threadFactory.setNameFormat("FourLetterWordClient-%d").build().newThread
+        (
+            new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    runSelector();
+                }
+            }
+        );
+        selectorThread.start();
+    }
+
+    /**
+     * Send the word unless a matching probe is in flight or was answered recently
+     *
+     * @param word the word
+     * @param hostname ZooKeeper server
+     * @param clientPort ZooKeeper client port
+     * @param timeoutMs max time for the request
+     * @return the response. Fails if the server couldn't be reached in time
+     */
+    public ListenableFuture<FourLetterWord> probe(FourLetterWord.Word word, String hostname, int clientPort, int timeoutMs)
+    {
+        ProbeKey    key = new ProbeKey(word, hostname, clientPort);
+        for(;;)
+        {
+            Probe   probe = probes.get(key);
+            if ( (probe != null) && probe.isUsable(System.nanoTime(), cacheNs) )
+            {
+                return probe.future;
+            }
+
+            Probe   newProbe = new Probe();
+            boolean isNew = (probe == null) ? (probes.putIfAbsent(key, newProbe) == null) : probes.replace(key, probe, newProbe);
+            if ( isNew )
+            {
+                start(newProbe, word, hostname, clientPort, timeoutMs);
+                return newProbe.future;
+            }
+        }
+    }
+
+    /**
+     * Blocking version of {@link #probe(FourLetterWord.Word, String, int, int)}
+     *
+     * @param word the word
+     * @param hostname ZooKeeper server
+     * @param clientPort ZooKeeper client port
+     * @param timeoutMs max time for the request
+     * @return the response or an empty response if the server couldn't be reached
+     */
+    public FourLetterWord get(FourLetterWord.Word word, String hostname, int clientPort, int timeoutMs)
+    {
+        try
+        {
+            return probe(word, hostname, clientPort, timeoutMs).get(timeoutMs + TimeUnit.SECONDS.toMillis(1), TimeUnit.MILLISECONDS);
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+        }
+        catch ( Exception e )
+        {
+            // ignore - treat as server not running
+        }
+        return new FourLetterWord("");
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        selectorThread.interrupt();
+        selector.wakeup();
+        adminService.shutdownNow();
+    }
+
+    private void start(final Probe probe, final FourLetterWord.Word word, final String hostname, final int clientPort, final int timeoutMs)
+    {
+        final String  command = (adminServerPort > 0) ? AdminServerCommands.getCommand(word) : null;
+        if ( command == null )
+        {
+            startClientPortRequest(probe, word, hostname, clientPort, timeoutMs);
+            return;
+        }
+
+        adminService.submit
+        (
+            new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    String  response = null;
+                    try
+                    {
+                        response = AdminServerCommands.toFourLetterWordResponse(word, adminServerRequest(hostname, command, timeoutMs));
+                    }
+                    catch ( Exception e )
+                    {
+                        log.debug(String.format("AdminServer request failed for %s on %s - using the client port", command, hostname), e);
+                    }
+
+                    if ( response != null )
+                    {
+                        probe.complete(response);
+                    }
+                    else
+                    {
+                        startClientPortRequest(probe, word, hostname, clientPort, timeoutMs);
+                    }
+                }
+            }
+        );
+    }
+
+    private void startClientPortRequest(Probe probe, FourLetterWord.Word word, String hostname, int clientPort, int timeoutMs)
+    {
+        try
+        {
+            newRequests.add(new Request(probe, word, hostname, clientPort, timeoutMs));
+            selector.wakeup();
+        }
+        catch ( Exception e )
+        {
+            probe.fail(e);
+        }
+    }
+
+    private JsonNode adminServerRequest(String hostname, String command, int timeoutMs) throws IOException
+    {
+        HttpURLConnection   connection = (HttpURLConnection)new URL("http", hostname, adminServerPort, "/commands/" + command).openConnection();
+        connection.setConnectTimeout(timeoutMs);
+        connection.setReadTimeout(timeoutMs);
+
+        // the body must be read completely and the stream closed for the connection to be kept alive
+        InputStream         in = null;
+        try
+        {
+            if ( connection.getResponseCode() != HttpURLConnection.HTTP_OK )
+            {
+                in = connection.getErrorStream();
+                if ( in != null )
+                {
+                    ByteStreams.toByteArray(in);
+                }
+                return null;
+            }
+            in = connection.getInputStream();
+            return mapper.readTree(ByteStreams.toByteArray(in));
+        }
+        finally
+        {
+            CloseableUtils.closeQuietly(in);
+        }
+    }
+
+    private void runSelector()
+    {
+        try
+        {
+            while ( !Thread.currentThread().isInterrupted() )
+            {
+                selector.select(getSelectTimeoutMs());
+
+                Request     request;
+                while ( (request = newRequests.poll()) != null )
+                {
+                    register(request);
+                }
+
+                Iterator<SelectionKey>  iterator = selector.selectedKeys().iterator();
+                while ( iterator.hasNext() )
+                {
+                    SelectionKey    key = iterator.next();
+                    iterator.remove();
+                    handle(key);
+                }
+
+                expireRequests();
+            }
+        }
+        catch ( Throwable e )
+        {
+            log.error("FourLetterWordClient selector stopped", e);
+        }
+        finally
+        {
+            for ( SelectionKey key : selector.keys() )
+            {
+                close(key, new IOException("Client closed"));
+            }
+            CloseableUtils.closeQuietly(selector);
+        }
+    }
+
+    private long getSelectTimeoutMs()
+    {
+        long    nowNs = System.nanoTime();
+        long    timeoutMs = 0;  // i.e. forever
+        for ( SelectionKey key : selector.keys() )
+        {
+            Request     request = (Request)key.attachment();
+            long        thisTimeoutMs = Math.max(1, TimeUnit.NANOSECONDS.toMillis(request.deadlineNs - nowNs) + 1);
+            timeoutMs = (timeoutMs == 0) ? thisTimeoutMs : Math.min(timeoutMs, thisTimeoutMs);
+        }
+        return timeoutMs;
+    }
+
+    private void register(Request request)
+    {
+        try
+        {
+            request.channel = SocketChannel.open();
+            request.channel.configureBlocking(false);
+            request.channel.socket().setTcpNoDelay(true);
+            boolean     connected = request.channel.connect(request.address);
+            request.channel.register(selector, connected ? SelectionKey.OP_WRITE : SelectionKey.OP_CONNECT, request);
+        }
+        catch ( Exception e )
+        {
+            CloseableUtils.closeQuietly(request.channel);
+            request.probe.fail(e);
+        }
+    }
+
+    private void handle(SelectionKey key)
+    {
+        Request     request = (Request)key.attachment();
+        try
+        {
+            if ( key.isConnectable() )
+            {
+                if ( request.channel.finishConnect() )
+                {
+                    key.interestOps(SelectionKey.OP_WRITE);
+                }
+            }
+            else if ( key.isWritable() )
+            {
+                request.channel.write(request.word);
+                if ( !request.word.hasRemaining() )
+                {
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+            }
+            else if ( key.isReadable() )
+            {
+                ByteBuffer  buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+                int         bytesRead;
+                while ( (bytesRead = request.channel.read(buffer)) > 0 )
+                {
+                    request.response.write(buffer.array(), 0, bytesRead);
+                    buffer.clear();
+                }
+                if ( bytesRead < 0 )
+                {
+                    // the server closes the connection when the response is complete
+                    key.cancel();
+                    CloseableUtils.closeQuietly(request.channel);
+                    request.probe.complete(new String(request.response.toByteArray(), Charsets.UTF_8));
+                }
+            }
+        }
+        catch ( Exception e )
+        {
+            close(key, e);
+        }
+    }
+
+    private void expireRequests()
+    {
+        long    nowNs = System.nanoTime();
+        for ( SelectionKey key : selector.keys() )
+        {
+            Request     request = (Request)key.attachment();
+            if ( key.isValid() && ((nowNs - request.deadlineNs) > 0) )
+            {
+                close(key, new SocketTimeoutException("Timed out waiting for " + request.address));
+            }
+        }
+    }
+
+    private void close(SelectionKey key, Throwable e)
+    {
+        Request     request = (Request)key.attachment();
+        key.cancel();
+        CloseableUtils.closeQuietly(request.channel);
+        request.probe.fail(e);
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright 2012 Netflix, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.netflix.exhibitor.core.state;
+
+/**
+ * The result of one health probe of the ZooKeeper instance. Everything is derived from a single
+ * "srvr" response: whether the instance is serving, its mode, last zxid, latency and outstanding
+ * requests. Snapshots are immutable so readers always see values from the same probe.
+ */
+public class HealthSnapshot extends StateAndLeader
+{
+    private final String mode;
+    private final long zxid;
+    private final long minLatencyMs;
+    private final long avgLatencyMs;
+    private final long maxLatencyMs;
+    private final long outstandingRequests;
+    private final long timestampMs;
+
+    /**
+     * Value for numbers that weren't in the response
+     */
+    public static final long UNKNOWN = -1;
+
+    /**
+     * @param state the state
+     * @param timestampMs when the probe was made
+     * @return a snapshot that has nothing but the state
+     */
+    public static HealthSnapshot forState(InstanceStateTypes state, long timestampMs)
+    {
+        return new HealthSnapshot(state, false, null, UNKNOWN, UNKNOWN, UNKNOWN, UNKNOWN, UNKNOWN, timestampMs);
+    }
+
+    /**
+     * @param stateAndLeader state and leadership from a check that doesn't produce snapshots
+     * @param timestampMs when the check was made
+     * @return the argument if it is a snapshot, otherwise a snapshot that has nothing but the state and leadership
+     */
+    public static HealthSnapshot of(StateAndLeader stateAndLeader, long timestampMs)
+    {
+        if ( stateAndLeader instanceof HealthSnapshot )
+        {
+            return (HealthSnapshot)stateAndLeader;
+        }
+        return new HealthSnapshot(stateAndLeader.getState(), stateAndLeader.isLeader(), null, UNKNOWN, UNKNOWN, UNKNOWN, UNKNOWN, UNKNOWN, timestampMs);
+    }
+
+    /**
+     * Parse a "srvr" response. The lines are scanned in place - only the mode is copied out of the response.
+     *
+     * @param srvr the response or an empty string if the instance couldn't be reached
+     * @param timestampMs when the probe was made
+     * @return snapshot
+     */
+    public static HealthSnapshot parse(String srvr, long timestampMs)
+    {
+        // The following code depends on inside knowledge of the "srvr" response. If they change it
+        // this code might break
+
+        InstanceStateTypes  state = InstanceStateTypes.DOWN;
+        String              mode = null;
+        long                zxid = UNKNOWN;
+        long                minLatencyMs = UNKNOWN;
+        long                avgLatencyMs = UNKNOWN;
+        long                maxLatencyMs = UNKNOWN;
+        long                outstandingRequests = UNKNOWN;
+
+        int                 length = srvr.length();
+        int                 start = 0;
+        while ( start < length )
+        {
+            int     end = srvr.indexOf('\n', start);
+            if ( end < 0 )
+            {
+                end = length;
+            }
+            int     lineEnd = ((end > start) && (srvr.charAt(end - 1) == '\r')) ? (end - 1) : end;
+
+            if ( indexOf(srvr, "not currently serving", start, lineEnd) >= 0 )
+            {
+                state = InstanceStateTypes.NOT_SERVING;
+                break;
+            }
+            else if ( startsWith(srvr, "Mode:", start, lineEnd) )
+            {
+                state = InstanceStateTypes.SERVING;
+                mode = srvr.substring(start + "Mode:".length(), lineEnd).trim();
+            }
+            else if ( startsWith(srvr, "Zxid:", start, lineEnd) )
+            {
+                int     valueStart = skipSpaces(srvr, start + "Zxid:".length(), lineEnd);
+                if ( startsWith(srvr, "0x", valueStart, lineEnd) )
+                {
+                    zxid = parseLong(srvr, valueStart + 2, lineEnd, 16);
+                }
+            }
+            else if ( startsWith(srvr, "Latency min/avg/max:", start, lineEnd) )
+            {
+                int     minStart = skipSpaces(srvr, start + "Latency min/avg/max:".length(), lineEnd);
+                int     avgStart = srvr.indexOf('/', minStart) + 1;
+                int     maxStart = (avgStart > 0) ? (srvr.indexOf('/', avgStart) + 1) : 0;
+                if ( (avgStart > 0) && (maxStart > 0) && (maxStart < lineEnd) )
+                {
+                    minLatencyMs = parseLong(srvr, minStart, avgStart - 1, 10);
+                    avgLatencyMs = parseLong(srvr, avgStart, maxStart - 1, 10);
+                    maxLatencyMs = parseLong(srvr, maxStart, lineEnd, 10);
+                }
+            }
+            else if ( startsWith(srvr, "Outstanding:", start, lineEnd) )
+            {
+                outstandingRequests = parseLong(srvr, skipSpaces(srvr, start + "Outstanding:".length(), lineEnd), lineEnd, 10);
+            }
+
+            start = end + 1;
+        }
+
+        if ( (state == InstanceStateTypes.SERVING) || (state == InstanceStateTypes.NOT_SERVING) )
+        {
+            boolean     isLeader = "leader".equalsIgnoreCase(mode) || "standalone".equalsIgnoreCase(mode);
+            return new HealthSnapshot(state, isLeader, mode, zxid, minLatencyMs, avgLatencyMs, maxLatencyMs, outstandingRequests, timestampMs);
+        }
+        return forState(InstanceStateTypes.DOWN, timestampMs);
+    }
+
+    private HealthSnapshot(InstanceStateTypes state, boolean isLeader, String mode, long zxid, long minLatencyMs, long avgLatencyMs, long maxLatencyMs, long outstandingRequests, long timestampMs)
+    {
+        super(state, isLeader);
+        this.mode = mode;
+        this.zxid = zxid;
+        this.minLatencyMs = minLatencyMs;
+        this.avgLatencyMs = avgLatencyMs;
+        this.maxLatencyMs = maxLatencyMs;
+        this.outstandingRequests = outstandingRequests;
+        this.timestampMs = timestampMs;
+    }
+
+    /**
+     * @return the mode (leader, follower, standalone, observer) or null if the instance isn't serving
+     */
+    public String getMode()
+    {
+        return mode;
+    }
+
+    /**
+     * @return last processed zxid or {@link #UNKNOWN}
+     */
+    public long getZxid()
+    {
+        return zxid;
+    }
+
+    public long getMinLatencyMs()
+    {
+        return minLatencyMs;
+    }
+
+    /**
+     * @return average latency (truncated to whole ms) or {@link #UNKNOWN}
+     */
+    public long getAvgLatencyMs()
+    {
+        return avgLatencyMs;
+    }
+
+    public long getMaxLatencyMs()
+    {
+        return maxLatencyMs;
+    }
+
+    /**
+     * @return number of queued requests or {@link #UNKNOWN}
+     */
+    public long getOutstandingRequests()
+    {
+        return outstandingRequests;
+    }
+
+    /**
+     * @return when the probe was made
+     */
+    public long getTimestampMs()
+    {
+        return timestampMs;
+    }
+
+    private static boolean startsWith(String str, String prefix, int start, int end)
+    {
+        return ((end - start) >= prefix.length()) && str.regionMatches(true, start, prefix, 0, prefix.length());
+    }
+
+    private static int indexOf(String str, String value, int start, int end)
+    {
+        int     index = str.indexOf(value, start);
+        return ((index >= 0) && ((index + value.length()) <= end)) ? index : -1;
+    }
+
+    private static int skipSpaces(String str, int start, int end)
+    {
+        while ( (start < end) && Character.isWhitespace(str.charAt(start)) )
+        {
+            ++start;
+        }
+        return start;
+    }
+
+    /**
+     * Parse the digits at the start of the range, ignoring anything after them (e.g. the fraction in "0.5")
+     */
+    private static long parseLong(String str, int start, int end, int radix)
+    {
+        long    value = 0;
+        int     digits = 0;
+        for ( int i = start; i < end; ++i )
+        {
+            int     digit = Character.digit(str.charAt(i), radix);
+            if ( digit < 0 )
+            {
+                break;
+            }
+            value = (value * radix) + digit;
+            ++digits;
+        }
+        return (digits > 0) ? value : UNKNOWN;
+    }
+}
@@ -17,10 +17,10 @@
 package com.netflix.exhibitor.core.state;
 
 import com.netflix.exhibitor.core.Exhibitor;
-import com.netflix.exhibitor.core.activity.Activity;
 import com.netflix.exhibitor.core.activity.ActivityLog;
+import com.netflix.exhibitor.core.activity.SchedulableActivityAdapter;
 
-public class KillRunningInstance implements Activity
+public class KillRunningInstance extends SchedulableActivityAdapter
 {
     private final Exhibitor exhibitor;
     private final boolean restart;
@@ -31,6 +31,18 @@ public class KillRunningInstance implements Activity
         this.restart = restart;
     }
 
+    @Override
+    public Priority getPriority()
+    {
+        return Priority.HIGH;
+    }
+
+    @Override
+    public String getSerializationKey()
+    {
+        return MonitorRunningInstance.INSTANCE_SERIALIZATION_KEY;
+    }
+
     @Override
     public void completed(boolean wasSuccessful)
     {
@@ -17,21 +17,28 @@
 package com.netflix.exhibitor.core.state;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
 import com.netflix.exhibitor.core.Exhibitor;
-import com.netflix.exhibitor.core.activity.Activity;
 import com.netflix.exhibitor.core.activity.ActivityLog;
 import com.netflix.exhibitor.core.activity.QueueGroups;
 import com.netflix.exhibitor.core.activity.RepeatingActivity;
 import com.netflix.exhibitor.core.activity.RepeatingActivityImpl;
+import com.netflix.exhibitor.core.activity.SchedulableActivity;
+import com.netflix.exhibitor.core.activity.SchedulableActivityAdapter;
 import com.netflix.exhibitor.core.config.ConfigListener;
 import com.netflix.exhibitor.core.config.EncodedConfigParser;
 import com.netflix.exhibitor.core.config.InstanceConfig;
 import com.netflix.exhibitor.core.config.IntConfigs;
 import com.netflix.exhibitor.core.config.StringConfigs;
 import com.netflix.exhibitor.core.controlpanel.ControlPanelTypes;
+import com.netflix.servo.monitor.BasicCompositeMonitor;
+import com.netflix.servo.monitor.BasicGauge;
+import com.netflix.servo.monitor.CompositeMonitor;
+import com.netflix.servo.monitor.Monitor;
+import com.netflix.servo.monitor.MonitorConfig;
 import java.io.Closeable;
 import java.io.IOException;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.Callable;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
@@ -39,17 +46,59 @@ public class MonitorRunningInstance implements Closeable
 {
     private final Exhibitor                         exhibitor;
     private final AtomicReference<InstanceState>    currentInstanceState = new AtomicReference<InstanceState>();
-    private final AtomicBoolean                     currentIsLeader = new AtomicBoolean(false);
+    private final AtomicReference<HealthSnapshot>   healthSnapshot = new AtomicReference<HealthSnapshot>(HealthSnapshot.forState(InstanceStateTypes.LATENT, 0));
+    private final AtomicReference<ParsedConfig>     parsedConfig = new AtomicReference<ParsedConfig>();
+    private final CompositeMonitor<?>               monitor;
     private final RepeatingActivity                 repeatingActivity;
     private final AtomicInteger                     restartCount = new AtomicInteger(1);
 
     private static final int    DOWN_RECHECK_FACTOR = 10;
 
+    /**
+     * The parts of the config the health check needs. Only re-parsed when the config changes.
+     */
+    private static class ParsedConfig
+    {
+        private final InstanceConfig            config;
+        private final ServerList                serverList;
+        private final RestartSignificantConfig  restartSignificantConfig;
+
+        private ParsedConfig(InstanceConfig config)
+        {
+            this.config = config;
+            serverList = new ServerList(config.getString(StringConfigs.SERVERS_SPEC));
+            restartSignificantConfig = new RestartSignificantConfig(config);
+        }
+    }
+
+    /**
+     * Serializes the health check with killing/starting the instance
+     */
+    static final String         INSTANCE_SERIALIZATION_KEY = "instance";
+
     public MonitorRunningInstance(Exhibitor exhibitor)
     {
         this.exhibitor = exhibitor;
-        Activity activity = new Activity()
+        SchedulableActivity activity = new SchedulableActivityAdapter()
         {
+            @Override
+            public Priority getPriority()
+            {
+                return Priority.HIGH;
+            }
+
+            @Override
+            public String getSerializationKey()
+            {
+                return INSTANCE_SERIALIZATION_KEY;
+            }
+
+            @Override
+            public long getDeadlineMs()
+            {
+                return exhibitor.getConfigManager().getConfig().getInt(IntConfigs.CHECK_MS);
+            }
+
             @Override
             public void completed(boolean wasSuccessful)
             {
@@ -65,6 +114,20 @@ public class MonitorRunningInstance implements Closeable
         };
 
         repeatingActivity = new RepeatingActivityImpl(exhibitor.getLog(), exhibitor.getActivityQueue(), QueueGroups.MAIN, activity, exhibitor.getConfigManager().getConfig().getInt(IntConfigs.CHECK_MS));
+
+        monitor = new BasicCompositeMonitor
+        (
+            MonitorConfig.builder("exhibitor_health").build(),
+            ImmutableList.<Monitor<?>>of
+            (
+                newGauge("health_state", SnapshotValue.STATE),
+                newGauge("health_is_leader", SnapshotValue.IS_LEADER),
+                newGauge("health_zxid", SnapshotValue.ZXID),
+                newGauge("health_avg_latency", SnapshotValue.AVG_LATENCY),
+                newGauge("health_max_latency", SnapshotValue.MAX_LATENCY),
+                newGauge("health_outstanding_requests", SnapshotValue.OUTSTANDING_REQUESTS)
+            )
+        );
     }
 
     public void start()
@@ -91,13 +154,29 @@ public class MonitorRunningInstance implements Closeable
 
     public InstanceStateTypes   getCurrentInstanceState()
     {
-        InstanceState   state = currentInstanceState.get();
-        return (state != null) ? state.getState() : InstanceStateTypes.LATENT;
+        return healthSnapshot.get().getState();
     }
 
     public boolean              isCurrentlyLeader()
     {
-        return currentIsLeader.get();
+        return healthSnapshot.get().isLeader();
+    }
+
+    /**
+     * @return the result of the most recent health check. Read this once rather than calling
+     * {@link #getCurrentInstanceState()} and {@link #isCurrentlyLeader()} separately so that the values are consistent.
+     */
+    public HealthSnapshot       getHealthSnapshot()
+    {
+        return healthSnapshot.get();
+    }
+
+    /**
+     * @return Servo gauges for the most recent health check
+     */
+    public CompositeMonitor<?>  getMonitor()
+    {
+        return monitor;
     }
 
     public int getRestartCount()
@@ -109,10 +188,17 @@ public class MonitorRunningInstance implements Closeable
     void doWork() throws Exception
     {
         InstanceConfig  config = exhibitor.getConfigManager().getConfig();
-        StateAndLeader  stateAndLeader = getStateAndLeader();
-        InstanceState   instanceState = new InstanceState(new ServerList(config.getString(StringConfigs.SERVERS_SPEC)), stateAndLeader.getState(), new RestartSignificantConfig(config));
+        ParsedConfig    localParsedConfig = parsedConfig.get();
+        if ( (localParsedConfig == null) || (localParsedConfig.config != config) )
+        {
+            localParsedConfig = new ParsedConfig(config);
+            parsedConfig.set(localParsedConfig);
+        }
+
+        HealthSnapshot  snapshot = HealthSnapshot.of(getStateAndLeader(), System.currentTimeMillis());
+        InstanceState   instanceState = new InstanceState(localParsedConfig.serverList, snapshot.getState(), localParsedConfig.restartSignificantConfig);
 
-        currentIsLeader.set(stateAndLeader.isLeader());
+        healthSnapshot.set(snapshot);
 
         exhibitor.getConfigManager().checkRollingConfig(instanceState);
 
@@ -258,6 +344,65 @@ public class MonitorRunningInstance implements Closeable
         return (config.getInt(IntConfigs.CHECK_MS) * DOWN_RECHECK_FACTOR);
     }
 
+    private enum SnapshotValue
+    {
+        STATE,
+        IS_LEADER,
+        ZXID,
+        AVG_LATENCY,
+        MAX_LATENCY,
+        OUTSTANDING_REQUESTS
+    }
+
+    private Monitor<?> newGauge(String name, final SnapshotValue value)
+    {
+        return new BasicGauge<Long>
+        (
+            MonitorConfig.builder(name).build(),
+            new Callable<Long>()
+            {
+                @Override
+                public Long call() throws Exception
+                {
+                    HealthSnapshot  snapshot = healthSnapshot.get();
+                    switch ( value )
+                    {
+                        case STATE:
+                        {
+                            return (long)snapshot.getState().getCode();
+                        }
+
+                        case IS_LEADER:
+                        {
+                            return snapshot.isLeader() ? 1L : 0L;
+                        }
+
+                        case ZXID:
+                        {
+                            return snapshot.getZxid();
+                        }
+
+                        case AVG_LATENCY:
+                        {
+                            return snapshot.getAvgLatencyMs();
+                        }
+
+                        case MAX_LATENCY:
+                        {
+                            return snapshot.getMaxLatencyMs();
+                        }
+
+                        case OUTSTANDING_REQUESTS:
+                        {
+                            return snapshot.getOutstandingRequests();
+                        }
+                    }
+                    return HealthSnapshot.UNKNOWN;
+                }
+            }
+        );
+    }
+
     private int parseInt(String str)
     {
         try
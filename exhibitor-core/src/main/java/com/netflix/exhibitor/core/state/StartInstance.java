@@ -17,10 +17,10 @@
 package com.netflix.exhibitor.core.state;
 
 import com.netflix.exhibitor.core.Exhibitor;
-import com.netflix.exhibitor.core.activity.Activity;
 import com.netflix.exhibitor.core.activity.ActivityLog;
+import com.netflix.exhibitor.core.activity.SchedulableActivityAdapter;
 
-public class StartInstance implements Activity
+public class StartInstance extends SchedulableActivityAdapter
 {
     private final Exhibitor exhibitor;
 
@@ -29,6 +29,18 @@ public class StartInstance implements Activity
         this.exhibitor = exhibitor;
     }
 
+    @Override
+    public Priority getPriority()
+    {
+        return Priority.HIGH;
+    }
+
+    @Override
+    public String getSerializationKey()
+    {
+        return MonitorRunningInstance.INSTANCE_SERIALIZATION_KEY;
+    }
+
     @Override
     public void completed(boolean wasSuccessful)
     {
@@ -2,7 +2,12 @@ var ACTION_NAMES = [
     "Create-Persistent",
     "Create-Ephemeral",
     "Delete",
-    "Set Data"
+    "Set Data",
+    "Create-Session",
+    "Close-Session",
+    "Set ACL",
+    "Error",
+    "Check-Version"
 ];
 
 function startIndex()
@@ -321,6 +326,7 @@ function buildSearchRequestFromFilter(indexName, indexHandle)
     searchRequest.reuseHandle = indexHandle;
         searchRequest.pathPrefix = $('#index-query-path').val().trim();
     searchRequest.operationType = ($('#index-query-type').val() === "") ? null : $('#index-query-type').val();
+    searchRequest.sessionId = $('#index-query-session').val().trim();
     searchRequest.maxResults = $('#index-query-max').val();
     searchRequest.firstDate = $('#index-query-from').datepicker("getDate");
     searchRequest.secondDate = $('#index-query-to').datepicker("getDate");
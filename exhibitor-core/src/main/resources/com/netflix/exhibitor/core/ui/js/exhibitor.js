@@ -251,6 +251,7 @@ function buildNewConfig()
     newConfig.zookeeperLogDirectory = $('#config-zookeeper-log-dir').val();
     newConfig.confluentStartupLevel = $('#config-confluent-startup-level').val();
     newConfig.logIndexDirectory = $('#config-log-index-dir').val();
+    newConfig.logIndexPeriodMs = $('#config-log-index-ms').val();
     newConfig.autoManageInstancesSettlingPeriodMs = $('#config-automatic-management-period-ms').val();
     newConfig.autoManageInstancesFixedEnsembleSize = $('#config-fixed-ensemble-size').val();
     newConfig.autoManageInstancesApplyAllAtOnce = $('#config-apply-all-at-once').val();
@@ -366,6 +367,7 @@ function ableConfig(enable)
     $('#config-observer-threshold').prop('disabled', !enable);
     $('#config-apply-all-at-once').prop('disabled', !enable);
     $('#config-log-index-dir').prop('disabled', !enable);
+    $('#config-log-index-ms').prop('disabled', !enable);
     $('#config-servers-spec').prop('disabled', !enable);
     $('#config-java-env').prop('disabled', !enable);
     $('#config-java-log4j').prop('disabled', !enable);
@@ -411,6 +413,7 @@ function updateConfig()
     $('#config-observer-threshold').val(systemConfig.observerThreshold);
     $('#config-apply-all-at-once').val(systemConfig.autoManageInstancesApplyAllAtOnce);
     $('#config-log-index-dir').val(systemConfig.logIndexDirectory);
+    $('#config-log-index-ms').val(systemConfig.logIndexPeriodMs);
     $('#config-servers-spec').val(systemConfig.serversSpec);
     $('#config-java-env').val(systemConfig.javaEnvironment);
     $('#config-java-log4j').val(systemConfig.log4jProperties);
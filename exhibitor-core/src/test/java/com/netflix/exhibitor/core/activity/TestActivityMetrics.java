@@ -0,0 +1,184 @@
+/*
+ * Copyright 2012 Netflix, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.netflix.exhibitor.core.activity;
+
+import com.google.common.collect.ImmutableMap;
+import com.netflix.exhibitor.core.ExhibitorArguments;
+import org.apache.curator.utils.CloseableUtils;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class TestActivityMetrics
+{
+    @Test
+    public void testCounts() throws Exception
+    {
+        ActivityQueue   queue = new ActivityQueue();
+        queue.start();
+        try
+        {
+            CountDownLatch  latch = new CountDownLatch(3);
+            queue.add(QueueGroups.MAIN, new ResultActivity(true, latch));
+            queue.add(QueueGroups.MAIN, new ResultActivity(true, latch));
+            queue.add(QueueGroups.MAIN, new ResultActivity(false, latch));
+            Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+            Thread.sleep(100);  // completion is recorded after completed() is called
+
+            Map<String, Number>     values = queue.getMetrics().getActivityValues().get("MAIN.ResultActivity");
+            Assert.assertNotNull(values);
+            Assert.assertEquals(values.get("successes").longValue(), 2);
+            Assert.assertEquals(values.get("failures").longValue(), 1);
+            Assert.assertEquals(values.get("runCount").longValue(), 3);
+            long                    histogramCount = 0;
+            for ( Map.Entry<String, Number> entry : values.entrySet() )
+            {
+                if ( entry.getKey().startsWith("runUpTo") || entry.getKey().startsWith("runOver") )
+                {
+                    histogramCount += entry.getValue().longValue();
+                }
+            }
+            Assert.assertEquals(histogramCount, 3);
+            Assert.assertEquals(values.get("slow").longValue(), 0);
+
+            Map<String, Number>     groupValues = queue.getMetrics().getGroupValues().get("MAIN");
+            Assert.assertEquals(groupValues.get("queued").intValue(), 0);
+            Assert.assertEquals(groupValues.get("ready").intValue(), 0);
+            Assert.assertEquals(groupValues.get("running").intValue(), 0);
+        }
+        finally
+        {
+            CloseableUtils.closeQuietly(queue);
+        }
+    }
+
+    @Test
+    public void testQueueDepth() throws Exception
+    {
+        ActivityQueue   queue = new ActivityQueue();
+        ActivityHandle  handle = queue.add(QueueGroups.IO, new ResultActivity(true, new CountDownLatch(1)), 1, TimeUnit.HOURS);
+        queue.add(QueueGroups.IO, new ResultActivity(true, new CountDownLatch(1)));
+
+        Map<String, Number>     groupValues = queue.getMetrics().getGroupValues().get("IO");
+        Assert.assertEquals(groupValues.get("queued").intValue(), 2);
+        Assert.assertEquals(groupValues.get("ready").intValue(), 1);
+
+        handle.cancel();
+        groupValues = queue.getMetrics().getGroupValues().get("IO");
+        Assert.assertEquals(groupValues.get("queued").intValue(), 1);
+        Assert.assertEquals(groupValues.get("ready").intValue(), 1);
+    }
+
+    @Test
+    public void testSlowActivity() throws Exception
+    {
+        ActivityLog     log = Mockito.spy(new ActivityLog(100));
+        ActivityQueue   queue = new ActivityQueue(ImmutableMap.<QueueGroups, Integer>of(), log, ImmutableMap.of(QueueGroups.MAIN, 100));
+        queue.start();
+        try
+        {
+            final CountDownLatch    latch = new CountDownLatch(1);
+            queue.add
+            (
+                QueueGroups.MAIN,
+                new Activity()
+                {
+                    @Override
+                    public void completed(boolean wasSuccessful)
+                    {
+                    }
+
+                    @Override
+                    public Boolean call() throws Exception
+                    {
+                        Thread.sleep(500);
+                        latch.countDown();
+                        return true;
+                    }
+                }
+            );
+            Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+            Thread.sleep(100);
+
+            Mockito.verify(log).add(Mockito.eq(ActivityLog.Type.INFO), Mockito.contains("TestActivityMetrics"));
+            Assert.assertEquals(queue.getMetrics().getActivityValues().get("MAIN.TestActivityMetrics").get("slow").longValue(), 1);
+            Assert.assertTrue(log.toDisplayList(" ", ExhibitorArguments.LogDirection.NATURAL).size() > 0);
+        }
+        finally
+        {
+            CloseableUtils.closeQuietly(queue);
+        }
+    }
+
+    @Test
+    public void testNames()
+    {
+        Activity    activity = new ResultActivity(true, null);
+        Assert.assertEquals(ActivityMetrics.getName(activity), "ResultActivity");
+
+        Activity    anonymous = new Activity()
+        {
+            @Override
+            public void completed(boolean wasSuccessful)
+            {
+            }
+
+            @Override
+            public Boolean call() throws Exception
+            {
+                return true;
+            }
+        };
+        Assert.assertEquals(ActivityMetrics.getName(anonymous), "TestActivityMetrics");
+
+        ActivityQueue           queue = Mockito.mock(ActivityQueue.class);
+        RepeatingActivityImpl   repeating = new RepeatingActivityImpl(null, queue, QueueGroups.MAIN, activity, 1000);
+        repeating.start();
+
+        ArgumentCaptor<Activity>    captor = ArgumentCaptor.forClass(Activity.class);
+        Mockito.verify(queue).add(Mockito.eq(QueueGroups.MAIN), captor.capture(), Mockito.eq(1000L), Mockito.eq(TimeUnit.MILLISECONDS));
+        Assert.assertEquals(ActivityMetrics.getName(captor.getValue()), "ResultActivity");
+    }
+
+    private static class ResultActivity implements Activity
+    {
+        private final boolean           result;
+        private final CountDownLatch    latch;
+
+        private ResultActivity(boolean result, CountDownLatch latch)
+        {
+            this.result = result;
+            this.latch = latch;
+        }
+
+        @Override
+        public void completed(boolean wasSuccessful)
+        {
+        }
+
+        @Override
+        public Boolean call() throws Exception
+        {
+            latch.countDown();
+            return result;
+        }
+    }
+}
@@ -16,10 +16,12 @@
 
 package com.netflix.exhibitor.core.activity;
 
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 import org.apache.curator.utils.CloseableUtils;
 import org.testng.Assert;
 import org.testng.annotations.Test;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
@@ -294,4 +296,268 @@ public class TestActivityQueue
             CloseableUtils.closeQuietly(queue);
         }
     }
+
+    @Test
+    public void testHighPriorityNotBlocked() throws Exception
+    {
+        ActivityQueue queue = new ActivityQueue(ImmutableMap.of(QueueGroups.MAIN, 1));
+        queue.start();
+        final CountDownLatch    blockLatch = new CountDownLatch(1);
+        try
+        {
+            queue.add(QueueGroups.MAIN, new TestSchedulableActivity(SchedulableActivity.Priority.LOW, null, blockLatch, null));
+            queue.add(QueueGroups.MAIN, new TestSchedulableActivity(SchedulableActivity.Priority.LOW, null, blockLatch, null));
+
+            CountDownLatch          highLatch = new CountDownLatch(1);
+            queue.add(QueueGroups.MAIN, new TestSchedulableActivity(SchedulableActivity.Priority.HIGH, null, null, highLatch));
+            Assert.assertTrue(highLatch.await(5, TimeUnit.SECONDS));
+        }
+        finally
+        {
+            blockLatch.countDown();
+            CloseableUtils.closeQuietly(queue);
+        }
+    }
+
+    @Test
+    public void testSerializationKeys() throws Exception
+    {
+        ActivityQueue queue = new ActivityQueue(ImmutableMap.of(QueueGroups.MAIN, 3));
+        queue.start();
+        final CountDownLatch    blockLatch = new CountDownLatch(1);
+        try
+        {
+            CountDownLatch          sameKeyLatch = new CountDownLatch(1);
+            CountDownLatch          otherKeyLatch = new CountDownLatch(1);
+            queue.add(QueueGroups.MAIN, new TestSchedulableActivity(SchedulableActivity.Priority.NORMAL, "a", blockLatch, null));
+            queue.add(QueueGroups.MAIN, new TestSchedulableActivity(SchedulableActivity.Priority.NORMAL, "a", null, sameKeyLatch));
+            queue.add(QueueGroups.MAIN, new TestSchedulableActivity(SchedulableActivity.Priority.NORMAL, "b", null, otherKeyLatch));
+
+            Assert.assertTrue(otherKeyLatch.await(5, TimeUnit.SECONDS));
+            Assert.assertFalse(sameKeyLatch.await(1, TimeUnit.SECONDS));
+
+            blockLatch.countDown();
+            Assert.assertTrue(sameKeyLatch.await(5, TimeUnit.SECONDS));
+        }
+        finally
+        {
+            blockLatch.countDown();
+            CloseableUtils.closeQuietly(queue);
+        }
+    }
+
+    @Test
+    public void testDefaultSerializationKey() throws Exception
+    {
+        ActivityQueue queue = new ActivityQueue(ImmutableMap.of(QueueGroups.MAIN, 3));
+        queue.start();
+        final CountDownLatch    blockLatch = new CountDownLatch(1);
+        try
+        {
+            final CountDownLatch    plainLatch = new CountDownLatch(1);
+            CountDownLatch          noKeyLatch = new CountDownLatch(1);
+            queue.add(QueueGroups.MAIN, new TestSchedulableActivity(SchedulableActivity.Priority.NORMAL, SchedulableActivity.DEFAULT_SERIALIZATION_KEY, blockLatch, null));
+            queue.add
+            (
+                QueueGroups.MAIN,
+                new Activity()
+                {
+                    @Override
+                    public void completed(boolean wasSuccessful)
+                    {
+                    }
+
+                    @Override
+                    public Boolean call() throws Exception
+                    {
+                        plainLatch.countDown();
+                        return true;
+                    }
+                }
+            );
+            queue.add(QueueGroups.MAIN, new TestSchedulableActivity(SchedulableActivity.Priority.NORMAL, null, null, noKeyLatch));
+
+            // the default key is the group's key for activities that aren't schedulable
+            Assert.assertTrue(noKeyLatch.await(5, TimeUnit.SECONDS));
+            Assert.assertFalse(plainLatch.await(1, TimeUnit.SECONDS));
+
+            blockLatch.countDown();
+            Assert.assertTrue(plainLatch.await(5, TimeUnit.SECONDS));
+        }
+        finally
+        {
+            blockLatch.countDown();
+            CloseableUtils.closeQuietly(queue);
+        }
+    }
+
+    @Test
+    public void testPriorityAndDeadlineOrder() throws Exception
+    {
+        ActivityQueue queue = new ActivityQueue(ImmutableMap.of(QueueGroups.MAIN, 1));
+        try
+        {
+            final List<String>      order = Collections.synchronizedList(Lists.<String>newArrayList());
+            final CountDownLatch    latch = new CountDownLatch(4);
+            queue.add(QueueGroups.MAIN, new OrderedActivity(SchedulableActivity.Priority.LOW, 0, "low", order, latch));
+            queue.add(QueueGroups.MAIN, new OrderedActivity(SchedulableActivity.Priority.NORMAL, 0, "normal", order, latch));
+            queue.add(QueueGroups.MAIN, new OrderedActivity(SchedulableActivity.Priority.NORMAL, 1000, "normal-deadline", order, latch));
+            queue.add(QueueGroups.MAIN, new OrderedActivity(SchedulableActivity.Priority.LOW, 1000, "low-deadline", order, latch));
+            Thread.sleep(10);   // everything is due before the queue starts
+
+            queue.start();
+            Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+            Assert.assertEquals(order, Lists.newArrayList("normal-deadline", "normal", "low-deadline", "low"));
+        }
+        finally
+        {
+            CloseableUtils.closeQuietly(queue);
+        }
+    }
+
+    @Test
+    public void testCancelAndReschedule() throws Exception
+    {
+        ActivityQueue queue = new ActivityQueue();
+        queue.start();
+        try
+        {
+            final AtomicInteger     count = new AtomicInteger(0);
+            final CountDownLatch    latch = new CountDownLatch(1);
+            Activity                activity = new Activity()
+            {
+                @Override
+                public void completed(boolean wasSuccessful)
+                {
+                }
+
+                @Override
+                public Boolean call() throws Exception
+                {
+                    count.incrementAndGet();
+                    latch.countDown();
+                    return true;
+                }
+            };
+
+            ActivityHandle          handle = queue.add(QueueGroups.MAIN, activity, 100, TimeUnit.MILLISECONDS);
+            Assert.assertTrue(handle.isPending());
+            Assert.assertTrue(handle.cancel());
+            Assert.assertFalse(handle.cancel());
+            Assert.assertFalse(latch.await(500, TimeUnit.MILLISECONDS));
+
+            ActivityHandle          newHandle = handle.reschedule(1, TimeUnit.MILLISECONDS);
+            Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+            Thread.sleep(100);
+            Assert.assertFalse(newHandle.isPending());
+            Assert.assertFalse(newHandle.cancel());
+            Assert.assertEquals(count.get(), 1);
+        }
+        finally
+        {
+            CloseableUtils.closeQuietly(queue);
+        }
+    }
+
+    private static class TestSchedulableActivity implements SchedulableActivity
+    {
+        private final Priority          priority;
+        private final String            serializationKey;
+        private final CountDownLatch    waitLatch;
+        private final CountDownLatch    calledLatch;
+
+        private TestSchedulableActivity(Priority priority, String serializationKey, CountDownLatch waitLatch, CountDownLatch calledLatch)
+        {
+            this.priority = priority;
+            this.serializationKey = serializationKey;
+            this.waitLatch = waitLatch;
+            this.calledLatch = calledLatch;
+        }
+
+        @Override
+        public Priority getPriority()
+        {
+            return priority;
+        }
+
+        @Override
+        public String getSerializationKey()
+        {
+            return serializationKey;
+        }
+
+        @Override
+        public long getDeadlineMs()
+        {
+            return 0;
+        }
+
+        @Override
+        public void completed(boolean wasSuccessful)
+        {
+        }
+
+        @Override
+        public Boolean call() throws Exception
+        {
+            if ( calledLatch != null )
+            {
+                calledLatch.countDown();
+            }
+            if ( waitLatch != null )
+            {
+                waitLatch.await();
+            }
+            return true;
+        }
+    }
+
+    private static class OrderedActivity implements SchedulableActivity
+    {
+        private final Priority          priority;
+        private final long              deadlineMs;
+        private final String            name;
+        private final List<String>      order;
+        private final CountDownLatch    latch;
+
+        private OrderedActivity(Priority priority, long deadlineMs, String name, List<String> order, CountDownLatch latch)
+        {
+            this.priority = priority;
+            this.deadlineMs = deadlineMs;
+            this.name = name;
+            this.order = order;
+            this.latch = latch;
+        }
+
+        @Override
+        public Priority getPriority()
+        {
+            return priority;
+        }
+
+        @Override
+        public String getSerializationKey()
+        {
+            return "ordered";
+        }
+
+        @Override
+        public long getDeadlineMs()
+        {
+            return deadlineMs;
+        }
+
+        @Override
+        public void completed(boolean wasSuccessful)
+        {
+        }
+
+        @Override
+        public Boolean call() throws Exception
+        {
+            order.add(name);
+            latch.countDown();
+            return true;
+        }
+    }
 }
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2012 Netflix, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.netflix.exhibitor.core.activity;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class TestTimerWheel
+{
+    @Test
+    public void testNeverEarly() throws Exception
+    {
+        TimerWheel  wheel = new TimerWheel(10, 8);  // small wheel so that timeouts take several rounds
+        Thread      thread = new Thread(wheel);
+        thread.start();
+        try
+        {
+            int                         qty = 20;
+            final CountDownLatch        latch = new CountDownLatch(qty);
+            final AtomicLong            earliestMiss = new AtomicLong(0);
+            for ( int i = 0; i < qty; ++i )
+            {
+                final long      dueNs = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(i * 37);
+                wheel.schedule
+                (
+                    new TestTimeout(dueNs)
+                    {
+                        @Override
+                        public void expire()
+                        {
+                            long    earlyNs = dueNs - System.nanoTime();
+                            if ( earlyNs > 0 )
+                            {
+                                earliestMiss.set(Math.max(earliestMiss.get(), earlyNs));
+                            }
+                            latch.countDown();
+                        }
+                    }
+                );
+            }
+
+            Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+            Assert.assertEquals(earliestMiss.get(), 0);
+        }
+        finally
+        {
+            thread.interrupt();
+        }
+    }
+
+    @Test
+    public void testCancelled() throws Exception
+    {
+        TimerWheel  wheel = new TimerWheel(10, 8);
+        Thread      thread = new Thread(wheel);
+        thread.start();
+        try
+        {
+            final AtomicBoolean     expired = new AtomicBoolean(false);
+            final CountDownLatch    latch = new CountDownLatch(1);
+            TestTimeout             cancelled = new TestTimeout(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(50))
+            {
+                @Override
+                public void expire()
+                {
+                    expired.set(true);
+                }
+            };
+            wheel.schedule(cancelled);
+            wheel.schedule
+            (
+                new TestTimeout(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(200))
+                {
+                    @Override
+                    public void expire()
+                    {
+                        latch.countDown();
+                    }
+                }
+            );
+            cancelled.cancelled = true;
+
+            Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+            Assert.assertFalse(expired.get());
+        }
+        finally
+        {
+            thread.interrupt();
+        }
+    }
+
+    @Test
+    public void testIdleWheelParks() throws Exception
+    {
+        TimerWheel  wheel = new TimerWheel(10, 8);
+        Thread      thread = new Thread(wheel);
+        thread.start();
+        try
+        {
+            // nothing scheduled - the thread parks without a timeout rather than waking every tick
+            long        waitUntilMs = System.currentTimeMillis() + 5000;
+            while ( (thread.getState() != Thread.State.WAITING) && (System.currentTimeMillis() < waitUntilMs) )
+            {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals(thread.getState(), Thread.State.WAITING);
+
+            final long              dueNs = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(50);
+            final AtomicBoolean     early = new AtomicBoolean(false);
+            final CountDownLatch    latch = new CountDownLatch(1);
+            wheel.schedule
+            (
+                new TestTimeout(dueNs)
+                {
+                    @Override
+                    public void expire()
+                    {
+                        early.set((dueNs - System.nanoTime()) > 0);
+                        latch.countDown();
+                    }
+                }
+            );
+
+            Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+            Assert.assertFalse(early.get());
+        }
+        finally
+        {
+            thread.interrupt();
+        }
+    }
+
+    private static abstract class TestTimeout implements TimerWheel.Timeout
+    {
+        private final long          dueNs;
+        private volatile boolean    cancelled = false;
+
+        private TestTimeout(long dueNs)
+        {
+            this.dueNs = dueNs;
+        }
+
+        @Override
+        public long getDueNs()
+        {
+            return dueNs;
+        }
+
+        @Override
+        public boolean isCancelled()
+        {
+            return cancelled;
+        }
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright 2012 Netflix, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.netflix.exhibitor.core.backup;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+import com.netflix.exhibitor.core.Exhibitor;
+import com.netflix.exhibitor.core.activity.ActivityLog;
+import com.netflix.exhibitor.core.config.ConfigManager;
+import com.netflix.exhibitor.core.config.InstanceConfig;
+import com.netflix.exhibitor.core.config.StringConfigs;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.server.persistence.FileTxnLog;
+import org.apache.zookeeper.txn.CreateTxn;
+import org.apache.zookeeper.txn.TxnHeader;
+import org.mockito.Matchers;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class TestBackupManager
+{
+    private File            directory;
+    private File            logDirectory;
+    private Exhibitor       exhibitor;
+    private BackupProvider  provider;
+
+    @BeforeMethod
+    public void setup() throws Exception
+    {
+        directory = Files.createTempDir();
+        logDirectory = new File(directory, "version-2");
+        Assert.assertTrue(logDirectory.mkdirs());
+
+        InstanceConfig  config = mock(InstanceConfig.class);
+        when(config.getString(StringConfigs.ZOOKEEPER_LOG_DIRECTORY)).thenReturn(directory.getPath());
+        ConfigManager   configManager = mock(ConfigManager.class);
+        when(configManager.getConfig()).thenReturn(config);
+        ActivityLog     log = mock(ActivityLog.class);
+        exhibitor = mock(Exhibitor.class);
+        when(exhibitor.getLog()).thenReturn(log);
+        when(exhibitor.getConfigManager()).thenReturn(configManager);
+        provider = mock(BackupProvider.class);
+    }
+
+    @AfterMethod
+    public void tearDown()
+    {
+        deleteRecursively(directory);
+    }
+
+    @Test
+    public void testRestoreAll() throws Exception
+    {
+        // log.1 is a valid local log that is newer than its backups
+        FileTxnLog          txnLog = new FileTxnLog(logDirectory);
+        try
+        {
+            txnLog.append(new TxnHeader(1, 0, 1, 1000, ZooDefs.OpCode.create), new CreateTxn("/test", new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, false, 0));
+            txnLog.commit();
+        }
+        finally
+        {
+            txnLog.close();
+        }
+        File                log1 = new File(logDirectory, "log.1");
+        byte[]              log1Bytes = Files.toByteArray(log1);
+
+        // log.2 has a stale local copy and two versions of its backup
+        File                log2 = new File(logDirectory, "log.2");
+        Files.write("stale".getBytes(), log2);
+        Assert.assertTrue(log2.setLastModified(500000));
+
+        final Map<BackupMetaData, byte[]>   backups = Maps.newLinkedHashMap();
+        backups.put(new BackupMetaData("log.1", 1000000), "log.1 backup".getBytes());
+        backups.put(new BackupMetaData("log.2", 2000000), "log.2 newest".getBytes());
+        backups.put(new BackupMetaData("log.2", 1000000), "log.2 older".getBytes());
+        backups.put(new BackupMetaData("log.3", 1000000), "log.3".getBytes());     // fails
+        backups.put(new BackupMetaData("log.4", 1000000), "log.4".getBytes());
+        when(provider.getAvailableBackups(any(Exhibitor.class), Matchers.<Map<String, String>>any())).thenReturn(Lists.newArrayList(backups.keySet()));
+        when(provider.getBackupStream(any(Exhibitor.class), any(BackupMetaData.class), Matchers.<Map<String, String>>any())).thenAnswer
+        (
+            new Answer<BackupStream>()
+            {
+                @Override
+                public BackupStream answer(InvocationOnMock invocation) throws Throwable
+                {
+                    BackupMetaData      backup = (BackupMetaData)invocation.getArguments()[1];
+                    if ( backup.getName().equals("log.3") )
+                    {
+                        throw new IOException("Simulated download failure");
+                    }
+                    final InputStream   in = new ByteArrayInputStream(gzip(backups.get(backup)));
+                    return new BackupStream()
+                    {
+                        @Override
+                        public InputStream getStream()
+                        {
+                            return in;
+                        }
+
+                        @Override
+                        public void close() throws IOException
+                        {
+                            in.close();
+                        }
+                    };
+                }
+            }
+        );
+
+        BackupManager       backupManager = new BackupManager(exhibitor, provider);
+        try
+        {
+            backupManager.restoreAll();
+            Assert.fail();
+        }
+        catch ( IOException e )
+        {
+            // the first failure is thrown once every restore has finished
+            Assert.assertEquals(e.getMessage(), "Simulated download failure");
+        }
+
+        Assert.assertEquals(Files.toByteArray(log1), log1Bytes);
+        verify(provider, never()).getBackupStream(any(Exhibitor.class), eq(new BackupMetaData("log.1", 1000000)), Matchers.<Map<String, String>>any());
+
+        Assert.assertEquals(Files.toByteArray(log2), "log.2 newest".getBytes());
+        Assert.assertEquals(log2.lastModified(), 2000000);
+        verify(provider, never()).getBackupStream(any(Exhibitor.class), eq(new BackupMetaData("log.2", 1000000)), Matchers.<Map<String, String>>any());
+
+        Assert.assertFalse(new File(logDirectory, "log.3").exists());
+        Assert.assertEquals(Files.toByteArray(new File(logDirectory, "log.4")), "log.4".getBytes());
+
+        // restored files are now current - only the failed restore is retried
+        try
+        {
+            backupManager.restoreAll();
+            Assert.fail();
+        }
+        catch ( IOException expected )
+        {
+            // expected
+        }
+        verify(provider, times(1)).getBackupStream(any(Exhibitor.class), eq(new BackupMetaData("log.4", 1000000)), Matchers.<Map<String, String>>any());
+        verify(provider, times(2)).getBackupStream(any(Exhibitor.class), eq(new BackupMetaData("log.3", 1000000)), Matchers.<Map<String, String>>any());
+    }
+
+    private static byte[] gzip(byte[] bytes) throws IOException
+    {
+        ByteArrayOutputStream   out = new ByteArrayOutputStream();
+        OutputStream            gzip = new GZIPOutputStream(out);
+        gzip.write(bytes);
+        gzip.close();
+        return out.toByteArray();
+    }
+
+    private static void deleteRecursively(File file)
+    {
+        File[]      children = file.listFiles();
+        if ( children != null )
+        {
+            for ( File child : children )
+            {
+                deleteRecursively(child);
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+}
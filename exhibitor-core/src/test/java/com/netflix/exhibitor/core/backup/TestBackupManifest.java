@@ -0,0 +1,132 @@
+/*
+ * Copyright 2012 Netflix, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.netflix.exhibitor.core.backup;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import java.io.File;
+import java.nio.charset.Charset;
+import java.util.List;
+
+public class TestBackupManifest
+{
+    private static final Charset    UTF8 = Charset.forName("UTF-8");
+
+    private File        tempDir;
+
+    @BeforeMethod
+    public void setup()
+    {
+        tempDir = Files.createTempDir();
+    }
+
+    @AfterMethod
+    public void tearDown()
+    {
+        File[]      files = tempDir.listFiles();
+        if ( files != null )
+        {
+            for ( File f : files )
+            {
+                //noinspection ResultOfMethodCallIgnored
+                f.delete();
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        tempDir.delete();
+    }
+
+    @Test
+    public void testUnchangedAndChanged() throws Exception
+    {
+        File                    f = new File(tempDir, "log.1");
+        Files.write("version one", f, UTF8);
+        Assert.assertTrue(f.setLastModified(100000));
+
+        BackupManifest          manifest = new BackupManifest();
+        List<BackupMetaData>    backups = Lists.newArrayList();
+        Assert.assertFalse(manifest.isBackedUp(f, backups));
+
+        manifest.recordBackup(f.getName(), f.length(), f.lastModified(), BackupManifest.checksum(f));
+        backups.add(new BackupMetaData(f.getName(), f.lastModified()));
+        Assert.assertTrue(manifest.isBackedUp(f, backups));
+
+        // touched but the same content
+        Assert.assertTrue(f.setLastModified(200000));
+        Assert.assertTrue(manifest.isBackedUp(f, backups));
+
+        // same size, different content
+        Files.write("version two", f, UTF8);
+        Assert.assertTrue(f.setLastModified(300000));
+        Assert.assertFalse(manifest.isBackedUp(f, backups));
+    }
+
+    @Test
+    public void testRemoteListing() throws Exception
+    {
+        File                    f = new File(tempDir, "log.2");
+        Files.write("content", f, UTF8);
+        Assert.assertTrue(f.setLastModified(100000));
+
+        // seeded from the remote listing
+        BackupManifest          manifest = new BackupManifest();
+        List<BackupMetaData>    backups = Lists.newArrayList(new BackupMetaData(f.getName(), f.lastModified()));
+        Assert.assertTrue(manifest.isBackedUp(f, backups));
+        Assert.assertEquals(manifest.size(), 1);
+
+        // the backup was rolled - the entry no longer counts
+        backups.clear();
+        Assert.assertFalse(manifest.isBackedUp(f, backups));
+        Assert.assertEquals(manifest.size(), 0);
+    }
+
+    @Test
+    public void testPersisted() throws Exception
+    {
+        File                    f = new File(tempDir, "log.3");
+        Files.write("content", f, UTF8);
+        Assert.assertTrue(f.setLastModified(100000));
+
+        File                    manifestFile = new File(tempDir, BackupManifest.FILE_NAME);
+        BackupManifest          manifest = new BackupManifest(manifestFile);
+        manifest.recordBackup(f.getName(), f.length(), f.lastModified(), BackupManifest.checksum(f));
+        manifest.save();
+        Assert.assertTrue(manifestFile.exists());
+
+        // touched after a restart - the reloaded entry's checksum still matches
+        Assert.assertTrue(f.setLastModified(200000));
+        List<BackupMetaData>    backups = Lists.newArrayList(new BackupMetaData(f.getName(), 100000));
+        BackupManifest          reloaded = new BackupManifest(manifestFile);
+        Assert.assertEquals(reloaded.size(), 1);
+        Assert.assertTrue(reloaded.isBackedUp(f, backups));
+    }
+
+    @Test
+    public void testPartialChecksum() throws Exception
+    {
+        BackupManifest.FileChecksum     checksum = new BackupManifest.FileChecksum();
+        byte[]                          bytes = "some content".getBytes(UTF8);
+        checksum.update(bytes, 0, 4);
+        Assert.assertFalse(checksum.isComplete(bytes.length));
+        checksum.update(bytes, 4, bytes.length - 4);
+        Assert.assertTrue(checksum.isComplete(bytes.length));
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2012 Netflix, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.netflix.exhibitor.core.backup;
+
+import com.netflix.servo.monitor.Monitor;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import java.util.Map;
+
+public class TestBackupMetrics
+{
+    @Test
+    public void testValues()
+    {
+        BackupMetrics       metrics = BackupMetrics.getInstance();
+        Map<String, Number> before = metrics.getValues();
+
+        long                startMs = System.currentTimeMillis() - 10;
+        metrics.record(BackupMetrics.Stage.UPLOAD, startMs, true);
+        metrics.record(BackupMetrics.Stage.UPLOAD, startMs, false);
+        metrics.recordCompression(1000, 250);
+        metrics.recordRetry();
+
+        Map<String, Number> after = metrics.getValues();
+        Assert.assertEquals(delta(before, after, "uploadCount"), 2);
+        Assert.assertEquals(delta(before, after, "uploadErrors"), 1);
+        Assert.assertTrue(delta(before, after, "uploadTotalMs") >= 20);
+        Assert.assertEquals(delta(before, after, "compressCount"), 0);
+        Assert.assertEquals(delta(before, after, "uncompressedBytes"), 1000);
+        Assert.assertEquals(delta(before, after, "compressedBytes"), 250);
+        Assert.assertEquals(delta(before, after, "retries"), 1);
+        Assert.assertTrue(after.containsKey("restoreThrottledMs"));
+    }
+
+    @Test
+    public void testServoMonitor()
+    {
+        boolean     hasUploadTimer = false;
+        for ( Monitor<?> monitor : BackupMetrics.getInstance().getMonitor().getMonitors() )
+        {
+            Assert.assertNotNull(monitor.getValue());
+            hasUploadTimer |= monitor.getConfig().getName().equals("backup_upload");
+        }
+        Assert.assertTrue(hasUploadTimer);
+    }
+
+    private static long delta(Map<String, Number> before, Map<String, Number> after, String name)
+    {
+        return after.get(name).longValue() - before.get(name).longValue();
+    }
+}
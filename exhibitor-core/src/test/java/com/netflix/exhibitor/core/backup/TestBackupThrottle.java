@@ -0,0 +1,143 @@
+/*
+ * Copyright 2012 Netflix, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.netflix.exhibitor.core.backup;
+
+import com.google.common.collect.Lists;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class TestBackupThrottle
+{
+    @Test
+    public void testTokenBucket()
+    {
+        BackupThrottle.TokenBucket  bucket = new BackupThrottle.TokenBucket();
+        long                        now = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        long                        burstNanos = TimeUnit.MILLISECONDS.toNanos(10);
+
+        // 10ms of burst at 1000 bytes/ms is free
+        Assert.assertEquals(bucket.reserve(10000, 1000, burstNanos, now), 0);
+
+        // the bucket is empty - the next 5000 bytes cost 5ms
+        Assert.assertEquals(bucket.reserve(5000, 1000, burstNanos, now), TimeUnit.MILLISECONDS.toNanos(5));
+
+        // debts accumulate
+        Assert.assertEquals(bucket.reserve(5000, 1000, burstNanos, now), TimeUnit.MILLISECONDS.toNanos(10));
+
+        // idle time refills the bucket but never beyond the burst
+        long        later = now + TimeUnit.SECONDS.toNanos(1);
+        Assert.assertEquals(bucket.reserve(10000, 1000, burstNanos, later), 0);
+        Assert.assertEquals(bucket.reserve(1000, 1000, burstNanos, later), TimeUnit.MILLISECONDS.toNanos(1));
+    }
+
+    @Test
+    public void testSharedAcrossStreams() throws Exception
+    {
+        final BackupThrottle    throttle = new BackupThrottle(0, 0, 0, 0);
+        ExecutorService         service = Executors.newFixedThreadPool(4);
+        try
+        {
+            long                    startMs = System.currentTimeMillis();
+            List<Future<Void>>      futures = Lists.newArrayList();
+            for ( int i = 0; i < 4; ++i )
+            {
+                final BackupThrottle.OperationClass operationClass = (i % 2 == 0) ? BackupThrottle.OperationClass.BACKUP : BackupThrottle.OperationClass.RESTORE;
+                futures.add
+                (
+                    service.submit
+                    (
+                        new Callable<Void>()
+                        {
+                            @Override
+                            public Void call() throws Exception
+                            {
+                                BackupThrottle.Budget   budget = throttle.newBudget(operationClass, 1000);
+                                for ( int j = 0; j < 10; ++j )
+                                {
+                                    budget.acquire(5000);
+                                }
+                                return null;
+                            }
+                        }
+                    )
+                );
+            }
+            for ( Future<Void> future : futures )
+            {
+                future.get();
+            }
+
+            // 200,000 bytes at 1000 bytes/ms total - each stream alone would only need 50ms
+            long                    elapsedMs = System.currentTimeMillis() - startMs;
+            Assert.assertTrue(elapsedMs >= 180, "Elapsed: " + elapsedMs);
+            Assert.assertEquals(throttle.getBytes(BackupThrottle.OperationClass.BACKUP), 100000);
+            Assert.assertEquals(throttle.getBytes(BackupThrottle.OperationClass.RESTORE), 100000);
+            Assert.assertTrue(throttle.getThrottledMs(BackupThrottle.OperationClass.BACKUP) > 0);
+            Assert.assertTrue(throttle.getThrottledCount(BackupThrottle.OperationClass.RESTORE) > 0);
+            Assert.assertEquals(throttle.getBytes(BackupThrottle.OperationClass.INDEX), 0);
+        }
+        finally
+        {
+            service.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testClassBudget() throws Exception
+    {
+        BackupThrottle          throttle = new BackupThrottle(0, 0, 0, 100);
+
+        // no global limit and no limit for the backup class
+        long                    startMs = System.currentTimeMillis();
+        throttle.newBudget(BackupThrottle.OperationClass.BACKUP, 0).acquire(1000000);
+        Assert.assertTrue((System.currentTimeMillis() - startMs) < 50);
+
+        // the index class is limited to 100 bytes/ms even though the global limit is higher
+        startMs = System.currentTimeMillis();
+        BackupThrottle.Budget   budget = throttle.newBudget(BackupThrottle.OperationClass.INDEX, 1000000);
+        budget.acquire(5000);
+        budget.acquire(5000);
+        long                    elapsedMs = System.currentTimeMillis() - startMs;
+        Assert.assertTrue(elapsedMs >= 90, "Elapsed: " + elapsedMs);
+    }
+
+    @Test
+    public void testInterrupt() throws Exception
+    {
+        BackupThrottle          throttle = new BackupThrottle(0, 0, 0, 0);
+        BackupThrottle.Budget   budget = throttle.newBudget(BackupThrottle.OperationClass.RESTORE, 1);
+
+        Thread.currentThread().interrupt();
+        try
+        {
+            budget.acquire(1000000);
+            Assert.fail();
+        }
+        catch ( InterruptedIOException e )
+        {
+            // expected
+        }
+        Assert.assertTrue(Thread.interrupted());
+    }
+}
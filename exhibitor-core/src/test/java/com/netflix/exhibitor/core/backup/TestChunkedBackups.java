@@ -0,0 +1,240 @@
+/*
+ * Copyright 2012 Netflix, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.netflix.exhibitor.core.backup;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import com.netflix.exhibitor.core.backup.s3.MockS3Client;
+import com.netflix.exhibitor.core.backup.s3.MockS3ClientFactory;
+import com.netflix.exhibitor.core.backup.s3.S3BackupProvider;
+import com.netflix.exhibitor.core.s3.PropertyBasedS3ClientConfig;
+import com.netflix.exhibitor.core.s3.PropertyBasedS3Credential;
+import org.mockito.Mockito;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+public class TestChunkedBackups
+{
+    private static final int    LOG_SIZE = 8 * 1024 * 1024;
+
+    private File        logFile;
+    private File        downloadFile;
+
+    @BeforeMethod
+    public void setup() throws Exception
+    {
+        logFile = File.createTempFile("log", ".tmp");
+        downloadFile = File.createTempFile("download", ".tmp");
+    }
+
+    @AfterMethod
+    public void tearDown()
+    {
+        //noinspection ResultOfMethodCallIgnored
+        logFile.delete();
+        //noinspection ResultOfMethodCallIgnored
+        downloadFile.delete();
+    }
+
+    @Test
+    public void testChunker() throws Exception
+    {
+        byte[]          bytes = new byte[LOG_SIZE];
+        new Random().nextBytes(bytes);
+        Arrays.fill(bytes, LOG_SIZE / 2, LOG_SIZE, (byte)0);  // like a preallocated log
+
+        List<byte[]>    chunks = chunk(bytes);
+        Assert.assertEquals(concat(chunks), bytes);
+        for ( byte[] chunk : chunks.subList(0, chunks.size() - 1) )
+        {
+            Assert.assertTrue((chunk.length > 1000) && (chunk.length <= 100000), "length: " + chunk.length);
+        }
+
+        // an in-place change only affects the chunks around it
+        byte[]          changed = Arrays.copyOf(bytes, bytes.length);
+        for ( int i = 0; i < 100; ++i )
+        {
+            changed[(LOG_SIZE / 4) + i] ^= 0x55;
+        }
+        Set<String>     original = toSet(chunks);
+        int             newQty = 0;
+        for ( byte[] chunk : chunk(changed) )
+        {
+            if ( !original.contains(Arrays.toString(chunk)) )
+            {
+                ++newQty;
+            }
+        }
+        Assert.assertTrue(newQty <= 2, "new chunks: " + newQty);
+    }
+
+    @Test
+    public void testUploadAndRead() throws Exception
+    {
+        MockS3Client            s3Client = new MockS3Client();
+        S3BackupProvider        provider = new S3BackupProvider(new MockS3ClientFactory(s3Client), new PropertyBasedS3Credential(new Properties()), new PropertyBasedS3ClientConfig(new Properties()), null);
+        ChunkedBackups          chunkedBackups = new ChunkedBackups(null, provider, 0);
+        Map<String, String>     config = Maps.newHashMap();
+        List<BackupMetaData>    availableBackups = Lists.newArrayList();
+
+        // the active log - partly written, the rest preallocated
+        byte[]                  bytes = new byte[LOG_SIZE];
+        new Random().nextBytes(bytes);
+        Arrays.fill(bytes, LOG_SIZE / 2, LOG_SIZE, (byte)0);
+        Files.write(bytes, logFile);
+
+        BackupMetaData          version1 = new BackupMetaData("log.1", 1000);
+        Assert.assertEquals(chunkedBackups.upload(version1, logFile, new CRC32(), config, availableBackups), BackupProvider.UploadResult.SUCCEEDED);
+        int                     firstUploadQty = s3Client.getUploadedBytes().size();
+
+        // more transactions are written into the preallocated space
+        byte[]                  appended = new byte[100000];
+        new Random().nextBytes(appended);
+        System.arraycopy(appended, 0, bytes, LOG_SIZE / 2, appended.length);
+        Files.write(bytes, logFile);
+
+        BackupMetaData          version2 = new BackupMetaData("log.1", 2000);
+        availableBackups = provider.getAvailableBackups(null, config);
+        Assert.assertEquals(chunkedBackups.upload(version2, logFile, new CRC32(), config, availableBackups), BackupProvider.UploadResult.REPLACED_OLD_VERSION);
+        int                     secondUploadQty = s3Client.getUploadedBytes().size() - firstUploadQty;
+        Assert.assertTrue(secondUploadQty <= 4, "uploads: " + secondUploadQty);   // a few chunks plus the manifest
+        Assert.assertTrue(secondUploadQty < firstUploadQty);
+
+        BackupStream            stream = chunkedBackups.open(version2, config);
+        try
+        {
+            InputStream         in = new MultiMemberGzipInputStream(stream.getStream(), 1024);
+            Assert.assertEquals(ByteStreams.toByteArray(in), bytes);
+        }
+        finally
+        {
+            stream.close();
+        }
+
+        Assert.assertTrue(provider.downloadBackupToFile(null, version2, downloadFile, config));
+        chunkedBackups.expandIfManifest(downloadFile, config);
+        Assert.assertEquals(ByteStreams.toByteArray(new MultiMemberGzipInputStream(new ByteArrayInputStream(Files.toByteArray(downloadFile)), 1024)), bytes);
+
+        // version 1's manifest was replaced - its chunks that version 2 doesn't use are garbage
+        availableBackups = provider.getAvailableBackups(null, config);
+        Assert.assertTrue(chunkedBackups.collectGarbage(availableBackups, config) > 0);
+        stream = chunkedBackups.open(version2, config);
+        try
+        {
+            Assert.assertEquals(ByteStreams.toByteArray(new MultiMemberGzipInputStream(stream.getStream(), 1024)), bytes);
+        }
+        finally
+        {
+            stream.close();
+        }
+    }
+
+    @Test
+    public void testGarbageCollection() throws Exception
+    {
+        MockS3Client            s3Client = new MockS3Client();
+        S3BackupProvider        provider = Mockito.spy(new S3BackupProvider(new MockS3ClientFactory(s3Client), new PropertyBasedS3Credential(new Properties()), new PropertyBasedS3ClientConfig(new Properties()), null));
+        Map<String, String>     config = Maps.newHashMap();
+
+        byte[]                  bytes = new byte[LOG_SIZE];
+        new Random().nextBytes(bytes);
+        Files.write(bytes, logFile);
+        ChunkedBackups          uploader = new ChunkedBackups(null, provider, 500);
+        uploader.upload(new BackupMetaData("log.1", 1000), logFile, new CRC32(), config, Lists.<BackupMetaData>newArrayList());
+
+        new Random().nextBytes(bytes);
+        Files.write(bytes, logFile);
+        uploader.upload(new BackupMetaData("log.1", 2000), logFile, new CRC32(), config, provider.getAvailableBackups(null, config));
+        BackupMetaData          version2 = new BackupMetaData("log.1", 2000);
+
+        Assert.assertEquals(uploader.collectGarbage(provider.getAvailableBackups(null, config), config), 0);     // version 1's chunks are too new
+
+        // another instance - version 1's chunks are old enough but it hasn't seen them unreferenced for the grace period
+        Thread.sleep(600);
+        ChunkedBackups          collector = new ChunkedBackups(null, provider, 500);
+        Assert.assertEquals(collector.collectGarbage(provider.getAvailableBackups(null, config), config), 0);
+        Mockito.verify(provider, Mockito.times(1)).getBackupStream(null, version2, config);
+
+        // the manifest isn't read again - the listing is enough
+        Thread.sleep(600);
+        Assert.assertTrue(collector.collectGarbage(provider.getAvailableBackups(null, config), config) > 0);
+        Mockito.verify(provider, Mockito.times(1)).getBackupStream(null, version2, config);
+
+        BackupStream            stream = collector.open(version2, config);
+        try
+        {
+            Assert.assertEquals(ByteStreams.toByteArray(new MultiMemberGzipInputStream(stream.getStream(), 1024)), bytes);
+        }
+        finally
+        {
+            stream.close();
+        }
+    }
+
+    private static List<byte[]> chunk(byte[] bytes) throws Exception
+    {
+        ContentDefinedChunker   chunker = new ContentDefinedChunker(new ByteArrayInputStream(bytes), 2048, 14, 100000);
+        List<byte[]>            chunks = Lists.newArrayList();
+        for ( byte[] chunk = chunker.next(); chunk != null; chunk = chunker.next() )
+        {
+            chunks.add(chunk);
+        }
+        return chunks;
+    }
+
+    private static byte[] concat(List<byte[]> chunks)
+    {
+        int     length = 0;
+        for ( byte[] chunk : chunks )
+        {
+            length += chunk.length;
+        }
+        byte[]  bytes = new byte[length];
+        int     offset = 0;
+        for ( byte[] chunk : chunks )
+        {
+            System.arraycopy(chunk, 0, bytes, offset, chunk.length);
+            offset += chunk.length;
+        }
+        return bytes;
+    }
+
+    private static Set<String> toSet(List<byte[]> chunks)
+    {
+        Set<String>     set = Sets.newHashSet();
+        for ( byte[] chunk : chunks )
+        {
+            set.add(Arrays.toString(chunk));
+        }
+        return set;
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2012 Netflix, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.netflix.exhibitor.core.backup;
+
+import com.google.common.io.ByteStreams;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+
+public class TestParallelGzipInputStream
+{
+    private static final int    BLOCK_SIZE = 1000;
+
+    private ExecutorService     executor;
+
+    @BeforeMethod
+    public void setup()
+    {
+        executor = Executors.newFixedThreadPool(3);
+    }
+
+    @AfterMethod
+    public void tearDown()
+    {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception
+    {
+        Random      random = new Random();
+        int[]       sizes = {0, 1, BLOCK_SIZE - 1, BLOCK_SIZE, BLOCK_SIZE * 5, (BLOCK_SIZE * 17) + 3};
+        for ( int size : sizes )
+        {
+            byte[]      source = new byte[size];
+            for ( int i = 0; i < size; ++i )
+            {
+                source[i] = (byte)random.nextInt(8);  // compressible
+            }
+
+            InputStream in = new GZIPInputStream(new ParallelGzipInputStream(new ByteArrayInputStream(source), executor, BLOCK_SIZE, 2));
+            try
+            {
+                Assert.assertEquals(ByteStreams.toByteArray(in), source, "size: " + size);
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+    }
+
+    @Test
+    public void testSourceWithoutAvailable() throws Exception
+    {
+        byte[]      source = new byte[(BLOCK_SIZE * 10) + 7];
+        new Random().nextBytes(source);
+        byte[]      compressed = ByteStreams.toByteArray(new ParallelGzipInputStream(new ByteArrayInputStream(source), executor, BLOCK_SIZE, 2));
+
+        // like a network stream - never reports anything as available
+        InputStream     network = new FilterInputStream(new ByteArrayInputStream(compressed))
+        {
+            @Override
+            public int available()
+            {
+                return 0;
+            }
+        };
+        InputStream     in = new MultiMemberGzipInputStream(network, 512);
+        try
+        {
+            Assert.assertEquals(ByteStreams.toByteArray(in), source);
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    @Test
+    public void testSingleByteReads() throws Exception
+    {
+        byte[]      source = "abcdefghijklmnopqrstuvwxyz".getBytes();
+        InputStream in = new ParallelGzipInputStream(new ByteArrayInputStream(source), executor, 4, 3);
+        try
+        {
+            byte[]  compressed = ByteStreams.toByteArray(in);
+            Assert.assertEquals(in.read(), -1);
+            Assert.assertEquals(ByteStreams.toByteArray(new GZIPInputStream(new ByteArrayInputStream(compressed))), source);
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2012 Netflix, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.netflix.exhibitor.core.backup.filesystem;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Files;
+import com.netflix.exhibitor.core.Exhibitor;
+import com.netflix.exhibitor.core.activity.ActivityLog;
+import com.netflix.exhibitor.core.backup.BackupMetaData;
+import com.netflix.exhibitor.core.backup.BackupProvider;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class TestFileSystemBackupProvider
+{
+    private File                        tempDir;
+    private File                        backupDir;
+    private Map<String, String>         config;
+    private Exhibitor                   exhibitor;
+
+    @BeforeMethod
+    public void setup()
+    {
+        tempDir = Files.createTempDir();
+        backupDir = new File(tempDir, "backups");
+        config = ImmutableMap.of("directory", backupDir.getPath(), "throttle", "0");
+
+        ActivityLog     log = mock(ActivityLog.class);
+        exhibitor = mock(Exhibitor.class);
+        when(exhibitor.getLog()).thenReturn(log);
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception
+    {
+        deleteRecursively(tempDir);
+    }
+
+    @Test
+    public void testUploadAndDownload() throws Exception
+    {
+        FileSystemBackupProvider    provider = new FileSystemBackupProvider();
+        byte[]                      bytes = new byte[6 * 1024 * 1024];
+        new Random().nextBytes(bytes);
+        File                        source = new File(tempDir, "log.1");
+        Files.write(bytes, source);
+
+        BackupMetaData              backup = new BackupMetaData("log.1", 1000);
+        Assert.assertEquals(provider.uploadBackup(exhibitor, backup, source, config), BackupProvider.UploadResult.SUCCEEDED);
+        Assert.assertEquals(provider.uploadBackup(exhibitor, backup, source, config), BackupProvider.UploadResult.DUPLICATE);
+        Assert.assertEquals(provider.getAvailableBackups(exhibitor, config), Arrays.asList(backup));
+
+        // no temp files left behind
+        Assert.assertEquals(new File(backupDir, "log.1").list(), new String[]{"1000"});
+
+        File                        downloaded = new File(tempDir, "downloaded");
+        Assert.assertTrue(provider.downloadBackupToFile(exhibitor, backup, downloaded, config));
+        Assert.assertEquals(Files.toByteArray(downloaded), bytes);
+
+        FileOutputStream            fileOut = new FileOutputStream(downloaded);
+        try
+        {
+            provider.downloadBackup(exhibitor, backup, fileOut, config);
+        }
+        finally
+        {
+            fileOut.close();
+        }
+        Assert.assertEquals(Files.toByteArray(downloaded), bytes);
+
+        ByteArrayOutputStream       out = new ByteArrayOutputStream();
+        provider.downloadBackup(exhibitor, backup, out, config);
+        Assert.assertEquals(out.toByteArray(), bytes);
+
+        Assert.assertFalse(provider.downloadBackupToFile(exhibitor, new BackupMetaData("log.1", 2000), downloaded, config));
+
+        BackupMetaData              newVersion = new BackupMetaData("log.1", 2000);
+        Assert.assertEquals(provider.uploadBackup(exhibitor, newVersion, source, config), BackupProvider.UploadResult.REPLACED_OLD_VERSION);
+        Assert.assertEquals(provider.getAvailableBackups(exhibitor, config), Arrays.asList(newVersion));
+    }
+
+    @Test
+    public void testExternalChanges() throws Exception
+    {
+        FileSystemBackupProvider    provider = new FileSystemBackupProvider();
+        File                        source = new File(tempDir, "log.1");
+        Files.write(new byte[]{1, 2, 3}, source);
+        provider.uploadBackup(exhibitor, new BackupMetaData("log.1", 1), source, config);
+        Assert.assertEquals(provider.getAvailableBackups(exhibitor, config).size(), 1);
+
+        // another instance writes to the same directory - picked up by the watcher
+        File                        nameDir = new File(backupDir, "log.2");
+        Assert.assertTrue(nameDir.mkdirs());
+        Files.write(new byte[]{1, 2, 3}, new File(nameDir, "5"));
+        Files.write(new byte[]{1, 2, 3}, new File(nameDir, ".upload-6-123"));
+        Assert.assertTrue(new File(new File(backupDir, "log.1"), "1").delete());
+
+        List<BackupMetaData>        expected = Arrays.asList(new BackupMetaData("log.2", 5));
+        List<BackupMetaData>        backups = null;
+        for ( int i = 0; i < 100; ++i )
+        {
+            backups = provider.getAvailableBackups(exhibitor, config);
+            if ( backups.equals(expected) )
+            {
+                break;
+            }
+            Thread.sleep(100);
+        }
+        Assert.assertEquals(backups, expected);
+
+        // a fresh provider scans the tree
+        Assert.assertEquals(new FileSystemBackupProvider().getAvailableBackups(exhibitor, config), expected);
+    }
+
+    private static void deleteRecursively(File file)
+    {
+        File[]      children = file.listFiles();
+        if ( children != null )
+        {
+            for ( File child : children )
+            {
+                deleteRecursively(child);
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+}
@@ -29,13 +29,29 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class MockS3Client implements S3Client
 {
     private final List<byte[]>              uploadedBytes = new CopyOnWriteArrayList<byte[]>();
     private final ObjectListing             listing;
     private final Map<String, S3Object>     uploads = Maps.newConcurrentMap();
+    private final Map<String, MultipartUpload> multipartUploads = Maps.newConcurrentMap();
+    private final List<PartETag>            completedPartETags = new CopyOnWriteArrayList<PartETag>();
+    private final AtomicInteger             uploadIdCounter = new AtomicInteger();
+
+    private static class MultipartUpload
+    {
+        private final String                                    key;
+        private final ConcurrentMap<Integer, byte[]>            parts = Maps.newConcurrentMap();
+
+        private MultipartUpload(String key)
+        {
+            this.key = key;
+        }
+    }
 
     private static final String BYTES_HEADER = "__internal_index__";
 
@@ -77,33 +93,44 @@ public class MockS3Client implements S3Client
     @Override
     public synchronized PutObjectResult putObject(PutObjectRequest request) throws Exception
     {
-        Map<String, String>     userData = Maps.newHashMap();
-        userData.put(BYTES_HEADER, Integer.toString(uploadedBytes.size()));
-
         ByteArrayOutputStream   out = new ByteArrayOutputStream();
         ByteStreams.copy(request.getInputStream(), out);
         byte[]                  bytes = out.toByteArray();
-        uploadedBytes.add(bytes);
 
         byte[]              md5bytes = S3Utils.md5(bytes, out.size());
+        addObject(request.getKey(), bytes);
+
+        PutObjectResult     result = new PutObjectResult();
+        result.setETag(S3Utils.toHex(md5bytes));
+        return result;
+    }
+
+    private synchronized void addObject(String key, byte[] bytes)
+    {
+        Map<String, String>     userData = Maps.newHashMap();
+        userData.put(BYTES_HEADER, Integer.toString(uploadedBytes.size()));
+        uploadedBytes.add(bytes);
 
         S3Object            object = new S3Object();
-        object.setKey(request.getKey());
+        object.setKey(key);
         ObjectMetadata      metadata = new ObjectMetadata();
         metadata.setContentLength(bytes.length);
         metadata.setUserMetadata(userData);
         object.setObjectMetadata(metadata);
-        uploads.put(request.getKey(), object);
-
-        PutObjectResult     result = new PutObjectResult();
-        result.setETag(S3Utils.toHex(md5bytes));
-        return result;
+        uploads.put(key, object);
     }
 
     @Override
     public InitiateMultipartUploadResult initiateMultipartUpload(InitiateMultipartUploadRequest request) throws Exception
     {
-        return new InitiateMultipartUploadResult();
+        String                          uploadId = Integer.toString(uploadIdCounter.incrementAndGet());
+        multipartUploads.put(uploadId, new MultipartUpload(request.getKey()));
+
+        InitiateMultipartUploadResult   result = new InitiateMultipartUploadResult();
+        result.setBucketName(request.getBucketName());
+        result.setKey(request.getKey());
+        result.setUploadId(uploadId);
+        return result;
     }
 
     @Override
@@ -128,6 +155,27 @@ public class MockS3Client implements S3Client
         return s3Object;
     }
 
+    @Override
+    public S3Object getObject(GetObjectRequest request) throws Exception
+    {
+        S3Object            s3Object = getObject(request.getBucketName(), request.getKey());
+        long[]              range = request.getRange();
+        if ( (s3Object == null) || (range == null) )
+        {
+            return s3Object;
+        }
+
+        byte[]              bytes = ByteStreams.toByteArray(s3Object.getObjectContent());
+        int                 start = (int)range[0];
+        int                 end = (int)Math.min(range[1], bytes.length - 1);
+        if ( start >= bytes.length )
+        {
+            throw new Exception("Range not satisfiable: " + start);
+        }
+        s3Object.setObjectContent(new S3ObjectInputStream(new ByteArrayInputStream(bytes, start, (end - start) + 1), null));
+        return s3Object;
+    }
+
     @Override
     public ObjectMetadata getObjectMetadata(String bucket, String key) throws Exception
     {
@@ -184,12 +232,19 @@ public class MockS3Client implements S3Client
     }
 
     @Override
-    public synchronized UploadPartResult uploadPart(UploadPartRequest request) throws Exception
+    public UploadPartResult uploadPart(UploadPartRequest request) throws Exception
     {
+        MultipartUpload             upload = multipartUploads.get(request.getUploadId());
+        if ( upload == null )
+        {
+            throw new Exception("No such upload: " + request.getUploadId());
+        }
+
         ByteArrayOutputStream       out = new ByteArrayOutputStream();
         ByteStreams.copy(request.getInputStream(), out);
 
-        uploadedBytes.add(out.toByteArray());
+        // like S3, parts are stored by part number regardless of the order they arrive in
+        upload.parts.put(request.getPartNumber(), out.toByteArray());
 
         byte[]              md5bytes = S3Utils.md5(out.toByteArray(), out.size());
 
@@ -202,15 +257,50 @@ public class MockS3Client implements S3Client
     @Override
     public void completeMultipartUpload(CompleteMultipartUploadRequest request) throws Exception
     {
+        MultipartUpload             upload = multipartUploads.remove(request.getUploadId());
+        if ( upload == null )
+        {
+            throw new Exception("No such upload: " + request.getUploadId());
+        }
+
+        ByteArrayOutputStream       out = new ByteArrayOutputStream();
+        int                         previousPartNumber = 0;
+        for ( PartETag eTag : request.getPartETags() )
+        {
+            if ( eTag.getPartNumber() <= previousPartNumber )
+            {
+                throw new Exception("Part numbers must be in ascending order: " + eTag.getPartNumber());
+            }
+            previousPartNumber = eTag.getPartNumber();
+
+            byte[]      part = upload.parts.get(eTag.getPartNumber());
+            if ( (part == null) || !S3Utils.toHex(S3Utils.md5(part, part.length)).equals(eTag.getETag()) )
+            {
+                throw new Exception("ETag does not match part: " + eTag.getPartNumber());
+            }
+            out.write(part);
+        }
+
+        completedPartETags.addAll(request.getPartETags());
+        addObject(upload.key, out.toByteArray());
     }
 
     @Override
     public void abortMultipartUpload(AbortMultipartUploadRequest request) throws Exception
     {
+        multipartUploads.remove(request.getUploadId());
     }
 
     public List<byte[]> getUploadedBytes()
     {
         return Lists.newArrayList(uploadedBytes);
     }
+
+    /**
+     * @return the part ETags of all completed multipart uploads in the order they were passed to {@link #completeMultipartUpload(CompleteMultipartUploadRequest)}
+     */
+    public List<PartETag> getCompletedPartETags()
+    {
+        return Lists.newArrayList(completedPartETags);
+    }
 }
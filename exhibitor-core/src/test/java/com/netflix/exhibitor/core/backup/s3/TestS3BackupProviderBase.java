@@ -57,6 +57,30 @@ public abstract class TestS3BackupProviderBase
         Assert.assertEquals(uploadedBytes, fileBytes);
     }
 
+    @Test
+    public void   testStreamingUpload() throws Exception
+    {
+        MockS3Client        s3Client = new MockS3Client();
+        S3BackupProvider    provider = new S3BackupProvider(new MockS3ClientFactory(s3Client), new PropertyBasedS3Credential(new Properties()), new PropertyBasedS3ClientConfig(new Properties()), null);
+
+        InputStream         in = new FileInputStream(sourceFile);
+        try
+        {
+            provider.uploadBackupStream(null, new BackupMetaData("test", 10), in, Maps.<String, String>newHashMap(), Lists.<BackupMetaData>newArrayList());
+        }
+        finally
+        {
+            CloseableUtils.closeQuietly(in);
+        }
+
+        ByteArrayOutputStream   out = new ByteArrayOutputStream();
+        for ( byte[] bytes : s3Client.getUploadedBytes() )
+        {
+            out.write(bytes);
+        }
+        Assert.assertEquals(out.toByteArray(), Files.toByteArray(sourceFile));
+    }
+
     @Test
     public void     testDownload() throws Exception
     {
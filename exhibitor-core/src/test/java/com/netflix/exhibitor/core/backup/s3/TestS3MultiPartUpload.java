@@ -0,0 +1,146 @@
+/*
+ * Copyright 2012 Netflix, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.netflix.exhibitor.core.backup.s3;
+
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.netflix.exhibitor.core.backup.BackupMetaData;
+import com.netflix.exhibitor.core.s3.PropertyBasedS3ClientConfig;
+import com.netflix.exhibitor.core.s3.PropertyBasedS3Credential;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import java.io.ByteArrayInputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TestS3MultiPartUpload
+{
+    private static final int        PART_SIZE = 5 * (1024 * 1024);
+    private static final int        PART_QTY = 6;
+
+    @Test
+    public void testConcurrentPartsAreCompletedInOrder() throws Exception
+    {
+        final List<Integer>     arrivalOrder = new CopyOnWriteArrayList<Integer>();
+        final AtomicInteger     inFlight = new AtomicInteger();
+        final AtomicInteger     maxInFlight = new AtomicInteger();
+        final AtomicBoolean     hasFailed = new AtomicBoolean(false);
+        MockS3Client            s3Client = new MockS3Client()
+        {
+            @Override
+            public UploadPartResult uploadPart(UploadPartRequest request) throws Exception
+            {
+                int     current = inFlight.incrementAndGet();
+                try
+                {
+                    synchronized(maxInFlight)
+                    {
+                        maxInFlight.set(Math.max(maxInFlight.get(), current));
+                    }
+
+                    // earlier parts take longer so that parts finish out of order
+                    Thread.sleep((PART_QTY - request.getPartNumber()) * 50);
+
+                    if ( (request.getPartNumber() == 2) && hasFailed.compareAndSet(false, true) )
+                    {
+                        throw new Exception("Simulated part failure");
+                    }
+
+                    arrivalOrder.add(request.getPartNumber());
+                    return super.uploadPart(request);
+                }
+                finally
+                {
+                    inFlight.decrementAndGet();
+                }
+            }
+        };
+
+        byte[]                  bytes = new byte[(PART_SIZE * (PART_QTY - 1)) + 1234];
+        new Random().nextBytes(bytes);
+
+        Map<String, String>     configValues = Maps.newHashMap();
+        configValues.put("upload-concurrency", "3");
+        configValues.put("max-retries", "3");
+        configValues.put("retry-sleep-ms", "1");
+
+        S3BackupProvider        provider = new S3BackupProvider(new MockS3ClientFactory(s3Client), new PropertyBasedS3Credential(new Properties()), new PropertyBasedS3ClientConfig(new Properties()), null);
+        provider.uploadBackupStream(null, new BackupMetaData("test", 10), new ByteArrayInputStream(bytes), configValues, Lists.<BackupMetaData>newArrayList());
+
+        List<Integer>           partNumbers = Lists.newArrayList();
+        for ( PartETag eTag : s3Client.getCompletedPartETags() )
+        {
+            partNumbers.add(eTag.getPartNumber());
+        }
+        Assert.assertEquals(partNumbers, Lists.newArrayList(1, 2, 3, 4, 5, 6));
+        Assert.assertNotEquals(arrivalOrder, partNumbers);  // parts really were uploaded concurrently
+        Assert.assertTrue(hasFailed.get());
+        Assert.assertTrue(maxInFlight.get() > 1);
+        Assert.assertTrue(maxInFlight.get() <= 3, "in flight: " + maxInFlight.get());
+
+        List<byte[]>            uploadedBytes = s3Client.getUploadedBytes();
+        Assert.assertEquals(uploadedBytes.size(), 1);
+        Assert.assertEquals(uploadedBytes.get(0), bytes);
+    }
+
+    @Test
+    public void testPartSize() throws Exception
+    {
+        MockS3Client            s3Client = new MockS3Client();
+        byte[]                  bytes = new byte[(PART_SIZE * 3) + 1];
+        new Random().nextBytes(bytes);
+
+        Map<String, String>     configValues = Maps.newHashMap();
+        configValues.put("part-size-mb", "10");
+
+        S3BackupProvider        provider = new S3BackupProvider(new MockS3ClientFactory(s3Client), new PropertyBasedS3Credential(new Properties()), new PropertyBasedS3ClientConfig(new Properties()), null);
+        provider.uploadBackupStream(null, new BackupMetaData("test", 10), new ByteArrayInputStream(bytes), configValues, Lists.<BackupMetaData>newArrayList());
+
+        Assert.assertEquals(s3Client.getCompletedPartETags().size(), 2);
+        Assert.assertEquals(s3Client.getUploadedBytes().get(0), bytes);
+    }
+
+    @Test
+    public void testBufferedPartsAreBounded() throws Exception
+    {
+        S3BackupProvider        provider = new S3BackupProvider(new MockS3ClientFactory(new MockS3Client()), new PropertyBasedS3Credential(new Properties()), new PropertyBasedS3ClientConfig(new Properties()), null);
+        Map<String, String>     configValues = Maps.newHashMap();
+        Assert.assertEquals(provider.getPartSize(configValues), PART_SIZE);
+        Assert.assertEquals(provider.getUploadConcurrency(configValues), 4);
+        Assert.assertEquals(provider.getDownloadConcurrency(configValues), 4);
+
+        // at most 256 MB of parts are buffered: the parts being uploaded plus the one being read
+        configValues.put("part-size-mb", "1024");
+        configValues.put("upload-concurrency", "100");
+        configValues.put("download-concurrency", "100");
+        Assert.assertEquals(provider.getPartSize(configValues), 64 * (1024 * 1024));
+        Assert.assertEquals(provider.getUploadConcurrency(configValues), 3);
+        Assert.assertEquals(provider.getDownloadConcurrency(configValues), 4);
+
+        configValues.put("part-size-mb", "5");
+        Assert.assertEquals(provider.getUploadConcurrency(configValues), 50);
+        Assert.assertEquals(provider.getDownloadConcurrency(configValues), 51);
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2012 Netflix, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.netflix.exhibitor.core.backup.s3;
+
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import com.netflix.exhibitor.core.backup.BackupMetaData;
+import com.netflix.exhibitor.core.backup.BackupStream;
+import com.netflix.exhibitor.core.backup.MultiMemberGzipInputStream;
+import com.netflix.exhibitor.core.s3.PropertyBasedS3ClientConfig;
+import com.netflix.exhibitor.core.s3.PropertyBasedS3Credential;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.GZIPOutputStream;
+
+public class TestS3RangedDownload
+{
+    private static final int        RANGE_SIZE = 5 * (1024 * 1024);
+    private static final int        FAIL_AFTER = 100000;
+    private static final String     KEY = "exhibitor-backup" + S3BackupProvider.SEPARATOR + "test" + S3BackupProvider.SEPARATOR + 1;
+
+    @Test
+    public void testRetryOnlyFailedRange() throws Exception
+    {
+        final List<Long>        requestedStarts = new CopyOnWriteArrayList<Long>();
+        MockS3Client            s3Client = new FailingS3Client(RANGE_SIZE, requestedStarts);
+        byte[]                  bytes = putObject(s3Client, (RANGE_SIZE * 3) + 1234);
+
+        Map<String, String>     configValues = Maps.newHashMap();
+        configValues.put("download-concurrency", "3");
+        configValues.put("max-retries", "3");
+        configValues.put("retry-sleep-ms", "1");
+
+        File                    tempFile = File.createTempFile("test", ".test");
+        try
+        {
+            S3BackupProvider    provider = new S3BackupProvider(new MockS3ClientFactory(s3Client), new PropertyBasedS3Credential(new Properties()), new PropertyBasedS3ClientConfig(new Properties()), null);
+            Assert.assertTrue(provider.downloadBackupToFile(null, new BackupMetaData("test", 1), tempFile, configValues));
+            Assert.assertEquals(Files.toByteArray(tempFile), bytes);
+
+            // one request per range plus one that continues the failed range where it left off
+            Assert.assertEquals(requestedStarts.size(), 5);
+            Assert.assertTrue(requestedStarts.contains((long)RANGE_SIZE + FAIL_AFTER));
+            Assert.assertEquals(requestedStarts.indexOf((long)RANGE_SIZE), requestedStarts.lastIndexOf((long)RANGE_SIZE));
+
+            Assert.assertFalse(provider.downloadBackupToFile(null, new BackupMetaData("missing", 1), tempFile, configValues));
+        }
+        finally
+        {
+            //noinspection ResultOfMethodCallIgnored
+            tempFile.delete();
+        }
+    }
+
+    @Test
+    public void testStreamDownloadResumes() throws Exception
+    {
+        final List<Long>        requestedStarts = new CopyOnWriteArrayList<Long>();
+        MockS3Client            s3Client = new FailingS3Client(0, requestedStarts);
+        byte[]                  bytes = putObject(s3Client, RANGE_SIZE + 1234);
+
+        Map<String, String>     configValues = Maps.newHashMap();
+        configValues.put("max-retries", "3");
+        configValues.put("retry-sleep-ms", "1");
+
+        S3BackupProvider        provider = new S3BackupProvider(new MockS3ClientFactory(s3Client), new PropertyBasedS3Credential(new Properties()), new PropertyBasedS3ClientConfig(new Properties()), null);
+        ByteArrayOutputStream   out = new ByteArrayOutputStream();
+        provider.downloadBackup(null, new BackupMetaData("test", 1), out, configValues);
+
+        Assert.assertEquals(out.toByteArray(), bytes);
+        Assert.assertEquals(requestedStarts.size(), 2);
+    }
+
+    @Test
+    public void testBackupStreamResumesRange() throws Exception
+    {
+        // the gzipped object spans 3 ranges - the middle one fails part way through
+        byte[]                  uncompressed = new byte[RANGE_SIZE * 4];
+        new Random().nextBytes(uncompressed);
+        ByteArrayOutputStream   compressed = new ByteArrayOutputStream();
+        GZIPOutputStream        gzip = new GZIPOutputStream(compressed);
+        gzip.write(uncompressed);
+        gzip.close();
+        Assert.assertTrue(compressed.size() > (RANGE_SIZE * 2));
+
+        final List<Long>        requestedStarts = new CopyOnWriteArrayList<Long>();
+        MockS3Client            s3Client = new FailingS3Client(RANGE_SIZE, requestedStarts);
+        s3Client.putObject(new PutObjectRequest("bucket", KEY, new ByteArrayInputStream(compressed.toByteArray()), null));
+
+        Map<String, String>     configValues = Maps.newHashMap();
+        configValues.put("download-concurrency", "2");
+        configValues.put("max-retries", "3");
+        configValues.put("retry-sleep-ms", "1");
+
+        S3BackupProvider        provider = new S3BackupProvider(new MockS3ClientFactory(s3Client), new PropertyBasedS3Credential(new Properties()), new PropertyBasedS3ClientConfig(new Properties()), null);
+        BackupStream            backupStream = provider.getBackupStream(null, new BackupMetaData("test", 1), configValues);
+        try
+        {
+            Assert.assertNotNull(backupStream);
+            Assert.assertEquals(ByteStreams.toByteArray(new MultiMemberGzipInputStream(backupStream.getStream(), 64 * 1024)), uncompressed);
+        }
+        finally
+        {
+            backupStream.close();
+        }
+
+        Assert.assertTrue(requestedStarts.contains((long)RANGE_SIZE + FAIL_AFTER));
+        Assert.assertEquals(requestedStarts.indexOf((long)RANGE_SIZE), requestedStarts.lastIndexOf((long)RANGE_SIZE));
+
+        Assert.assertNull(provider.getBackupStream(null, new BackupMetaData("missing", 1), configValues));
+    }
+
+    private byte[] putObject(MockS3Client s3Client, int size) throws Exception
+    {
+        byte[]      bytes = new byte[size];
+        new Random().nextBytes(bytes);
+        s3Client.putObject(new PutObjectRequest("bucket", KEY, new ByteArrayInputStream(bytes), null));
+        return bytes;
+    }
+
+    private static class FailingS3Client extends MockS3Client
+    {
+        private final long failingStart;
+        private final List<Long> requestedStarts;
+        private final AtomicBoolean hasFailed = new AtomicBoolean(false);
+
+        private FailingS3Client(long failingStart, List<Long> requestedStarts)
+        {
+            this.failingStart = failingStart;
+            this.requestedStarts = requestedStarts;
+        }
+
+        @Override
+        public S3Object getObject(GetObjectRequest request) throws Exception
+        {
+            long        start = (request.getRange() != null) ? request.getRange()[0] : 0;
+            requestedStarts.add(start);
+
+            S3Object    object = super.getObject(request);
+            if ( (start == failingStart) && hasFailed.compareAndSet(false, true) )
+            {
+                // fail part way through the range
+                final InputStream   in = object.getObjectContent();
+                InputStream         failing = new InputStream()
+                {
+                    private int     count = 0;
+
+                    @Override
+                    public int read() throws IOException
+                    {
+                        if ( count++ >= FAIL_AFTER )
+                        {
+                            throw new IOException("Simulated connection reset");
+                        }
+                        return in.read();
+                    }
+                };
+                object.setObjectContent(new S3ObjectInputStream(failing, null));
+            }
+            return object;
+        }
+    }
+}
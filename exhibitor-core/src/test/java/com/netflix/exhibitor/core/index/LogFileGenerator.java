@@ -0,0 +1,157 @@
+/*
+ * Copyright 2012 Netflix, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.netflix.exhibitor.core.index;
+
+import com.google.common.collect.Lists;
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.jute.Record;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.server.persistence.FileTxnLog;
+import org.apache.zookeeper.txn.CheckVersionTxn;
+import org.apache.zookeeper.txn.CreateSessionTxn;
+import org.apache.zookeeper.txn.CreateTxn;
+import org.apache.zookeeper.txn.DeleteTxn;
+import org.apache.zookeeper.txn.ErrorTxn;
+import org.apache.zookeeper.txn.MultiTxn;
+import org.apache.zookeeper.txn.SetACLTxn;
+import org.apache.zookeeper.txn.SetDataTxn;
+import org.apache.zookeeper.txn.Txn;
+import org.apache.zookeeper.txn.TxnHeader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Writes test transaction logs. Each log gets nodesPerLog nodes at "/log[n]/node[i]" that are created,
+ * set and deleted. Zxids start at 1 and each entry's time is baseTime + (zxid * 1000)
+ */
+class LogFileGenerator
+{
+    static void writeLogs(File logDirectory, int logQty, int nodesPerLog, long baseTime) throws IOException
+    {
+        if ( !logDirectory.exists() && !logDirectory.mkdirs() )
+        {
+            throw new IOException("Could not make: " + logDirectory);
+        }
+
+        FileTxnLog.setPreallocSize(64 * 1024);
+        FileTxnLog  txnLog = new FileTxnLog(logDirectory);
+        try
+        {
+            long    zxid = 1;
+            for ( int log = 0; log < logQty; ++log )
+            {
+                zxid = appendNodes(txnLog, "/log" + log, nodesPerLog, zxid, baseTime);
+                txnLog.rollLog();
+            }
+            txnLog.commit();
+        }
+        finally
+        {
+            txnLog.close();
+        }
+    }
+
+    /**
+     * Appends nodeQty nodes at "[parentPath]/node[i]" that are created, set and deleted - 3 entries
+     * per node. The caller must commit.
+     *
+     * @return the zxid following the last entry
+     */
+    static long appendNodes(FileTxnLog txnLog, String parentPath, int nodeQty, long zxid, long baseTime) throws IOException
+    {
+        for ( int i = 0; i < nodeQty; ++i )
+        {
+            String  path = parentPath + "/node" + i;
+            txnLog.append(new TxnHeader(1, 0, zxid, baseTime + (zxid * 1000), ZooDefs.OpCode.create), new CreateTxn(path, new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, false, 0));
+            ++zxid;
+            txnLog.append(new TxnHeader(1, 0, zxid, baseTime + (zxid * 1000), ZooDefs.OpCode.setData), new SetDataTxn(path, "data".getBytes(), 1));
+            ++zxid;
+            txnLog.append(new TxnHeader(1, 0, zxid, baseTime + (zxid * 1000), ZooDefs.OpCode.delete), new DeleteTxn(path));
+            ++zxid;
+        }
+        return zxid;
+    }
+
+    /**
+     * Writes a single log of session/ACL/multi entries. Session 0x100 is created (zxid 1), runs a
+     * multi of create-ephemeral/setData/check (zxid 2) and is closed (zxid 5). Session 0x200
+     * sets an ACL (zxid 3) and has a failed operation (zxid 4).
+     */
+    static void writeSessionLog(File logDirectory, long baseTime) throws IOException
+    {
+        if ( !logDirectory.exists() && !logDirectory.mkdirs() )
+        {
+            throw new IOException("Could not make: " + logDirectory);
+        }
+
+        List<Txn>   txns = Lists.newArrayList();
+        txns.add(new Txn(ZooDefs.OpCode.create, toBytes(new CreateTxn("/multi/ephemeral", new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, true, 0))));
+        txns.add(new Txn(ZooDefs.OpCode.setData, toBytes(new SetDataTxn("/multi/data", "data".getBytes(), 2))));
+        txns.add(new Txn(ZooDefs.OpCode.check, toBytes(new CheckVersionTxn("/multi/check", 3))));
+
+        FileTxnLog.setPreallocSize(64 * 1024);
+        FileTxnLog  txnLog = new FileTxnLog(logDirectory);
+        try
+        {
+            txnLog.append(new TxnHeader(0x100, 0, 1, baseTime + 1000, ZooDefs.OpCode.createSession), new CreateSessionTxn(30000));
+            txnLog.append(new TxnHeader(0x100, 1, 2, baseTime + 2000, ZooDefs.OpCode.multi), new MultiTxn(txns));
+            txnLog.append(new TxnHeader(0x200, 0, 3, baseTime + 3000, ZooDefs.OpCode.setACL), new SetACLTxn("/acl", ZooDefs.Ids.READ_ACL_UNSAFE, 4));
+            txnLog.append(new TxnHeader(0x200, 1, 4, baseTime + 4000, ZooDefs.OpCode.error), new ErrorTxn(-101));
+            txnLog.append(new TxnHeader(0x100, 2, 5, baseTime + 5000, ZooDefs.OpCode.closeSession), null);
+            txnLog.commit();
+        }
+        finally
+        {
+            txnLog.close();
+        }
+    }
+
+    static void deleteDirectory(File directory)
+    {
+        File[]      files = directory.listFiles();
+        if ( files != null )
+        {
+            for ( File f : files )
+            {
+                if ( f.isDirectory() )
+                {
+                    deleteDirectory(f);
+                }
+                else
+                {
+                    //noinspection ResultOfMethodCallIgnored
+                    f.delete();
+                }
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        directory.delete();
+    }
+
+    static byte[] toBytes(Record record) throws IOException
+    {
+        ByteArrayOutputStream   out = new ByteArrayOutputStream();
+        record.serialize(BinaryOutputArchive.getArchive(out), "txn");
+        return out.toByteArray();
+    }
+
+    private LogFileGenerator()
+    {
+    }
+}
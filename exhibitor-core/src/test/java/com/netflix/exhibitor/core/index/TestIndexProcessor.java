@@ -0,0 +1,278 @@
+/*
+ * Copyright 2012 Netflix, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.netflix.exhibitor.core.index;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+import com.netflix.exhibitor.core.Exhibitor;
+import com.netflix.exhibitor.core.activity.ActivityLog;
+import com.netflix.exhibitor.core.backup.BackupManager;
+import com.netflix.exhibitor.core.backup.BackupMetaData;
+import com.netflix.exhibitor.core.backup.BackupStream;
+import com.netflix.exhibitor.core.config.ConfigManager;
+import com.netflix.exhibitor.core.config.InstanceConfig;
+import com.netflix.exhibitor.core.config.StringConfigs;
+import org.apache.curator.utils.CloseableUtils;
+import org.apache.zookeeper.server.persistence.FileTxnLog;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class TestIndexProcessor
+{
+    private static final long   BASE_TIME = 1000000;
+
+    private File            directory;
+    private File            indexDirectory;
+    private FileTxnLog      txnLog;
+    private ActivityLog     log;
+    private BackupManager   backupManager;
+    private Exhibitor       exhibitor;
+    private long            nextZxid;
+
+    @BeforeMethod
+    public void setup() throws Exception
+    {
+        directory = Files.createTempDir();
+        indexDirectory = new File(directory, "index");
+        File            dataDirectory = new File(directory, "data");
+        File            logDirectory = new File(dataDirectory, "version-2");
+        Assert.assertTrue(logDirectory.mkdirs());
+
+        InstanceConfig  config = mock(InstanceConfig.class);
+        when(config.getString(StringConfigs.ZOOKEEPER_LOG_DIRECTORY)).thenReturn(dataDirectory.getPath());
+        ConfigManager   configManager = mock(ConfigManager.class);
+        when(configManager.getConfig()).thenReturn(config);
+        log = mock(ActivityLog.class);
+        backupManager = mock(BackupManager.class);
+        exhibitor = mock(Exhibitor.class);
+        when(exhibitor.getLog()).thenReturn(log);
+        when(exhibitor.getConfigManager()).thenReturn(configManager);
+        when(exhibitor.getBackupManager()).thenReturn(backupManager);
+
+        // log.1 is complete and log.1f is the active log - 60 entries
+        FileTxnLog.setPreallocSize(64 * 1024);
+        txnLog = new FileTxnLog(logDirectory);
+        nextZxid = LogFileGenerator.appendNodes(txnLog, "/log0", 10, 1, BASE_TIME);
+        txnLog.rollLog();
+        nextZxid = LogFileGenerator.appendNodes(txnLog, "/log1", 10, nextZxid, BASE_TIME);
+        txnLog.commit();
+
+        new IndexProcessor(exhibitor, 2, 2).process(indexDirectory, true);
+        assertIndex(60, 2);
+        verify(log).add(eq(ActivityLog.Type.INFO), eq("Index Build: indexing 0 backups and 2 active logs (2 fetch threads, 2 index threads)"));
+        reset(log);
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception
+    {
+        txnLog.close();
+        LogFileGenerator.deleteDirectory(directory);
+    }
+
+    @Test
+    public void testNothingNew() throws Exception
+    {
+        List<File>      shardDirectories = getShardDirectories();
+        new IndexProcessor(exhibitor, 2, 2).process(indexDirectory, true);
+        assertIndex(60, 2);
+
+        // log.1 is skipped as log.1f starts at the watermark + 1. The active log is always re-read
+        verify(log).add(ActivityLog.Type.DEBUG, "Index Build: skipping 1 logs that are already indexed (max zxid 0x3c)");
+        Assert.assertEquals(getShardDirectories().get(0), shardDirectories.get(0));
+        verify(log, never()).add(eq(ActivityLog.Type.INFO), anyString());
+        verify(log, never()).add(eq(ActivityLog.Type.ERROR), anyString(), any(Throwable.class));
+    }
+
+    @Test
+    public void testAppendedToActiveLog() throws Exception
+    {
+        List<File>      shardDirectories = getShardDirectories();
+        nextZxid = LogFileGenerator.appendNodes(txnLog, "/log2", 5, nextZxid, BASE_TIME);
+        txnLog.commit();
+
+        new IndexProcessor(exhibitor, 2, 2).process(indexDirectory, true);
+        assertIndex(75, 2);
+
+        // the active log's shard is replaced by a new generation
+        List<File>      updatedDirectories = getShardDirectories();
+        Assert.assertEquals(updatedDirectories.get(0), shardDirectories.get(0));
+        Assert.assertNotEquals(updatedDirectories.get(1), shardDirectories.get(1));
+        Assert.assertTrue(IndexShard.getGeneration(updatedDirectories.get(1)) > IndexShard.getGeneration(shardDirectories.get(1)));
+        verify(log, never()).add(eq(ActivityLog.Type.INFO), anyString());
+    }
+
+    @Test
+    public void testNewLog() throws Exception
+    {
+        List<File>      shardDirectories = getShardDirectories();
+        txnLog.rollLog();
+        nextZxid = LogFileGenerator.appendNodes(txnLog, "/log2", 10, nextZxid, BASE_TIME);
+        txnLog.commit();
+
+        new IndexProcessor(exhibitor, 2, 2).process(indexDirectory, true);
+        assertIndex(90, 3);
+
+        // log.1f is now complete and ends at the watermark - only the new log is indexed
+        verify(log).add(ActivityLog.Type.DEBUG, "Index Build: skipping 2 logs that are already indexed (max zxid 0x3c)");
+        Assert.assertEquals(getShardDirectories().subList(0, 2), shardDirectories);
+        verify(log, never()).add(eq(ActivityLog.Type.INFO), anyString());
+    }
+
+    @Test
+    public void testFailureRollsBack() throws Exception
+    {
+        List<File>      shardDirectories = getShardDirectories();
+        nextZxid = LogFileGenerator.appendNodes(txnLog, "/log2", 5, nextZxid, BASE_TIME);
+        txnLog.commit();
+
+        BackupMetaData  backup = new BackupMetaData("log.100", 1);
+        when(backupManager.isActive()).thenReturn(true);
+        when(backupManager.getAvailableBackups()).thenReturn(Arrays.asList(backup));
+        when(backupManager.getBackupStream(backup)).thenThrow(new IOException("test"));
+        try
+        {
+            new IndexProcessor(exhibitor, 2, 2).process(indexDirectory, true);
+            Assert.fail();
+        }
+        catch ( IOException expected )
+        {
+            // expected
+        }
+
+        // the previous index is left as it was
+        assertIndex(60, 2);
+        Assert.assertEquals(getShardDirectories(), shardDirectories);
+    }
+
+    @Test
+    public void testBackupsWithMultipleThreads() throws Exception
+    {
+        for ( int i = 2; i < 6; ++i )
+        {
+            txnLog.rollLog();
+            nextZxid = LogFileGenerator.appendNodes(txnLog, "/log" + i, 10, nextZxid, BASE_TIME);
+        }
+        txnLog.commit();
+
+        // all but the active log have been backed up and purged
+        File[]                      logs = ZooKeeperLogFiles.getDataDir(exhibitor).listFiles();
+        Assert.assertNotNull(logs);
+        Arrays.sort(logs);
+        Assert.assertEquals(logs.length, 6);
+        final Map<BackupMetaData, byte[]>   backups = Maps.newLinkedHashMap();
+        for ( int i = 0; i < (logs.length - 1); ++i )
+        {
+            ByteArrayOutputStream   bytes = new ByteArrayOutputStream();
+            OutputStream            out = new GZIPOutputStream(bytes);
+            Files.copy(logs[i], out);
+            out.close();
+            backups.put(new BackupMetaData(logs[i].getName(), i), bytes.toByteArray());
+            Assert.assertTrue(logs[i].delete());
+        }
+        when(backupManager.isActive()).thenReturn(true);
+        when(backupManager.getAvailableBackups()).thenReturn(Lists.newArrayList(backups.keySet()));
+        when(backupManager.getBackupStream(any(BackupMetaData.class))).thenAnswer
+        (
+            new Answer<BackupStream>()
+            {
+                @Override
+                public BackupStream answer(InvocationOnMock invocation) throws Throwable
+                {
+                    final InputStream   in = new ByteArrayInputStream(backups.get((BackupMetaData)invocation.getArguments()[0]));
+                    return new BackupStream()
+                    {
+                        @Override
+                        public InputStream getStream()
+                        {
+                            return in;
+                        }
+
+                        @Override
+                        public void close() throws IOException
+                        {
+                            in.close();
+                        }
+                    };
+                }
+            }
+        );
+
+        LogFileGenerator.deleteDirectory(indexDirectory);
+        new IndexProcessor(exhibitor, 3, 4).process(indexDirectory, false);
+        assertIndex(180, 6);
+        verify(log).add(eq(ActivityLog.Type.INFO), eq("Index Build: indexing 5 backups and 1 active logs (3 fetch threads, 4 index threads)"));
+        verify(log, never()).add(eq(ActivityLog.Type.ERROR), anyString());
+    }
+
+    private void assertIndex(int entryCount, int shardQty) throws Exception
+    {
+        IndexMetaData   metaData = IndexMetaData.read(IndexMetaData.getMetaDataFile(indexDirectory));
+        Assert.assertEquals(metaData.getEntryCount(), entryCount);
+        Assert.assertEquals(metaData.getMinZxid(), 1);
+        Assert.assertEquals(metaData.getMaxZxid(), entryCount);
+        Assert.assertEquals(IndexShard.getShards(indexDirectory).size(), shardQty);
+
+        LogSearch       logSearch = new LogSearch(indexDirectory);
+        try
+        {
+            Assert.assertEquals(logSearch.getDocQty(), entryCount);
+            for ( int i = 0; i < entryCount; ++i )
+            {
+                Assert.assertEquals(logSearch.toResult(i).getDate().getTime(), BASE_TIME + ((i + 1) * 1000));
+            }
+        }
+        finally
+        {
+            CloseableUtils.closeQuietly(logSearch);
+        }
+    }
+
+    private List<File> getShardDirectories() throws Exception
+    {
+        List<File>      directories = Lists.newArrayList();
+        for ( IndexShard shard : IndexShard.getShards(indexDirectory) )
+        {
+            directories.add(shard.getDirectory());
+        }
+        return directories;
+    }
+}
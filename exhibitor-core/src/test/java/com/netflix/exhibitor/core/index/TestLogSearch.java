@@ -0,0 +1,531 @@
+/*
+ * Copyright 2012 Netflix, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.netflix.exhibitor.core.index;
+
+import com.google.common.collect.Iterables;
+import com.google.common.io.Files;
+import com.netflix.exhibitor.core.activity.ActivityLog;
+import org.apache.curator.utils.CloseableUtils;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TopDocs;
+import org.mockito.Mockito;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import java.io.File;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class TestLogSearch
+{
+    private static final long   BASE_TIME = 1000000;
+
+    private File        directory;
+    private File        logDirectory;
+    private File        indexDirectory;
+
+    @BeforeMethod
+    public void setup() throws Exception
+    {
+        directory = Files.createTempDir();
+        logDirectory = new File(directory, "logs");
+        indexDirectory = new File(directory, "index");
+        LogFileGenerator.writeLogs(logDirectory, 3, 10, BASE_TIME);
+
+        IndexBuilder    builder = new IndexBuilder(indexDirectory);
+        builder.open();
+        for ( File f : getLogs() )
+        {
+            builder.add(f, f.getName());
+        }
+        builder.writeMetaData();
+    }
+
+    @AfterMethod
+    public void tearDown()
+    {
+        LogFileGenerator.deleteDirectory(directory);
+    }
+
+    @Test
+    public void testShards() throws Exception
+    {
+        Assert.assertEquals(IndexShard.getShards(indexDirectory).size(), 3);
+        Assert.assertFalse(IndexShard.isLegacy(indexDirectory));
+
+        IndexMetaData   metaData = IndexMetaData.read(IndexMetaData.getMetaDataFile(indexDirectory));
+        Assert.assertEquals(metaData.getEntryCount(), 90);
+        Assert.assertEquals(metaData.getMinZxid(), 1);
+        Assert.assertEquals(metaData.getMaxZxid(), 90);
+
+        LogSearch       logSearch = new LogSearch(indexDirectory);
+        try
+        {
+            Assert.assertEquals(logSearch.getDocQty(), 90);
+            Assert.assertEquals(logSearch.getOpenShardQty(), 0);
+
+            // every global doc id resolves
+            for ( int i = 0; i < logSearch.getDocQty(); ++i )
+            {
+                Assert.assertNotNull(logSearch.toResult(i));
+            }
+            Assert.assertEquals(logSearch.getOpenShardQty(), 3);
+        }
+        finally
+        {
+            CloseableUtils.closeQuietly(logSearch);
+        }
+    }
+
+    @Test
+    public void testDateRangeOpensOnlyOverlappingShards() throws Exception
+    {
+        LogSearch       logSearch = new LogSearch(indexDirectory);
+        try
+        {
+            // zxids 35 - 44 are all in the second log
+            Query       query = QueryBuilder.builder()
+                .dateRange(new Date(BASE_TIME + (35 * 1000)), new Date(BASE_TIME + (45 * 1000)))
+                .operationType(EntryTypes.DELETE.getId())
+                .build(QueryBuilder.Type.AND);
+            TopDocs     docs = logSearch.search(query, 100);
+            Assert.assertEquals(docs.totalHits, 3);
+            Assert.assertEquals(logSearch.getOpenShardQty(), 1);
+
+            // newest first
+            Assert.assertEquals(logSearch.toResult(docs.scoreDocs[0].doc).getDate().getTime(), BASE_TIME + (42 * 1000));
+            Assert.assertEquals(logSearch.toResult(docs.scoreDocs[2].doc).getDate().getTime(), BASE_TIME + (36 * 1000));
+            for ( int i = 0; i < docs.scoreDocs.length; ++i )
+            {
+                Assert.assertEquals(logSearch.toResult(docs.scoreDocs[i].doc).getType(), EntryTypes.DELETE.getId());
+            }
+        }
+        finally
+        {
+            CloseableUtils.closeQuietly(logSearch);
+        }
+    }
+
+    @Test
+    public void testMergeAcrossShards() throws Exception
+    {
+        LogSearch       logSearch = new LogSearch(indexDirectory);
+        try
+        {
+            Query       query = QueryBuilder.builder().operationType(EntryTypes.SET_DATA.getId()).build(QueryBuilder.Type.AND);
+            TopDocs     docs = logSearch.search(query, 5);
+            Assert.assertEquals(docs.totalHits, 30);
+            Assert.assertEquals(docs.scoreDocs.length, 5);
+            Assert.assertEquals(logSearch.toResult(docs.scoreDocs[0].doc).getDate().getTime(), BASE_TIME + (89 * 1000));
+            Assert.assertEquals(logSearch.toResult(docs.scoreDocs[4].doc).getDate().getTime(), BASE_TIME + (77 * 1000));
+        }
+        finally
+        {
+            CloseableUtils.closeQuietly(logSearch);
+        }
+    }
+
+    @Test
+    public void testBatchResults() throws Exception
+    {
+        LogSearch       logSearch = new LogSearch(indexDirectory);
+        try
+        {
+            // deliberately out of doc id order and spanning all shards
+            int[]               docIds = new int[]{85, 3, 47, 12, 60, 3};
+            List<SearchItem>    items = logSearch.toResults(docIds);
+            Assert.assertEquals(items.size(), docIds.length);
+            for ( int i = 0; i < docIds.length; ++i )
+            {
+                SearchItem      expected = logSearch.toResult(docIds[i]);
+                SearchItem      actual = items.get(i);
+                Assert.assertEquals(actual.getType(), expected.getType());
+                Assert.assertEquals(actual.getPath(), expected.getPath());
+                Assert.assertEquals(actual.getDate(), expected.getDate());
+                Assert.assertEquals(actual.getVersion(), expected.getVersion());
+            }
+
+            Assert.assertTrue(logSearch.toResults(new int[0]).isEmpty());
+            Assert.assertNotNull(logSearch.toData(docIds[0]));
+        }
+        finally
+        {
+            CloseableUtils.closeQuietly(logSearch);
+        }
+    }
+
+    @Test
+    public void testCachedSearch() throws Exception
+    {
+        SearchCache     searchCache = new SearchCache(1024 * 1024, 5, TimeUnit.MINUTES);
+        LogSearch       logSearch = new LogSearch(indexDirectory, null, searchCache);
+        try
+        {
+            Query           query = QueryBuilder.builder().operationType(EntryTypes.SET_DATA.getId()).build(QueryBuilder.Type.AND);
+            TopDocs         docs = logSearch.search(query, 100);
+            String          id = logSearch.cacheSearch(query, null, 100);
+            CachedSearch    cachedSearch = logSearch.getCachedSearch(id);
+            Assert.assertEquals(cachedSearch.getTotalHits(), docs.totalHits);
+            for ( int i = 0; i < docs.scoreDocs.length; ++i )
+            {
+                Assert.assertEquals(cachedSearch.getNthDocId(i), docs.scoreDocs[i].doc);
+            }
+            Assert.assertEquals(searchCache.getSize(), 1);
+            Assert.assertTrue(searchCache.getCurrentWeight() > 0);
+
+            // every doc, newest first, is a run of consecutive ids - no array is retained
+            Query           allQuery = QueryBuilder.builder().dateRange(new Date(0), new Date(BASE_TIME * 2)).build(QueryBuilder.Type.AND);
+            String          allId = logSearch.cacheSearch(allQuery, null, 0);
+            CachedSearch    allSearch = logSearch.getCachedSearch(allId);
+            Assert.assertEquals(allSearch.getTotalHits(), logSearch.getDocQty());
+            Assert.assertEquals(allSearch.getNthDocId(0), logSearch.getDocQty() - 1);
+            Assert.assertTrue(allSearch.getWeight() < cachedSearch.getWeight());
+
+            logSearch.releaseCache(id);
+            logSearch.releaseCache(allId);
+            Assert.assertEquals(searchCache.getSize(), 0);
+            Assert.assertEquals(searchCache.getCurrentWeight(), 0);
+            Assert.assertEquals(searchCache.getSizeEvictions(), 0);
+        }
+        finally
+        {
+            CloseableUtils.closeQuietly(logSearch);
+        }
+    }
+
+    @Test
+    public void testSearchCacheWeightBound() throws Exception
+    {
+        SearchCache     searchCache = new SearchCache(1, 5, TimeUnit.MINUTES);
+        LogSearch       logSearch = new LogSearch(indexDirectory, null, searchCache);
+        try
+        {
+            Query       query = QueryBuilder.builder().operationType(EntryTypes.DELETE.getId()).build(QueryBuilder.Type.AND);
+            String      id = logSearch.cacheSearch(query, null, 100);
+            logSearch.cacheSearch(query, null, 100);
+
+            Assert.assertEquals(searchCache.getSize(), 0);
+            Assert.assertEquals(searchCache.getSizeEvictions(), 2);
+            Assert.assertEquals(searchCache.getCurrentWeight(), 0);
+
+            // an evicted handle falls back to all docs
+            Assert.assertEquals(logSearch.getCachedSearch(id).getTotalHits(), logSearch.getDocQty());
+        }
+        finally
+        {
+            CloseableUtils.closeQuietly(logSearch);
+        }
+    }
+
+    @Test
+    public void testSessionEntries() throws Exception
+    {
+        File            sessionLogDirectory = new File(directory, "session-logs");
+        File            sessionIndexDirectory = new File(directory, "session-index");
+        LogFileGenerator.writeSessionLog(sessionLogDirectory, BASE_TIME);
+
+        File[]          logs = sessionLogDirectory.listFiles();
+        Assert.assertNotNull(logs);
+        IndexBuilder    builder = new IndexBuilder(sessionIndexDirectory);
+        builder.open();
+        builder.add(logs[0], logs[0].getName());
+        builder.writeMetaData();
+        Assert.assertEquals(builder.getCurrentCount(), 7);  // the multi is indexed as its 3 sub-ops
+
+        LogSearch       logSearch = new LogSearch(sessionIndexDirectory);
+        try
+        {
+            TopDocs     docs = logSearch.search(QueryBuilder.builder().sessionId(0x100).build(QueryBuilder.Type.AND), 100);
+            Assert.assertEquals(docs.totalHits, 5);
+
+            docs = logSearch.search(QueryBuilder.builder().zxidRange(2, 3).build(QueryBuilder.Type.AND), 100);
+            Assert.assertEquals(docs.totalHits, 3);
+            for ( int i = 0; i < docs.scoreDocs.length; ++i )
+            {
+                SearchItem  item = logSearch.toResult(docs.scoreDocs[i].doc);
+                Assert.assertEquals(item.getZxid(), 2);
+                Assert.assertEquals(item.getSessionId(), 0x100);
+                Assert.assertTrue(item.getPath().startsWith("/multi/"));
+            }
+
+            docs = logSearch.search(QueryBuilder.builder().operationType(EntryTypes.CLOSE_SESSION.getId()).build(QueryBuilder.Type.AND), 100);
+            Assert.assertEquals(docs.totalHits, 1);
+            SearchItem  closeItem = logSearch.toResult(docs.scoreDocs[0].doc);
+            Assert.assertNull(closeItem.getPath());
+            Assert.assertEquals(closeItem.getZxid(), 5);
+
+            docs = logSearch.search(QueryBuilder.builder().sessionId(0x200).operationType(EntryTypes.SET_ACL.getId()).build(QueryBuilder.Type.AND), 100);
+            Assert.assertEquals(docs.totalHits, 1);
+            SearchItem  aclItem = logSearch.toResult(docs.scoreDocs[0].doc);
+            Assert.assertEquals(aclItem.getPath(), "/acl");
+            Assert.assertEquals(aclItem.getVersion(), 4);
+
+            docs = logSearch.search(QueryBuilder.builder().operationType(EntryTypes.ERROR.getId()).build(QueryBuilder.Type.AND), 100);
+            Assert.assertEquals(docs.totalHits, 1);
+            docs = logSearch.search(QueryBuilder.builder().operationType(EntryTypes.CREATE_SESSION.getId()).build(QueryBuilder.Type.AND), 100);
+            Assert.assertEquals(docs.totalHits, 1);
+        }
+        finally
+        {
+            CloseableUtils.closeQuietly(logSearch);
+        }
+    }
+
+    @Test
+    public void testAggregation() throws Exception
+    {
+        LogSearch       logSearch = new LogSearch(indexDirectory);
+        try
+        {
+            Aggregation         aggregation = Aggregation.builder()
+                .dateHistogram(10 * 1000)
+                .topTerms(Aggregation.TermField.TYPE, 10)
+                .topTerms(Aggregation.TermField.PATH, 2);
+            AggregationResult   result = logSearch.aggregate(null, aggregation);
+            Assert.assertEquals(result.getTotalHits(), 90);
+            Assert.assertEquals(result.getHistogramIntervalMs(), 10 * 1000);
+
+            // zxids 1 - 9 fall in the first bucket, 90 is alone in the last
+            List<AggregationResult.Bucket>  histogram = result.getHistogram();
+            Assert.assertEquals(histogram.size(), 10);
+            Assert.assertEquals(histogram.get(0).getStartMs(), BASE_TIME);
+            Assert.assertEquals(histogram.get(0).getCount(), 9);
+            Assert.assertEquals(histogram.get(9).getCount(), 1);
+            int         total = 0;
+            for ( AggregationResult.Bucket bucket : histogram )
+            {
+                total += bucket.getCount();
+            }
+            Assert.assertEquals(total, 90);
+
+            List<AggregationResult.TermCount>   types = result.getTopTerms(Aggregation.TermField.TYPE);
+            Assert.assertEquals(types.size(), 3);
+            for ( AggregationResult.TermCount type : types )
+            {
+                Assert.assertEquals(type.getCount(), 30);
+            }
+            List<AggregationResult.TermCount>   paths = result.getTopTerms(Aggregation.TermField.PATH);
+            Assert.assertEquals(paths.size(), 2);
+            Assert.assertEquals(paths.get(0).getCount(), 3);
+            Assert.assertTrue(result.getTopTerms(Aggregation.TermField.SESSION).isEmpty());
+
+            Query               query = QueryBuilder.builder()
+                .operationType(EntryTypes.SET_DATA.getId())
+                .dateRange(new Date(BASE_TIME + (35 * 1000)), new Date(BASE_TIME + (65 * 1000)))
+                .build(QueryBuilder.Type.AND);
+            result = logSearch.aggregate(query, Aggregation.builder().topTerms(Aggregation.TermField.SESSION, 5));
+            Assert.assertEquals(result.getTotalHits(), logSearch.search(query, 100).totalHits);
+            Assert.assertEquals(result.getTopTerms(Aggregation.TermField.SESSION).get(0).getCount(), result.getTotalHits());
+            Assert.assertTrue(result.getHistogram().isEmpty());
+        }
+        finally
+        {
+            CloseableUtils.closeQuietly(logSearch);
+        }
+    }
+
+    @Test
+    public void testReindexReplacesShard() throws Exception
+    {
+        File[]          logs = getLogs();
+        IndexBuilder    builder = new IndexBuilder(indexDirectory);
+        builder.open();
+        builder.add(logs[logs.length - 1], logs[logs.length - 1].getName());
+        builder.writeMetaData();
+
+        Assert.assertEquals(IndexShard.getShards(indexDirectory).size(), 3);
+        IndexMetaData   metaData = IndexMetaData.read(IndexMetaData.getMetaDataFile(indexDirectory));
+        Assert.assertEquals(metaData.getEntryCount(), 90);
+    }
+
+    @Test
+    public void testReopen() throws Exception
+    {
+        File[]          logs = getLogs();
+        File            rollingDirectory = new File(directory, "rolling");
+        IndexBuilder    builder = new IndexBuilder(rollingDirectory);
+        builder.open();
+        builder.add(logs[0], logs[0].getName());
+        builder.add(logs[1], logs[1].getName());
+        builder.writeMetaData();
+
+        LogSearch       logSearch = new LogSearch(rollingDirectory);
+        LogSearch       newLogSearch = null;
+        try
+        {
+            Assert.assertEquals(logSearch.getDocQty(), 60);
+            Assert.assertNull(logSearch.reopen());
+
+            logSearch.toResult(0);  // opens the first shard
+            Assert.assertEquals(logSearch.getOpenShardQty(), 1);
+
+            builder = new IndexBuilder(rollingDirectory);
+            builder.open();
+            builder.add(logs[2], logs[2].getName());
+            builder.writeMetaData();
+
+            newLogSearch = logSearch.reopen();
+            Assert.assertNotNull(newLogSearch);
+            Assert.assertEquals(newLogSearch.getDocQty(), 90);
+            Assert.assertEquals(newLogSearch.getOpenShardQty(), 2);  // the shared shard and the warmed new shard
+
+            // the old instance still works and closing it leaves the shared shard open
+            Assert.assertEquals(logSearch.getDocQty(), 60);
+            logSearch.close();
+            logSearch = null;
+            Assert.assertEquals(newLogSearch.getOpenShardQty(), 2);
+            Assert.assertNotNull(newLogSearch.toResult(89));
+        }
+        finally
+        {
+            CloseableUtils.closeQuietly(logSearch);
+            CloseableUtils.closeQuietly(newLogSearch);
+        }
+    }
+
+    @Test
+    public void testCachedSearchesRefreshedOnReopen() throws Exception
+    {
+        File[]          logs = getLogs();
+        File            rollingDirectory = new File(directory, "rolling");
+        IndexBuilder    builder = new IndexBuilder(rollingDirectory);
+        builder.open();
+        builder.add(logs[0], logs[0].getName());
+        builder.writeMetaData();
+
+        SearchCache     searchCache = new SearchCache(1024 * 1024, 5, TimeUnit.MINUTES);
+        LogSearch       logSearch = new LogSearch(rollingDirectory, null, searchCache);
+        LogSearch       newLogSearch = null;
+        try
+        {
+            Query       allQuery = QueryBuilder.builder().dateRange(new Date(0), new Date(BASE_TIME * 2)).build(QueryBuilder.Type.AND);
+            String      id = logSearch.cacheSearch(allQuery, null, 0);
+            Assert.assertEquals(logSearch.getCachedSearch(id).getTotalHits(), 30);
+
+            builder = new IndexBuilder(rollingDirectory);
+            builder.open();
+            builder.add(logs[1], logs[1].getName());
+            builder.writeMetaData();
+
+            newLogSearch = logSearch.reopen();
+            Assert.assertNotNull(newLogSearch);
+            newLogSearch.refreshCachedSearches();
+            Assert.assertEquals(Iterables.getOnlyElement(searchCache.getEntries("").values()).generation, 1);
+
+            // the old instance re-runs for itself but doesn't replace the newer entry
+            Assert.assertEquals(logSearch.getCachedSearch(id).getTotalHits(), 30);
+            Assert.assertEquals(Iterables.getOnlyElement(searchCache.getEntries("").values()).generation, 1);
+
+            Assert.assertEquals(newLogSearch.getCachedSearch(id).getTotalHits(), 60);
+            Assert.assertEquals(searchCache.getSize(), 1);
+        }
+        finally
+        {
+            CloseableUtils.closeQuietly(logSearch);
+            CloseableUtils.closeQuietly(newLogSearch);
+        }
+    }
+
+    @Test
+    public void testIndexCacheSwapsInUpdatedIndex() throws Exception
+    {
+        File[]          logs = getLogs();
+        File            rollingDirectory = new File(directory, "rolling");
+        IndexBuilder    builder = new IndexBuilder(rollingDirectory);
+        builder.open();
+        builder.add(logs[0], logs[0].getName());
+        builder.writeMetaData();
+
+        IndexCache      indexCache = new IndexCache(Mockito.mock(ActivityLog.class));
+        try
+        {
+            LogSearch   inUse = indexCache.getLogSearch(rollingDirectory);
+            Assert.assertEquals(inUse.getDocQty(), 30);
+
+            builder = new IndexBuilder(rollingDirectory);
+            builder.open();
+            builder.add(logs[1], logs[1].getName());
+            builder.writeMetaData();
+            indexCache.indexUpdated(rollingDirectory);
+
+            LogSearch   updated = indexCache.getLogSearch(rollingDirectory);
+            Assert.assertNotSame(updated, inUse);
+            Assert.assertEquals(updated.getDocQty(), 60);
+            Assert.assertEquals(indexCache.getMetaData(rollingDirectory).getEntryCount(), 60);
+
+            // the earlier instance is still usable until it is released
+            Assert.assertNotNull(inUse.toResult(29));
+            indexCache.releaseLogSearch(inUse);
+            indexCache.releaseLogSearch(updated);
+        }
+        finally
+        {
+            indexCache.close();
+        }
+    }
+
+    @Test
+    public void testReplacedShardKeptUntilReleased() throws Exception
+    {
+        File[]          logs = getLogs();
+        File            rollingDirectory = new File(directory, "rolling");
+        IndexBuilder    builder = new IndexBuilder(rollingDirectory);
+        builder.open();
+        builder.add(logs[0], logs[0].getName());
+        builder.writeMetaData();
+        File            replacedDirectory = Iterables.getOnlyElement(IndexShard.getShards(rollingDirectory)).getDirectory();
+
+        IndexCache      indexCache = new IndexCache(Mockito.mock(ActivityLog.class));
+        try
+        {
+            LogSearch   inUse = indexCache.getLogSearch(rollingDirectory);
+            Assert.assertEquals(inUse.getOpenShardQty(), 0);    // the shard is opened lazily - after the update
+
+            builder = new IndexBuilder(rollingDirectory);
+            builder.open();
+            builder.add(logs[0], logs[0].getName());
+            builder.add(logs[1], logs[1].getName());
+            builder.writeMetaData();
+            indexCache.indexUpdated(rollingDirectory);
+
+            Assert.assertTrue(replacedDirectory.exists());
+            Assert.assertNotNull(inUse.toResult(0));
+            indexCache.releaseLogSearch(inUse);
+            Assert.assertFalse(replacedDirectory.exists());
+
+            LogSearch   updated = indexCache.getLogSearch(rollingDirectory);
+            Assert.assertEquals(updated.getDocQty(), 60);
+            Assert.assertEquals(IndexShard.getShards(rollingDirectory).size(), 2);
+            indexCache.releaseLogSearch(updated);
+        }
+        finally
+        {
+            indexCache.close();
+        }
+    }
+
+    private File[] getLogs()
+    {
+        File[]      logs = logDirectory.listFiles();
+        Assert.assertNotNull(logs);
+        Arrays.sort(logs);
+        return logs;
+    }
+}
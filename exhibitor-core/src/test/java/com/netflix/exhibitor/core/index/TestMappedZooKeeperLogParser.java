@@ -0,0 +1,139 @@
+/*
+ * Copyright 2012 Netflix, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.netflix.exhibitor.core.index;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import org.apache.curator.utils.CloseableUtils;
+import org.apache.jute.Record;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.server.persistence.FileTxnLog;
+import org.apache.zookeeper.txn.CreateTxn;
+import org.apache.zookeeper.txn.DeleteTxn;
+import org.apache.zookeeper.txn.SetACLTxn;
+import org.apache.zookeeper.txn.SetDataTxn;
+import org.apache.zookeeper.txn.TxnHeader;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.List;
+
+public class TestMappedZooKeeperLogParser
+{
+    @Test
+    public void testMatchesStreamParser() throws Exception
+    {
+        File        directory = Files.createTempDir();
+        try
+        {
+            FileTxnLog  txnLog = new FileTxnLog(directory);
+            try
+            {
+                long    zxid = 1;
+                for ( int i = 0; i < 100; ++i )
+                {
+                    String  path = "/test/node-" + i;
+                    txnLog.append(new TxnHeader(1, i, zxid++, System.currentTimeMillis(), ZooDefs.OpCode.create), new CreateTxn(path, ("data" + i).getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, (i % 2) == 0, i));
+                    txnLog.append(new TxnHeader(1, i, zxid++, System.currentTimeMillis(), ZooDefs.OpCode.setData), new SetDataTxn(path, null, i));
+                    txnLog.append(new TxnHeader(1, i, zxid++, System.currentTimeMillis(), ZooDefs.OpCode.setACL), new SetACLTxn(path, ZooDefs.Ids.READ_ACL_UNSAFE, 1));
+                    txnLog.append(new TxnHeader(1, i, zxid++, System.currentTimeMillis(), ZooDefs.OpCode.delete), new DeleteTxn(path));
+                }
+                txnLog.commit();
+            }
+            finally
+            {
+                txnLog.close();
+            }
+
+            File[]      files = directory.listFiles();
+            Assert.assertNotNull(files);
+            Assert.assertEquals(files.length, 1);
+            File        logFile = files[0];
+
+            List<String>    streamEntries = Lists.newArrayList();
+            InputStream     in = new BufferedInputStream(new FileInputStream(logFile));
+            try
+            {
+                ZooKeeperLogParser  parser = new ZooKeeperLogParser(in);
+                Assert.assertTrue(parser.isValid());
+                parser.parse(makeReceiver(streamEntries));
+            }
+            finally
+            {
+                CloseableUtils.closeQuietly(in);
+            }
+
+            List<String>                mappedEntries = Lists.newArrayList();
+            MappedZooKeeperLogParser    parser = new MappedZooKeeperLogParser(logFile);
+            Assert.assertTrue(parser.isValid());
+            parser.parse(makeReceiver(mappedEntries));
+
+            Assert.assertEquals(mappedEntries.size(), 400);
+            Assert.assertEquals(mappedEntries, streamEntries);
+        }
+        finally
+        {
+            deleteDirectory(directory);
+        }
+    }
+
+    @Test
+    public void testInvalidFile() throws Exception
+    {
+        File        tempFile = File.createTempFile("temp", ".temp");
+        try
+        {
+            Files.write("not a transaction log".getBytes(), tempFile);
+            Assert.assertFalse(new MappedZooKeeperLogParser(tempFile).isValid());
+        }
+        finally
+        {
+            //noinspection ResultOfMethodCallIgnored
+            tempFile.delete();
+        }
+    }
+
+    private LogEntryReceiver makeReceiver(final List<String> entries)
+    {
+        return new LogEntryReceiver()
+        {
+            @Override
+            public void receiveEntry(TxnHeader header, Record record) throws Exception
+            {
+                entries.add(header.toString() + record.toString());
+            }
+        };
+    }
+
+    private void deleteDirectory(File directory)
+    {
+        File[]      files = directory.listFiles();
+        if ( files != null )
+        {
+            for ( File f : files )
+            {
+                //noinspection ResultOfMethodCallIgnored
+                f.delete();
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        directory.delete();
+    }
+}
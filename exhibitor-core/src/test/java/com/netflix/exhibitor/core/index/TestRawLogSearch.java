@@ -0,0 +1,146 @@
+/*
+ * Copyright 2012 Netflix, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.netflix.exhibitor.core.index;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import com.netflix.exhibitor.core.Exhibitor;
+import com.netflix.exhibitor.core.backup.BackupManager;
+import com.netflix.exhibitor.core.config.ConfigManager;
+import com.netflix.exhibitor.core.config.InstanceConfig;
+import com.netflix.exhibitor.core.config.IntConfigs;
+import com.netflix.exhibitor.core.config.StringConfigs;
+import org.apache.jute.Record;
+import org.apache.zookeeper.txn.TxnHeader;
+import org.mockito.Mockito;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import java.io.File;
+import java.util.Date;
+import java.util.List;
+
+public class TestRawLogSearch
+{
+    private static final long   BASE_TIME = 1000000;
+
+    private File        directory;
+    private Exhibitor   exhibitor;
+
+    @BeforeMethod
+    public void setup() throws Exception
+    {
+        directory = Files.createTempDir();
+        LogFileGenerator.writeLogs(new File(directory, "version-2"), 3, 10, BASE_TIME);
+
+        final String    dataDirectory = directory.getPath();
+        InstanceConfig  config = new InstanceConfig()
+        {
+            @Override
+            public String getString(StringConfigs config)
+            {
+                return (config == StringConfigs.ZOOKEEPER_DATA_DIRECTORY) ? dataDirectory : null;
+            }
+
+            @Override
+            public int getInt(IntConfigs config)
+            {
+                return 0;
+            }
+        };
+        ConfigManager   configManager = Mockito.mock(ConfigManager.class);
+        Mockito.when(configManager.getConfig()).thenReturn(config);
+        BackupManager   backupManager = Mockito.mock(BackupManager.class);
+        Mockito.when(backupManager.isActive()).thenReturn(false);
+
+        exhibitor = Mockito.mock(Exhibitor.class, Mockito.RETURNS_MOCKS);
+        Mockito.when(exhibitor.getConfigManager()).thenReturn(configManager);
+        Mockito.when(exhibitor.getBackupManager()).thenReturn(backupManager);
+    }
+
+    @AfterMethod
+    public void tearDown()
+    {
+        LogFileGenerator.deleteDirectory(directory);
+    }
+
+    @Test
+    public void testPathAndType() throws Exception
+    {
+        LogEntryFilter  filter = LogEntryFilter.builder().pathPrefix("/log1/").operationType(EntryTypes.DELETE.getId());
+        List<Long>      zxids = search(filter, 100);
+        Assert.assertEquals(zxids.size(), 10);
+        for ( long zxid : zxids )
+        {
+            Assert.assertTrue((zxid > 30) && (zxid <= 60));
+            Assert.assertEquals(zxid % 3, 0);
+        }
+    }
+
+    @Test
+    public void testDateRange() throws Exception
+    {
+        LogEntryFilter  filter = LogEntryFilter.builder().dateRange(new Date(BASE_TIME + (35 * 1000)), new Date(BASE_TIME + (45 * 1000)));
+        List<Long>      zxids = search(filter, 100);
+        Assert.assertEquals(zxids.size(), 10);
+        Assert.assertEquals(zxids.get(0).longValue(), 35);
+        Assert.assertEquals(zxids.get(9).longValue(), 44);
+    }
+
+    @Test
+    public void testMaxResults() throws Exception
+    {
+        LogEntryFilter  filter = LogEntryFilter.builder().operationType(EntryTypes.SET_DATA.getId());
+        List<Long>      zxids = search(filter, 15);
+        Assert.assertEquals(zxids.size(), 15);
+        Assert.assertEquals(zxids.get(0).longValue(), 2);
+        Assert.assertEquals(zxids.get(14).longValue(), 44);
+    }
+
+    @Test
+    public void testSkipsLogs()
+    {
+        LogEntryFilter  filter = LogEntryFilter.builder().zxidRange(31, 61);
+        Assert.assertTrue(filter.canSkip(1, 30, Long.MAX_VALUE));
+        Assert.assertFalse(filter.canSkip(31, 60, Long.MAX_VALUE));
+        Assert.assertTrue(filter.canSkip(61, Long.MAX_VALUE, Long.MAX_VALUE));
+
+        filter = LogEntryFilter.builder().dateRange(new Date(BASE_TIME), new Date(BASE_TIME + 1000));
+        Assert.assertTrue(filter.canSkip(1, 30, BASE_TIME - 1));
+        Assert.assertFalse(filter.canSkip(1, 30, BASE_TIME));
+    }
+
+    private List<Long> search(LogEntryFilter filter, int maxResults) throws Exception
+    {
+        final List<Long>    zxids = Lists.newArrayList();
+        RawLogSearch        search = new RawLogSearch(exhibitor, filter, maxResults, false);
+        int                 count = search.search
+        (
+            new LogEntryReceiver()
+            {
+                @Override
+                public void receiveEntry(TxnHeader header, Record record) throws Exception
+                {
+                    zxids.add(header.getZxid());
+                }
+            }
+        );
+        Assert.assertEquals(count, zxids.size());
+        return zxids;
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2012 Netflix, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.netflix.exhibitor.core.index;
+
+import com.google.common.collect.Lists;
+import org.apache.jute.Record;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.txn.CreateTxn;
+import org.apache.zookeeper.txn.MultiTxn;
+import org.apache.zookeeper.txn.SetACLTxn;
+import org.apache.zookeeper.txn.SetDataTxn;
+import org.apache.zookeeper.txn.Txn;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import java.util.List;
+
+public class TestTxnRecords
+{
+    @Test
+    public void testUnknownMultiOpSkipped() throws Exception
+    {
+        int         create2 = 15;   // ZooKeeper 3.5+ - not known to this version
+        List<Txn>   txns = Lists.newArrayList();
+        txns.add(new Txn(ZooDefs.OpCode.setData, LogFileGenerator.toBytes(new SetDataTxn("/a", "data".getBytes(), 1))));
+        txns.add(new Txn(create2, LogFileGenerator.toBytes(new CreateTxn("/b", new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, false, 0))));
+        txns.add(new Txn(ZooDefs.OpCode.setACL, LogFileGenerator.toBytes(new SetACLTxn("/c", ZooDefs.Ids.OPEN_ACL_UNSAFE, 2))));
+
+        List<Record>    operations = TxnRecords.getOperations(new MultiTxn(txns));
+        Assert.assertEquals(operations.size(), 2);
+        Assert.assertEquals(TxnRecords.getPath(operations.get(0)), "/a");
+        Assert.assertEquals(TxnRecords.getPath(operations.get(1)), "/c");
+        Assert.assertEquals(TxnRecords.getVersion(operations.get(1)), 2);
+    }
+}
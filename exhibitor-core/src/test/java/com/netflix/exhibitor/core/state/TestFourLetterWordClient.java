@@ -0,0 +1,261 @@
+/*
+ * Copyright 2012 Netflix, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.netflix.exhibitor.core.state;
+
+import com.google.common.base.Charsets;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.apache.curator.utils.CloseableUtils;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TestFourLetterWordClient
+{
+    @Test
+    public void testResponse() throws Exception
+    {
+        FakeServer              server = new FakeServer(0);
+        FourLetterWordClient    client = new FourLetterWordClient(0, 0);
+        try
+        {
+            FourLetterWord      ruok = client.get(FourLetterWord.Word.RUOK, "localhost", server.getPort(), 5000);
+            Assert.assertEquals(ruok.getResponse(), "imok");
+
+            FourLetterWord      srvr = client.get(FourLetterWord.Word.SRVR, "localhost", server.getPort(), 5000);
+            Assert.assertEquals(srvr.getResponseLines(), Arrays.asList("Zookeeper version: 3.4.5", "", "Mode: leader"));
+            Assert.assertEquals(srvr.getResponseMap().get("mode"), " leader");
+            Assert.assertEquals(server.connections.get(), 2);
+        }
+        finally
+        {
+            CloseableUtils.closeQuietly(client);
+            CloseableUtils.closeQuietly(server);
+        }
+    }
+
+    @Test
+    public void testCoalescing() throws Exception
+    {
+        FakeServer              server = new FakeServer(200);
+        FourLetterWordClient    client = new FourLetterWordClient(0, 0);
+        try
+        {
+            ListenableFuture<FourLetterWord>    first = client.probe(FourLetterWord.Word.SRVR, "localhost", server.getPort(), 5000);
+            ListenableFuture<FourLetterWord>    second = client.probe(FourLetterWord.Word.SRVR, "localhost", server.getPort(), 5000);
+            ListenableFuture<FourLetterWord>    other = client.probe(FourLetterWord.Word.RUOK, "localhost", server.getPort(), 5000);
+            Assert.assertSame(first, second);
+            Assert.assertNotSame(first, other);
+            Assert.assertEquals(first.get(5, TimeUnit.SECONDS).getResponse(), second.get(5, TimeUnit.SECONDS).getResponse());
+            other.get(5, TimeUnit.SECONDS);
+            Assert.assertEquals(server.connections.get(), 2);
+
+            // cache is disabled so a completed probe isn't reused
+            client.get(FourLetterWord.Word.SRVR, "localhost", server.getPort(), 5000);
+            Assert.assertEquals(server.connections.get(), 3);
+        }
+        finally
+        {
+            CloseableUtils.closeQuietly(client);
+            CloseableUtils.closeQuietly(server);
+        }
+    }
+
+    @Test
+    public void testCaching() throws Exception
+    {
+        FakeServer              server = new FakeServer(0);
+        FourLetterWordClient    client = new FourLetterWordClient((int)TimeUnit.MINUTES.toMillis(1), 0);
+        try
+        {
+            for ( int i = 0; i < 3; ++i )
+            {
+                Assert.assertEquals(client.get(FourLetterWord.Word.RUOK, "localhost", server.getPort(), 5000).getResponse(), "imok");
+            }
+            Assert.assertEquals(server.connections.get(), 1);
+        }
+        finally
+        {
+            CloseableUtils.closeQuietly(client);
+            CloseableUtils.closeQuietly(server);
+        }
+    }
+
+    @Test
+    public void testTimeoutNotCached() throws Exception
+    {
+        FakeServer              server = new FakeServer((int)TimeUnit.SECONDS.toMillis(2));
+        FourLetterWordClient    client = new FourLetterWordClient((int)TimeUnit.MINUTES.toMillis(1), 0);
+        try
+        {
+            ListenableFuture<FourLetterWord>    future = client.probe(FourLetterWord.Word.RUOK, "localhost", server.getPort(), 100);
+            try
+            {
+                future.get(5, TimeUnit.SECONDS);
+                Assert.fail();
+            }
+            catch ( ExecutionException e )
+            {
+                // expected
+            }
+
+            Assert.assertNotSame(client.probe(FourLetterWord.Word.RUOK, "localhost", server.getPort(), 100), future);
+        }
+        finally
+        {
+            CloseableUtils.closeQuietly(client);
+            CloseableUtils.closeQuietly(server);
+        }
+    }
+
+    @Test
+    public void testNoServer() throws Exception
+    {
+        ServerSocket            socket = new ServerSocket(0);
+        int                     port = socket.getLocalPort();
+        socket.close();
+
+        FourLetterWordClient    client = new FourLetterWordClient(0, 0);
+        try
+        {
+            Assert.assertEquals(client.get(FourLetterWord.Word.RUOK, "localhost", port, 1000).getResponse(), "");
+        }
+        finally
+        {
+            CloseableUtils.closeQuietly(client);
+        }
+    }
+
+    @Test
+    public void testAdminServerResults() throws Exception
+    {
+        ObjectMapper    mapper = new ObjectMapper();
+
+        Assert.assertEquals(AdminServerCommands.toFourLetterWordResponse(FourLetterWord.Word.RUOK, mapper.readTree("{\"command\":\"ruok\",\"error\":null}")), "imok");
+        Assert.assertNull(AdminServerCommands.toFourLetterWordResponse(FourLetterWord.Word.RUOK, mapper.readTree("{\"command\":\"ruok\",\"error\":\"not running\"}")));
+
+        String          srvr = AdminServerCommands.toFourLetterWordResponse(FourLetterWord.Word.SRVR, mapper.readTree("{\"version\":\"3.5.6\",\"server_stats\":{\"server_state\":\"follower\"},\"command\":\"server_stats\",\"error\":null}"));
+        Assert.assertEquals(new FourLetterWord(srvr).getResponseMap().get("mode"), " follower");
+
+        String          mntr = AdminServerCommands.toFourLetterWordResponse(FourLetterWord.Word.MNTR, mapper.readTree("{\"version\":\"3.5.6\",\"avg_latency\":1,\"server_state\":\"leader\",\"nested\":{\"a\":1},\"command\":\"monitor\",\"error\":null}"));
+        Assert.assertEquals(new FourLetterWord(mntr).getResponseLines(), Arrays.asList("zk_version\t3.5.6", "zk_avg_latency\t1", "zk_server_state\tleader"));
+
+        Assert.assertNull(AdminServerCommands.getCommand(FourLetterWord.Word.CONS));
+    }
+
+    private static class FakeServer implements Closeable
+    {
+        private final ServerSocket      serverSocket = new ServerSocket(0);
+        private final AtomicInteger     connections = new AtomicInteger(0);
+        private final int               delayMs;
+
+        private FakeServer(int delayMs) throws IOException
+        {
+            this.delayMs = delayMs;
+            Thread      thread = new Thread
+            (
+                new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        while ( !serverSocket.isClosed() )
+                        {
+                            try
+                            {
+                                handle(serverSocket.accept());
+                            }
+                            catch ( IOException ignore )
+                            {
+                                // closed
+                            }
+                        }
+                    }
+                }
+            );
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private int getPort()
+        {
+            return serverSocket.getLocalPort();
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            serverSocket.close();
+        }
+
+        private void handle(final Socket socket)
+        {
+            connections.incrementAndGet();
+            Thread      thread = new Thread
+            (
+                new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        try
+                        {
+                            InputStream     in = socket.getInputStream();
+                            byte[]          word = new byte[4];
+                            int             offset = 0;
+                            while ( offset < word.length )
+                            {
+                                int     bytesRead = in.read(word, offset, word.length - offset);
+                                if ( bytesRead < 0 )
+                                {
+                                    return;
+                                }
+                                offset += bytesRead;
+                            }
+
+                            Thread.sleep(delayMs);
+
+                            String          response = new String(word, Charsets.US_ASCII).equals("ruok") ? "imok" : "Zookeeper version: 3.4.5\r\n\r\nMode: leader\n";
+                            OutputStream    out = socket.getOutputStream();
+                            out.write(response.getBytes(Charsets.US_ASCII));
+                            out.flush();
+                        }
+                        catch ( Exception ignore )
+                        {
+                            // client went away
+                        }
+                        finally
+                        {
+                            CloseableUtils.closeQuietly(socket);
+                        }
+                    }
+                }
+            );
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+}
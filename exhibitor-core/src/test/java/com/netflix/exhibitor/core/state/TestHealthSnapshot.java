@@ -0,0 +1,110 @@
+/*
+ * Copyright 2012 Netflix, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.netflix.exhibitor.core.state;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestHealthSnapshot
+{
+    @Test
+    public void testServing()
+    {
+        String          srvr = "Zookeeper version: 3.4.5-1392090, built on 09/30/2012 17:52 GMT\n" +
+            "Latency min/avg/max: 0/3/512\n" +
+            "Received: 2101\n" +
+            "Sent: 2100\n" +
+            "Connections: 4\n" +
+            "Outstanding: 7\n" +
+            "Zxid: 0x10000001a\n" +
+            "Mode: leader\n" +
+            "Node count: 12\n";
+        HealthSnapshot  snapshot = HealthSnapshot.parse(srvr, 1234);
+        Assert.assertEquals(snapshot.getState(), InstanceStateTypes.SERVING);
+        Assert.assertTrue(snapshot.isLeader());
+        Assert.assertEquals(snapshot.getMode(), "leader");
+        Assert.assertEquals(snapshot.getZxid(), 0x10000001aL);
+        Assert.assertEquals(snapshot.getMinLatencyMs(), 0);
+        Assert.assertEquals(snapshot.getAvgLatencyMs(), 3);
+        Assert.assertEquals(snapshot.getMaxLatencyMs(), 512);
+        Assert.assertEquals(snapshot.getOutstandingRequests(), 7);
+        Assert.assertEquals(snapshot.getTimestampMs(), 1234);
+    }
+
+    @Test
+    public void testFollowerWithFractionalLatency()
+    {
+        String          srvr = "Zookeeper version: 3.6.3\r\nLatency min/avg/max: 1/2.5/9\r\nOutstanding: 0\r\nZxid: 0x200000003\r\nMode: follower\r\n";
+        HealthSnapshot  snapshot = HealthSnapshot.parse(srvr, 0);
+        Assert.assertEquals(snapshot.getState(), InstanceStateTypes.SERVING);
+        Assert.assertFalse(snapshot.isLeader());
+        Assert.assertEquals(snapshot.getMode(), "follower");
+        Assert.assertEquals(snapshot.getAvgLatencyMs(), 2);
+        Assert.assertEquals(snapshot.getMaxLatencyMs(), 9);
+        Assert.assertEquals(snapshot.getZxid(), 0x200000003L);
+    }
+
+    @Test
+    public void testAdminServer() throws Exception
+    {
+        String          json = "{\"version\":\"3.6.3--6401e4ad2087061bc6b9f80dec2d69f2e3c8660a, built on 04/08/2021 16:35 GMT\"," +
+            "\"read_only\":false," +
+            "\"server_stats\":{\"packets_sent\":2100,\"packets_received\":2101,\"fsync_threshold_exceed_count\":0," +
+            "\"client_response_stats\":{\"last_buffer_size\":16,\"min_buffer_size\":16,\"max_buffer_size\":16}," +
+            "\"last_processed_zxid\":4294967322,\"outstanding_requests\":7,\"server_state\":\"leader\"," +
+            "\"avg_latency\":3.5,\"max_latency\":512,\"min_latency\":0,\"num_alive_client_connections\":4,\"uptime\":812345}," +
+            "\"node_count\":12,\"command\":\"server_stats\",\"error\":null}";
+        String          srvr = AdminServerCommands.toFourLetterWordResponse(FourLetterWord.Word.SRVR, new ObjectMapper().readTree(json));
+        HealthSnapshot  snapshot = HealthSnapshot.parse(srvr, 1234);
+        Assert.assertEquals(snapshot.getState(), InstanceStateTypes.SERVING);
+        Assert.assertTrue(snapshot.isLeader());
+        Assert.assertEquals(snapshot.getMode(), "leader");
+        Assert.assertEquals(snapshot.getZxid(), 0x10000001aL);
+        Assert.assertEquals(snapshot.getMinLatencyMs(), 0);
+        Assert.assertEquals(snapshot.getAvgLatencyMs(), 3);
+        Assert.assertEquals(snapshot.getMaxLatencyMs(), 512);
+        Assert.assertEquals(snapshot.getOutstandingRequests(), 7);
+        Assert.assertEquals(snapshot.getTimestampMs(), 1234);
+    }
+
+    @Test
+    public void testStandaloneIsLeader()
+    {
+        Assert.assertTrue(HealthSnapshot.parse("Mode: standalone", 0).isLeader());
+    }
+
+    @Test
+    public void testNotServing()
+    {
+        HealthSnapshot  snapshot = HealthSnapshot.parse("This ZooKeeper instance is not currently serving requests\n", 0);
+        Assert.assertEquals(snapshot.getState(), InstanceStateTypes.NOT_SERVING);
+        Assert.assertFalse(snapshot.isLeader());
+        Assert.assertNull(snapshot.getMode());
+    }
+
+    @Test
+    public void testDown()
+    {
+        HealthSnapshot  snapshot = HealthSnapshot.parse("", 0);
+        Assert.assertEquals(snapshot.getState(), InstanceStateTypes.DOWN);
+        Assert.assertEquals(snapshot.getZxid(), HealthSnapshot.UNKNOWN);
+        Assert.assertEquals(snapshot.getOutstandingRequests(), HealthSnapshot.UNKNOWN);
+
+        Assert.assertEquals(HealthSnapshot.parse("Zookeeper version: 3.4.5\n", 0).getState(), InstanceStateTypes.DOWN);
+    }
+}